@@ -0,0 +1,66 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.TravelTimesToStops;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time a complete FastRaptorWorker search from one origin over a one-hour departure window on the synthetic network,
+ * with and without frequency routes. The singleMinute benchmark has a one-minute window, so it performs a single
+ * scheduled search followed by every Monte Carlo draw for that minute. On the network with frequencies, subtracting
+ * its time on the network without frequencies and dividing by the number of draws gives the cost of one draw.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastRaptorWorkerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean frequencies;
+
+    private TransportNetwork network;
+
+    private RegionalTask task;
+
+    private RegionalTask singleMinuteTask;
+
+    private TIntIntMap accessTimes;
+
+    @Setup
+    public void setup () {
+        network = SyntheticNetwork.get(false, frequencies);
+        task = SyntheticNetwork.makeTask(network);
+        singleMinuteTask = SyntheticNetwork.makeTask(network);
+        singleMinuteTask.toTime = singleMinuteTask.fromTime + 60;
+        accessTimes = SyntheticNetwork.walkTimesToStops(network, task, task.fromLat, task.fromLon);
+    }
+
+    @Benchmark
+    public TravelTimesToStops route () {
+        return new FastRaptorWorker(network.transitLayer, task, accessTimes).route();
+    }
+
+    @Benchmark
+    public TravelTimesToStops singleMinute () {
+        return new FastRaptorWorker(network.transitLayer, singleMinuteTask, accessTimes).route();
+    }
+
+}
@@ -0,0 +1,45 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time building the distance tables from every transit stop to the cells of the synthetic network's destination grid,
+ * which is one of the slowest steps when preparing a new scenario.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LinkedPointSetBenchmark {
+
+    private LinkedPointSet linkedPointSet;
+
+    @Setup
+    public void setup () {
+        TransportNetwork network = SyntheticNetwork.get(false, false);
+        linkedPointSet = network.linkedGridPointSet;
+    }
+
+    @Benchmark
+    public List<int[]> makeStopToPointDistanceTables () {
+        linkedPointSet.makeStopToPointDistanceTables(null);
+        return linkedPointSet.stopToPointDistanceTables;
+    }
+
+}
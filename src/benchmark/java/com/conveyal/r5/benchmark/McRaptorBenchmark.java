@@ -0,0 +1,62 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time a point-to-point McRaptorSuboptimalPathProfileRouter search across the synthetic network, as used for
+ * itinerary planning, over a half-hour departure window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class McRaptorBenchmark {
+
+    private TransportNetwork network;
+
+    private Map<LegMode, TIntIntMap> accessTimes = new HashMap<>();
+
+    private Map<LegMode, TIntIntMap> egressTimes = new HashMap<>();
+
+    @Setup
+    public void setup () {
+        network = SyntheticNetwork.get(false, false);
+        RegionalTask task = makeTask();
+        accessTimes.put(LegMode.WALK, SyntheticNetwork.walkTimesToStops(network, task, task.fromLat, task.fromLon));
+        egressTimes.put(LegMode.WALK, SyntheticNetwork.walkTimesToStops(network, task, task.toLat, task.toLon));
+    }
+
+    private RegionalTask makeTask () {
+        RegionalTask task = SyntheticNetwork.makeTask(network);
+        task.toTime = task.fromTime + 30 * 60;
+        return task;
+    }
+
+    @Benchmark
+    public Collection<McRaptorSuboptimalPathProfileRouter.McRaptorState> route () {
+        // The router modifies its request, so make a new one each time.
+        return new McRaptorSuboptimalPathProfileRouter(network, makeTask(), accessTimes, egressTimes).route();
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.profile.TravelTimesToStops;
+import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time PerTargetPropagater.propagate from the travel times to stops of one origin out to every cell of the synthetic
+ * network's destination grid, including reduction of each cell's travel times to percentiles. The RAPTOR search is
+ * performed once during setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PropagationBenchmark {
+
+    @Param({"false", "true"})
+    public boolean frequencies;
+
+    private RegionalTask task;
+
+    private LinkedPointSet targets;
+
+    private TravelTimesToStops travelTimesToStops;
+
+    private int[] nonTransitTravelTimesToTargets;
+
+    @Setup
+    public void setup () {
+        TransportNetwork network = SyntheticNetwork.get(false, frequencies);
+        task = SyntheticNetwork.makeTask(network);
+        targets = network.linkedGridPointSet;
+        targets.makePointToStopDistanceTablesIfNeeded();
+
+        travelTimesToStops = new FastRaptorWorker(network.transitLayer, task,
+                SyntheticNetwork.walkTimesToStops(network, task, task.fromLat, task.fromLon)).route();
+
+        StreetRouter streetRouter = new StreetRouter(network.streetLayer);
+        streetRouter.profileRequest = task;
+        streetRouter.timeLimitSeconds = task.maxWalkTime * 60;
+        streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        streetRouter.setOrigin(task.fromLat, task.fromLon);
+        streetRouter.route();
+        nonTransitTravelTimesToTargets =
+                targets.eval(streetRouter::getTravelTimeToVertex, (int) (task.walkSpeed * 1000)).travelTimes;
+    }
+
+    @Benchmark
+    public OneOriginResult propagate () {
+        PerTargetPropagater propagater = new PerTargetPropagater(targets, task, travelTimesToStops,
+                nonTransitTravelTimesToTargets);
+        propagater.travelTimeReducer = new TravelTimeReducer(task, travelTimesToStops.nIterations);
+        return propagater.propagate();
+    }
+
+}
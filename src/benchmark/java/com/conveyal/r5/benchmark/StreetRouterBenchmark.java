@@ -0,0 +1,62 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time a one-to-many StreetRouter search limited to 20 minutes from the center of the synthetic network, for each
+ * street mode, on networks with and without turn restrictions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreetRouterBenchmark {
+
+    @Param({"WALK", "BICYCLE", "CAR"})
+    public StreetMode streetMode;
+
+    @Param({"false", "true"})
+    public boolean turnRestrictions;
+
+    private TransportNetwork network;
+
+    private RegionalTask task;
+
+    @Setup
+    public void setup () {
+        network = SyntheticNetwork.get(turnRestrictions, false);
+        task = SyntheticNetwork.makeTask(network);
+    }
+
+    @Benchmark
+    public StreetRouter route () {
+        StreetRouter streetRouter = new StreetRouter(network.streetLayer);
+        streetRouter.profileRequest = task;
+        streetRouter.streetMode = streetMode;
+        streetRouter.timeLimitSeconds = 20 * 60;
+        streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        streetRouter.setOrigin(SyntheticNetwork.lat(SyntheticNetwork.GRID_SIZE / 2.0 + 0.3),
+                SyntheticNetwork.lon(SyntheticNetwork.GRID_SIZE / 2.0 + 0.5));
+        streetRouter.route();
+        return streetRouter;
+    }
+
+}
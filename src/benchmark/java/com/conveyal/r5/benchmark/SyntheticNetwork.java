@@ -0,0 +1,348 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.gtfs.GTFSFeed;
+import com.conveyal.gtfs.model.Agency;
+import com.conveyal.gtfs.model.Calendar;
+import com.conveyal.gtfs.model.FeedInfo;
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.Route;
+import com.conveyal.gtfs.model.Service;
+import com.conveyal.gtfs.model.Stop;
+import com.conveyal.gtfs.model.StopTime;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.osmlib.Node;
+import com.conveyal.osmlib.OSM;
+import com.conveyal.osmlib.OSMEntity;
+import com.conveyal.osmlib.Relation;
+import com.conveyal.osmlib.Way;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.transit.TransferFinder;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.TIntIntMap;
+import org.mapdb.Fun;
+
+import java.io.IOException;
+import java.net.URL;
+import java.time.LocalDate;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds a small synthetic TransportNetwork for benchmarking, so that the benchmarks give repeatable numbers without
+ * depending on any external data. The streets are a square grid of two-way blocks about 220 meters long, with every
+ * fifth street a primary road. Bus lines run along each of those primary roads, stopping at every other intersection,
+ * with scheduled service from 6AM to 10AM. Optionally half the lines are frequency-based, and optionally there are
+ * turn restrictions at the intersections of primary roads.
+ *
+ * Networks are cached by their characteristics, so benchmarks in the same JVM share them.
+ */
+public class SyntheticNetwork {
+
+    /** Number of intersections along each side of the street grid. */
+    public static final int GRID_SIZE = 40;
+
+    /** Every Nth street is a primary road with a bus line. */
+    public static final int PRIMARY_SPACING = 5;
+
+    public static final double ORIGIN_LAT = 45.5;
+    public static final double ORIGIN_LON = -122.65;
+    public static final double LAT_STEP = 0.002;
+    public static final double LON_STEP = 0.0028;
+
+    /** A Monday within the service calendar. */
+    public static final LocalDate DATE = LocalDate.of(2018, 6, 4);
+
+    private static final int SECONDS_BETWEEN_STOPS = 90;
+    private static final int SERVICE_START = 6 * 60 * 60;
+    private static final int SERVICE_END = 10 * 60 * 60;
+
+    private static final Map<String, TransportNetwork> cache = new HashMap<>();
+
+    /**
+     * @param turnRestrictions if true, add turn restrictions at the intersections of primary roads.
+     * @param frequencies if true, half the bus lines are defined by frequencies rather than timetables.
+     */
+    public static synchronized TransportNetwork get (boolean turnRestrictions, boolean frequencies) {
+        return cache.computeIfAbsent(turnRestrictions + ":" + frequencies, k -> build(turnRestrictions, frequencies));
+    }
+
+    /** The same steps as TransportNetwork.fromFiles, but with OSM and GTFS data created in memory. */
+    private static TransportNetwork build (boolean turnRestrictions, boolean frequencies) {
+        try {
+            TNBuilderConfig config = TNBuilderConfig.defaultConfig();
+            TransportNetwork network = new TransportNetwork();
+
+            StreetLayer streetLayer = new StreetLayer(config);
+            network.streetLayer = streetLayer;
+            streetLayer.parentNetwork = network;
+            streetLayer.loadFromOsm(makeOsm(turnRestrictions));
+            streetLayer.indexStreets();
+
+            TransitLayer transitLayer = new TransitLayer();
+            transitLayer.loadFromGtfs(makeGtfs(frequencies));
+            network.transitLayer = transitLayer;
+            transitLayer.parentNetwork = network;
+
+            streetLayer.indexStreets();
+            streetLayer.associateStops(transitLayer);
+            streetLayer.buildEdgeLists();
+            transitLayer.rebuildTransientIndexes();
+            new TransferFinder(network).findTransfers();
+
+            transitLayer.buildDistanceTables(null);
+            network.rebuildLinkedGridPointSet();
+            return network;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static long nodeId (int row, int col) {
+        return 1 + row * GRID_SIZE + col;
+    }
+
+    /** The way for the block running east from the given intersection. */
+    private static long eastWayId (int row, int col) {
+        return 1_000_000 + row * GRID_SIZE + col;
+    }
+
+    /** The way for the block running north from the given intersection. */
+    private static long northWayId (int row, int col) {
+        return 2_000_000 + row * GRID_SIZE + col;
+    }
+
+    private static OSM makeOsm (boolean turnRestrictions) throws IOException {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.writeBegin();
+        for (int row = 0; row < GRID_SIZE; row++) {
+            for (int col = 0; col < GRID_SIZE; col++) {
+                osm.writeNode(nodeId(row, col), new Node(ORIGIN_LAT + row * LAT_STEP, ORIGIN_LON + col * LON_STEP));
+            }
+        }
+        // One way per block, so that turn restrictions can refer to ways ending at the via node.
+        for (int row = 0; row < GRID_SIZE; row++) {
+            for (int col = 0; col < GRID_SIZE; col++) {
+                if (col + 1 < GRID_SIZE) {
+                    osm.writeWay(eastWayId(row, col), makeWay(row % PRIMARY_SPACING == 0,
+                            nodeId(row, col), nodeId(row, col + 1)));
+                }
+                if (row + 1 < GRID_SIZE) {
+                    osm.writeWay(northWayId(row, col), makeWay(col % PRIMARY_SPACING == 0,
+                            nodeId(row, col), nodeId(row + 1, col)));
+                }
+            }
+        }
+        if (turnRestrictions) {
+            long relationId = 1;
+            for (int row = PRIMARY_SPACING; row < GRID_SIZE - 1; row += PRIMARY_SPACING) {
+                for (int col = PRIMARY_SPACING; col < GRID_SIZE - 1; col += PRIMARY_SPACING) {
+                    // No left turn from eastbound to northbound, and none from northbound to westbound.
+                    osm.writeRelation(relationId++, makeRestriction("no_left_turn",
+                            eastWayId(row, col - 1), nodeId(row, col), northWayId(row, col)));
+                    osm.writeRelation(relationId++, makeRestriction("no_left_turn",
+                            northWayId(row - 1, col), nodeId(row, col), eastWayId(row, col - 1)));
+                }
+            }
+        }
+        osm.writeEnd();
+        return osm;
+    }
+
+    private static Way makeWay (boolean primary, long... nodes) {
+        Way way = new Way();
+        way.nodes = nodes;
+        way.addTag("highway", primary ? "primary" : "residential");
+        return way;
+    }
+
+    private static Relation makeRestriction (String restriction, long fromWay, long viaNode, long toWay) {
+        Relation relation = new Relation();
+        relation.addTag("type", "restriction");
+        relation.addTag("restriction", restriction);
+        relation.members.add(makeMember(OSMEntity.Type.WAY, fromWay, "from"));
+        relation.members.add(makeMember(OSMEntity.Type.NODE, viaNode, "via"));
+        relation.members.add(makeMember(OSMEntity.Type.WAY, toWay, "to"));
+        return relation;
+    }
+
+    private static Relation.Member makeMember (OSMEntity.Type type, long id, String role) {
+        Relation.Member member = new Relation.Member();
+        member.type = type;
+        member.id = id;
+        member.role = role;
+        return member;
+    }
+
+    private static GTFSFeed makeGtfs (boolean frequencies) throws Exception {
+        GTFSFeed feed = new GTFSFeed();
+        feed.feedId = "SYNTHETIC";
+        FeedInfo info = new FeedInfo();
+        info.feed_id = feed.feedId;
+        feed.feedInfo.put("NONE", info);
+
+        Agency agency = new Agency();
+        agency.agency_id = "agency";
+        agency.agency_name = "Agency";
+        agency.agency_timezone = "America/Los_Angeles";
+        agency.agency_url = new URL("http://www.example.com");
+        feed.agency.put(agency.agency_id, agency);
+
+        Service service = new Service("service");
+        service.calendar = new Calendar();
+        service.calendar.service_id = service.service_id;
+        service.calendar.monday = service.calendar.tuesday = service.calendar.wednesday = service.calendar.thursday =
+                service.calendar.friday = service.calendar.saturday = service.calendar.sunday = 1;
+        service.calendar.start_date = 19991231;
+        service.calendar.end_date = 21001231;
+        feed.services.put(service.service_id, service);
+
+        int lineIndex = 0;
+        for (int line = 0; line < GRID_SIZE; line += PRIMARY_SPACING) {
+            // Headways of 5, 10 and 15 minutes on successive lines, in each direction along each axis.
+            for (boolean northSouth : new boolean[] { false, true }) {
+                int headway = (5 + 5 * (lineIndex % 3)) * 60;
+                boolean frequencyLine = frequencies && lineIndex % 2 == 1;
+                for (boolean reverse : new boolean[] { false, true }) {
+                    String routeId = String.format("%s%d%s", northSouth ? "NS" : "EW", line, reverse ? "R" : "");
+                    addLine(feed, service, routeId, line, northSouth, reverse, headway, frequencyLine);
+                }
+                lineIndex++;
+            }
+        }
+        return feed;
+    }
+
+    /** Add a bus route with trips stopping at every other intersection along the given street. */
+    private static void addLine (GTFSFeed feed, Service service, String routeId, int line, boolean northSouth,
+                                 boolean reverse, int headway, boolean frequencyLine) {
+        Route route = new Route();
+        route.route_id = routeId;
+        route.route_short_name = routeId;
+        route.route_type = 3;
+        route.agency_id = "agency";
+        feed.routes.put(route.route_id, route);
+
+        int nStops = (GRID_SIZE + 1) / 2;
+        String[] stopIds = new String[nStops];
+        for (int s = 0; s < nStops; s++) {
+            int position = (reverse ? nStops - 1 - s : s) * 2;
+            int row = northSouth ? position : line;
+            int col = northSouth ? line : position;
+            // Intersections served by lines in both directions share a stop.
+            String stopId = String.format("S%d_%d", row, col);
+            if (!feed.stops.containsKey(stopId)) {
+                Stop stop = new Stop();
+                stop.stop_id = stop.stop_name = stopId;
+                // Offset the stop slightly from the intersection so it is linked to a street rather than a vertex.
+                stop.stop_lat = ORIGIN_LAT + row * LAT_STEP + LAT_STEP * 0.1;
+                stop.stop_lon = ORIGIN_LON + col * LON_STEP + LON_STEP * 0.1;
+                feed.stops.put(stopId, stop);
+            }
+            stopIds[s] = stopId;
+        }
+
+        if (frequencyLine) {
+            Trip trip = addTrip(feed, service, route, routeId, 0, stopIds);
+            Frequency frequency = new Frequency();
+            frequency.trip_id = trip.trip_id;
+            frequency.start_time = SERVICE_START;
+            frequency.end_time = SERVICE_END;
+            frequency.headway_secs = headway;
+            feed.frequencies.add(new Fun.Tuple2<>(trip.trip_id, frequency));
+        } else {
+            for (int departure = SERVICE_START; departure < SERVICE_END; departure += headway) {
+                addTrip(feed, service, route, routeId + ":" + departure, departure, stopIds);
+            }
+        }
+    }
+
+    private static Trip addTrip (GTFSFeed feed, Service service, Route route, String tripId, int departure,
+                                 String[] stopIds) {
+        Trip trip = new Trip();
+        trip.trip_id = tripId;
+        trip.service_id = service.service_id;
+        trip.route_id = route.route_id;
+        feed.trips.put(trip.trip_id, trip);
+        for (int s = 0; s < stopIds.length; s++) {
+            StopTime stopTime = new StopTime();
+            stopTime.trip_id = trip.trip_id;
+            stopTime.arrival_time = stopTime.departure_time = departure + s * SECONDS_BETWEEN_STOPS;
+            stopTime.stop_id = stopIds[s];
+            stopTime.stop_sequence = s + 1;
+            feed.stop_times.put(new Fun.Tuple2(trip.trip_id, stopTime.stop_sequence), stopTime);
+        }
+        return trip;
+    }
+
+    /** @return the latitude of the given row of the street grid. */
+    public static double lat (double row) {
+        return ORIGIN_LAT + row * LAT_STEP;
+    }
+
+    /** @return the longitude of the given column of the street grid. */
+    public static double lon (double col) {
+        return ORIGIN_LON + col * LON_STEP;
+    }
+
+    /**
+     * Make a regional analysis task from a point near the southwest corner of the grid to a point near the northeast
+     * corner, departing between 7 and 8AM, covering the network's destination grid.
+     */
+    public static RegionalTask makeTask (TransportNetwork network) {
+        RegionalTask task = new RegionalTask();
+        task.fromLat = lat(GRID_SIZE * 0.2);
+        task.fromLon = lon(GRID_SIZE * 0.2);
+        task.toLat = lat(GRID_SIZE * 0.8);
+        task.toLon = lon(GRID_SIZE * 0.8);
+        task.date = DATE;
+        task.fromTime = 7 * 60 * 60;
+        task.toTime = 8 * 60 * 60;
+        task.accessModes = EnumSet.of(LegMode.WALK);
+        task.egressModes = EnumSet.of(LegMode.WALK);
+        task.directModes = EnumSet.of(LegMode.WALK);
+        task.transitModes = EnumSet.allOf(TransitModes.class);
+        task.maxTripDurationMinutes = 120;
+        task.monteCarloDraws = 200;
+        task.percentiles = new double[] { 5, 25, 50, 75, 95 };
+        task.zoom = network.gridPointSet.zoom;
+        task.west = network.gridPointSet.west;
+        task.north = network.gridPointSet.north;
+        task.width = network.gridPointSet.width;
+        task.height = network.gridPointSet.height;
+        return task;
+    }
+
+    /**
+     * Find the walk access times in seconds to transit stops near the given point, in the same way as
+     * TravelTimeComputer: a distance-limited search converted to times at walking speed.
+     */
+    public static TIntIntMap walkTimesToStops (TransportNetwork network, RegionalTask task, double lat, double lon) {
+        StreetRouter streetRouter = new StreetRouter(network.streetLayer);
+        streetRouter.profileRequest = task;
+        streetRouter.streetMode = StreetMode.WALK;
+        streetRouter.distanceLimitMeters = 2000;
+        streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+        if (!streetRouter.setOrigin(lat, lon)) {
+            throw new IllegalStateException("Point is not near the synthetic street network.");
+        }
+        streetRouter.route();
+        int speedMillimetersPerSecond = (int) (task.walkSpeed * 1000);
+        TIntIntMap accessTimes = streetRouter.getReachedStops();
+        for (TIntIntIterator it = accessTimes.iterator(); it.hasNext(); ) {
+            it.advance();
+            it.setValue(it.value() / speedMillimetersPerSecond);
+        }
+        return accessTimes;
+    }
+
+}
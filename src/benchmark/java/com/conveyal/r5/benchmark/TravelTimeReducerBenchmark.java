@@ -0,0 +1,94 @@
+package com.conveyal.r5.benchmark;
+
+import com.conveyal.r5.analyst.TravelTimeReducer;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare extracting travel time percentiles at each destination with a histogram against the previous approach of
+ * sorting all the travel times. Each benchmark invocation reduces the times for one destination, cycling through a
+ * pool of destinations. The times are copied into a scratch array in both cases, because sorting is destructive.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TravelTimeReducerBenchmark {
+
+    private static final int N_DESTINATIONS = 1024;
+
+    /** The number of RAPTOR iterations, i.e. travel times per destination. */
+    @Param({"600", "3000"})
+    public int nIterations;
+
+    /** The share of destinations that are never reached, as in the outer parts of a large region. */
+    @Param({"0.0", "0.5"})
+    public double unreachedDestinationShare;
+
+    private TravelTimeReducer reducer;
+
+    private int[][] travelTimes;
+
+    private int[] scratch;
+
+    private int destination = 0;
+
+    @Setup
+    public void setup () {
+        RegionalTask task = new RegionalTask();
+        task.maxTripDurationMinutes = 120;
+        task.percentiles = new double[] { 5, 25, 50, 75, 95 };
+        reducer = new TravelTimeReducer(task, nIterations);
+        scratch = new int[nIterations];
+
+        // Reached destinations have a typical travel time plus noise from departure time and schedule variation, and
+        // are unreached at some iterations.
+        Random random = new Random(42);
+        travelTimes = new int[N_DESTINATIONS][nIterations];
+        for (int d = 0; d < N_DESTINATIONS; d++) {
+            boolean reached = random.nextDouble() >= unreachedDestinationShare;
+            int typicalSeconds = 600 + random.nextInt(100 * 60);
+            for (int i = 0; i < nIterations; i++) {
+                if (!reached || random.nextDouble() < 0.1) {
+                    travelTimes[d][i] = FastRaptorWorker.UNREACHED;
+                } else {
+                    travelTimes[d][i] = typicalSeconds + random.nextInt(20 * 60);
+                }
+            }
+        }
+    }
+
+    private int[] nextTravelTimes () {
+        int[] times = travelTimes[destination];
+        destination = (destination + 1) % N_DESTINATIONS;
+        System.arraycopy(times, 0, scratch, 0, nIterations);
+        return scratch;
+    }
+
+    @Benchmark
+    public int[] histogram () {
+        return reducer.extractPercentilesMinutes(nextTravelTimes());
+    }
+
+    @Benchmark
+    public int[] sort () {
+        return reducer.extractPercentilesMinutesBySorting(nextTravelTimes());
+    }
+
+}
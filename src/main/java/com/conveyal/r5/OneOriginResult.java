@@ -35,7 +35,14 @@ public class OneOriginResult {
         } else {
             result = new RegionalWorkResult(task.jobId, task.taskId, accessibility.grids.length,
                     accessibility.percentiles.length, accessibility.cutoffs.length);
-            result.setAcccessibilityValue(0, 0, 0, (int) accessibility.getAccessibility(0, 0, 0));
+            // Note that the percentiles and cutoffs are nested in opposite orders in the two classes.
+            for (int g = 0; g < accessibility.grids.length; g++) {
+                for (int c = 0; c < accessibility.cutoffs.length; c++) {
+                    for (int p = 0; p < accessibility.percentiles.length; p++) {
+                        result.setAcccessibilityValue(g, p, c, (int) accessibility.getAccessibility(g, c, p));
+                    }
+                }
+            }
         }
         return result;
     }
@@ -3,7 +3,9 @@ package com.conveyal.r5.analyst;
 import com.conveyal.r5.OneOriginResult;
 import com.conveyal.r5.analyst.cluster.Origin;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.profile.FastRaptorWorker;
 import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.transit.TransitLayer;
 
 import java.util.Base64;
 
@@ -51,10 +53,12 @@ public class BootstrappingTravelTimeReducer {
      *
      * TODO verify that this optimization actually affects runtime in the non-bootstrapping case.
      */
-    public BootstrappingTravelTimeReducer (RegionalTask request, Grid grid) {
+    public BootstrappingTravelTimeReducer (RegionalTask request, Grid grid, TransitLayer transitLayer) {
         this.task = request;
         this.grid = grid;
-        int nIterations = request.getTimeWindowLengthMinutes() * request.getMonteCarloDrawsPerMinute();
+        // Networks without frequency routes get a single draw per minute, so count iterations as the router does.
+        int nIterations = request.getTimeWindowLengthMinutes() *
+                FastRaptorWorker.monteCarloDrawsPerMinute(request, transitLayer);
         // TODO handle multiple percentiles, request already has an array to hold more than one of them
         if (request.percentiles.length != 1) {
             throw new IllegalArgumentException("Bootstrapped travel times only support a single percentile of travel time!");
@@ -11,6 +11,7 @@ import com.google.common.cache.LoadingCache;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
+import gnu.trove.list.TIntList;
 import org.mapdb.Fun.Tuple2;
 
 import java.io.Serializable;
@@ -66,7 +67,7 @@ public abstract class PointSet implements Serializable {
     /**
      * Makes it fast to get a set of all points within a given rectangle.
      * This is useful when finding distances from transit stops to points.
-     * FIXME we don't need a spatial index to do this on a gridded pointset. Make an method abstract and implement on subclasses.
+     * Gridded pointsets do not need a spatial index to do this, see pointsInEnvelope.
      * The spatial index is a hashgrid anyway though, not an STRtree.
      */
     public transient IntHashGrid spatialIndex;
@@ -106,16 +107,32 @@ public abstract class PointSet implements Serializable {
         return GeometryUtils.geometryFactory.createPoint(getCoordinateFixed(index));
     }
 
+    /**
+     * Find all the points that may be within the given envelope in FIXED POINT DEGREES. Like a spatial index query, this
+     * may also return some points outside the envelope, but will not miss any point inside it.
+     * This uses the spatial index, subclasses whose points are laid out regularly can find them directly.
+     * @param points a list that will be cleared, then filled with the indexes of the points in ascending order.
+     */
+    public void pointsInEnvelope (Envelope envelopeFixed, TIntList points) {
+        createSpatialIndexAsNeeded();
+        points.clear();
+        points.addAll(spatialIndex.query(envelopeFixed));
+        points.sort();
+    }
+
     /**
      * If the spatial index of points in the pointset has not yet been made, create one.
+     * This is synchronized because pointsInEnvelope may be called from several threads at once. The index is fully
+     * built before it is stored in the field.
      */
-    public void createSpatialIndexAsNeeded() {
+    public synchronized void createSpatialIndexAsNeeded() {
         if (spatialIndex != null) return;
-        spatialIndex = new IntHashGrid();
+        IntHashGrid index = new IntHashGrid();
         for (int p = 0; p < this.featureCount(); p++) {
             Envelope pointEnvelope = new Envelope(getCoordinateFixed(p));
-            spatialIndex.insert(pointEnvelope, p);
+            index.insert(pointEnvelope, p);
         }
+        spatialIndex = index;
     }
 
 }
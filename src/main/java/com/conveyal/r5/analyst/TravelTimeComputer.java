@@ -8,6 +8,7 @@ import com.conveyal.r5.point_to_point.builder.PointToPointQuery;
 import com.conveyal.r5.profile.FastRaptorWorker;
 import com.conveyal.r5.profile.PerTargetPropagater;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.profile.TravelTimesToStops;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetRouter;
 import com.conveyal.r5.transit.TransportNetwork;
@@ -18,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -43,8 +45,83 @@ public class TravelTimeComputer {
         this.gridCache = gridCache;
     }
 
+    /** Accumulates the travel times from this computer's origin, set up by computeAccess. */
+    private TravelTimeReducer travelTimeReducer;
+
+    /** The destinations linked for the egress mode, set by computeAccess when transit is used. */
+    private LinkedPointSet egressModeLinkedDestinations;
+
+    /** The travel times to the transit stops reached from the origin, set by computeAccess when transit is used. */
+    private TIntIntMap accessTimes;
+
+    /** The travel times to all destinations without using transit, set by computeAccess when transit is used. */
+    private int[] nonTransitTravelTimesToDestinations;
+
     // We should try to decouple the internal representation of the results from how they're serialized to an API.
     public OneOriginResult computeTravelTimes() throws IOException {
+        OneOriginResult nonTransitResult = computeAccess();
+        if (nonTransitResult != null) return nonTransitResult;
+
+        FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+        if (request.returnPaths || request.travelTimeBreakdown) {
+            // By default, this is false and intermediate results (e.g. paths) are discarded.
+            // TODO do we really need to save all states just to get the travel time breakdown?
+            worker.retainPaths = true;
+        }
+
+        // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
+        // Returns the total travel times to every stop for every search iteration, stored stop-major.
+        // Additional detailed path information is retained in the FastRaptorWorker after routing.
+        TravelTimesToStops transitTravelTimesToStops = worker.route();
+        return propagate(transitTravelTimesToStops, worker);
+    }
+
+    /**
+     * Compute travel times from each origin in a tile of nearby origins of the same regional analysis, which must all
+     * have the same request parameters apart from their origins. Each origin still gets its own street search and its
+     * results are the same as computing them one by one, but the transit searches for all the origins are run as one
+     * batch (see FastRaptorWorker.routeBatch), which filters the patterns only once and reuses the RAPTOR states from
+     * one origin to the next. The origins are handled in the order given, so tiles ordered along a Hilbert curve keep
+     * the parts of the street network, transit network and linked destinations that they have in common in the cache
+     * from one origin to the next.
+     * @return the result for each origin, in the same order.
+     */
+    public static List<OneOriginResult> computeTravelTimes (List<? extends AnalysisTask> tile, TransportNetwork network,
+                                                            GridCache gridCache) throws IOException {
+        OneOriginResult[] results = new OneOriginResult[tile.size()];
+        List<TravelTimeComputer> transitComputers = new ArrayList<>();
+        List<Integer> transitOrigins = new ArrayList<>();
+        List<TIntIntMap> accessTimesPerOrigin = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            TravelTimeComputer computer = new TravelTimeComputer(tile.get(i), network, gridCache);
+            if (computer.request.returnPaths || computer.request.travelTimeBreakdown) {
+                // Paths are not retained in batch mode.
+                results[i] = computer.computeTravelTimes();
+                continue;
+            }
+            results[i] = computer.computeAccess();
+            if (results[i] == null) {
+                transitComputers.add(computer);
+                transitOrigins.add(i);
+                accessTimesPerOrigin.add(computer.accessTimes);
+            }
+        }
+        if (!transitComputers.isEmpty()) {
+            List<TravelTimesToStops> travelTimesToStops = FastRaptorWorker.routeBatch(network.transitLayer,
+                    transitComputers.get(0).request, accessTimesPerOrigin);
+            for (int t = 0; t < transitComputers.size(); t++) {
+                results[transitOrigins.get(t)] = transitComputers.get(t).propagate(travelTimesToStops.get(t), null);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Perform the street search from the origin. If transit is not used or cannot be reached, this finds the final
+     * result, which is returned. Otherwise this sets the access times to transit stops and the travel times to
+     * destinations without transit, which are then combined with the transit search, and returns null.
+     */
+    private OneOriginResult computeAccess () throws IOException {
 
         // The mode of travel that will be used to reach transit stations from the origin point.
         StreetMode accessMode = LegMode.getDominantStreetMode(request.accessModes);
@@ -60,7 +137,9 @@ public class TravelTimeComputer {
         PointSet destinations = destinationList.get(0);
 
         // TODO Create and encapsulate this within the propagator.
-        TravelTimeReducer travelTimeReducer = new TravelTimeReducer(request);
+        int nIterations = request.getTimeWindowLengthMinutes() *
+                FastRaptorWorker.monteCarloDrawsPerMinute(request, network.transitLayer);
+        travelTimeReducer = new TravelTimeReducer(request, nIterations);
 
         // Attempt to set the origin point before progressing any further.
         // This allows us to skip routing calculations if the network is entirely inaccessible. In the CAR_PARK
@@ -96,6 +175,7 @@ public class TravelTimeComputer {
             LinkedPointSet directModeLinkedDestinations = destinations.link(network.streetLayer, directMode);
             int[] travelTimesToTargets = directModeLinkedDestinations
                     .eval(sr::getTravelTimeToVertex, offstreetTravelSpeedMillimetersPerSecond).travelTimes;
+            sr.release();
 
             // Iterate over all destinations ("targets") and at each destination, save the same travel time for all percentiles.
             for (int d = 0; d < travelTimesToTargets.length; d++) {
@@ -111,7 +191,7 @@ public class TravelTimeComputer {
             // TODO use directMode? Is that a resource limiting issue?
             // Also, gridcomputer uses accessMode to avoid running two street searches.
             LinkedPointSet accessModeLinkedDestinations = destinations.link(network.streetLayer, accessMode);
-            LinkedPointSet egressModeLinkedDestinations = destinations.link(network.streetLayer, egressMode);
+            egressModeLinkedDestinations = destinations.link(network.streetLayer, egressMode);
 
             if (!request.directModes.equals(request.accessModes)) {
                 LOG.error("Direct mode may not be different than access mode in analysis.");
@@ -120,12 +200,9 @@ public class TravelTimeComputer {
             // The code blocks below essentially serve to identify transit stations reachable from the origin and
             // produce a grid of non-transit travel times that will later be merged with the transit travel times.
 
-            // A map from transit stop vertex indices to the travel time it takes to reach those vertices.
-            TIntIntMap accessTimes;
-
-            // This will hold the travel times to all destination grid cells reachable without using transit
-            // (via only the access/direct mode).
-            int[] nonTransitTravelTimesToDestinations;
+            // accessTimes will hold a map from transit stop vertex indices to the travel time it takes to reach those
+            // vertices, and nonTransitTravelTimesToDestinations will hold the travel times to all destination grid
+            // cells reachable without using transit (via only the access/direct mode).
 
             // The request has the speed in float meters per second, internally we use integer millimeters per second.
             int offstreetTravelSpeedMillimetersPerSecond = (int) (request.getSpeedForMode(accessMode) * 1000);
@@ -173,9 +250,10 @@ public class TravelTimeComputer {
                 // FIXME is this iterating over every cell in the destination grid just to get the access times around the origin?
                 nonTransitTravelTimesToDestinations =
                         accessModeLinkedDestinations.eval(v -> {
-                                    StreetRouter.State state = effectivelyFinalSr.getStateAtVertex(v);
-                                    if (state == null) return FastRaptorWorker.UNREACHED;
-                                    else return state.distance / offstreetTravelSpeedMillimetersPerSecond;
+                                    int distanceMillimeters = effectivelyFinalSr.getValueAtVertex(v,
+                                            StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS);
+                                    if (distanceMillimeters == Integer.MAX_VALUE) return FastRaptorWorker.UNREACHED;
+                                    else return distanceMillimeters / offstreetTravelSpeedMillimetersPerSecond;
                                 },
                                 offstreetTravelSpeedMillimetersPerSecond).travelTimes;
             } else {
@@ -190,6 +268,9 @@ public class TravelTimeComputer {
                                 .travelTimes;
             }
 
+            // The street search results have all been read, let the next search on this thread reuse its workspace.
+            if (sr != null) sr.release();
+
             // Short circuit unnecessary transit routing: If the origin was linked to a road, but no transit stations
             // were reached, return the non-transit grid as the final result.
             if (accessTimes.isEmpty()) {
@@ -202,31 +283,28 @@ public class TravelTimeComputer {
                 return travelTimeReducer.finish();
             }
 
-            FastRaptorWorker worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
-            if (request.returnPaths || request.travelTimeBreakdown) {
-                // By default, this is false and intermediate results (e.g. paths) are discarded.
-                // TODO do we really need to save all states just to get the travel time breakdown?
-                worker.retainPaths = true;
-            }
-
-            // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
-            // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
-            // Additional detailed path information is retained in the FastRaptorWorker after routing.
-            int[][] transitTravelTimesToStops = worker.route();
-
-            PerTargetPropagater perTargetPropagater = new PerTargetPropagater(egressModeLinkedDestinations, request,
-                    transitTravelTimesToStops, nonTransitTravelTimesToDestinations);
-
-            // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
-            // because in the non-transit case we call the reducer directly (see above).
-            perTargetPropagater.travelTimeReducer = travelTimeReducer;
-
-            if (worker.retainPaths) {
-                perTargetPropagater.pathsToStopsForIteration = worker.pathsPerIteration;
-                perTargetPropagater.pathWriter = new PathWriter(request, PerTargetPropagater.N_PATHS_PER_TARGET);
-            }
+            return null;
+        }
+    }
 
-            return perTargetPropagater.propagate();
+    /**
+     * Combine the travel times to transit stops found by a transit search from the origin with the travel times to
+     * destinations without transit found by computeAccess, and reduce them into the result.
+     * @param worker the worker that performed the transit search, if it retained paths, or null.
+     */
+    private OneOriginResult propagate (TravelTimesToStops transitTravelTimesToStops, FastRaptorWorker worker) {
+        PerTargetPropagater perTargetPropagater = new PerTargetPropagater(egressModeLinkedDestinations, request,
+                transitTravelTimesToStops, nonTransitTravelTimesToDestinations);
+
+        // We cannot yet merge the functionality of the TravelTimeReducer into the PerTargetPropagator
+        // because in the non-transit case we call the reducer directly (see above).
+        perTargetPropagater.travelTimeReducer = travelTimeReducer;
+
+        if (worker != null && worker.retainPaths) {
+            perTargetPropagater.pathsToStopsForIteration = worker.pathsPerIteration;
+            perTargetPropagater.pathWriter = new PathWriter(request, PerTargetPropagater.N_PATHS_PER_TARGET);
         }
+
+        return perTargetPropagater.propagate();
     }
 }
@@ -40,15 +40,29 @@ public class TravelTimeReducer {
 
     private final int timesPerDestination;
 
+    /**
+     * Reusable histogram of the number of travel times at a destination falling into each one-minute bin below
+     * maxTripDurationMinutes, used to find percentiles without sorting. One reducer is used by one thread for one
+     * origin, so this small array stays in processor cache for every destination that origin reaches.
+     */
+    private final int[] travelTimeHistogram;
+
+    /** Reusable storage for the rare travel times at or beyond maxTripDurationMinutes that are not UNREACHED. */
+    private int[] longTravelTimesSeconds = new int[0];
+
     /**
      * Knowing the number of times that will be provided per destination and holding that constant allows us to
      * pre-compute and cache the positions within the sorted array at which percentiles will be found.
+     *
+     * @param timesPerDestination the number of RAPTOR iterations that will be performed, which depends on whether
+     *                            the network has frequency routes (see FastRaptorWorker.monteCarloDrawsPerMinute).
      */
-    public TravelTimeReducer (AnalysisTask task) {
+    public TravelTimeReducer (AnalysisTask task, int timesPerDestination) {
 
         this.maxTripDurationMinutes = task.maxTripDurationMinutes;
-        this.timesPerDestination = task.getMonteCarloDrawsPerMinute() * task.getTimeWindowLengthMinutes();
+        this.timesPerDestination = timesPerDestination;
         this.nPercentiles = task.percentiles.length;
+        this.travelTimeHistogram = new int[maxTripDurationMinutes];
 
         // We pre-compute the indexes at which we'll find each percentile in a sorted list of the given length.
         this.percentileIndexes = new int[nPercentiles];
@@ -98,40 +112,21 @@ public class TravelTimeReducer {
     /**
      * Given a list of travel times of the expected length, extract the requested percentiles. Either the extracted
      * percentiles or the resulting accessibility values (or both) are then stored.
-     * WARNING: this method destructively sorts the supplied times in place.
-     * Their positions in the array will no longer correspond to the raptor iterations that produced them.
-     * @param timesSeconds which will be destructively sorted in place to extract percentiles.
+     * The supplied times are not modified.
      * @return the extracted travel times, in minutes. This is a hack to enable scoring paths in the caller.
      */
     public int[] recordTravelTimesForTarget (int target, int[] timesSeconds) {
-        // TODO factor out getPercentiles method for clarity
-        // Sort the times at each target and read off percentiles at the pre-calculated indexes.
-        int[] percentileTravelTimesMinutes = new int[nPercentiles];
+        int[] percentileTravelTimesMinutes;
         if (timesSeconds.length == 1) {
             // Handle results with no variation, e.g. from walking, biking, or driving.
             // TODO instead of conditionals maybe overload this function to have one version that takes a single int time and wraps this array function.
+            percentileTravelTimesMinutes = new int[nPercentiles];
             int travelTimeSeconds = timesSeconds[0];
             int travelTimeMinutes = (travelTimeSeconds == FastRaptorWorker.UNREACHED) ?
                     FastRaptorWorker.UNREACHED : travelTimeSeconds / 60;
             Arrays.fill(percentileTravelTimesMinutes, travelTimeMinutes);
         } else if (timesSeconds.length == timesPerDestination) {
-            // Instead of general purpose sort this could be done by performing a counting sort on the times,
-            // converting them to minutes in the process and reusing the small histogram array (120 elements) which
-            // should remain largely in processor cache. That's a lot of division though. Would need to be profiled.
-            Arrays.sort(timesSeconds);
-            for (int p = 0; p < nPercentiles; p++) {
-                int timeSeconds = timesSeconds[percentileIndexes[p]];
-                if (timeSeconds == FastRaptorWorker.UNREACHED) {
-                    percentileTravelTimesMinutes[p] = FastRaptorWorker.UNREACHED;
-                } else {
-                    // Int divide will floor; this is correct because value 0 has travel times of up to one minute, etc.
-                    // This means that anything less than a cutoff of (say) 60 minutes (in seconds) will have value 59,
-                    // which is what we want. But maybe converting to minutes before we actually export a binary format is tying
-                    // the backend and frontend (which makes use of UInt8 typed arrays) too closely.
-                    int timeMinutes = timeSeconds / 60;
-                    percentileTravelTimesMinutes[p] = timeMinutes;
-                }
-            }
+            percentileTravelTimesMinutes = extractPercentilesMinutes(timesSeconds);
         } else {
             throw new ParameterException("You must supply the expected number of travel time values (or only one value).");
         }
@@ -154,6 +149,102 @@ public class TravelTimeReducer {
         return percentileTravelTimesMinutes;
     }
 
+    /**
+     * Find the travel time in minutes at each requested percentile, giving exactly the same results as sorting the
+     * times and reading off the values at percentileIndexes (see extractPercentilesMinutesBySorting), but without
+     * sorting. Since the results are truncated to whole minutes, we only need to know how many times fall into each
+     * one-minute bin, which is a single pass over the times to fill a small histogram. The percentiles are then found
+     * by accumulating the bin counts. Times at or beyond maxTripDurationMinutes are rare (most are UNREACHED) so those
+     * that are not UNREACHED are just collected and sorted in the unusual case where a percentile falls among them.
+     * Destinations that are not reached at any iteration, which are most of them in a large region, are detected in
+     * the same pass and skip the rest of the work.
+     */
+    public int[] extractPercentilesMinutes (int[] timesSeconds) {
+        int[] percentileTravelTimesMinutes = new int[nPercentiles];
+        Arrays.fill(travelTimeHistogram, 0);
+        int nUnreached = 0;
+        int nLongTravelTimes = 0;
+        for (int timeSeconds : timesSeconds) {
+            if (timeSeconds == FastRaptorWorker.UNREACHED) {
+                nUnreached++;
+            } else {
+                int timeMinutes = timeSeconds / 60;
+                if (timeMinutes < maxTripDurationMinutes) {
+                    travelTimeHistogram[timeMinutes]++;
+                } else {
+                    nLongTravelTimes++;
+                }
+            }
+        }
+
+        if (nUnreached == timesSeconds.length) {
+            Arrays.fill(percentileTravelTimesMinutes, FastRaptorWorker.UNREACHED);
+            return percentileTravelTimesMinutes;
+        }
+
+        boolean longTravelTimesSorted = false;
+        for (int p = 0; p < nPercentiles; p++) {
+            // Find the bin containing the element that would be at this index in the sorted times.
+            int index = percentileIndexes[p];
+            int cumulativeCount = 0;
+            int timeMinutes = 0;
+            while (timeMinutes < maxTripDurationMinutes && cumulativeCount + travelTimeHistogram[timeMinutes] <= index) {
+                cumulativeCount += travelTimeHistogram[timeMinutes];
+                timeMinutes++;
+            }
+            if (timeMinutes < maxTripDurationMinutes) {
+                percentileTravelTimesMinutes[p] = timeMinutes;
+            } else if (index - cumulativeCount < nLongTravelTimes) {
+                if (!longTravelTimesSorted) {
+                    sortLongTravelTimes(timesSeconds, nLongTravelTimes);
+                    longTravelTimesSorted = true;
+                }
+                percentileTravelTimesMinutes[p] = longTravelTimesSeconds[index - cumulativeCount] / 60;
+            } else {
+                percentileTravelTimesMinutes[p] = FastRaptorWorker.UNREACHED;
+            }
+        }
+        return percentileTravelTimesMinutes;
+    }
+
+    /** Collect and sort the travel times that are at or beyond maxTripDurationMinutes but not UNREACHED. */
+    private void sortLongTravelTimes (int[] timesSeconds, int nLongTravelTimes) {
+        if (longTravelTimesSeconds.length < nLongTravelTimes) {
+            longTravelTimesSeconds = new int[nLongTravelTimes];
+        }
+        int i = 0;
+        for (int timeSeconds : timesSeconds) {
+            if (timeSeconds != FastRaptorWorker.UNREACHED && timeSeconds / 60 >= maxTripDurationMinutes) {
+                longTravelTimesSeconds[i++] = timeSeconds;
+            }
+        }
+        Arrays.sort(longTravelTimesSeconds, 0, nLongTravelTimes);
+    }
+
+    /**
+     * The straightforward way of finding percentiles, by sorting the times and reading off percentiles at the
+     * pre-calculated indexes. This was used for every destination before extractPercentilesMinutes was written, and
+     * is retained as a reference for tests and benchmarks.
+     * WARNING: this method destructively sorts the supplied times in place.
+     */
+    public int[] extractPercentilesMinutesBySorting (int[] timesSeconds) {
+        int[] percentileTravelTimesMinutes = new int[nPercentiles];
+        Arrays.sort(timesSeconds);
+        for (int p = 0; p < nPercentiles; p++) {
+            int timeSeconds = timesSeconds[percentileIndexes[p]];
+            if (timeSeconds == FastRaptorWorker.UNREACHED) {
+                percentileTravelTimesMinutes[p] = FastRaptorWorker.UNREACHED;
+            } else {
+                // Int divide will floor; this is correct because value 0 has travel times of up to one minute, etc.
+                // This means that anything less than a cutoff of (say) 60 minutes (in seconds) will have value 59,
+                // which is what we want. But maybe converting to minutes before we actually export a binary format is tying
+                // the backend and frontend (which makes use of UInt8 typed arrays) too closely.
+                percentileTravelTimesMinutes[p] = timeSeconds / 60;
+            }
+        }
+        return percentileTravelTimesMinutes;
+    }
+
     /**
      * If no travel times to destinations have been streamed in by calling recordTravelTimesForTarget, the
      * TimeGrid will have a buffer full of UNREACHED. This allows shortcutting around
@@ -5,6 +5,8 @@ import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.list.TIntList;
 import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +16,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import static com.conveyal.r5.streets.VertexStore.fixedDegreesToFloating;
+
 /**
  * A pointset that represents a grid of pixels from the web mercator projection.
  */
@@ -106,6 +110,25 @@ public class WebMercatorGridPointSet extends PointSet implements Serializable {
         return pixelToLon(x);
     }
 
+    /**
+     * The points of a grid can be found directly from the pixel coordinates of the envelope, without a spatial index.
+     * The range is widened by one pixel on each side so no point is missed due to rounding.
+     */
+    @Override
+    public void pointsInEnvelope (Envelope envelopeFixed, TIntList points) {
+        points.clear();
+        // Pixel y coordinates increase toward the south.
+        int minX = Math.max(lonToPixel(fixedDegreesToFloating(envelopeFixed.getMinX())) - west - 1, 0);
+        int maxX = Math.min(lonToPixel(fixedDegreesToFloating(envelopeFixed.getMaxX())) - west + 1, width - 1);
+        int minY = Math.max(latToPixel(fixedDegreesToFloating(envelopeFixed.getMaxY())) - north - 1, 0);
+        int maxY = Math.min(latToPixel(fixedDegreesToFloating(envelopeFixed.getMinY())) - north + 1, height - 1);
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                points.add(y * width + x);
+            }
+        }
+    }
+
     // http://wiki.openstreetmap.org/wiki/Slippy_map_tilenames#Mathematics
 
     /** convert longitude to pixel value */
@@ -1,11 +1,10 @@
 package com.conveyal.r5.analyst.cluster;
 
-import com.conveyal.r5.OneOriginResult;
 import com.conveyal.r5.common.JsonUtilities;
 import spark.Request;
 import spark.Response;
 
-import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class contains Spark HTTP request handler methods that are served up by Analysis workers.
@@ -24,12 +23,44 @@ public class AnalysisWorkerController {
         // Record the fact that this worker is busy so it will not shut down
         analystWorker.lastSinglePointTime = System.currentTimeMillis();
         TravelTimeSurfaceTask task = JsonUtilities.objectFromRequestBody(request, TravelTimeSurfaceTask.class);
-        // TODO do not return raw binary data from method, return better typed response
-        byte[] binaryResult = analystWorker.handleOneRequest(task);
-        response.header("content-type", "application/octet-stream");
-        // This will cause Spark Framework to gzip the data automatically if requested by the client
-        response.header("Content-Encoding", "gzip");
-        return binaryResult;
+        // Stream the result straight into the response rather than holding it all in memory first. The stream is
+        // only opened once the result is ready, so if the task fails nothing has been sent and Spark can still respond.
+        // We gzip the data ourselves if the client accepts it, as Spark only gzips bodies that it writes itself.
+        // Compression ratios here are extreme (100x is not uncommon), so clients (the broker) should accept gzip.
+        boolean gzip = acceptsGzip(request);
+        // Hold back regional tasks that have not started yet until this request is done, so it responds sooner.
+        RegionalTaskScheduler scheduler = analystWorker.regionalTaskScheduler;
+        if (scheduler != null) scheduler.beginSinglePointRequest();
+        boolean wroteResult;
+        try {
+            wroteResult = analystWorker.handleOneRequest(task, () -> {
+                response.header("content-type", "application/octet-stream");
+                if (!gzip) return response.raw().getOutputStream();
+                response.header("Content-Encoding", "gzip");
+                return new GZIPOutputStream(response.raw().getOutputStream());
+            });
+        } finally {
+            if (scheduler != null) scheduler.endSinglePointRequest();
+        }
+        // Once the result has been written the response is committed, and Spark will not write anything else to it.
+        return wroteResult ? "" : null;
+    }
+
+    /** @return whether the Accept-Encoding header of the given request lists gzip. */
+    private static boolean acceptsGzip (Request request) {
+        String acceptEncoding = request.headers("Accept-Encoding");
+        if (acceptEncoding == null) return false;
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            // An encoding with a quality of zero is explicitly not acceptable.
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim().replace(" ", "");
+                if (parameter.matches("q=0(\\.0*)?")) return false;
+            }
+            return true;
+        }
+        return false;
     }
 
 }
@@ -9,19 +9,25 @@ import com.conveyal.r5.analyst.S3FilePersistence;
 import com.conveyal.r5.analyst.TravelTimeComputer;
 import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.error.TaskError;
+import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
+import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.transit.TransportNetworkCache;
 import com.conveyal.r5.transitive.TransitiveNetwork;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.io.LittleEndianDataOutputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.config.SocketConfig;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
@@ -29,6 +35,7 @@ import org.eclipse.jetty.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -39,18 +46,19 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
 
 /**
  * This is a main class run by worker machines in our Analysis computation cluster.
@@ -154,6 +162,24 @@ public class AnalystWorker implements Runnable {
     /** The last time (in milliseconds since the epoch) that we polled for work. */
     private long lastPollingTime;
 
+    /**
+     * Whether the broker has said (in its response to a previous poll) that it understands worker statuses in the
+     * compact BinaryWorkerStatus encoding. Until it does, we send JSON, so this worker can talk to older brokers.
+     */
+    private boolean brokerAcceptsBinaryStatus = false;
+
+    /** If false, always send the worker status and work results as JSON even if the broker accepts binary. */
+    private boolean binaryWorkResults = true;
+
+    /** Whether to gzip the worker status and work results when sending them to the broker. */
+    private boolean compressWorkResults = false;
+
+    /**
+     * The maximum number of adjacent origins of a regional analysis to compute together as one tile, in Hilbert order
+     * (see TravelTimeComputer.computeTravelTimes for a tile). If this is one, each origin is computed on its own.
+     */
+    private int originTileSize = 1;
+
     /**
      * A list of times at which tasks have been completed. Regularly truncated to only times in the last minute.
      * This allows reporting average throughput over different timescales up to one minute.
@@ -202,12 +228,11 @@ public class AnalystWorker implements Runnable {
     private boolean workOffline;
 
     /**
-     * A queue to hold a backlog of regional analysis tasks.
+     * Holds a backlog of regional analysis tasks and runs them, deciding when to fetch more from the broker.
      * This avoids "slow joiner" syndrome where we wait to poll for more work until all N fetched tasks have finished,
      * but one of the tasks takes much longer than all the rest.
-     * This should be long enough to hold all that have come in - we don't need to block on polling the manager.
      */
-    private ThreadPoolExecutor regionalTaskExecutor;
+    RegionalTaskScheduler regionalTaskScheduler;
 
     /** The HTTP server that receives single-point requests. */
     private spark.Service sparkHttpService;
@@ -219,9 +244,23 @@ public class AnalystWorker implements Runnable {
         String graphsBucket = workOffline ? null : config.getProperty("graphs-bucket");
         String graphDirectory = config.getProperty("cache-dir", "cache/graphs");
         TransportNetworkCache cache = new TransportNetworkCache(graphsBucket, new File(graphDirectory));
+        cache.mapStreetColumns = Boolean.parseBoolean(config.getProperty("map-street-columns", "false"));
+        cache.maxScenariosPerNetwork = Integer.parseInt(config.getProperty("max-cached-scenarios",
+                Integer.toString(cache.maxScenariosPerNetwork)));
+        cache.builderConfig.streetHierarchyModes = parseStreetModes(config.getProperty("street-hierarchy-modes", ""));
+        cache.builderConfig.landmarkModes = parseStreetModes(config.getProperty("landmark-modes", ""));
         return new AnalystWorker(config, cache);
     }
 
+    /** @return the street modes in a comma-separated list of mode names such as "CAR,BICYCLE". */
+    private static Set<StreetMode> parseStreetModes (String modeNames) {
+        Set<StreetMode> streetModes = EnumSet.noneOf(StreetMode.class);
+        for (String modeName : modeNames.split(",")) {
+            if (!modeName.trim().isEmpty()) streetModes.add(StreetMode.valueOf(modeName.trim().toUpperCase()));
+        }
+        return streetModes;
+    }
+
     public AnalystWorker(Properties config, TransportNetworkCache cache) {
         // print out date on startup so that CloudWatch logs has a unique fingerprint
         LOG.info("Analyst worker {} starting at {}", machineId,
@@ -253,6 +292,9 @@ public class AnalystWorker implements Runnable {
         this.gridCache = new GridCache(config.getProperty("pointsets-bucket"));
         this.transportNetworkCache = cache;
         this.autoShutdown = Boolean.parseBoolean(config.getProperty("auto-shutdown", "false"));
+        this.binaryWorkResults = Boolean.parseBoolean(config.getProperty("binary-work-results", "true"));
+        this.compressWorkResults = Boolean.parseBoolean(config.getProperty("compress-work-results", "false"));
+        this.originTileSize = Integer.parseInt(config.getProperty("origin-tile-size", "1"));
 
         // Consider shutting this worker down once per hour, starting 55 minutes after it started up.
         startupTime = System.currentTimeMillis();
@@ -310,12 +352,8 @@ public class AnalystWorker implements Runnable {
     @Override
     public void run() {
 
-        // Create executors with up to one thread per processor.
-        // The default task rejection policy is "Abort".
-        // The executor's queue is rather long because some tasks complete very fast and we poll max once per second.
-        int availableProcessors = Runtime.getRuntime().availableProcessors();
-        BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>(availableProcessors * 6);
-        regionalTaskExecutor = new ThreadPoolExecutor(1, availableProcessors, 60, TimeUnit.SECONDS, taskQueue);
+        // Run regional tasks on a work-stealing pool with one thread per processor, fetching them as it needs them.
+        regionalTaskScheduler = new RegionalTaskScheduler(Runtime.getRuntime().availableProcessors());
 
         // If an initial graph ID was provided in the config file, build or load that TransportNetwork on startup.
         // Pre-loading the graph is necessary because if the graph is not cached it can take several
@@ -343,41 +381,44 @@ public class AnalystWorker implements Runnable {
         sparkHttpService.post("/single", new AnalysisWorkerController(this)::handleSinglePoint);
 
         // Main polling loop to fill the regional work queue.
-        // You'd think the ThreadPoolExecutor could just block when the blocking queue is full, but apparently
-        // people all over the world have been jumping through hoops to try to achieve this simple behavior
-        // with no real success, at least without writing bug and deadlock-prone custom executor services.
-        // Two alternative approaches are trying to keep the queue full and waiting for the queue to be almost empty.
-        // To keep the queue full, we repeatedly try to add each task to the queue, pausing and retrying when
-        // it's full. To wait until it's almost empty, we could use wait() in a loop and notify() as tasks are handled.
-        // see https://stackoverflow.com/a/15185004/778449
-        // A simpler approach might be to spin-wait checking whether the queue is low and sleeping briefly,
-        // then fetch more work only when the queue is getting empty.
+        // Rather than polling at fixed intervals and pausing when the queue is full, poll again whenever the queued
+        // tasks are expected to run low, so that more tasks arrive before the queue drains. The scheduler estimates
+        // when that will be and how many tasks to ask for from the time recent tasks took. Polling is also how results
+        // and status are reported to the broker, so when tasks are slow we poll at least every POLL_WAIT_SECONDS
+        // anyway, accepting any tasks the broker sends back.
         while (true) {
+            long millisUntilReport = lastPollingTime + POLL_WAIT_SECONDS * 1000L - System.currentTimeMillis();
+            if (!regionalTaskScheduler.needsWork() && millisUntilReport > 0) {
+                sleepMillis(Math.min(regionalTaskScheduler.millisUntilRefill(), millisUntilReport));
+                continue;
+            }
             List<AnalysisTask> tasks = getSomeWork();
             if (tasks == null || tasks.isEmpty()) {
+                // If we only polled to report results, there are still enough tasks queued to keep working on.
+                if (!regionalTaskScheduler.needsWork()) continue;
                 // Either there was no work, or some kind of error occurred.
                 // Sleep for a while before polling again, adding a random component to spread out the polling load.
-                considerShuttingDown();
+                if (regionalTaskScheduler.isIdle()) considerShuttingDown();
                 int randomWait = random.nextInt(POLL_MAX_RANDOM_WAIT);
                 LOG.info("Polling the broker did not yield any regional tasks. Sleeping {} + {} sec.", POLL_WAIT_SECONDS, randomWait);
                 sleepSeconds(POLL_WAIT_SECONDS + randomWait);
                 continue;
             }
+            // Start applying the scenarios of the new tasks in the background, while earlier tasks are still running.
             for (AnalysisTask task : tasks) {
-                while (true) {
-                    try {
-                        // TODO define non-anonymous runnable class to instantiate here
-                        regionalTaskExecutor.execute(() -> this.handleOneRequest(task));
-                        break;
-                    } catch (RejectedExecutionException e) {
-                        // Queue is full, wait a bit and try to feed it more tasks.
-                        // FIXME if we burn through the internal queue in less than 1 second this is a speed bottleneck.
-                        // This happens with regions unconnected to transit and with very small travel time cutoffs.
-                        // FIXME this is really using the list of fetched tasks as a secondary queue, it's awkward.
-                        sleepSeconds(1);
-                    }
+                transportNetworkCache.prefetchScenario(task.graphId, task);
+            }
+            if (originTileSize > 1 && dryRunFailureRate < 0) {
+                for (List<AnalysisTask> tile : groupIntoOriginTiles(tasks, originTileSize)) {
+                    regionalTaskScheduler.submit(() -> this.handleOriginTile(tile), tile.size());
+                }
+            } else {
+                for (AnalysisTask task : tasks) {
+                    regionalTaskScheduler.submit(() -> this.handleOneRequest(task));
                 }
             }
+            LOG.debug("Received {} regional tasks, {} pending, estimating {} tasks per second.", tasks.size(),
+                    regionalTaskScheduler.pendingTasks(), regionalTaskScheduler.tasksPerSecond());
         }
     }
 
@@ -385,13 +426,83 @@ public class AnalystWorker implements Runnable {
      * Bypass idiotic java checked exceptions.
      */
     public void sleepSeconds (int seconds) {
+        sleepMillis(seconds * 1000L);
+    }
+
+    public void sleepMillis (long millis) {
         try {
-            Thread.sleep(seconds * 1000);
+            Thread.sleep(millis);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Group the regional tasks of each job into tiles of at most maxTileSize adjacent origins, by sorting them along a
+     * Hilbert curve over the origin grid and splitting them into runs of consecutive tasks. Tasks that cannot be
+     * computed with others (e.g. single point tasks or those making static sites) each get a tile of their own.
+     * @return the tiles, each holding tasks of a single job in Hilbert order.
+     */
+    static List<List<AnalysisTask>> groupIntoOriginTiles (List<AnalysisTask> tasks, int maxTileSize) {
+        List<List<AnalysisTask>> tiles = new ArrayList<>();
+        Map<String, List<RegionalTask>> tasksByJob = new LinkedHashMap<>();
+        for (AnalysisTask task : tasks) {
+            if (task instanceof RegionalTask && !task.makeStaticSite && !task.returnPaths && !task.travelTimeBreakdown
+                    && ((RegionalTask) task).x >= 0 && ((RegionalTask) task).y >= 0) {
+                tasksByJob.computeIfAbsent(task.jobId, k -> new ArrayList<>()).add((RegionalTask) task);
+            } else {
+                tiles.add(Collections.singletonList(task));
+            }
+        }
+        for (List<RegionalTask> jobTasks : tasksByJob.values()) {
+            RegionalTask first = jobTasks.get(0);
+            // The smallest Hilbert curve covering the origin grid, whose size is the same for all tasks of a job.
+            int order = 0;
+            while (order < 15 && (1 << order) < Math.max(first.width, first.height)) order++;
+            int hilbertOrder = order;
+            jobTasks.sort(Comparator.comparingInt(task -> GeometryUtils.hilbertIndex(task.x, task.y, hilbertOrder)));
+            for (int i = 0; i < jobTasks.size(); i += maxTileSize) {
+                tiles.add(new ArrayList<>(jobTasks.subList(i, Math.min(i + maxTileSize, jobTasks.size()))));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Compute the regional tasks in a tile of adjacent origins of the same job together, accumulating their results
+     * to return to the backend in batches just like handleOneRequest.
+     */
+    protected void handleOriginTile (List<AnalysisTask> tile) {
+        if (tile.size() == 1) {
+            handleOneRequest(tile.get(0));
+            return;
+        }
+        lastRegionalTaskTime = System.currentTimeMillis();
+        List<OneOriginResult> results;
+        try {
+            AnalysisTask first = tile.get(0);
+            LOG.info("Handling tile of {} origins starting with {}", tile.size(), first);
+            networkId = first.graphId;
+            // All tasks of a job have the same scenario.
+            TransportNetwork transportNetwork = transportNetworkCache.getNetworkForScenario(networkId, first);
+            results = TravelTimeComputer.computeTravelTimes(tile, transportNetwork, gridCache);
+        } catch (Exception ex) {
+            // Handle the origins one by one instead, which will report errors for each task that really fails.
+            LOG.warn("Computing a tile of origins failed, computing them one by one: {}", ex.toString());
+            tile.forEach(this::handleOneRequest);
+            return;
+        }
+        synchronized (workResults) {
+            for (int i = 0; i < tile.size(); i++) {
+                workResults.add(results.get(i).toRegionalWorkResult(tile.get(i)));
+            }
+        }
+        synchronized (recentTaskCompletionTimes) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < tile.size(); i++) recentTaskCompletionTimes.add(now);
+        }
+    }
+
     /**
      * This is the callback that processes a single task and returns the results upon completion.
      * It may be called several times simultaneously on different executor threads.
@@ -402,6 +513,19 @@ public class AnalystWorker implements Runnable {
      * TODO split this out into one "handle immediately" method that returns a byte[] and a void method for async tasks
      */
     protected byte[] handleOneRequest(AnalysisTask request) {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        boolean wroteResult = handleOneRequest(request, () -> byteArrayOutputStream);
+        return wroteResult ? byteArrayOutputStream.toByteArray() : null;
+    }
+
+    /**
+     * Handle a single task. If it is a single point task, its result is written to the stream supplied by
+     * singlePointOutput, which is only opened once the result is ready so that a caller can still respond with an
+     * error if the task fails, and which is closed afterward. This allows travel time surfaces to be streamed straight
+     * into an HTTP response rather than being held in memory in full.
+     * @return true if a single point result was written.
+     */
+    protected boolean handleOneRequest(AnalysisTask request, Callable<OutputStream> singlePointOutput) {
         // Record the fact that the worker is busy so it won't shut down.
         lastRegionalTaskTime = System.currentTimeMillis(); // FIXME both regional and single-point are handled here
         if (dryRunFailureRate >= 0) {
@@ -422,7 +546,7 @@ public class AnalystWorker implements Runnable {
             } else {
                 LOG.info("Intentionally failing to complete task for testing purposes {}", request.taskId);
             }
-            return null;
+            return false;
         }
 
         try {
@@ -446,7 +570,7 @@ public class AnalystWorker implements Runnable {
                 // Report the error back to the broker, which can then pass it back out to the client.
                 // Any other kinds of exceptions will be caught by the outer catch clause
                 reportTaskErrors(request.taskId, HttpStatus.BAD_REQUEST_400, scenarioException.taskErrors);
-                return null;
+                return false;
             }
 
             // If we are generating a static site, there must be a single metadata file for an entire batch of results.
@@ -461,29 +585,26 @@ public class AnalystWorker implements Runnable {
             // TODO switch mainly on what's present in the result, not on the request type
             if (request.isHighPriority()) {
                 // This is a single point task. Return the travel time grid which will be written back to the client.
-                // We want to gzip the data before sending it back to the broker.
-                // Compression ratios here are extreme (100x is not uncommon).
-                // We had many connection reset by peer, buffer overflows on large files.
-                // Handle gzipping with HTTP headers (caller should already be doing this)
-                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                // Compression ratios here are extreme (100x is not uncommon), but gzipping is handled with HTTP headers
+                // by the caller, which may wrap the stream it supplies.
                 // This travel time surface is being produced by a single-origin task.
                 // We could be making a grid or a TIFF.
                 TravelTimeSurfaceTask timeSurfaceTask = (TravelTimeSurfaceTask) request;
-                if (timeSurfaceTask.getFormat() == TravelTimeSurfaceTask.Format.GRID) {
-                    // Return raw byte array representing grid to caller, for return to client over HTTP.
-                    // TODO eventually reuse same code path as static site time grid saving
-                    oneOriginResult.timeGrid.writeGridToDataOutput(new LittleEndianDataOutputStream(byteArrayOutputStream));
-                    addErrorJson(byteArrayOutputStream, transportNetwork.scenarioApplicationWarnings);
-                } else if (timeSurfaceTask.getFormat() == TravelTimeSurfaceTask.Format.GEOTIFF) {
-                    oneOriginResult.timeGrid.writeGeotiff(byteArrayOutputStream);
+                try (OutputStream outputStream = new BufferedOutputStream(singlePointOutput.call())) {
+                    if (timeSurfaceTask.getFormat() == TravelTimeSurfaceTask.Format.GRID) {
+                        // Write grid to caller, for return to client over HTTP.
+                        // TODO eventually reuse same code path as static site time grid saving
+                        oneOriginResult.timeGrid.writeGridToDataOutput(new LittleEndianDataOutputStream(outputStream));
+                        addErrorJson(outputStream, transportNetwork.scenarioApplicationWarnings);
+                    } else if (timeSurfaceTask.getFormat() == TravelTimeSurfaceTask.Format.GEOTIFF) {
+                        oneOriginResult.timeGrid.writeGeotiff(outputStream);
+                    }
                 }
                 // FIXME strangeness, only travel time results are returned from method, accessibility results return null and are accumulated for async delivery.
-                // Return raw byte array containing grid or TIFF file to caller, for return to client over HTTP.
-                byteArrayOutputStream.close();
                 synchronized (recentTaskCompletionTimes) {
                     recentTaskCompletionTimes.add(System.currentTimeMillis());
                 }
-                return byteArrayOutputStream.toByteArray();
+                return true;
             } else {
                 // This is a single task within a regional analysis with many origins.
                 if (request.makeStaticSite) {
@@ -514,7 +635,7 @@ public class AnalystWorker implements Runnable {
             LOG.error("An error occurred while routing: {}", ExceptionUtils.asString(ex));
             reportTaskErrors(request.taskId, HttpStatus.INTERNAL_SERVER_ERROR_500, Arrays.asList(taskError));
         }
-        return null;
+        return false;
     }
 
     /**
@@ -531,6 +652,27 @@ public class AnalystWorker implements Runnable {
         LOG.info("Done writing");
     }
 
+    /**
+     * Make the body of a poll request. The worker status and its results are encoded as binary if the broker has told
+     * us it accepts that encoding, and as JSON otherwise. Either way they are streamed onto the connection as it is
+     * written rather than being encoded into a byte array first, and compressed if so configured.
+     */
+    private HttpEntity workerStatusEntity (WorkerStatus workerStatus) {
+        // Results of uneven dimensions can't be encoded as binary, so they are sent as JSON, which can hold anything.
+        boolean binary = binaryWorkResults && brokerAcceptsBinaryStatus && BinaryWorkerStatus.canWrite(workerStatus);
+        EntityTemplate entity = new EntityTemplate(outputStream -> {
+            OutputStream out = new BufferedOutputStream(outputStream);
+            if (binary) {
+                BinaryWorkerStatus.write(workerStatus, out);
+            } else {
+                JsonUtilities.objectMapper.writeValue(new CloseShieldOutputStream(out), workerStatus);
+            }
+            out.flush();
+        });
+        entity.setContentType(binary ? BinaryWorkerStatus.MEDIA_TYPE : "application/json");
+        return compressWorkResults ? new GzipCompressingEntity(entity) : entity;
+    }
+
     /**
      * Ask the backend if it has any work for this worker, considering its software version and loaded networks.
      * Also report the worker status to the backend, serving as a heartbeat so the backend knows this worker is alive.
@@ -547,6 +689,8 @@ public class AnalystWorker implements Runnable {
             workerStatus.results = new ArrayList<>(workResults);
             workResults.clear();
         }
+        // Tell the broker how many tasks we can use, though it may send more or fewer.
+        if (regionalTaskScheduler != null) workerStatus.maxTasksRequested = regionalTaskScheduler.tasksWanted();
 
         // Compute throughput in tasks per minute and include it in the worker status report.
         // We poll too frequently to compute throughput just since the last poll operation.
@@ -564,9 +708,11 @@ public class AnalystWorker implements Runnable {
         workerStatus.secondsSinceLastPoll = (timeNow - lastPollingTime) / 1000D;
         lastPollingTime = timeNow;
 
-        httpPost.setEntity(JsonUtilities.objectToJsonHttpEntity(workerStatus));
+        httpPost.setEntity(workerStatusEntity(workerStatus));
         try {
             HttpResponse response = httpClient.execute(httpPost);
+            Header acceptHeader = response.getFirstHeader(BinaryWorkerStatus.ACCEPT_HEADER);
+            brokerAcceptsBinaryStatus = acceptHeader != null && BinaryWorkerStatus.isAccepted(acceptHeader.getValue());
             HttpEntity entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() == 204) {
                 // No work to do.
@@ -0,0 +1,248 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.common.JsonUtilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of the worker status that workers post to the broker when polling for work, including
+ * the regional work results accumulated since the last poll. As JSON, every accessibility value of every result is
+ * written out in decimal with its separators, and the job ID is repeated for every result. When many workers are
+ * returning results for a large regional analysis, the broker spends most of its time parsing these.
+ *
+ * The encoding is:
+ * - the four magic bytes "R5WS" and a format version;
+ * - the worker status without its results, as length-prefixed JSON, as it is small and changes often;
+ * - the number of results, then for each result:
+ *   - the index of its job ID in a table of the job IDs seen so far in this message, followed by the job ID itself
+ *     if the index is the size of the table (i.e. this is a new job ID);
+ *   - the difference between its task ID and the task ID of the previous result, as tasks are usually handed out and
+ *     completed in order so that this is small;
+ *   - the number of grids, percentiles and cutoffs;
+ *   - for each grid and percentile, the differences between the values for successive cutoffs. Accessibility only
+ *     increases with the cutoff, so these are small and non-negative.
+ * All integers are variable-length (seven bits per byte), with signed ones zigzag encoded so that small negative
+ * numbers are also short.
+ *
+ * Workers only send this encoding to a broker that advertises it in the ACCEPT_HEADER of its response to a poll, so
+ * that they can keep working with a broker that only understands JSON.
+ */
+public final class BinaryWorkerStatus {
+
+    /** The content type of a worker status in this encoding. */
+    public static final String MEDIA_TYPE = "application/vnd.conveyal.worker-status";
+
+    /** A broker lists MEDIA_TYPE in this header of its responses to polls if it understands this encoding. */
+    public static final String ACCEPT_HEADER = "Accept-Post";
+
+    private static final byte[] MAGIC = "R5WS".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int VERSION = 1;
+
+    private BinaryWorkerStatus () { }
+
+    /** @return whether the value of an ACCEPT_HEADER lists this encoding. */
+    public static boolean isAccepted (String acceptHeader) {
+        if (acceptHeader == null) return false;
+        for (String mediaType : acceptHeader.split(",")) {
+            if (mediaType.split(";")[0].trim().equalsIgnoreCase(MEDIA_TYPE)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the results of the given worker status can be written in this encoding, which requires the
+     * accessibility values of each result to have the same number of percentiles for every grid and the same number of
+     * cutoffs for every percentile.
+     */
+    public static boolean canWrite (WorkerStatus workerStatus) {
+        if (workerStatus.results == null) return true;
+        for (RegionalWorkResult result : workerStatus.results) {
+            int[][][] values = result.accessibilityValues;
+            if (values.length == 0) continue;
+            int nPercentiles = values[0].length;
+            int nCutoffs = nPercentiles == 0 ? 0 : values[0][0].length;
+            for (int[][] valuesForGrid : values) {
+                if (valuesForGrid.length != nPercentiles) return false;
+                for (int[] valuesForPercentile : valuesForGrid) {
+                    if (valuesForPercentile.length != nCutoffs) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the given worker status and its results to the given stream, which is not closed.
+     * @throws IllegalArgumentException before writing anything if the results can't be written (see canWrite).
+     */
+    public static void write (WorkerStatus workerStatus, OutputStream out) throws IOException {
+        if (!canWrite(workerStatus)) {
+            throw new IllegalArgumentException("Accessibility values of each result must have the same dimensions " +
+                    "for every grid and percentile.");
+        }
+        out.write(MAGIC);
+        writeVarInt(out, VERSION);
+
+        List<RegionalWorkResult> results = workerStatus.results;
+        byte[] json;
+        try {
+            workerStatus.results = null;
+            json = JsonUtilities.objectToJsonBytes(workerStatus);
+        } finally {
+            workerStatus.results = results;
+        }
+        writeVarInt(out, json.length);
+        out.write(json);
+
+        if (results == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, results.size());
+        Map<String, Integer> jobIndexes = new HashMap<>();
+        int previousTaskId = 0;
+        for (RegionalWorkResult result : results) {
+            Integer jobIndex = jobIndexes.get(result.jobId);
+            if (jobIndex == null) {
+                // The job IDs are in the order they are first seen, so a new one always gets the next index.
+                writeVarInt(out, jobIndexes.size());
+                writeString(out, result.jobId);
+                jobIndexes.put(result.jobId, jobIndexes.size());
+            } else {
+                writeVarInt(out, jobIndex);
+            }
+            writeSignedVarInt(out, result.taskId - previousTaskId);
+            previousTaskId = result.taskId;
+
+            int[][][] values = result.accessibilityValues;
+            int nPercentiles = values.length == 0 ? 0 : values[0].length;
+            int nCutoffs = nPercentiles == 0 ? 0 : values[0][0].length;
+            writeVarInt(out, values.length);
+            writeVarInt(out, nPercentiles);
+            writeVarInt(out, nCutoffs);
+            for (int[][] valuesForGrid : values) {
+                for (int[] valuesForPercentile : valuesForGrid) {
+                    int previousValue = 0;
+                    for (int value : valuesForPercentile) {
+                        writeSignedVarInt(out, value - previousValue);
+                        previousValue = value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a worker status and its results from the given stream, as written by the write method.
+     * @throws IOException if the stream does not hold a worker status in a version of this encoding we understand.
+     */
+    public static WorkerStatus read (InputStream in) throws IOException {
+        for (byte magicByte : MAGIC) {
+            if (readByte(in) != magicByte) throw new IOException("Not a binary worker status.");
+        }
+        int version = readVarInt(in);
+        if (version != VERSION) throw new IOException("Unsupported binary worker status version " + version);
+
+        byte[] json = readBytes(in, readVarInt(in));
+        // Use the lenient object mapper in case the worker is a newer version with fields we don't recognize.
+        WorkerStatus workerStatus =
+                JsonUtilities.lenientObjectMapper.readValue(new ByteArrayInputStream(json), WorkerStatus.class);
+
+        int nResults = readVarInt(in);
+        workerStatus.results = new ArrayList<>(nResults);
+        List<String> jobIds = new ArrayList<>();
+        int taskId = 0;
+        for (int r = 0; r < nResults; r++) {
+            int jobIndex = readVarInt(in);
+            if (jobIndex == jobIds.size()) {
+                jobIds.add(readString(in));
+            } else if (jobIndex > jobIds.size()) {
+                throw new IOException("Job index " + jobIndex + " refers to a job ID that has not been seen.");
+            }
+            taskId += readSignedVarInt(in);
+            int nGrids = readVarInt(in);
+            int nPercentiles = readVarInt(in);
+            int nCutoffs = readVarInt(in);
+            RegionalWorkResult result =
+                    new RegionalWorkResult(jobIds.get(jobIndex), taskId, nGrids, nPercentiles, nCutoffs);
+            for (int[][] valuesForGrid : result.accessibilityValues) {
+                for (int[] valuesForPercentile : valuesForGrid) {
+                    int value = 0;
+                    for (int c = 0; c < nCutoffs; c++) {
+                        value += readSignedVarInt(in);
+                        valuesForPercentile[c] = value;
+                    }
+                }
+            }
+            workerStatus.results.add(result);
+        }
+        return workerStatus;
+    }
+
+    private static void writeString (OutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString (InputStream in) throws IOException {
+        return new String(readBytes(in, readVarInt(in)), StandardCharsets.UTF_8);
+    }
+
+    /** Write a non-negative int in seven-bit groups, low bits first, setting the high bit of all but the last byte. */
+    static void writeVarInt (OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Write an int that may be negative, interleaving negative and positive values so that small ones are short. */
+    static void writeSignedVarInt (OutputStream out, int value) throws IOException {
+        writeVarInt(out, (value << 1) ^ (value >> 31));
+    }
+
+    static int readVarInt (InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte(in);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed variable-length integer.");
+    }
+
+    static int readSignedVarInt (InputStream in) throws IOException {
+        int zigzag = readVarInt(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static byte readByte (InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException("Unexpected end of binary worker status.");
+        return (byte) b;
+    }
+
+    private static byte[] readBytes (InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(bytes, offset, length - offset);
+            if (n < 0) throw new EOFException("Unexpected end of binary worker status.");
+            offset += n;
+        }
+        return bytes;
+    }
+
+}
@@ -2,23 +2,25 @@ package com.conveyal.r5.analyst.cluster;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.conveyal.r5.analyst.LittleEndianIntOutputStream;
-import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.BitSet;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.zip.GZIPOutputStream;
 
 import static com.conveyal.r5.common.Util.human;
@@ -42,6 +44,11 @@ import static com.conveyal.r5.common.Util.human;
  * (4 byte int) height of the grid in pixels
  * (4 byte int) number of values per pixel
  * (repeated 4-byte int) values of each pixel in row major order. Values within a given pixel are delta coded.
+ *
+ * A job can compute accessibility to several destination grids, at several percentiles of travel time and several
+ * travel time cutoffs. Each combination produces a separate access grid file. Results arrive from many workers at
+ * once, so they are written without locking: each access grid is accumulated in a memory-mapped temporary file, where
+ * every origin has its own 4-byte cell, and the set of origins received is a bitset updated with compare-and-set.
  */
 public class GridResultAssembler {
 
@@ -55,26 +62,36 @@ public class GridResultAssembler {
 
     private static final AmazonS3 s3 = new AmazonS3Client();
 
+    private static final AtomicIntegerFieldUpdater<GridResultAssembler> nCompleteUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(GridResultAssembler.class, "nComplete");
+
     public final AnalysisTask request;
 
-    private File bufferFile;
+    /** The number of destination grids, percentiles and cutoffs in each result, the dimensions of the output. */
+    public final int nGrids, nPercentiles, nCutoffs;
 
-    private RandomAccessFile randomAccessFile;
+    /** The temporary files accumulating the access grids, one per grid, percentile and cutoff, see gridIndex(). */
+    private File[] bufferFiles;
 
-    /** TODO use Java NewIO file channel for native byte order output to our output file. */
-//    private FileChannel outputFileChannel;
+    /** The contents of the buffer files mapped into memory, from the start of the file including the header. */
+    private MappedByteBuffer[] buffers;
 
-    private boolean error = false;
+    /** The data sections of the mapped buffers, with one int per origin. */
+    private IntBuffer[] values;
+
+    private volatile boolean error = false;
 
     /**
      * The number of results received for unique origin points (i.e. two results for the same origin should only
-     * increment this once). It does not need to be an atomic int as it's incremented in a synchronized block.
+     * increment this once). It is only incremented atomically by the thread that marks the origin as received.
      */
-    public int nComplete = 0;
+    public volatile int nComplete = 0;
 
-    // We need to keep track of which specific origins are completed, to avoid double counting if we receive more than
-    // one result for the same origin.
-    private BitSet originsReceived;
+    /**
+     * We need to keep track of which specific origins are completed, to avoid double counting if we receive more than
+     * one result for the same origin. This is a bitset with 64 origins per element, updated with compare-and-set.
+     */
+    private AtomicLongArray originsReceived;
 
     /** Total number of results expected. */
     public int nTotal;
@@ -83,86 +100,132 @@ public class GridResultAssembler {
     public final String outputBucket;
 
     /**
-     * Construct an assembler for a single regional analysis result grid.
-     * This also creates the on-disk scratch buffer into which the results from the workers will be accumulated.
+     * Construct an assembler for a regional analysis with one destination grid, one cutoff, and the percentiles of
+     * the request. Workers compute access to one grid (RegionalTask.gridData) at one cutoff (maxTripDurationMinutes).
      */
     public GridResultAssembler (AnalysisTask request, String outputBucket) {
+        this(request, outputBucket, 1, request.percentiles.length, 1);
+    }
+
+    /**
+     * Construct an assembler for a regional analysis result with the given numbers of destination grids, percentiles
+     * and cutoffs, producing one access grid for each combination of them.
+     * This also creates the memory-mapped on-disk scratch buffers into which the results from the workers will be
+     * accumulated.
+     */
+    public GridResultAssembler (AnalysisTask request, String outputBucket, int nGrids, int nPercentiles, int nCutoffs) {
         this.request = request;
         this.outputBucket = outputBucket;
+        this.nGrids = nGrids;
+        this.nPercentiles = nPercentiles;
+        this.nCutoffs = nCutoffs;
         nTotal = request.width * request.height;
-        originsReceived = new BitSet(nTotal);
-        LOG.info("Expecting results for regional analysis with width {}, height {}, 1 value per origin.",
-                request.width, request.height);
+        originsReceived = new AtomicLongArray((nTotal + Long.SIZE - 1) / Long.SIZE);
+        LOG.info("Expecting results for regional analysis with width {}, height {}, {} grids, {} percentiles and " +
+                "{} cutoffs, 1 value per origin.", request.width, request.height, nGrids, nPercentiles, nCutoffs);
 
-        long outputFileSizeBytes = request.width * request.height * Integer.BYTES;
-        LOG.info("Creating temporary file to store regional analysis results, size is {}.",
+        int nAccessGrids = nGrids * nPercentiles * nCutoffs;
+        long outputFileSizeBytes = HEADER_LENGTH_BYTES + (long) nTotal * Integer.BYTES;
+        LOG.info("Creating {} temporary files to store regional analysis results, size is {} each.", nAccessGrids,
                 human(outputFileSizeBytes, "B"));
+        bufferFiles = new File[nAccessGrids];
+        buffers = new MappedByteBuffer[nAccessGrids];
+        values = new IntBuffer[nAccessGrids];
         try {
-            bufferFile = File.createTempFile(request.jobId, ".access_grid");
-            // On unexpected server shutdown, these files should be deleted.
-            // We could attempt to recover from shutdowns but that will take a lot of changes and persisted data.
-            bufferFile.deleteOnExit();
-
-            // Write the access grid file header
-            FileOutputStream fos = new FileOutputStream(bufferFile);
-            LittleEndianIntOutputStream data = new LittleEndianIntOutputStream(fos);
-            data.writeAscii("ACCESSGR");
-            data.writeInt(ACCESS_GRID_VERSION);
-            data.writeInt(request.zoom);
-            data.writeInt(request.west);
-            data.writeInt(request.north);
-            data.writeInt(request.width);
-            data.writeInt(request.height);
-            data.writeInt(1); // Hard-wired to one bootstrap replication
-            data.close();
-
-            // We used to fill the file with zeros here, to "overwrite anything that might be in the file already"
-            // according to a code comment. However that creates a burst of up to 1GB of disk activity, which exhausts
-            // our IOPS budget on cloud servers with network storage. That then causes the server to fall behind in
-            // processing incoming results.
-            // This is a newly created temp file, so setting it to a larger size should just create a sparse file
-            // full of blocks of zeros (at least on Linux, I don't know what it does on Windows).
-            this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
-            randomAccessFile.setLength(outputFileSizeBytes);
-            LOG.info("Created temporary file of {} to accumulate results from workers.", human(randomAccessFile.length(), "B"));
+            if (outputFileSizeBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Regional analysis grid is too large to be mapped into memory.");
+            }
+            for (int i = 0; i < nAccessGrids; i++) {
+                bufferFiles[i] = File.createTempFile(request.jobId, ".access_grid");
+                // On unexpected server shutdown, these files should be deleted.
+                // We could attempt to recover from shutdowns but that will take a lot of changes and persisted data.
+                bufferFiles[i].deleteOnExit();
+
+                // We used to fill the file with zeros here, to "overwrite anything that might be in the file already"
+                // according to a code comment. However that creates a burst of up to 1GB of disk activity, which
+                // exhausts our IOPS budget on cloud servers with network storage. That then causes the server to fall
+                // behind in processing incoming results. This is a newly created temp file, so mapping it at a larger
+                // size should just create a sparse file full of blocks of zeros (at least on Linux, I don't know what
+                // it does on Windows). The mapping remains valid once the channel is closed.
+                try (RandomAccessFile randomAccessFile = new RandomAccessFile(bufferFiles[i], "rw")) {
+                    buffers[i] = randomAccessFile.getChannel()
+                            .map(FileChannel.MapMode.READ_WRITE, 0, outputFileSizeBytes);
+                }
+                buffers[i].order(ByteOrder.LITTLE_ENDIAN);
+
+                // Write the access grid file header
+                buffers[i].put("ACCESSGR".getBytes(StandardCharsets.US_ASCII));
+                buffers[i].putInt(ACCESS_GRID_VERSION);
+                buffers[i].putInt(request.zoom);
+                buffers[i].putInt(request.west);
+                buffers[i].putInt(request.north);
+                buffers[i].putInt(request.width);
+                buffers[i].putInt(request.height);
+                buffers[i].putInt(1); // Hard-wired to one bootstrap replication
+                // The int view starts at the current position, the end of the header.
+                values[i] = buffers[i].asIntBuffer();
+            }
+            LOG.info("Created temporary files of {} to accumulate results from workers.",
+                    human(outputFileSizeBytes * nAccessGrids, "B"));
         } catch (Exception e) {
             error = true;
             LOG.error("Exception while creating regional access grid: " + e.toString());
         }
     }
 
+    /** @return the index of the access grid file holding the given grid, percentile and cutoff. */
+    private int gridIndex (int grid, int percentile, int cutoff) {
+        return (grid * nPercentiles + percentile) * nCutoffs + cutoff;
+    }
+
     /**
-     * Gzip the access grid and upload it to S3.
+     * Gzip the access grids and upload them to S3. This is called once, by the thread that received the last origin.
+     * The compressed output is streamed straight out of the mapped buffers.
      */
     protected synchronized void finish () {
         LOG.info("Finished receiving data for regional analysis {}, uploading to S3", request.jobId);
         try {
-            File gzippedGridFile = File.createTempFile(request.jobId, ".access_grid.gz");
-            randomAccessFile.close();
-
-            // There's probably a more elegant way to do this with NIO and without closing the buffer
-            InputStream is = new BufferedInputStream(new FileInputStream(bufferFile));
-            OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzippedGridFile)));
-            ByteStreams.copy(is, os);
-            is.close();
-            os.close();
-
-            LOG.info("GZIP compression reduced regional analysis {} from {} to {} ({}x compression)",
-                    request.jobId,
-                    human(bufferFile.length(), "B"),
-                    human(gzippedGridFile.length(), "B"),
-                    (double) bufferFile.length() / gzippedGridFile.length()
-            );
-            // TODO use generic filePersistence instead of specific S3 client
-            s3.putObject(outputBucket, String.format("%s.access", request.jobId), gzippedGridFile);
-            // Clear temporary files off of the disk because the gzipped version is now on S3.
-            bufferFile.delete();
-            gzippedGridFile.delete();
+            for (int grid = 0; grid < nGrids; grid++) {
+                for (int percentile = 0; percentile < nPercentiles; percentile++) {
+                    for (int cutoff = 0; cutoff < nCutoffs; cutoff++) {
+                        int i = gridIndex(grid, percentile, cutoff);
+                        File gzippedGridFile = File.createTempFile(request.jobId, ".access_grid.gz");
+                        ByteBuffer contents = buffers[i].duplicate();
+                        contents.clear();
+                        try (OutputStream os = new GZIPOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(gzippedGridFile)))) {
+                            WritableByteChannel channel = Channels.newChannel(os);
+                            while (contents.hasRemaining()) channel.write(contents);
+                        }
+
+                        LOG.info("GZIP compression reduced regional analysis {} from {} to {} ({}x compression)",
+                                request.jobId,
+                                human(bufferFiles[i].length(), "B"),
+                                human(gzippedGridFile.length(), "B"),
+                                (double) bufferFiles[i].length() / gzippedGridFile.length()
+                        );
+                        // TODO use generic filePersistence instead of specific S3 client
+                        s3.putObject(outputBucket, getOutputKey(grid, percentile, cutoff), gzippedGridFile);
+                        // Clear temporary files off of the disk because the gzipped version is now on S3.
+                        bufferFiles[i].delete();
+                        gzippedGridFile.delete();
+                    }
+                }
+            }
         } catch (Exception e) {
             LOG.error("Error uploading results of regional analysis {}", request.jobId, e);
         }
     }
 
+    /**
+     * @return the S3 key of the access grid for the given grid, percentile and cutoff indexes. A job with a single
+     * access grid keeps the original naming, with only the job ID.
+     */
+    public String getOutputKey (int grid, int percentile, int cutoff) {
+        if (nGrids * nPercentiles * nCutoffs == 1) return String.format("%s.access", request.jobId);
+        return String.format("%s_%d_%d_%d.access", request.jobId, grid, percentile, cutoff);
+    }
+
     private void checkDimension (RegionalWorkResult workResult, String dimensionName, int seen, int expected) {
         if (seen != expected) {
             LOG.error("Result for task {} of job {} has {} {}, expected {}.",
@@ -179,58 +242,75 @@ public class GridResultAssembler {
         return byteBuffer.array();
     }
 
-    // Write to the proper subregion of the buffer for this origin.
-    // The randomAccessFile is not threadsafe and multiple threads may call this, so synchronize.
-    // The origins we receive have 2d coordinates.
-    // Flatten them to compute file offsets and for the origin checklist.
-    private void writeOneValue (int x, int y, int value) throws IOException {
-        int index1d = y * request.width + x;
-        long offset = HEADER_LENGTH_BYTES + index1d * Integer.BYTES;
-        synchronized (this) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.write(intToLittleEndianByteArray(value));
+    /**
+     * Mark the given origin as received.
+     * @return the number of unique origins received including this one, or -1 if it had been received before. Each
+     * count is returned to exactly one caller, so only one thread sees the count reach the total.
+     */
+    private int markOriginReceived (int index1d) {
+        int element = index1d / Long.SIZE;
+        long bit = 1L << (index1d % Long.SIZE);
+        while (true) {
+            long received = originsReceived.get(element);
             // Don't double-count origins if we receive them more than once.
-            if (!originsReceived.get(index1d)) {
-                originsReceived.set(index1d);
-                nComplete += 1;
+            if ((received & bit) != 0) return -1;
+            if (originsReceived.compareAndSet(element, received, received | bit)) {
+                return nCompleteUpdater.incrementAndGet(this);
             }
         }
     }
 
+    /** @return true if a result could not be assembled, in which case the output is unusable. */
+    public boolean isError () {
+        return error;
+    }
+
+    /** @return the value received for the given origin in the access grid for the given grid, percentile and cutoff. */
+    int getValue (int grid, int percentile, int cutoff, int index1d) {
+        return values[gridIndex(grid, percentile, cutoff)].get(index1d);
+    }
+
     /**
      * Process a single result.
      * We have bootstrap replications turned off, so there should be only one accessibility result per origin
      * and no delta coding is necessary anymore within each origin.
-     * We are also iterating over three dimensions (grids, percentiles, cutoffs) but those should produce completely
-     * separate access grid files, and are all size 1 for now anyway.
+     * We are also iterating over three dimensions (grids, percentiles, cutoffs), which produce completely separate
+     * access grid files.
+     *
+     * This may be called by many threads at once. Each origin has its own cell in each access grid, and aligned int
+     * writes to the mapped buffers are atomic, so the values are written without locking.
      */
     public void handleMessage (RegionalWorkResult workResult) {
         try {
+            if (error) return;
             // Infer x and y cell indexes based on the template task
+            // The origins we receive have 2d coordinates.
+            // Flatten them to compute file offsets and for the origin checklist.
             int taskNumber = workResult.taskId;
             int x = taskNumber % request.width;
             int y = taskNumber / request.width;
+            int index1d = y * request.width + x;
 
-            // Check the dimensions of the result by comparing with fields of this.request
-            int nGrids = 1;
-            int nPercentiles = 1;
-            int nCutoffs = 1;
-
-            // Drop work results for this particular origin into a little-endian output files.
-            // We only have one file for now because only one grid, percentile, and cutoff value.
+            // Drop work results for this particular origin into the little-endian access grids.
             checkDimension(workResult, "destination grids", workResult.accessibilityValues.length, nGrids);
-            for (int[][] gridResult : workResult.accessibilityValues) {
+            if (error) return;
+            for (int grid = 0; grid < nGrids; grid++) {
+                int[][] gridResult = workResult.accessibilityValues[grid];
                 checkDimension(workResult, "percentiles", gridResult.length, nPercentiles);
-                for (int[] percentileResult : gridResult) {
+                if (error) return;
+                for (int percentile = 0; percentile < nPercentiles; percentile++) {
+                    int[] percentileResult = gridResult[percentile];
                     checkDimension(workResult, "cutoffs", percentileResult.length, nCutoffs);
-                    for (int accessibilityForCutoff : percentileResult) {
-                        writeOneValue(x, y, accessibilityForCutoff);
+                    if (error) return;
+                    for (int cutoff = 0; cutoff < nCutoffs; cutoff++) {
+                        values[gridIndex(grid, percentile, cutoff)].put(index1d, percentileResult[cutoff]);
                     }
                 }
             }
-            // TODO It might be more reliable to double-check the bitset of received results inside finish() instead of just counting.
+            // Only the thread whose origin brought the count to the total gets that count back, so finish() is only
+            // called once.
             // FIXME isn't this leaving the files around and the assemblers in memory if the job errors out?
-            if (nComplete == nTotal && !error) finish();
+            if (markOriginReceived(index1d) == nTotal && !error) finish();
         } catch (Exception e) {
             error = true; // the file is garbage TODO better resilience, tell the UI, transmit all errors.
             LOG.error("Error assembling results for query {}", request.jobId, e);
@@ -240,7 +320,8 @@ public class GridResultAssembler {
 
     /** Clean up and cancel a consumer. */
     public synchronized void terminate () throws IOException {
-        this.randomAccessFile.close();
-        bufferFile.delete();
+        // Mapped buffers can't be explicitly unmapped, they are released when garbage collected. On Linux the files
+        // can be deleted while they are still mapped.
+        for (File bufferFile : bufferFiles) bufferFile.delete();
     }
 }
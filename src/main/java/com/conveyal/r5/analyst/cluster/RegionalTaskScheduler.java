@@ -0,0 +1,172 @@
+package com.conveyal.r5.analyst.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the regional analysis tasks fetched by a worker, and decides when the worker should poll the broker for more
+ * tasks and how many it should ask for.
+ *
+ * Tasks run on a work-stealing pool with one thread per processor. Tasks that split their work into parallel streams
+ * (e.g. batches of origins in FastRaptorWorker) fork it within this same pool, where idle threads steal it, rather
+ * than competing with the other regional tasks for the threads of the common pool.
+ *
+ * Rather than polling at fixed intervals and sleeping when its queue is full, the worker keeps enough tasks queued to
+ * keep all threads busy for TARGET_QUEUE_SECONDS, estimated from a moving average of the time recent tasks took. It
+ * polls again once the queued tasks would only last for REFILL_QUEUE_SECONDS, so that new tasks arrive before the
+ * queue drains whether tasks take milliseconds or minutes.
+ *
+ * Single point requests take precedence over regional tasks: while any single point request is being handled, no
+ * regional task is started, so the processors are freed for the single point request as soon as the regional tasks
+ * already running finish. Regional tasks are not interrupted, as they are not written to be resumed. Tasks that come
+ * up while single point requests are being handled are set aside without blocking any pool threads.
+ */
+public class RegionalTaskScheduler {
+
+    /** Fetch enough tasks to keep all threads busy for this many seconds. */
+    public static final double TARGET_QUEUE_SECONDS = 30;
+
+    /** Poll for more tasks when those already queued would keep all threads busy for less than this many seconds. */
+    public static final double REFILL_QUEUE_SECONDS = 10;
+
+    /** Never queue more than this many tasks per thread, however fast they are, to limit the work lost on failure. */
+    public static final int MAX_QUEUED_TASKS_PER_THREAD = 200;
+
+    /** The duration assumed for a task before any have completed. */
+    private static final double INITIAL_TASK_SECONDS = 2;
+
+    /** The weight of each completed task in the moving average of task durations. */
+    private static final double DURATION_SMOOTHING = 0.05;
+
+    /** The number of threads running regional tasks. */
+    public final int nThreads;
+
+    private final ForkJoinPool pool;
+
+    /** The number of tasks submitted that have not yet finished, including those running. */
+    private final AtomicInteger nPendingTasks = new AtomicInteger();
+
+    /** A moving average of the time each regional task has taken from start to finish, in seconds. */
+    private volatile double meanTaskSeconds = INITIAL_TASK_SECONDS;
+
+    /** The number of single point requests being handled. All access is synchronized on this scheduler. */
+    private int nSinglePointRequests = 0;
+
+    /** Work set aside while single point requests are being handled. All access is synchronized on this scheduler. */
+    private final List<RegionalWork> deferredWork = new ArrayList<>();
+
+    public RegionalTaskScheduler (int nThreads) {
+        this.nThreads = nThreads;
+        this.pool = new ForkJoinPool(nThreads);
+    }
+
+    /**
+     * Queue a regional task to be run once a thread is free and no single point request is being handled.
+     */
+    public void submit (Runnable task) {
+        submit(task, 1);
+    }
+
+    /**
+     * Queue a unit of work that computes several regional tasks together (e.g. a tile of origins), to be run once a
+     * thread is free and no single point request is being handled. It is counted as that many tasks.
+     */
+    public void submit (Runnable work, int nTasks) {
+        nPendingTasks.addAndGet(nTasks);
+        pool.execute(new RegionalWork(work, nTasks));
+    }
+
+    /**
+     * A unit of regional work running on the pool. If a single point request is being handled when it starts, it is
+     * set aside and resubmitted once there are none, rather than blocking the pool thread. A blocked thread would
+     * either keep the pool from running the parallel parts of other tasks, or (as a ForkJoinPool.ManagedBlocker) make
+     * the pool start another thread, which would take the next queued task and block in turn.
+     */
+    private class RegionalWork implements Runnable {
+        final Runnable work;
+        final int nTasks;
+
+        RegionalWork (Runnable work, int nTasks) {
+            this.work = work;
+            this.nTasks = nTasks;
+        }
+
+        @Override
+        public void run () {
+            synchronized (RegionalTaskScheduler.this) {
+                if (nSinglePointRequests > 0) {
+                    deferredWork.add(this);
+                    return;
+                }
+            }
+            try {
+                long startTime = System.nanoTime();
+                work.run();
+                double taskSeconds = (System.nanoTime() - startTime) / 1e9 / nTasks;
+                // Racing updates may lose a sample, which does not matter for a moving average.
+                meanTaskSeconds += DURATION_SMOOTHING * (taskSeconds - meanTaskSeconds);
+            } finally {
+                nPendingTasks.addAndGet(-nTasks);
+            }
+        }
+    }
+
+    /** @return the estimated number of regional tasks all threads together complete per second. */
+    public double tasksPerSecond () {
+        return nThreads / Math.max(meanTaskSeconds, 1e-3);
+    }
+
+    /** @return the number of regional tasks that are queued or running. */
+    public int pendingTasks () {
+        return nPendingTasks.get();
+    }
+
+    /** @return true if no regional tasks are queued or running. */
+    public boolean isIdle () {
+        return nPendingTasks.get() == 0;
+    }
+
+    /** @return true if the queued tasks are running low, so that more should be fetched from the broker. */
+    public boolean needsWork () {
+        return nPendingTasks.get() <= refillLevel();
+    }
+
+    /** @return the number of tasks that should be fetched to fill the queue. */
+    public int tasksWanted () {
+        int targetLevel = (int) Math.ceil(tasksPerSecond() * TARGET_QUEUE_SECONDS);
+        targetLevel = Math.min(Math.max(targetLevel, nThreads * 2), nThreads * MAX_QUEUED_TASKS_PER_THREAD);
+        return Math.max(targetLevel - nPendingTasks.get(), 0);
+    }
+
+    /**
+     * @return the estimated number of milliseconds until the queued tasks run low and more should be fetched, which
+     * is zero if they already have.
+     */
+    public long millisUntilRefill () {
+        double excessTasks = nPendingTasks.get() - refillLevel();
+        if (excessTasks <= 0) return 0;
+        return (long) (excessTasks / tasksPerSecond() * 1000);
+    }
+
+    /** Keep at least one task queued per thread, so no thread is left waiting for the next poll. */
+    private int refillLevel () {
+        return Math.max((int) (tasksPerSecond() * REFILL_QUEUE_SECONDS), nThreads);
+    }
+
+    /** Call before handling a single point request, to keep regional tasks from starting until it is finished. */
+    public synchronized void beginSinglePointRequest () {
+        nSinglePointRequests++;
+    }
+
+    /** Call after handling a single point request, whether or not it succeeded, to let regional tasks resume. */
+    public synchronized void endSinglePointRequest () {
+        nSinglePointRequests--;
+        if (nSinglePointRequests == 0) {
+            deferredWork.forEach(pool::execute);
+            deferredWork.clear();
+        }
+    }
+
+}
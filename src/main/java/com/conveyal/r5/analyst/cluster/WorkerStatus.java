@@ -4,6 +4,7 @@ import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.common.R5Version;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.google.common.cache.CacheStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,8 +37,16 @@ public class WorkerStatus {
     public String workerId;
     public Set<String> networks = new HashSet<>();
     public Set<String> scenarios = new HashSet<>();
+    public long networkCacheHits;
+    public long networkCacheMisses;
+    public double networkLoadSeconds;
+    public long scenarioCacheHits;
+    public long scenarioCacheMisses;
+    public long scenarioCacheEvictions;
+    public double scenarioLoadSeconds;
     public double secondsSinceLastPoll;
     public double tasksPerMinute;
+    public int maxTasksRequested;
     @JsonUnwrapped(prefix = "ec2")
     public EC2Info ec2;
     public long jvmStartTime;
@@ -59,6 +68,15 @@ public class WorkerStatus {
         workerId = worker.machineId; // TODO overwrite with cloud provider (EC2) machine ID in a generic way
         networks = worker.transportNetworkCache.getLoadedNetworkIds();
         scenarios = worker.transportNetworkCache.getAppliedScenarios();
+        CacheStats networkStats = worker.transportNetworkCache.getNetworkCacheStats();
+        networkCacheHits = networkStats.hitCount();
+        networkCacheMisses = networkStats.missCount();
+        networkLoadSeconds = networkStats.totalLoadTime() / 1e9;
+        CacheStats scenarioStats = worker.transportNetworkCache.getScenarioCacheStats();
+        scenarioCacheHits = scenarioStats.hitCount();
+        scenarioCacheMisses = scenarioStats.missCount();
+        scenarioCacheEvictions = scenarioStats.evictionCount();
+        scenarioLoadSeconds = scenarioStats.totalLoadTime() / 1e9;
         ec2 = worker.ec2info;
 
         OperatingSystemMXBean operatingSystemMXBean = ManagementFactory.getOperatingSystemMXBean();
@@ -83,4 +83,31 @@ public class GeometryUtils {
         envelope.expandBy(xExpansion, yExpansion);
     }
 
+    /**
+     * Find the distance along a Hilbert curve filling a square grid of 2^order by 2^order cells to the cell at (x, y).
+     * Sorting objects by the Hilbert index of their location keeps objects that are near each other in space near
+     * each other in the sorted order, which is how we pack spatial indexes and split up work into compact tiles.
+     * The order must be at most 15 so the result fits in a non-negative int.
+     */
+    public static int hilbertIndex (int x, int y, int order) {
+        int n = 1 << order;
+        int index = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            index += s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the curve within it has the standard orientation.
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return index;
+    }
+
 }
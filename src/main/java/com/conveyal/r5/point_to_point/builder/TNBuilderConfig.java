@@ -1,11 +1,14 @@
 package com.conveyal.r5.point_to_point.builder;
 
 import com.conveyal.r5.analyst.fare.GreedyFareCalculator;
+import com.conveyal.r5.profile.StreetMode;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
 import java.io.File;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
  * These are parameters that when changed, necessitate a Graph rebuild.
@@ -125,6 +128,19 @@ public class TNBuilderConfig {
     /** The fare calculator for analysis */
     public GreedyFareCalculator analysisFareCalculator;
 
+    /**
+     * Street modes for which to build contraction hierarchies, which make long street searches in these modes much
+     * faster at the cost of a longer build and a larger network. This is mostly worthwhile for CAR. Bicycle
+     * hierarchies are only used for requests with the default bicycle speed, walk speed and traffic stress.
+     */
+    public Set<StreetMode> streetHierarchyModes;
+
+    /**
+     * Street modes for which to build landmarks, which speed up point to point street searches in these modes by
+     * giving them a much better estimate of the remaining cost to the destination.
+     */
+    public Set<StreetMode> landmarkModes;
+
     public TNBuilderConfig() {
         htmlAnnotations = false;
         maxHtmlAnnotationsPerFile = 1000;
@@ -144,6 +160,8 @@ public class TNBuilderConfig {
         bikeRentalFile = null;
         speeds = SpeedConfig.defaultConfig();
         analysisFareCalculator = null;
+        streetHierarchyModes = EnumSet.noneOf(StreetMode.class);
+        landmarkModes = EnumSet.noneOf(StreetMode.class);
     }
 
     public static TNBuilderConfig defaultConfig() {
@@ -1,12 +1,9 @@
 package com.conveyal.r5.profile;
 
-import com.conveyal.r5.api.util.TransitModes;
-import com.conveyal.r5.transit.RouteInfo;
 import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TripPattern;
 import com.conveyal.r5.transit.TripSchedule;
 import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,7 +13,6 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * RaptorWorker is fast, but FastRaptorWorker is knock-your-socks-off fast, and also more maintainable.
@@ -63,6 +59,13 @@ public class FastRaptorWorker {
 
     /** Minimum wait for boarding to account for schedule variation */
     private static final int MINIMUM_BOARD_WAIT_SEC = 60;
+
+    /**
+     * Batches of origins are not split into blocks smaller than this. Each block sets up its own worker and states, and
+     * a small tile is already one of many regional tasks running in parallel, so it is better routed on one thread.
+     */
+    static final int MIN_ORIGINS_PER_BLOCK = 4;
+
     public final int nMinutes;
     public final int monteCarloDrawsPerMinute;
 
@@ -80,11 +83,32 @@ public class FastRaptorWorker {
     public long timeInFrequencySearchScheduled;
     public long timeInFrequencySearchTransfers;
 
+    /** The number of Monte Carlo draws performed, used to report the average cost of a single draw. */
+    public int nFrequencyDraws;
+
+    /**
+     * The total number of rounds performed in the scheduled search over all departure minutes. The search for a minute
+     * stops early once a round improves the times at no stops, so this is often well below nMinutes * maxRides.
+     */
+    public int nScheduledRoundsExecuted;
+
+    /**
+     * For each number of rounds from 0 to maxRides, the number of departure minutes whose scheduled search stopped after
+     * executing that many rounds.
+     */
+    public int[] minutesByScheduledRoundsExecuted;
+
+    /**
+     * Whether the scheduled search for a departure minute stops once a round improves the times at no stops. This does
+     * not change the results, it is only turned off in tests to check exactly that.
+     */
+    boolean terminateRoundsEarly = true;
+
     /** the transit layer to route on */
     private final TransitLayer transit;
 
     /** Times to access each transit stop using the street network (seconds) */
-    private final TIntIntMap accessStops;
+    private TIntIntMap accessStops;
 
     /** The profilerequest describing routing parameters */
     private final ProfileRequest request;
@@ -95,6 +119,12 @@ public class FastRaptorWorker {
     /** Schedule-based trip patterns running on a given day */
     private TripPattern[] runningScheduledPatterns;
 
+    /**
+     * Parallel to runningScheduledPatterns, each pattern filtered down to the scheduled trips running on the search
+     * date, with departures stored in primitive arrays for binary search when boarding.
+     */
+    private FilteredPattern[] filteredScheduledPatterns;
+
     /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
     private int[] originalPatternIndexForFrequencyIndex;
 
@@ -109,55 +139,202 @@ public class FastRaptorWorker {
 
     private FrequencyRandomOffsets offsets;
 
+    /** The patterns running on the date of the search, which may be shared with other workers. */
+    private FilteredPatterns filteredPatterns;
+
     /** Services active on the date of the search */
     private final BitSet servicesActive;
 
-    // TODO add javadoc to field
-    private final RaptorState[] scheduleState;
+    /**
+     * One RaptorState per round, holding the results of the scheduled search (including upper bounds on frequency
+     * routes). These are carried over from one departure minute to the next as in Range RAPTOR.
+     */
+    private RaptorState[] scheduleState;
+
+    /**
+     * A pool of RaptorStates, one per round, reused for every Monte Carlo draw of the frequency search. Before each
+     * draw these are overwritten with the contents of scheduleState, so that the draws can improve upon the scheduled
+     * search results without disturbing the ongoing range-raptor search, and without allocating maxRides + 1 full
+     * copies of the state for every draw. Null if the network has no frequency routes.
+     */
+    private RaptorState[] frequencyState;
 
     /** Set to true to save path details for all optimal paths. */
     public boolean retainPaths = false;
 
+    /**
+     * Times to reach a single destination from each transit stop using the street network (seconds). If this is set,
+     * only the destination matters, and labels at any stop that are no earlier than the best arrival time already
+     * known at the destination are pruned, as they cannot lead to a better arrival there. This makes searches for one
+     * destination much faster, but the resulting travel times are only valid at these egress stops (and then only
+     * where they can contribute to the best arrival at the destination). Paths are still retained for those stops.
+     */
+    public TIntIntMap egressStops;
+
+    /**
+     * The earliest known clock time at which the destination can be reached, using the egress times above. Labels at
+     * any stop no earlier than this are pruned. Arrival times only improve as range-RAPTOR moves back through the
+     * departure minutes, so this remains a valid bound from one minute to the next. UNREACHED if there is no
+     * destination or it has not been reached yet, in which case nothing is pruned.
+     */
+    private int destinationTimeLimit;
+
+    /**
+     * The destination time limit found by the scheduled search, which is an upper bound on the limit in each Monte
+     * Carlo draw. Each draw starts from this value, as a draw may find a better one that is not valid for other draws.
+     */
+    private int scheduledDestinationTimeLimit;
+
     /** If we're going to store paths to every destination (e.g. for static sites) then they'll be retained here. */
     public List<Path[]> pathsPerIteration;
 
     public FastRaptorWorker (TransitLayer transitLayer, ProfileRequest request, TIntIntMap accessStops) {
+        this(transitLayer, request, accessStops, null);
+    }
+
+    /**
+     * @param filteredPatterns the patterns running on the date and modes of the request. If this is null, it will be
+     *                         computed when routing begins. Supplying it allows one prefiltering pass to be shared by
+     *                         searches from many origins.
+     */
+    public FastRaptorWorker (TransitLayer transitLayer, ProfileRequest request, TIntIntMap accessStops,
+                             FilteredPatterns filteredPatterns) {
         this.transit = transitLayer;
         this.request = request;
         this.accessStops = accessStops;
-        this.servicesActive  = transit.getActiveServicesForDate(request.date);
-        // we add one to request.maxRides, first state is result of initial walk
-        this.scheduleState = IntStream.range(0, request.maxRides + 1)
-                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60))
-                .toArray(RaptorState[]::new);
-
-        for (int i = 1; i < this.scheduleState.length; i++) this.scheduleState[i].previous = this.scheduleState[i - 1];
-
+        this.filteredPatterns = filteredPatterns;
+        this.servicesActive = filteredPatterns != null ?
+                filteredPatterns.servicesActive : transit.getActiveServicesForDate(request.date);
         offsets = new FrequencyRandomOffsets(transitLayer);
 
         // compute number of minutes for scheduled search
         nMinutes = request.getTimeWindowLengthMinutes();
 
         // how many monte carlo draws per minute of scheduled search to get desired total iterations?
-        monteCarloDrawsPerMinute = request.getMonteCarloDrawsPerMinute();
+        monteCarloDrawsPerMinute = monteCarloDrawsPerMinute(request, transitLayer);
+    }
+
+    /**
+     * @return the number of Monte Carlo draws that a search on the given network will perform for each departure
+     * minute. Networks without frequency routes have no randomness, so there is no point in making more than one draw.
+     * The total number of iterations (and thus of travel times per destination) is this value times the number of
+     * minutes in the departure time window.
+     */
+    public static int monteCarloDrawsPerMinute (ProfileRequest request, TransitLayer transitLayer) {
+        return transitLayer.hasFrequencies ? request.getMonteCarloDrawsPerMinute() : 1;
+    }
+
+    /**
+     * Route from many origins using the same request parameters. The date and mode filtering of patterns is performed
+     * only once and shared by all the searches. The origins are split into contiguous blocks, up to one per available
+     * processor and no smaller than MIN_ORIGINS_PER_BLOCK, and each block is handled by a single worker in a fork-join
+     * pool. Each worker reuses its RaptorStates from one origin to the next rather than allocating new ones, so callers
+     * should supply neighboring origins next to one another in the list: their searches touch similar parts of the
+     * network, which improves memory locality.
+     *
+     * Paths are not retained in batch mode.
+     *
+     * @param accessStopsPerOrigin for each origin, the access times in seconds to each transit stop reached.
+     * @return for each origin, in the same order, the travel times to every stop at every iteration.
+     */
+    public static List<TravelTimesToStops> routeBatch (TransitLayer transitLayer, ProfileRequest request,
+                                                       List<TIntIntMap> accessStopsPerOrigin) {
+        FilteredPatterns filteredPatterns = new FilteredPatterns(transitLayer, request);
+        int nOrigins = accessStopsPerOrigin.size();
+        TravelTimesToStops[] results = new TravelTimesToStops[nOrigins];
+        int nBlocks = Math.max(1,
+                Math.min(nOrigins / MIN_ORIGINS_PER_BLOCK, Runtime.getRuntime().availableProcessors()));
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int firstOrigin = (int) ((long) nOrigins * block / nBlocks);
+            int lastOrigin = (int) ((long) nOrigins * (block + 1) / nBlocks);
+            FastRaptorWorker worker = null;
+            for (int origin = firstOrigin; origin < lastOrigin; origin++) {
+                TIntIntMap accessStops = accessStopsPerOrigin.get(origin);
+                if (worker == null) {
+                    worker = new FastRaptorWorker(transitLayer, request, accessStops, filteredPatterns);
+                } else {
+                    worker.reset(accessStops);
+                }
+                results[origin] = worker.route();
+            }
+        });
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Prepare this worker to route from another origin with the same request, reusing its states, its random offsets
+     * and its filtered patterns. This avoids reallocating maxRides + 1 full RaptorStates for every origin.
+     */
+    public void reset (TIntIntMap accessStops) {
+        this.accessStops = accessStops;
+        if (scheduleState != null) {
+            for (RaptorState state : scheduleState) state.reset();
+        }
+        timeInScheduledSearch = 0;
+        timeInScheduledSearchTransit = 0;
+        timeInScheduledSearchFrequencyBounds = 0;
+        timeInScheduledSearchTransfers = 0;
+        timeInFrequencySearch = 0;
+        timeInFrequencySearchFrequency = 0;
+        timeInFrequencySearchScheduled = 0;
+        timeInFrequencySearchTransfers = 0;
+        nFrequencyDraws = 0;
+        nScheduledRoundsExecuted = 0;
+        minutesByScheduledRoundsExecuted = null;
+        pathsPerIteration = null;
+    }
+
+    /**
+     * Allocate one RaptorState per round for the scheduled search (and for the frequency search if needed), unless
+     * this worker already has states with the right path retention setting. The states are created when routing begins
+     * rather than in the constructor because retainPaths is set after construction. States that do not retain paths
+     * skip the arrays that are only needed to reconstruct them.
+     */
+    private void createStates () {
+        if (scheduleState != null && scheduleState[0].retainsPaths() == retainPaths) return;
+        // we add one to request.maxRides, first state is result of initial walk
+        scheduleState = createStatesForEachRound();
+        frequencyState = transit.hasFrequencies ? createStatesForEachRound() : null;
+    }
+
+    private RaptorState[] createStatesForEachRound () {
+        RaptorState[] states = IntStream.range(0, request.maxRides + 1)
+                .mapToObj((i) -> new RaptorState(transit.getStopCount(), request.maxTripDurationMinutes * 60, retainPaths))
+                .toArray(RaptorState[]::new);
+        for (int i = 1; i < states.length; i++) states[i].previous = states[i - 1];
+        return states;
     }
 
     /**
      * For each iteration (minute + MC draw combination), return the minimum travel time to each transit stop in seconds.
-     * Return value dimension order is [searchIteration][transitStopIndex]
+     * The results are stored in stop-major order, which is the order in which they are consumed by propagation.
+     */
+    public TravelTimesToStops route () {
+        return route(new TravelTimesToStops(transit.getStopCount(), nMinutes * monteCarloDrawsPerMinute));
+    }
+
+    /**
+     * Perform the search, writing the travel times for every iteration directly into the supplied result sink rather
+     * than allocating a new one. Every value in the sink is overwritten, so it can be reused across searches with the
+     * same number of stops and iterations.
      */
-    public int[][] route () {
+    public TravelTimesToStops route (TravelTimesToStops travelTimesToStops) {
         LOG.info("- - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - - -");
         LOG.info("Performing {} scheduled iterations each with {} Monte Carlo draws for a total of {} iterations",
                 nMinutes, monteCarloDrawsPerMinute, nMinutes * monteCarloDrawsPerMinute);
 
+        if (travelTimesToStops.nStops != transit.getStopCount() ||
+                travelTimesToStops.nIterations != nMinutes * monteCarloDrawsPerMinute) {
+            throw new IllegalArgumentException("Result storage does not match the dimensions of this search.");
+        }
+
         startClockTime = System.nanoTime();
         prefilterPatterns();
+        createStates();
 
-        // Initialize result storage.
-        // Results are one arrival time at each stop, for every raptor iteration.
-        int[][] arrivalTimesAtStopsPerIteration = new int[nMinutes * monteCarloDrawsPerMinute][];
         if (retainPaths) pathsPerIteration = new ArrayList<>();
+        minutesByScheduledRoundsExecuted = new int[request.maxRides + 1];
+        destinationTimeLimit = UNREACHED;
         int currentIteration = 0;
 
         // The main outer loop iterates backward over all minutes in the departure times window.
@@ -165,20 +342,10 @@ public class FastRaptorWorker {
              departureTime >= request.fromTime;
              departureTime -= DEPARTURE_STEP_SEC, minute--) {
 
-            // Run the raptor search. For this particular departure time, we receive N arrays of arrival times at all
-            // stops, one for each randomized schedule: resultsForMinute[randScheduleNumber][transitStop]
-            int[][] resultsForMinute = runRaptorForMinute(departureTime, monteCarloDrawsPerMinute);
-
-            // Bypass Java's "effectively final" nonsense.
-            // FIXME we could avoid this "final" weirdness by just using non-stream explicit loop syntax over the stops.
-            // TODO clarify identifiers and explain how results are being unrolled from minutes into 'iterations'.
-            final int finalDepartureTime = departureTime;
-            for (int[] arrivalTimesAtStops : resultsForMinute) {
-                // NB this copies the array, so we don't have issues with it being updated later
-                arrivalTimesAtStopsPerIteration[currentIteration++] = IntStream.of(arrivalTimesAtStops)
-                        .map(r -> r != UNREACHED ? r - finalDepartureTime : r)
-                        .toArray();
-            }
+            // Run the raptor search. For this particular departure time, this records monteCarloDrawsPerMinute
+            // iterations, one for each randomized schedule, starting at currentIteration.
+            runRaptorForMinute(departureTime, monteCarloDrawsPerMinute, travelTimesToStops, currentIteration);
+            currentIteration += monteCarloDrawsPerMinute;
         }
 
         LOG.info("Search completed in {}s", (System.nanoTime() - startClockTime) / 1e9d);
@@ -186,53 +353,33 @@ public class FastRaptorWorker {
         LOG.info("  - Scheduled search: {}s", timeInScheduledSearchTransit / 1e9d);
         LOG.info("  - Frequency upper bounds: {}s", timeInScheduledSearchFrequencyBounds / 1e9d);
         LOG.info("  - Transfers: {}s", timeInScheduledSearchTransfers / 1e9d);
-        LOG.info("Frequency search: {}s", timeInFrequencySearch / 1e9d);
+        LOG.info("  - Executed {} of {} rounds, {} per minute on average. Minutes by rounds executed: {}",
+                nScheduledRoundsExecuted, nMinutes * request.maxRides, (double) nScheduledRoundsExecuted / nMinutes,
+                Arrays.toString(minutesByScheduledRoundsExecuted));
+        LOG.info("Frequency search: {}s over {} draws, {}ms per draw", timeInFrequencySearch / 1e9d, nFrequencyDraws,
+                nFrequencyDraws > 0 ? timeInFrequencySearch / 1e6d / nFrequencyDraws : 0);
         LOG.info("  - Frequency component: {}s", timeInFrequencySearchFrequency / 1e9d);
         LOG.info("  - Resulting updates to scheduled component: {}s", timeInFrequencySearchScheduled / 1e9d);
         LOG.info("  - Transfers: {}s", timeInFrequencySearchTransfers / 1e9d);
 
-        return arrivalTimesAtStopsPerIteration;
+        return travelTimesToStops;
     }
 
-    /** Prefilter the patterns to only ones that are running */
+    /**
+     * Prefilter the patterns to only ones that are running. If this worker was given a FilteredPatterns shared with
+     * other workers (e.g. in a batch of origins) it is used as-is, otherwise it is computed here.
+     */
     private void prefilterPatterns () {
-        TIntList frequencyPatterns = new TIntArrayList();
-        TIntList scheduledPatterns = new TIntArrayList();
-        frequencyIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
-        Arrays.fill(frequencyIndexForOriginalPatternIndex, -1);
-        scheduledIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
-        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
-
-        int patternIndex = -1; // first increment lands at 0
-        int frequencyIndex = 0;
-        int scheduledIndex = 0;
-        for (TripPattern pattern : transit.tripPatterns) {
-            patternIndex++;
-            RouteInfo routeInfo = transit.routes.get(pattern.routeIndex);
-            TransitModes mode = TransitLayer.getTransitModes(routeInfo.route_type);
-            if (pattern.servicesActive.intersects(servicesActive) && request.transitModes.contains(mode)) {
-                // at least one trip on this pattern is relevant, based on the profile request's date and modes
-                if (pattern.hasFrequencies) {
-                    frequencyPatterns.add(patternIndex);
-                    frequencyIndexForOriginalPatternIndex[patternIndex] = frequencyIndex++;
-                }
-                if (pattern.hasSchedules) { // NB not else b/c we still support combined frequency and schedule patterns.
-                    scheduledPatterns.add(patternIndex);
-                    scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledIndex++;
-                }
-            }
+        if (filteredPatterns == null) {
+            filteredPatterns = new FilteredPatterns(transit, request);
         }
-
-        originalPatternIndexForFrequencyIndex = frequencyPatterns.toArray();
-        originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
-
-        runningFrequencyPatterns = IntStream.of(originalPatternIndexForFrequencyIndex)
-                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
-        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
-                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
-
-        LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} frequency and {} scheduled patterns",
-                transit.tripPatterns.size(), frequencyPatterns.size(), scheduledPatterns.size());
+        runningFrequencyPatterns = filteredPatterns.runningFrequencyPatterns;
+        runningScheduledPatterns = filteredPatterns.runningScheduledPatterns;
+        filteredScheduledPatterns = filteredPatterns.filteredScheduledPatterns;
+        originalPatternIndexForFrequencyIndex = filteredPatterns.originalPatternIndexForFrequencyIndex;
+        originalPatternIndexForScheduledIndex = filteredPatterns.originalPatternIndexForScheduledIndex;
+        frequencyIndexForOriginalPatternIndex = filteredPatterns.frequencyIndexForOriginalPatternIndex;
+        scheduledIndexForOriginalPatternIndex = filteredPatterns.scheduledIndexForOriginalPatternIndex;
     }
 
     /**
@@ -265,9 +412,11 @@ public class FastRaptorWorker {
      * @param iterationsPerMinute When frequencies are present, we perform multiple searches per departure minute using
      *                            different randomly-generated schedules (Monte Carlo search); this parameter controls
      *                            how many.
-     * @return an array of length iterationsPerMinute, containing the arrival (clock) times at each stop for each iteration.
+     * @param travelTimesToStops the travel times to each stop for each iteration are written into this result sink.
+     * @param firstIteration the iteration number of the first of the iterationsPerMinute results for this minute.
      */
-    private int[][] runRaptorForMinute (int departureTime, int iterationsPerMinute) {
+    private void runRaptorForMinute (int departureTime, int iterationsPerMinute,
+                                     TravelTimesToStops travelTimesToStops, int firstIteration) {
         advanceScheduledSearchToPreviousMinute(departureTime);
 
         // Run the scheduled search
@@ -276,47 +425,130 @@ public class FastRaptorWorker {
         // “Round-Based Public Transit Routing,” January 1, 2012. http://research.microsoft.com/pubs/156567/raptor_alenex.pdf.
         // ergo, we re-use the arrival times found in searches that have already occurred that depart later, because
         // the arrival time given departure at time t is upper-bounded by the arrival time given departure at minute t + 1.
-        if (transit.hasSchedules) {
+        if (transit.hasSchedules || transit.hasFrequencies) {
             long startTime = System.nanoTime();
-            for (int round = 1; round <= request.maxRides; round++) {
-                // NB since we have transfer limiting not bothering to cut off search when there are no more transfers
-                // as that will be rare and complicates the code grabbing the results
+            int round = 1;
+            for (; round <= request.maxRides; round++) {
+                // If the previous round improved the time at no stop, this round has no stops to board at, and it will
+                // improve nothing either, nor will any later round. This is common in range RAPTOR, where the states
+                // already hold the results found departing a minute later and only a few stops improve at each minute.
+                // Boarding and the frequency bounds look only at stops touched in the previous round, and transfers
+                // only at stops touched in this round, so the remaining rounds can be skipped entirely.
+                if (terminateRoundsEarly && scheduleState[round - 1].bestStopsTouched.isEmpty()) break;
 
                 // prevent finding crazy multi-transfer ways to get somewhere when there is a quicker way with fewer
                 // transfers
                 scheduleState[round].min(scheduleState[round - 1]);
 
-                long scheduledStartTime = System.nanoTime();
-                doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round]);
-                timeInScheduledSearchTransit += System.nanoTime() - scheduledStartTime;
+                if (transit.hasSchedules) {
+                    long scheduledStartTime = System.nanoTime();
+                    doScheduledSearchForRound(scheduleState[round - 1], scheduleState[round]);
+                    timeInScheduledSearchTransit += System.nanoTime() - scheduledStartTime;
+                }
+
+                // If there are frequency routes, ride them assuming the worst possible wait. This makes the scheduled
+                // state an upper bound on the result of every Monte Carlo draw, so the draws below can start from it
+                // rather than from scratch, and it remains valid to carry it over to the next departure minute.
+                if (transit.hasFrequencies) {
+                    long frequencyBoundsStartTime = System.nanoTime();
+                    doFrequencySearchForRound(scheduleState[round - 1], scheduleState[round], true);
+                    timeInScheduledSearchFrequencyBounds += System.nanoTime() - frequencyBoundsStartTime;
+                }
 
                 long transferStartTime = System.nanoTime();
                 doTransfers(scheduleState[round]);
                 timeInScheduledSearchTransfers += System.nanoTime() - transferStartTime;
+
+                updateDestinationTimeLimit(scheduleState[round]);
+            }
+            nScheduledRoundsExecuted += round - 1;
+            minutesByScheduledRoundsExecuted[round - 1]++;
+            // The skipped rounds must still carry forward what was found in earlier rounds, so that the final round
+            // holds the best times using any number of rides. This only visits the stops reached so far.
+            for (; round <= request.maxRides; round++) {
+                scheduleState[round].min(scheduleState[round - 1]);
             }
             timeInScheduledSearch += System.nanoTime() - startTime;
         }
+        scheduledDestinationTimeLimit = destinationTimeLimit;
+
+        if (transit.hasFrequencies) {
+            // Perform one search per Monte Carlo draw, each with a different randomly generated schedule for the
+            // frequency routes. Each draw starts from the scheduled search results, copied into the pooled states.
+            for (int draw = 0; draw < iterationsPerMinute; draw++) {
+                long frequencyStartTime = System.nanoTime();
+                offsets.randomize();
+                destinationTimeLimit = scheduledDestinationTimeLimit;
+                for (int round = 0; round <= request.maxRides; round++) {
+                    frequencyState[round].copyFrom(scheduleState[round]);
+                }
+                for (int round = 1; round <= request.maxRides; round++) {
+                    frequencyState[round].min(frequencyState[round - 1]);
+
+                    long frequencyComponentStartTime = System.nanoTime();
+                    doFrequencySearchForRound(frequencyState[round - 1], frequencyState[round], false);
+                    timeInFrequencySearchFrequency += System.nanoTime() - frequencyComponentStartTime;
+
+                    // Stops reached earlier on frequency routes may allow boarding earlier scheduled trips. Only stops
+                    // touched in this draw are explored, the rest were already explored in the scheduled search.
+                    if (transit.hasSchedules) {
+                        long scheduledStartTime = System.nanoTime();
+                        doScheduledSearchForRound(frequencyState[round - 1], frequencyState[round]);
+                        timeInFrequencySearchScheduled += System.nanoTime() - scheduledStartTime;
+                    }
+
+                    long transferStartTime = System.nanoTime();
+                    doTransfers(frequencyState[round]);
+                    timeInFrequencySearchTransfers += System.nanoTime() - transferStartTime;
 
-        // If there are no frequency trips, return the result of the scheduled search, but repeated as many times
-        // as there are requested MC draws, so that the scheduled search accessibility avoids potential bugs
-        // where assumptions are made about how many results will be returned from a search, e.g., in
-        // https://github.com/conveyal/r5/issues/306
-        // FIXME on large networks with no frequency routes this seems extremely inefficient.
-        // It may be somewhat less inefficient than it seems if we make arrays of references all to the same object.
-        // TODO check whether we're actually hitting this code with iterationsPerMinute > 1 on scheduled networks.
-        int[][] result = new int[iterationsPerMinute][];
-        RaptorState finalRoundState = scheduleState[request.maxRides];
-        // This scheduleState is repeatedly modified as the outer loop progresses over departure minutes.
-        // We have to be careful here that creating these paths does not modify the state, and makes
-        // protective copies of any information we want to retain.
-        Path[] paths = retainPaths ? pathToEachStop(finalRoundState) : null;
-        for (int iteration = 0; iteration < monteCarloDrawsPerMinute; iteration++) {
-            result[iteration] = finalRoundState.bestNonTransferTimes;
+                    updateDestinationTimeLimit(frequencyState[round]);
+                }
+                RaptorState finalRoundState = frequencyState[request.maxRides];
+                travelTimesToStops.recordIteration(firstIteration + draw, finalRoundState.bestNonTransferTimes, departureTime);
+                if (retainPaths) {
+                    // The pooled state will be overwritten by the next draw, but paths are protective copies.
+                    pathsPerIteration.add(pathToEachStop(finalRoundState));
+                }
+                timeInFrequencySearch += System.nanoTime() - frequencyStartTime;
+                nFrequencyDraws++;
+            }
+            // The limit found in the last draw is not valid for the scheduled search at the next minute.
+            destinationTimeLimit = scheduledDestinationTimeLimit;
+        } else {
+            // If there are no frequency trips, record the result of the scheduled search, but repeated as many times
+            // as there are requested MC draws, so that the scheduled search accessibility avoids potential bugs
+            // where assumptions are made about how many results will be returned from a search, e.g., in
+            // https://github.com/conveyal/r5/issues/306
+            // The repeated values for one stop are adjacent in the stop-major result storage, so this is cheap.
+            RaptorState finalRoundState = scheduleState[request.maxRides];
+            travelTimesToStops.recordIterations(firstIteration, iterationsPerMinute,
+                    finalRoundState.bestNonTransferTimes, departureTime);
+            // This scheduleState is repeatedly modified as the outer loop progresses over departure minutes.
+            // We have to be careful here that creating these paths does not modify the state, and makes
+            // protective copies of any information we want to retain.
             if (retainPaths) {
-                pathsPerIteration.add(paths);
+                Path[] paths = pathToEachStop(finalRoundState);
+                for (int iteration = 0; iteration < iterationsPerMinute; iteration++) {
+                    pathsPerIteration.add(paths);
+                }
             }
         }
-        return result;
+    }
+
+    /**
+     * If searching toward a single destination, lower the destination time limit to the earliest arrival at the
+     * destination via any egress stop reached in the given state. Egress is only allowed from stops reached on board
+     * a vehicle, as the walk to the destination includes any transfer.
+     */
+    private void updateDestinationTimeLimit (RaptorState state) {
+        if (egressStops == null) return;
+        egressStops.forEachEntry((stop, egressTime) -> {
+            int time = state.bestNonTransferTimes[stop];
+            if (time != UNREACHED && time + egressTime < destinationTimeLimit) {
+                destinationTimeLimit = time + egressTime;
+            }
+            return true; // continue iteration
+        });
     }
 
     /**
@@ -342,6 +574,8 @@ public class FastRaptorWorker {
         for (int patternIndex = patternsTouched.nextSetBit(0); patternIndex >= 0; patternIndex = patternsTouched.nextSetBit(patternIndex + 1)) {
             int originalPatternIndex = originalPatternIndexForScheduledIndex[patternIndex];
             TripPattern pattern = runningScheduledPatterns[patternIndex];
+            FilteredPattern filteredPattern = filteredScheduledPatterns[patternIndex];
+            // onTrip is an index into the filtered trips, so alighting needs no search through the original list.
             int onTrip = -1;
             int waitTime = 0;
             int boardTime = 0;
@@ -353,7 +587,7 @@ public class FastRaptorWorker {
 
                 // attempt to alight if we're on board, done above the board search so that we don't check for alighting
                 // when boarding
-                if (onTrip > -1) {
+                if (onTrip > -1 && schedule.arrivals[stopPositionInPattern] < destinationTimeLimit) {
                     int alightTime = schedule.arrivals[stopPositionInPattern];
                     int onVehicleTime = alightTime - boardTime;
 
@@ -361,7 +595,8 @@ public class FastRaptorWorker {
                         LOG.error("Components of travel time are larger than travel time!");
                     }
 
-                    outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, waitTime, onVehicleTime, false, pattern.tripSchedules.indexOf(schedule), boardTime, -1);
+                    outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, waitTime, onVehicleTime,
+                            false, filteredPattern.originalTripIndex[onTrip], boardTime, -1);
                 }
 
                 int sourcePatternIndex = inputState.previousStop[stop] == -1 ?
@@ -373,49 +608,102 @@ public class FastRaptorWorker {
                 if (inputState.bestStopsTouched.get(stop) && sourcePatternIndex != originalPatternIndex) {
                     int earliestBoardTime = inputState.bestTimes[stop] + MINIMUM_BOARD_WAIT_SEC;
 
-                    // only attempt to board if the stop was touched
-                    if (onTrip == -1) {
-                        if (inputState.bestStopsTouched.get(stop)) {
-                            int candidateTripIndex = -1;
-                            EARLIEST_TRIP:
-                            for (TripSchedule candidateSchedule : pattern.tripSchedules) {
-                                candidateTripIndex++;
-
-                                if (!servicesActive.get(candidateSchedule.serviceCode) || candidateSchedule.headwaySeconds != null) {
-                                    // frequency trip or not running
-                                    continue;
-                                }
-
-                                if (earliestBoardTime < candidateSchedule.departures[stopPositionInPattern]) {
-                                    // board this vehicle
-                                    onTrip = candidateTripIndex;
-                                    schedule = candidateSchedule;
-                                    boardTime = candidateSchedule.departures[stopPositionInPattern];
-                                    waitTime = boardTime - inputState.bestTimes[stop];
-                                    boardStop = stop;
-                                    break EARLIEST_TRIP;
-                                }
+                    // If we're not on a trip, find the earliest one we can board. If we are already on board, check
+                    // whether we can back up to an earlier trip due to this stop being reached earlier. Unless trips
+                    // overtake one another on this pattern, both of these are a binary search.
+                    int tripLimit = onTrip == -1 ? filteredPattern.nTrips : onTrip;
+                    int candidateTrip = filteredPattern.findEarliestTrip(stopPositionInPattern, earliestBoardTime, tripLimit);
+                    if (candidateTrip != -1) {
+                        onTrip = candidateTrip;
+                        schedule = filteredPattern.schedules[candidateTrip];
+                        boardTime = filteredPattern.departuresAtStop[stopPositionInPattern][candidateTrip];
+                        waitTime = boardTime - inputState.bestTimes[stop];
+                        boardStop = stop;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Perform one round of search on frequency-based routes.
+     *
+     * @param computeDeterministicUpperBound if true, rather than using the random offsets of the current Monte Carlo
+     *        draw, assume that every boarding incurs the worst possible wait (a full headway). The result is then an
+     *        upper bound on the result of any draw, which is what is stored in the scheduled search states. In that
+     *        case only patterns passing through stops touched in the previous round are explored, as in the scheduled
+     *        search. In a Monte Carlo draw every boarding time may change, so all running frequency patterns are
+     *        explored from every stop reached in the previous round.
+     */
+    private void doFrequencySearchForRound (RaptorState inputState, RaptorState outputState,
+                                            boolean computeDeterministicUpperBound) {
+        BitSet patternsToExplore;
+        if (computeDeterministicUpperBound) {
+            patternsToExplore = getPatternsTouchedForStops(inputState, frequencyIndexForOriginalPatternIndex);
+        } else {
+            patternsToExplore = new BitSet(runningFrequencyPatterns.length);
+            patternsToExplore.set(0, runningFrequencyPatterns.length);
+        }
+
+        for (int patternIndex = patternsToExplore.nextSetBit(0); patternIndex >= 0; patternIndex = patternsToExplore.nextSetBit(patternIndex + 1)) {
+            int originalPatternIndex = originalPatternIndexForFrequencyIndex[patternIndex];
+            TripPattern pattern = runningFrequencyPatterns[patternIndex];
+            int[][] offsetsForPattern = computeDeterministicUpperBound ? null : offsets.offsets.get(originalPatternIndex);
+
+            for (int tripScheduleIndex = 0; tripScheduleIndex < pattern.tripSchedules.size(); tripScheduleIndex++) {
+                TripSchedule schedule = pattern.tripSchedules.get(tripScheduleIndex);
+                // If this trip's service is inactive (it's not running) or it's a scheduled (non-freq) trip, skip it.
+                if (schedule.headwaySeconds == null || !servicesActive.get(schedule.serviceCode)) continue;
+
+                // Each frequency entry behaves like a separate route with its own randomized schedule.
+                for (int frequencyEntryIdx = 0; frequencyEntryIdx < schedule.headwaySeconds.length; frequencyEntryIdx++) {
+                    // boardTime is non-negative when we are on board a vehicle
+                    int boardTime = -1;
+                    int boardStop = -1;
+                    int boardStopPositionInPattern = -1;
+                    int waitTime = 0;
+
+                    for (int stopPositionInPattern = 0; stopPositionInPattern < pattern.stops.length; stopPositionInPattern++) {
+                        int stop = pattern.stops[stopPositionInPattern];
+
+                        // attempt to alight if we're on board, done above the board search so that we don't check
+                        // for alighting when boarding
+                        if (boardTime > -1) {
+                            int onVehicleTime = schedule.arrivals[stopPositionInPattern] -
+                                    schedule.departures[boardStopPositionInPattern];
+                            int alightTime = boardTime + onVehicleTime;
+                            if (alightTime < destinationTimeLimit) {
+                                outputState.setTimeAtStop(stop, alightTime, originalPatternIndex, boardStop, waitTime,
+                                        onVehicleTime, false, tripScheduleIndex, boardTime, -1);
                             }
                         }
-                    } else {
-                        // check if we can back up to an earlier trip due to this stop being reached earlier
-                        int bestTripIdx = onTrip;
-                        while (--bestTripIdx >= 0) {
-                            TripSchedule trip = pattern.tripSchedules.get(bestTripIdx);
-                            if (trip.headwaySeconds != null || !servicesActive.get(trip.serviceCode)) {
-                                // This is a frequency trip or it is not running on the day of the search.
-                                continue;
-                            }
-                            if (trip.departures[stopPositionInPattern] > earliestBoardTime) {
-                                onTrip = bestTripIdx;
-                                schedule = trip;
-                                boardTime = trip.departures[stopPositionInPattern];
-                                waitTime = boardTime - inputState.bestTimes[stop];
-                                boardStop = stop;
-                            } else {
-                                // this trip arrives too early, break loop since they are sorted by departure time
-                                break;
-                            }
+
+                        boolean reachedInPreviousRound = computeDeterministicUpperBound ?
+                                inputState.bestStopsTouched.get(stop) : inputState.bestTimes[stop] != UNREACHED;
+                        if (!reachedInPreviousRound) continue;
+
+                        // don't attempt to reboard the same pattern
+                        int sourcePatternIndex = inputState.previousStop[stop] == -1 ?
+                                inputState.previousPatterns[stop] :
+                                inputState.previousPatterns[inputState.previousStop[stop]];
+                        if (sourcePatternIndex == originalPatternIndex) continue;
+
+                        int earliestBoardTime = inputState.bestTimes[stop] + MINIMUM_BOARD_WAIT_SEC;
+                        int newBoardTime = computeDeterministicUpperBound ?
+                                getWorstCaseFrequencyDepartureTime(schedule, stopPositionInPattern, frequencyEntryIdx, earliestBoardTime) :
+                                getRandomFrequencyDepartureTime(schedule, stopPositionInPattern,
+                                        offsetsForPattern[tripScheduleIndex][frequencyEntryIdx], frequencyEntryIdx, earliestBoardTime);
+
+                        // The time at which the vehicle we are already on departs this stop, if any.
+                        int remainOnBoardTime = boardTime > -1 ?
+                                boardTime + schedule.departures[stopPositionInPattern] - schedule.departures[boardStopPositionInPattern] :
+                                Integer.MAX_VALUE;
+
+                        if (newBoardTime > -1 && newBoardTime < remainOnBoardTime) {
+                            boardTime = newBoardTime;
+                            boardStop = stop;
+                            boardStopPositionInPattern = stopPositionInPattern;
+                            waitTime = boardTime - inputState.bestTimes[stop];
                         }
                     }
                 }
@@ -423,6 +711,44 @@ public class FastRaptorWorker {
         }
     }
 
+    /**
+     * Given a randomized offset for a frequency entry, find the departure time of the first vehicle that leaves the
+     * given stop strictly after the given time. Vehicles leave the first stop of the pattern at startTime + offset and
+     * every headwaySeconds thereafter, as long as that is before endTime.
+     * @return the departure time, or -1 if no vehicle on this frequency entry departs after the given time.
+     */
+    public static int getRandomFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern, int offset,
+                                                       int frequencyEntryIdx, int earliestTime) {
+        int headway = schedule.headwaySeconds[frequencyEntryIdx];
+        int travelTimeToStop = schedule.departures[stopPositionInPattern];
+        int firstDepartureAtStop = schedule.startTimes[frequencyEntryIdx] + offset + travelTimeToStop;
+        // the number of headways after the first departure at which we find the first vehicle we can board
+        int nHeadways = 0;
+        if (earliestTime >= firstDepartureAtStop) {
+            nHeadways = (earliestTime - firstDepartureAtStop) / headway + 1;
+        }
+        int departureTime = firstDepartureAtStop + nHeadways * headway;
+        // check that this vehicle actually leaves the start of the route within the frequency entry
+        if (departureTime - travelTimeToStop >= schedule.endTimes[frequencyEntryIdx]) return -1;
+        return departureTime;
+    }
+
+    /**
+     * Find the latest time at which a vehicle on the given frequency entry could depart the given stop after the given
+     * time, whatever the randomized offset. This is a full headway after the given time (or after the first possible
+     * departure, if the given time is before the frequency entry starts).
+     * @return the worst-case departure time, or -1 if a vehicle is not guaranteed to depart within the entry.
+     */
+    public static int getWorstCaseFrequencyDepartureTime (TripSchedule schedule, int stopPositionInPattern,
+                                                          int frequencyEntryIdx, int earliestTime) {
+        int headway = schedule.headwaySeconds[frequencyEntryIdx];
+        int travelTimeToStop = schedule.departures[stopPositionInPattern];
+        int earliestDepartureAtStop = schedule.startTimes[frequencyEntryIdx] + travelTimeToStop;
+        int departureTime = Math.max(earliestTime, earliestDepartureAtStop) + headway;
+        if (departureTime - travelTimeToStop >= schedule.endTimes[frequencyEntryIdx]) return -1;
+        return departureTime;
+    }
+
     private void doTransfers (RaptorState state) {
         // avoid integer casts in tight loop below
         int walkSpeedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
@@ -441,6 +767,7 @@ public class FastRaptorWorker {
                         // transfer length to stop is acceptable
                         int walkTimeToTargetStopSeconds = distanceToTargetStopMillimeters / walkSpeedMillimetersPerSecond;
                         int timeAtTargetStop = state.bestNonTransferTimes[stop] + walkTimeToTargetStopSeconds;
+                        if (timeAtTargetStop >= destinationTimeLimit) continue;
 
                         if (walkTimeToTargetStopSeconds < 0) {
                             LOG.error("Negative transfer time!!");
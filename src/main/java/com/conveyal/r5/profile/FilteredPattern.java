@@ -0,0 +1,122 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.BitSet;
+
+/**
+ * A view of a TripPattern containing only the scheduled (non-frequency) trips that are running on the date of a
+ * particular search. Departure times are copied out of the TripSchedules into one primitive array per stop position,
+ * so that the RAPTOR worker can find the earliest boardable trip with a binary search instead of scanning every trip on
+ * the pattern and checking its service and headways each time it tries to board.
+ *
+ * These are built once per search in FastRaptorWorker.prefilterPatterns() and are not shared between searches, since
+ * they depend on the services active on the search date.
+ *
+ * Trip indexes used in the methods of this class are indexes into the filtered trips, not into the original
+ * pattern.tripSchedules list. Use originalTripIndex to map them back (for example when recording paths).
+ */
+public class FilteredPattern {
+
+    /** The pattern that was filtered to produce this view. */
+    public final TripPattern pattern;
+
+    /** The number of scheduled trips running on the search date. */
+    public final int nTrips;
+
+    /** The running scheduled trips, in the same order they appear in pattern.tripSchedules. */
+    public final TripSchedule[] schedules;
+
+    /** For each filtered trip, its index within pattern.tripSchedules. */
+    public final int[] originalTripIndex;
+
+    /**
+     * Departure times of each filtered trip, indexed first by stop position and then by filtered trip index:
+     * departuresAtStop[stopPosition][trip]. Storing them stop-major means a binary search at one stop position only
+     * touches one contiguous array.
+     */
+    public final int[][] departuresAtStop;
+
+    /**
+     * True if, at every stop position, departure times are non-decreasing with filtered trip index (no trip overtakes
+     * another one). This is almost always the case, and when it is we can binary search for the earliest trip. When
+     * trips overtake one another we fall back on a linear scan, which preserves the original behavior exactly.
+     */
+    public final boolean noOvertaking;
+
+    public FilteredPattern (TripPattern pattern, BitSet servicesActive) {
+        this.pattern = pattern;
+        TIntList tripIndexes = new TIntArrayList();
+        for (int t = 0; t < pattern.tripSchedules.size(); t++) {
+            TripSchedule schedule = pattern.tripSchedules.get(t);
+            if (schedule.headwaySeconds == null && servicesActive.get(schedule.serviceCode)) {
+                tripIndexes.add(t);
+            }
+        }
+        this.originalTripIndex = tripIndexes.toArray();
+        this.nTrips = originalTripIndex.length;
+        this.schedules = new TripSchedule[nTrips];
+        for (int i = 0; i < nTrips; i++) {
+            schedules[i] = pattern.tripSchedules.get(originalTripIndex[i]);
+        }
+
+        int nStops = pattern.stops.length;
+        this.departuresAtStop = new int[nStops][nTrips];
+        boolean sorted = true;
+        for (int stopPosition = 0; stopPosition < nStops; stopPosition++) {
+            int[] departures = departuresAtStop[stopPosition];
+            for (int trip = 0; trip < nTrips; trip++) {
+                departures[trip] = schedules[trip].departures[stopPosition];
+                if (trip > 0 && departures[trip] < departures[trip - 1]) sorted = false;
+            }
+        }
+        this.noOvertaking = sorted;
+    }
+
+    /**
+     * Find the first trip that departs from the given stop position strictly after the given time.
+     * @return the filtered index of that trip, or -1 if no running trip departs after the given time.
+     */
+    public int findEarliestTrip (int stopPosition, int earliestBoardTime) {
+        return findEarliestTrip(stopPosition, earliestBoardTime, nTrips);
+    }
+
+    /**
+     * Find the first trip before the given filtered trip index that departs from the given stop position strictly
+     * after the given time. This is used when we are already on board a trip and reach a stop at which we could have
+     * boarded an earlier one.
+     * @return the filtered index of that trip, or -1 if no such trip exists.
+     */
+    public int findEarliestTrip (int stopPosition, int earliestBoardTime, int tripLimit) {
+        int[] departures = departuresAtStop[stopPosition];
+        if (noOvertaking) {
+            // Binary search for the leftmost trip with departure > earliestBoardTime in [0, tripLimit).
+            int low = 0;
+            int high = tripLimit;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (departures[mid] > earliestBoardTime) high = mid;
+                else low = mid + 1;
+            }
+            return low < tripLimit ? low : -1;
+        } else if (tripLimit == nTrips) {
+            // Boarding from scratch: take the first trip in list order that departs late enough.
+            for (int trip = 0; trip < nTrips; trip++) {
+                if (departures[trip] > earliestBoardTime) return trip;
+            }
+            return -1;
+        } else {
+            // Backing up from a trip we are already on: walk backward until a trip departs too early.
+            int best = -1;
+            for (int trip = tripLimit - 1; trip >= 0; trip--) {
+                if (departures[trip] > earliestBoardTime) best = trip;
+                else break;
+            }
+            return best;
+        }
+    }
+
+}
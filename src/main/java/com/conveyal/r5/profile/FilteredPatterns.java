@@ -0,0 +1,98 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.RouteInfo;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TripPattern;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The subset of the trip patterns in a TransitLayer that are running on the date and using the transit modes of a
+ * particular ProfileRequest, split into frequency and scheduled patterns, along with the mappings between their
+ * indexes in these filtered lists and their indexes in the TransitLayer.
+ *
+ * Computing this requires a pass over every pattern (and every trip, to build the FilteredPatterns) so we want to do it
+ * only once when routing from many origins with the same request parameters. Once constructed it is read-only, so a
+ * single instance can be shared between FastRaptorWorkers running in different threads.
+ */
+public class FilteredPatterns {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FilteredPatterns.class);
+
+    /** Services active on the date of the search */
+    public final BitSet servicesActive;
+
+    /** Frequency-based trip patterns running on a given day */
+    public final TripPattern[] runningFrequencyPatterns;
+
+    /** Schedule-based trip patterns running on a given day */
+    public final TripPattern[] runningScheduledPatterns;
+
+    /** Parallel to runningScheduledPatterns, the running scheduled trips on each pattern. */
+    public final FilteredPattern[] filteredScheduledPatterns;
+
+    /** Map from internal, filtered frequency pattern indices back to original pattern indices for frequency patterns */
+    public final int[] originalPatternIndexForFrequencyIndex;
+
+    /** Map from internal, filtered pattern indices back to original pattern indices for scheduled patterns */
+    public final int[] originalPatternIndexForScheduledIndex;
+
+    /** Array mapping from original pattern indices to the filtered frequency indices */
+    public final int[] frequencyIndexForOriginalPatternIndex;
+
+    /** Array mapping from original pattern indices to the filtered scheduled indices */
+    public final int[] scheduledIndexForOriginalPatternIndex;
+
+    /** Prefilter the patterns to only ones that are running */
+    public FilteredPatterns (TransitLayer transit, ProfileRequest request) {
+        this.servicesActive = transit.getActiveServicesForDate(request.date);
+        TIntList frequencyPatterns = new TIntArrayList();
+        TIntList scheduledPatterns = new TIntArrayList();
+        frequencyIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
+        Arrays.fill(frequencyIndexForOriginalPatternIndex, -1);
+        scheduledIndexForOriginalPatternIndex = new int[transit.tripPatterns.size()];
+        Arrays.fill(scheduledIndexForOriginalPatternIndex, -1);
+
+        int patternIndex = -1; // first increment lands at 0
+        int frequencyIndex = 0;
+        int scheduledIndex = 0;
+        for (TripPattern pattern : transit.tripPatterns) {
+            patternIndex++;
+            RouteInfo routeInfo = transit.routes.get(pattern.routeIndex);
+            TransitModes mode = TransitLayer.getTransitModes(routeInfo.route_type);
+            if (pattern.servicesActive.intersects(servicesActive) && request.transitModes.contains(mode)) {
+                // at least one trip on this pattern is relevant, based on the profile request's date and modes
+                if (pattern.hasFrequencies) {
+                    frequencyPatterns.add(patternIndex);
+                    frequencyIndexForOriginalPatternIndex[patternIndex] = frequencyIndex++;
+                }
+                if (pattern.hasSchedules) { // NB not else b/c we still support combined frequency and schedule patterns.
+                    scheduledPatterns.add(patternIndex);
+                    scheduledIndexForOriginalPatternIndex[patternIndex] = scheduledIndex++;
+                }
+            }
+        }
+
+        originalPatternIndexForFrequencyIndex = frequencyPatterns.toArray();
+        originalPatternIndexForScheduledIndex = scheduledPatterns.toArray();
+
+        runningFrequencyPatterns = IntStream.of(originalPatternIndexForFrequencyIndex)
+                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        runningScheduledPatterns = IntStream.of(originalPatternIndexForScheduledIndex)
+                .mapToObj(transit.tripPatterns::get).toArray(TripPattern[]::new);
+        filteredScheduledPatterns = Stream.of(runningScheduledPatterns)
+                .map(pattern -> new FilteredPattern(pattern, servicesActive)).toArray(FilteredPattern[]::new);
+
+        LOG.info("Prefiltering patterns based on date active reduced {} patterns to {} frequency and {} scheduled patterns",
+                transit.tripPatterns.size(), frequencyPatterns.size(), scheduledPatterns.size());
+    }
+
+}
@@ -6,7 +6,7 @@ import com.conveyal.r5.analyst.TravelTimeReducer;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.cluster.PathWriter;
 import com.conveyal.r5.streets.LinkedPointSet;
-import gnu.trove.map.TIntIntMap;
+import com.conveyal.r5.streets.PointToStopDistanceTables;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -56,8 +56,17 @@ public class PerTargetPropagater {
     /** Times at targets using the street network */
     public int[] nonTransitTravelTimesToTargets;
 
-    /** Times at transit stops for each iteration. Plus a transposed version of that same matrix as an optimization. */
-    public int[][] travelTimesToStopsForIteration, travelTimesToStop;
+    /**
+     * Times at transit stops for each iteration, stored stop-major so that all iterations for one stop are contiguous.
+     * This gives good memory locality in the tight loop below: we pull all the travel times for a particular stop into
+     * cache at once, rather than unneeded times for the same iteration at other stops. Since we are also looping over
+     * the targets with geographic locality, the stops pulled into cache for one target are likely to be reused by the
+     * next. FastRaptorWorker writes directly into this layout so there is no longer any need to transpose here.
+     */
+    public TravelTimesToStops travelTimesToStops;
+
+    /** The flat array within travelTimesToStops, cached in a field for use in the inner loop. */
+    private int[] travelTimesToStop;
 
     /** The number of "iterations" (departure minutes & Monte Carlo schedules) and the number of stops. */
     private int nIterations, nStops;
@@ -80,38 +89,67 @@ public class PerTargetPropagater {
     int speedMillimetersPerSecond;
 
 
-    // STATE FIELDS WHICH ARE RESET WHEN PROCESSING EACH DESTINATION.
-    // These track the characteristics of the best paths known to the target currently being processed.
+    /**
+     * Targets are processed in tiles of consecutive targets, so that the travel times at each stop can be read once
+     * for all the targets in the tile that are near that stop. The tile size is chosen so that the travel times for
+     * every iteration at every target in the tile (this many ints) stay in the processor cache.
+     */
+    private static final int TILE_SIZE_INTS = 16 * 1024;
+
+    /** Upper limit on the number of targets in a tile, for cases with very few iterations. */
+    private static final int MAX_TARGETS_PER_TILE = 64;
+
+    /**
+     * For each stop, the lowest travel time at any iteration, or cutoffSeconds if it is never reached within the
+     * cutoff. If this plus the time to walk to a target is beyond the cutoff, that stop can be skipped entirely.
+     */
+    private int[] minTravelTimeToStop;
+
+    // STATE FIELDS WHICH ARE RESET WHEN PROCESSING EACH TILE OF DESTINATIONS.
+    // These track the characteristics of the best paths known to the targets currently being processed.
 
     /**
-     * Retains the best known total travel time to the current destination for each iteration of the RAPTOR algorithm.
-     * TODO instead of a long-lived field this could be returned from the propagate function.
+     * For each target in the current tile, the best known total travel time to that target for each iteration of the
+     * RAPTOR algorithm. While propagating, these are initialized to the non-transit time clamped to cutoffSeconds so
+     * that the inner loop needs no cutoff check (see propagateFromStop).
      */
-    private int[] perIterationTravelTimes;
+    private int[][] tileTravelTimes;
 
     /**
      * The transit path that yielded the best known travel time to the current destination for each iteration of the
-     * raptor algorithm. Parallel to perIterationTravelTimes. Reset for each destination that is processed.
+     * raptor algorithm. Parallel to tileTravelTimes[0], as tiles contain a single target when paths are recorded.
+     * Reset for each destination that is processed.
      */
     private Path[] perIterationPaths;
 
+    // Reusable storage for the entries (stop-target pairs) near the current tile, so they can be sorted by stop.
+
+    /** For each entry, the stop in the high 32 bits and the index of the entry in the low 32 bits. */
+    private long[] entryKeys;
+
+    /** For each entry, the index of the target within the tile. */
+    private int[] entryTargets;
+
+    /** For each entry, the time in seconds to walk from the stop to the target. */
+    private int[] entryWalkTimes;
+
     /**
      * Constructor.
      */
     public PerTargetPropagater(LinkedPointSet targets, AnalysisTask task,
-                               int[][] travelTimesToStopsForIteration,
+                               TravelTimesToStops travelTimesToStops,
                                int[] nonTransitTravelTimesToTargets) {
         this.targets = targets;
         this.request = task;
-        this.travelTimesToStopsForIteration = travelTimesToStopsForIteration;
+        this.travelTimesToStops = travelTimesToStops;
+        this.travelTimesToStop = travelTimesToStops.travelTimes;
         this.nonTransitTravelTimesToTargets = nonTransitTravelTimesToTargets;
         // If we're making a static site we'll break travel times down into components and make paths.
         // This expects the pathsToStopsForIteration and pathWriter fields to be set separately by the caller.
         this.calculateComponents = task.makeStaticSite;
         speedMillimetersPerSecond = (int) (request.walkSpeed * 1000);
-        nIterations = travelTimesToStopsForIteration.length;
-        nStops = travelTimesToStopsForIteration[0].length;
-        invertTravelTimes();
+        nIterations = travelTimesToStops.nIterations;
+        nStops = travelTimesToStops.nStops;
     }
 
     /**
@@ -122,17 +160,29 @@ public class PerTargetPropagater {
         targets.makePointToStopDistanceTablesIfNeeded();
         long startTimeMillis = System.currentTimeMillis();
 
-        // perIterationTravelTimes and perIterationDetails are reused when processing each target.
-        perIterationTravelTimes = new int[nIterations];
+        findMinTravelTimeToStops();
+
+        // Paths are recorded one target at a time; otherwise make tiles of as many targets as will fit in cache.
+        int targetsPerTile = calculateComponents ? 1 :
+                Math.max(1, Math.min(MAX_TARGETS_PER_TILE, TILE_SIZE_INTS / nIterations));
+        tileTravelTimes = new int[targetsPerTile][nIterations];
+        int initialEntryCapacity = targetsPerTile * 32;
+        entryKeys = new long[initialEntryCapacity];
+        entryTargets = new int[initialEntryCapacity];
+        entryWalkTimes = new int[initialEntryCapacity];
 
         // Retain additional information about how the target was reached to report travel time breakdown and paths to targets.
         perIterationPaths = calculateComponents ? new Path[nIterations] : null;
 
-        for (int targetIdx = 0; targetIdx < targets.size(); targetIdx++) {
+        int nTargets = targets.size();
+        for (int firstTarget = 0; firstTarget < nTargets; firstTarget += targetsPerTile) {
+            int nTargetsInTile = Math.min(targetsPerTile, nTargets - firstTarget);
 
-            // Initialize the travel times to that achieved without transit (if any).
+            // Initialize the travel times to that achieved without transit (if any), clamped to the cutoff.
             // These travel times do not vary with departure time or MC draw, so they are all the same at a given target.
-            Arrays.fill(perIterationTravelTimes, nonTransitTravelTimesToTargets[targetIdx]);
+            for (int t = 0; t < nTargetsInTile; t++) {
+                Arrays.fill(tileTravelTimes[t], Math.min(nonTransitTravelTimesToTargets[firstTarget + t], cutoffSeconds));
+            }
 
             // Clear out the Path array if we're building one. These are transit solution details, so they remain
             // null until we find a good transit solution.
@@ -141,31 +191,47 @@ public class PerTargetPropagater {
             }
 
             // Improve upon these non-transit travel times based on transit travel times to nearby stops.
-            // This fills in perIterationTravelTimes and perIterationPaths for one particular target.
-            propagateTransit(targetIdx);
+            // This fills in tileTravelTimes and perIterationPaths for the targets in the tile.
+            propagateTransit(firstTarget, nTargetsInTile);
+
+            for (int t = 0; t < nTargetsInTile; t++) {
+                int targetIdx = firstTarget + t;
+                int[] perIterationTravelTimes = tileTravelTimes[t];
+
+                // Any iteration not improved by transit is still at the clamped value. Restore the non-transit time
+                // there, so that times at or beyond the cutoff come out exactly as they went in.
+                int nonTransitTravelTime = nonTransitTravelTimesToTargets[targetIdx];
+                if (nonTransitTravelTime > cutoffSeconds) {
+                    for (int iteration = 0; iteration < nIterations; iteration++) {
+                        if (perIterationTravelTimes[iteration] >= cutoffSeconds) {
+                            perIterationTravelTimes[iteration] = nonTransitTravelTime;
+                        }
+                    }
+                }
 
-            // Construct the PathScorer before extracting percentiles because the scorer needs to make a copy of
-            // the unsorted complete travel times.
-            PathScorer pathScorer = null;
-            if (calculateComponents) {
-                // TODO optimization: skip this entirely if there is no transit access to the destination.
-                // We know transit access is impossible in the caller when there are no reached stops.
-                pathScorer = new PathScorer(perIterationPaths, perIterationTravelTimes);
-            }
+                // Construct the PathScorer before extracting percentiles because the scorer needs to make a copy of
+                // the unsorted complete travel times.
+                PathScorer pathScorer = null;
+                if (calculateComponents) {
+                    // TODO optimization: skip this entirely if there is no transit access to the destination.
+                    // We know transit access is impossible in the caller when there are no reached stops.
+                    pathScorer = new PathScorer(perIterationPaths, perIterationTravelTimes);
+                }
 
-            // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values)
-            int[] percentilesMinutes = travelTimeReducer.recordTravelTimesForTarget(targetIdx, perIterationTravelTimes);
+                // Extract the requested percentiles and save them (and/or the resulting accessibility indicator values)
+                int[] percentilesMinutes = travelTimeReducer.recordTravelTimesForTarget(targetIdx, perIterationTravelTimes);
 
-            if (calculateComponents) {
-                // TODO Somehow report these in-vehicle, wait and walk breakdown values alongside the total travel time.
-                // TODO WalkTime should be calculated per-iteration, as it may not hold for some summary statistics that stat(total) = stat(in-vehicle) + stat(wait) + stat(walk).
-                // NOTE this is currently using only the first of what could be N percentiles.
-                Set<Path> selectedPaths = pathScorer.getTopPaths(N_PATHS_PER_TARGET, percentilesMinutes[0] * 60);
-                pathWriter.recordPathsForTarget(selectedPaths);
+                if (calculateComponents) {
+                    // TODO Somehow report these in-vehicle, wait and walk breakdown values alongside the total travel time.
+                    // TODO WalkTime should be calculated per-iteration, as it may not hold for some summary statistics that stat(total) = stat(in-vehicle) + stat(wait) + stat(walk).
+                    // NOTE this is currently using only the first of what could be N percentiles.
+                    Set<Path> selectedPaths = pathScorer.getTopPaths(N_PATHS_PER_TARGET, percentilesMinutes[0] * 60);
+                    pathWriter.recordPathsForTarget(selectedPaths);
+                }
             }
         }
         LOG.info("Propagating {} iterations from {} stops to {} targets took {}s",
-                nIterations, nStops, targets.size(), (System.currentTimeMillis() - startTimeMillis) / 1000d
+                nIterations, nStops, nTargets, (System.currentTimeMillis() - startTimeMillis) / 1000d
         );
         if (pathWriter != null) {
             pathWriter.finishAndStorePaths();
@@ -174,73 +240,106 @@ public class PerTargetPropagater {
         return travelTimeReducer.finish();
     }
 
-    /**
-     * Transpose the travel times to stops array in order to provide better memory locality in the tight loop below.
-     * We have confirmed that this provides a significant speedup. TODO quantify that speedup and record here in comment.
-     * This speedup is expected because Java represents multidimensional arrays as an array of references to arrays.
-     * This means that each row is stored in a separate chunk of address space, and may not be contiguous with
-     * other rows. The CPU and cache probably can't efficiently predict and prefetch the values we need next.
-     * When we transpose the array, we then have all travel times to a particular stop for all iterations
-     * in a single contiguous array. This means we pull in all the travel times for a particular stop into cache, at
-     * once, rather than unneeded times for the same iteration at other stops. Since we are also looping over the
-     * targets with geographic locality (adjacent cells in the destination grid are geographically adjacent),
-     * it is likely that the stops pulled into cache by handling one target will be reused when handling the next target.
-     * This should not increase memory consumption very much as we're only duplicating the travel times to transit
-     * stops. For example, the Netherlands has about 70,000 stops, if you do 1,000 iterations to 70,000 stops, the
-     * array being transposed and duplicated is 70,000 * 1000 * 4 bytes per int ~= 267 megabytes. It does not seem
-     * worthwhile to change the routing algorithm to output already-transposed data, as that will create memory
-     * locality problems elsewhere (since the pathfinding algorithm solves one iteration for all stops simultaneously).
-     */
-    private void invertTravelTimes() {
-        long startTime = System.currentTimeMillis();
-        travelTimesToStop = new int[nStops][nIterations];
-        for (int iteration = 0; iteration < nIterations; iteration++) {
-            for (int stop = 0; stop < nStops; stop++) {
-                travelTimesToStop[stop][iteration] = travelTimesToStopsForIteration[iteration][stop];
+    /** Fill in minTravelTimeToStop, the best time at each stop over all iterations, clamped to the cutoff. */
+    private void findMinTravelTimeToStops () {
+        minTravelTimeToStop = new int[nStops];
+        for (int stop = 0; stop < nStops; stop++) {
+            int stopOffset = travelTimesToStops.offsetForStop(stop);
+            int minTravelTime = cutoffSeconds;
+            for (int iteration = 0; iteration < nIterations; iteration++) {
+                minTravelTime = Math.min(minTravelTime, travelTimesToStop[stopOffset + iteration]);
             }
+            minTravelTimeToStop[stop] = minTravelTime;
         }
-        LOG.info("Travel time matrix transposition took {} msec", System.currentTimeMillis() - startTime);
     }
 
     /**
-     * For every "iteration" (departure minute and Monte Carlo schedule), find a complete travel time to the current
-     * target from the given nearby stop, and update the best known time for that iteration and target.
+     * For every "iteration" (departure minute and Monte Carlo schedule), find a complete travel time to each target in
+     * the current tile from each of its nearby stops, and update the best known time for that iteration and target.
      * Also record the best paths if we're going to be saving transit path details.
-     * TODO verify if these are actually travel times (vs. clock times after midnight) and clarify code comments.
-     * They appear to be travel times (are compared against cutoffSeconds which is a trip duration).
+     *
+     * The stop-target pairs for the whole tile are gathered and sorted by stop, so that the travel times at each stop
+     * are pulled into cache once and then applied to every target in the tile near that stop.
+     * These are travel times in seconds rather than clock times, as they are compared against cutoffSeconds.
      */
-    private void propagateTransit (int targetIndex) {
-        // Grab the set of nearby stops for this target, with their distances.
-        TIntIntMap pointToStopDistanceTable = targets.pointToStopDistanceTables.get(targetIndex);
-        // Only try to propagate transit travel times if there are transit stops near this target.
+    private void propagateTransit (int firstTarget, int nTargetsInTile) {
+        // Grab the set of nearby stops for the targets in this tile, with their distances.
+        // Only try to propagate transit travel times from stops that can reach the target within the cutoff.
         // Even if we don't propagate transit travel times, we still need to pass these non-transit times to
         // the reducer later in the caller, because you can walk even where there is no transit.
-        if (pointToStopDistanceTable != null) {
-            pointToStopDistanceTable.forEachEntry((stop, distanceMillimeters) -> {
-                for (int iteration = 0; iteration < nIterations; iteration++) {
-                    int timeAtStop = travelTimesToStop[stop][iteration];
-                    if (timeAtStop > cutoffSeconds || timeAtStop > perIterationTravelTimes[iteration]) {
-                        // Skip propagation if all resulting times will be greater than the cutoff and
-                        // cannot improve on the best known time at this iteration. Also avoids overflow.
-                        continue;
-                    }
-                    // If recording path details, extract the row of paths to all stops for this iteration.
-                    // Propagate from the current stop out to the target.
-                    int timeAtTarget = timeAtStop + distanceMillimeters / speedMillimetersPerSecond;
-                    if (timeAtTarget < cutoffSeconds &&
-                        timeAtTarget < perIterationTravelTimes[iteration]) {
-                        // To reach this target, alighting at this stop is faster than any previously checked stop.
-                        perIterationTravelTimes[iteration] = timeAtTarget;
-                        if (calculateComponents) {
-                            Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
-                            perIterationPaths[iteration] = pathsToStops[stop];
-                        }
-                    }
+        PointToStopDistanceTables pointToStopDistanceTables = targets.pointToStopDistanceTables;
+        int nEntries = 0;
+        for (int t = 0; t < nTargetsInTile; t++) {
+            int target = firstTarget + t;
+            int lastEntry = pointToStopDistanceTables.offsets[target + 1];
+            for (int entry = pointToStopDistanceTables.offsets[target]; entry < lastEntry; entry++) {
+                int stop = pointToStopDistanceTables.stops[entry];
+                int walkTime = pointToStopDistanceTables.distancesMillimeters[entry] / speedMillimetersPerSecond;
+                if (minTravelTimeToStop[stop] + walkTime >= cutoffSeconds) continue;
+                if (nEntries == entryKeys.length) {
+                    entryKeys = Arrays.copyOf(entryKeys, nEntries * 2);
+                    entryTargets = Arrays.copyOf(entryTargets, nEntries * 2);
+                    entryWalkTimes = Arrays.copyOf(entryWalkTimes, nEntries * 2);
                 }
-                return true; // Trove "continue iteration" signal.
-            });
+                entryKeys[nEntries] = ((long) stop << 32) | nEntries;
+                entryTargets[nEntries] = t;
+                entryWalkTimes[nEntries] = walkTime;
+                nEntries++;
+            }
+        }
+        // With one target per tile the entries are already in stop order, so this sort is trivial.
+        Arrays.sort(entryKeys, 0, nEntries);
+
+        for (int k = 0; k < nEntries; k++) {
+            int stop = (int) (entryKeys[k] >>> 32);
+            int entry = (int) entryKeys[k];
+            int stopOffset = travelTimesToStops.offsetForStop(stop);
+            if (calculateComponents) {
+                propagateFromStopRecordingPaths(stop, stopOffset, entryWalkTimes[entry]);
+            } else {
+                propagateFromStop(travelTimesToStop, stopOffset, entryWalkTimes[entry], cutoffSeconds,
+                        tileTravelTimes[entryTargets[entry]], nIterations);
+            }
+        }
+    }
+
+    /**
+     * The innermost loop of propagation, improving the travel times at one target for every iteration with the times
+     * via one nearby stop. This is written as a branch-free min-reduction so that the JIT can vectorize it. Clamping
+     * the time at the stop to the cutoff avoids overflow on UNREACHED, and since travelTimesToTarget starts out at or
+     * below the cutoff, a time at or beyond the cutoff can never replace it.
+     */
+    private static void propagateFromStop (int[] travelTimesToStop, int stopOffset, int walkTime, int cutoffSeconds,
+                                           int[] travelTimesToTarget, int nIterations) {
+        for (int iteration = 0; iteration < nIterations; iteration++) {
+            int timeAtTarget = Math.min(travelTimesToStop[stopOffset + iteration], cutoffSeconds) + walkTime;
+            travelTimesToTarget[iteration] = Math.min(travelTimesToTarget[iteration], timeAtTarget);
         }
+    }
 
+    /**
+     * Equivalent to propagateFromStop for the single target in the tile, but also recording the path to the stop for
+     * every iteration where it improves the travel time to the target.
+     */
+    private void propagateFromStopRecordingPaths (int stop, int stopOffset, int walkTime) {
+        int[] perIterationTravelTimes = tileTravelTimes[0];
+        for (int iteration = 0; iteration < nIterations; iteration++) {
+            int timeAtStop = travelTimesToStop[stopOffset + iteration];
+            if (timeAtStop >= perIterationTravelTimes[iteration]) {
+                // Skip propagation if all resulting times cannot improve on the best known time at this iteration,
+                // which is never beyond the cutoff. Also avoids overflow.
+                continue;
+            }
+            // Propagate from the current stop out to the target.
+            int timeAtTarget = timeAtStop + walkTime;
+            if (timeAtTarget < perIterationTravelTimes[iteration]) {
+                // To reach this target, alighting at this stop is faster than any previously checked stop.
+                // Extract the row of paths to all stops for this iteration.
+                perIterationTravelTimes[iteration] = timeAtTarget;
+                Path[] pathsToStops = pathsToStopsForIteration.get(iteration);
+                perIterationPaths[iteration] = pathsToStops[stop];
+            }
+        }
     }
 
 }
@@ -453,11 +453,11 @@ public class ProfileRequest implements Serializable, Cloneable {
 
     /**
      * Return the number of Monte Carlo draws that must be done each minute to get at least the desired number of total
-     * Monte Carlo draws over all minutes.
+     * Monte Carlo draws over all minutes. Searches on networks with no frequency routes make only one draw per minute
+     * regardless of this value, see FastRaptorWorker.monteCarloDrawsPerMinute().
      */
     @JsonIgnore
     public int getMonteCarloDrawsPerMinute() {
-        return 1;
-        //return (int) Math.ceil((double) monteCarloDraws / getTimeWindowLengthMinutes());
+        return Math.max(1, (int) Math.ceil((double) monteCarloDraws / getTimeWindowLengthMinutes()));
     }
 }
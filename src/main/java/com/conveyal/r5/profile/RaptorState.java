@@ -38,12 +38,6 @@ public class RaptorState {
     /** The best times for reaching stops via transit rather than via a transfer from another stop */
     public int[] bestNonTransferTimes;
 
-    /** Cumulative transit wait time for the best path to each stop, parallel to bestNonTransferTimes. */
-    public int[] nonTransferWaitTime;
-
-    /** Cumulative in-vehicle travel time for the best path to each stop, parallel to bestNonTransferTimes. */
-    public int[] nonTransferInVehicleTravelTime;
-
     /**
      * The previous pattern used to get to this stop, parallel to bestNonTransferTimes.
      * When there is a transfer, bestNonTransferTimes will contain the time that the pattern in
@@ -56,15 +50,25 @@ public class RaptorState {
      */
     public int[] previousPatterns;
 
+    /** The stop the previous pattern was boarded at */
+    public int[] previousStop;
+
+    // The remaining arrays are only needed to reconstruct paths after the search, and are null unless this state was
+    // created with retainPaths set. The search itself only reads the four arrays above, so leaving these out roughly
+    // halves the memory that every round of the search streams through.
+
+    /** Cumulative transit wait time for the best path to each stop, parallel to bestNonTransferTimes. */
+    public int[] nonTransferWaitTime;
+
+    /** Cumulative in-vehicle travel time for the best path to each stop, parallel to bestNonTransferTimes. */
+    public int[] nonTransferInVehicleTravelTime;
+
     public int[] previousTrips;
 
     public int[] boardTimes;
 
     public int[] transferTimes;
 
-    /** The stop the previous pattern was boarded at */
-    public int[] previousStop;
-
     /** If this stop is optimally reached via a transfer, the stop we transferred from */
     public int[] transferStop;
 
@@ -74,11 +78,33 @@ public class RaptorState {
     /** Stops touched by transit or transfers */
     public BitSet bestStopsTouched;
 
+    /**
+     * Every stop whose entries in this state may differ from their initial values, in the order they were first
+     * touched. Unlike the two BitSets above this is not cleared between departure minutes, only when the whole state
+     * is reset. All other entries are known to be UNREACHED (or -1), so operations that must visit every reached stop
+     * (min, setDepartureTime, reset) can iterate over this list rather than over every stop in the network. An origin
+     * typically reaches only a small fraction of the stops in a large network, especially in the early rounds.
+     */
+    private final int[] dirtyStops;
+
+    private int nDirtyStops;
+
+    /** Set for every stop that is in dirtyStops, to avoid adding any stop twice. */
+    private final BitSet stopIsDirty;
+
     /** Maximum duration of trips stored by this RaptorState */
     public int maxDurationSeconds;
 
     /** create a RaptorState for a network with a particular number of stops, and a given maximum duration */
     public RaptorState (int nStops, int maxDurationSeconds) {
+        this(nStops, maxDurationSeconds, true);
+    }
+
+    /**
+     * create a RaptorState for a network with a particular number of stops, and a given maximum duration
+     * @param retainPaths if false, the arrays used only for path reconstruction are not allocated or maintained.
+     */
+    public RaptorState (int nStops, int maxDurationSeconds, boolean retainPaths) {
         this.bestTimes = new int[nStops];
         this.bestNonTransferTimes = new int[nStops];
 
@@ -87,21 +113,26 @@ public class RaptorState {
 
         this.previousPatterns = new int[nStops];
         this.previousStop = new int[nStops];
-        this.transferStop = new int[nStops];
-        this.previousTrips = new int[nStops];
-        this.boardTimes = new int[nStops];
-        this.transferTimes = new int[nStops];
         Arrays.fill(previousPatterns, -1);
         Arrays.fill(previousStop, -1);
-        Arrays.fill(transferStop, -1);
-        Arrays.fill(previousTrips, -1);
-        Arrays.fill(boardTimes, -1);
-        Arrays.fill(transferTimes, -1);
 
-        this.nonTransferWaitTime = new int[nStops];
-        this.nonTransferInVehicleTravelTime = new int[nStops];
+        if (retainPaths) {
+            this.transferStop = new int[nStops];
+            this.previousTrips = new int[nStops];
+            this.boardTimes = new int[nStops];
+            this.transferTimes = new int[nStops];
+            Arrays.fill(transferStop, -1);
+            Arrays.fill(previousTrips, -1);
+            Arrays.fill(boardTimes, -1);
+            Arrays.fill(transferTimes, -1);
+            this.nonTransferWaitTime = new int[nStops];
+            this.nonTransferInVehicleTravelTime = new int[nStops];
+        }
+
         this.nonTransferStopsTouched = new BitSet(nStops);
         this.bestStopsTouched = new BitSet(nStops);
+        this.dirtyStops = new int[nStops];
+        this.stopIsDirty = new BitSet(nStops);
         this.maxDurationSeconds = maxDurationSeconds;
     }
 
@@ -113,15 +144,23 @@ public class RaptorState {
         this.bestNonTransferTimes = Arrays.copyOf(state.bestNonTransferTimes, state.bestNonTransferTimes.length);
         this.previousPatterns = Arrays.copyOf(state.previousPatterns, state.previousPatterns.length);
         this.previousStop = Arrays.copyOf(state.previousStop, state.previousStop.length);
-        this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
-        this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
-        this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        if (state.retainsPaths()) {
+            this.transferStop = Arrays.copyOf(state.transferStop, state.transferStop.length);
+            this.previousTrips = Arrays.copyOf(state.previousTrips, state.previousTrips.length);
+            this.boardTimes = Arrays.copyOf(state.boardTimes, state.boardTimes.length);
+            this.transferTimes = Arrays.copyOf(state.transferTimes, state.transferTimes.length);
+            this.nonTransferWaitTime = Arrays.copyOf(state.nonTransferWaitTime, state.nonTransferWaitTime.length);
+            this.nonTransferInVehicleTravelTime = Arrays.copyOf(state.nonTransferInVehicleTravelTime, state.nonTransferInVehicleTravelTime.length);
+        }
         this.departureTime = state.departureTime;
 
         this.previous = state;
 
         this.nonTransferStopsTouched = new BitSet(state.bestTimes.length);
         this.bestStopsTouched = new BitSet(state.bestTimes.length);
+        this.dirtyStops = Arrays.copyOf(state.dirtyStops, state.dirtyStops.length);
+        this.nDirtyStops = state.nDirtyStops;
+        this.stopIsDirty = (BitSet) state.stopIsDirty.clone();
 
         this.maxDurationSeconds = state.maxDurationSeconds;
     }
@@ -134,25 +173,113 @@ public class RaptorState {
         return new RaptorState(this);
     }
 
+    /** @return whether this state maintains the arrays needed to reconstruct paths. */
+    public boolean retainsPaths () {
+        return transferStop != null;
+    }
+
+    /** Record that the entries for the given stop may no longer have their initial values. */
+    private void markDirty (int stop) {
+        if (!stopIsDirty.get(stop)) {
+            stopIsDirty.set(stop);
+            dirtyStops[nDirtyStops++] = stop;
+        }
+    }
+
+    /**
+     * Return this state to the condition it was in when first constructed, with no stops reached, so that it can be
+     * reused for a search from another origin without reallocating its arrays. Only the stops touched since the last
+     * reset are visited.
+     */
+    public void reset () {
+        boolean retainPaths = retainsPaths();
+        for (int i = 0; i < nDirtyStops; i++) {
+            int stop = dirtyStops[i];
+            bestTimes[stop] = FastRaptorWorker.UNREACHED;
+            bestNonTransferTimes[stop] = FastRaptorWorker.UNREACHED;
+            previousPatterns[stop] = -1;
+            previousStop[stop] = -1;
+            if (retainPaths) {
+                transferStop[stop] = -1;
+                previousTrips[stop] = -1;
+                boardTimes[stop] = -1;
+                transferTimes[stop] = -1;
+                nonTransferWaitTime[stop] = 0;
+                nonTransferInVehicleTravelTime[stop] = 0;
+            }
+        }
+        nDirtyStops = 0;
+        stopIsDirty.clear();
+        nonTransferStopsTouched.clear();
+        bestStopsTouched.clear();
+        departureTime = 0;
+    }
+
+    /**
+     * Overwrite this state with the contents of another state of the same size, reusing this state's arrays rather
+     * than allocating new ones. This is used to reset the pooled states for each Monte Carlo draw of a frequency search
+     * back to the result of the scheduled search. Like the copy constructor, this leaves the touched stops empty, and
+     * it does not change the reference to the previous round's state. Both states must have been created with the same
+     * retainPaths setting.
+     */
+    public void copyFrom (RaptorState other) {
+        // Stops reached in this state but not in the other must go back to their initial values, after which only the
+        // stops reached in the other state need to be copied.
+        reset();
+        boolean retainPaths = retainsPaths();
+        for (int i = 0; i < other.nDirtyStops; i++) {
+            int stop = other.dirtyStops[i];
+            bestTimes[stop] = other.bestTimes[stop];
+            bestNonTransferTimes[stop] = other.bestNonTransferTimes[stop];
+            previousPatterns[stop] = other.previousPatterns[stop];
+            previousStop[stop] = other.previousStop[stop];
+            if (retainPaths) {
+                transferStop[stop] = other.transferStop[stop];
+                previousTrips[stop] = other.previousTrips[stop];
+                boardTimes[stop] = other.boardTimes[stop];
+                transferTimes[stop] = other.transferTimes[stop];
+                nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop];
+                nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
+            }
+        }
+        System.arraycopy(other.dirtyStops, 0, this.dirtyStops, 0, other.nDirtyStops);
+        this.nDirtyStops = other.nDirtyStops;
+        this.stopIsDirty.or(other.stopIsDirty);
+        this.departureTime = other.departureTime;
+        this.maxDurationSeconds = other.maxDurationSeconds;
+    }
+
     /**
      * Set this state to the min values found in this state or the other passed in (used in Range RAPTOR).
-     * Since this is used to progress between rounds, does not copy stopsTouched data.
+     * Since this is used to progress between rounds, does not copy stopsTouched data. Stops that have never been
+     * touched in the other state are UNREACHED there and cannot improve on this state, so only the other state's dirty
+     * stops are visited.
      */
     public void min (RaptorState other) {
-        int nStops = this.bestTimes.length;
-        for (int stop = 0; stop < nStops; stop++) {
+        boolean retainPaths = retainsPaths();
+        for (int i = 0; i < other.nDirtyStops; i++) {
+            int stop = other.dirtyStops[i];
             // prefer times from other when breaking tie as other is earlier in RAPTOR search and thus has fewer transfers
             if (other.bestTimes[stop] <= this.bestTimes[stop]) {
                 this.bestTimes[stop] = other.bestTimes[stop];
-                this.transferStop[stop] = other.transferStop[stop];
+                if (retainPaths) {
+                    this.transferStop[stop] = other.transferStop[stop];
+                    this.transferTimes[stop] = other.transferTimes[stop];
+                }
+                markDirty(stop);
             }
             if (other.bestNonTransferTimes[stop] <= this.bestNonTransferTimes[stop]) {
                 this.bestNonTransferTimes[stop] = other.bestNonTransferTimes[stop];
                 this.previousPatterns[stop] = other.previousPatterns[stop];
                 this.previousStop[stop] = other.previousStop[stop];
-                this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
-                // add in any additional wait at the beginning in the range raptor case.
-                this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                if (retainPaths) {
+                    this.previousTrips[stop] = other.previousTrips[stop];
+                    this.boardTimes[stop] = other.boardTimes[stop];
+                    this.nonTransferInVehicleTravelTime[stop] = other.nonTransferInVehicleTravelTime[stop];
+                    // add in any additional wait at the beginning in the range raptor case.
+                    this.nonTransferWaitTime[stop] = other.nonTransferWaitTime[stop] + (other.departureTime - this.departureTime);
+                }
+                markDirty(stop);
             }
         }
     }
@@ -166,44 +293,48 @@ public class RaptorState {
     public boolean setTimeAtStop(int stop, int time, int fromPattern, int fromStop, int waitTime, int inVehicleTime, boolean transfer, int tripIndex, int boardTime, int transferTime) {
         if (time > departureTime + maxDurationSeconds) return false;
 
+        boolean retainPaths = retainsPaths();
         boolean optimal = false;
         if (!transfer && time < bestNonTransferTimes[stop]) {
             bestNonTransferTimes[stop] = time;
             nonTransferStopsTouched.set(stop);
             previousPatterns[stop] = fromPattern;
-            previousTrips[stop] = tripIndex;
-            boardTimes[stop] = boardTime;
             previousStop[stop] = fromStop;
 
-            // wait time is not stored after transfers, so copy from pre-transfer
-            int totalWaitTime, totalInVehicleTime;
-
-            if (previous == null) {
-                // first round, there is no previous wait time or in vehicle time
-                totalWaitTime = waitTime;
-                totalInVehicleTime = inVehicleTime;
-            } else {
-                if (previous.transferStop[fromStop] != -1) {
-                    // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
-                    // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
-                    // on a vehicle, which may be impossible at this round or may simply take longer.
-                    int preTransferStop = previous.transferStop[fromStop];
-                    totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+            if (retainPaths) {
+                previousTrips[stop] = tripIndex;
+                boardTimes[stop] = boardTime;
+
+                // wait time is not stored after transfers, so copy from pre-transfer
+                int totalWaitTime, totalInVehicleTime;
+
+                if (previous == null) {
+                    // first round, there is no previous wait time or in vehicle time
+                    totalWaitTime = waitTime;
+                    totalInVehicleTime = inVehicleTime;
                 } else {
-                    // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
-                    // wait time from that stop
-                    totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
-                    totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    if (previous.transferStop[fromStop] != -1) {
+                        // previous stop is optimally reached via a transfer, so grab the wait and in vehicle time from
+                        // the stop we transferred from. Otherwise we'll be grabbing the wait time to get to the board stop
+                        // on a vehicle, which may be impossible at this round or may simply take longer.
+                        int preTransferStop = previous.transferStop[fromStop];
+                        totalWaitTime = previous.nonTransferWaitTime[preTransferStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[preTransferStop] + inVehicleTime;
+                    } else {
+                        // the stop we boarded at was not the result of a transfer from another stop, grab the cumulative
+                        // wait time from that stop
+                        totalWaitTime = previous.nonTransferWaitTime[fromStop] + waitTime;
+                        totalInVehicleTime = previous.nonTransferInVehicleTravelTime[fromStop] + inVehicleTime;
+                    }
                 }
-            }
 
-            if (totalInVehicleTime + totalWaitTime > time - departureTime) {
-                LOG.error("Wait and travel time greater than total time.");
-            }
+                if (totalInVehicleTime + totalWaitTime > time - departureTime) {
+                    LOG.error("Wait and travel time greater than total time.");
+                }
 
-            nonTransferWaitTime[stop] = totalWaitTime;
-            nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
+                nonTransferWaitTime[stop] = totalWaitTime;
+                nonTransferInVehicleTravelTime[stop] = totalInVehicleTime;
+            }
             optimal = true;
         }
 
@@ -212,15 +343,18 @@ public class RaptorState {
         if (time < bestTimes[stop]) {
             bestTimes[stop] = time;
             bestStopsTouched.set(stop);
-            if (transfer) {
-                transferStop[stop] = fromStop;
-                transferTimes[stop] = transferTime;
-            } else {
-                transferStop[stop] = -1;
+            if (retainPaths) {
+                if (transfer) {
+                    transferStop[stop] = fromStop;
+                    transferTimes[stop] = transferTime;
+                } else {
+                    transferStop[stop] = -1;
+                }
             }
             optimal = true;
         }
 
+        if (optimal) markDirty(stop);
         return optimal;
     }
 
@@ -253,21 +387,24 @@ public class RaptorState {
         return ret;
     }
 
+    /**
+     * Move this state to an earlier departure time for the next iteration of Range RAPTOR, removing any arrivals that
+     * are now beyond the maximum trip duration. Only the stops reached so far are visited.
+     */
     public void setDepartureTime(int departureTime) {
         int previousDepartureTime = this.departureTime;
         this.departureTime = departureTime;
 
         // remove trips that are now too long
         int maxClockTime = departureTime + maxDurationSeconds;
-        for (int i = 0; i < bestTimes.length; i++) {
-            if (bestTimes[i] > maxClockTime) bestTimes[i] = FastRaptorWorker.UNREACHED;
-            if (bestNonTransferTimes[i] > maxClockTime) bestNonTransferTimes[i] = FastRaptorWorker.UNREACHED;
-        }
-
-        // handle updating wait
-        for (int stop = 0; stop < this.bestTimes.length; stop++) {
-            if (this.previousPatterns[stop] > -1) {
-                this.nonTransferWaitTime[stop] += previousDepartureTime - departureTime;
+        boolean retainPaths = retainsPaths();
+        for (int i = 0; i < nDirtyStops; i++) {
+            int stop = dirtyStops[i];
+            if (bestTimes[stop] > maxClockTime) bestTimes[stop] = FastRaptorWorker.UNREACHED;
+            if (bestNonTransferTimes[stop] > maxClockTime) bestNonTransferTimes[stop] = FastRaptorWorker.UNREACHED;
+            // handle updating wait
+            if (retainPaths && previousPatterns[stop] > -1) {
+                nonTransferWaitTime[stop] += previousDepartureTime - departureTime;
             }
         }
     }
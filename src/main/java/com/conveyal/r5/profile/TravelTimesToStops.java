@@ -0,0 +1,72 @@
+package com.conveyal.r5.profile;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+
+/**
+ * Travel times from one origin to every transit stop, for every RAPTOR iteration (departure minute and Monte Carlo
+ * draw). This is the result sink of FastRaptorWorker and the input of PerTargetPropagater.
+ *
+ * The times are stored in a single flat array in stop-major order: all iterations for stop 0, then all iterations for
+ * stop 1, and so on. The RAPTOR search produces one iteration for all stops at a time, so its writes are strided, but
+ * the propagator reads every iteration for one stop at a time, and that inner loop is where locality matters. We used
+ * to produce an int[iteration][stop] array of copies and then transpose it into a second int[stop][iteration] array
+ * before propagation. For a large region with hundreds of iterations that was hundreds of megabytes of short-lived
+ * garbage per origin, and the transposition itself was not free. Writing straight into the layout the propagator
+ * wants avoids both.
+ *
+ * Values are travel times in seconds relative to the departure time of the iteration, or UNREACHED.
+ */
+public class TravelTimesToStops {
+
+    public final int nStops;
+
+    public final int nIterations;
+
+    /** The travel time to stop s at iteration i is found at travelTimes[s * nIterations + i]. */
+    public final int[] travelTimes;
+
+    public TravelTimesToStops (int nStops, int nIterations) {
+        long size = (long) nStops * nIterations;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                "Cannot store travel times for %d iterations to %d stops in a single array.", nIterations, nStops));
+        }
+        this.nStops = nStops;
+        this.nIterations = nIterations;
+        this.travelTimes = new int[(int) size];
+    }
+
+    /** @return the index in travelTimes of the travel time at the first iteration for the given stop. */
+    public int offsetForStop (int stop) {
+        return stop * nIterations;
+    }
+
+    public int getTravelTime (int stop, int iteration) {
+        return travelTimes[stop * nIterations + iteration];
+    }
+
+    /**
+     * Record the results of a RAPTOR search for one or more consecutive iterations that share the same arrival times
+     * (e.g. all the Monte Carlo draws of a departure minute on a network with no frequency routes).
+     *
+     * @param arrivalTimesAtStops clock times at each stop, which are converted to travel times. The array is not
+     *                            retained, so it is safe for the caller to keep modifying it afterward.
+     * @param departureTime the clock time at which the search producing arrivalTimesAtStops departed.
+     */
+    public void recordIterations (int firstIteration, int nIterationsToRecord, int[] arrivalTimesAtStops, int departureTime) {
+        int lastIteration = firstIteration + nIterationsToRecord;
+        for (int stop = 0, offset = 0; stop < nStops; stop++, offset += nIterations) {
+            int arrivalTime = arrivalTimesAtStops[stop];
+            int travelTime = arrivalTime == UNREACHED ? UNREACHED : arrivalTime - departureTime;
+            for (int iteration = firstIteration; iteration < lastIteration; iteration++) {
+                travelTimes[offset + iteration] = travelTime;
+            }
+        }
+    }
+
+    /** Record the results of a RAPTOR search for a single iteration. */
+    public void recordIteration (int iteration, int[] arrivalTimesAtStops, int departureTime) {
+        recordIterations(iteration, 1, arrivalTimesAtStops, departureTime);
+    }
+
+}
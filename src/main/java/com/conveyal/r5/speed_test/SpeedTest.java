@@ -7,6 +7,7 @@ import com.conveyal.r5.profile.Path;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.profile.SearchAlgorithm;
 import com.conveyal.r5.profile.StreetPath;
+import com.conveyal.r5.profile.TravelTimesToStops;
 import com.conveyal.r5.profile.mcrr.MultiCriteriaRangeRaptorWorker;
 import com.conveyal.r5.speed_test.api.model.Itinerary;
 import com.conveyal.r5.speed_test.api.model.Place;
@@ -157,11 +158,13 @@ public class SpeedTest {
 
             FastRaptorWorker worker = new FastRaptorWorker(transportNetwork.transitLayer, request, streetRouter.accessTimesToStopsInSeconds);
             worker.retainPaths = true;
+            // Only the times at the egress stops are used below, so let the worker prune everything else.
+            worker.egressStops = streetRouter.egressTimesToStopsInSeconds;
 
             // Run the main RAPTOR algorithm to find paths and travel times to all stops in the network.
-            // Returns the total travel times as a 2D array of [searchIteration][destinationStopIndex].
+            // Returns the total travel times to every stop for every search iteration, stored stop-major.
             // Additional detailed path information is retained in the FastRaptorWorker after routing.
-            int[][] transitTravelTimesToStops = worker.route();
+            TravelTimesToStops transitTravelTimesToStops = worker.route();
 
             int bestKnownTime = Integer.MAX_VALUE; // Hack to bypass Java stupid "effectively final" requirement.
             Path bestKnownPath = null;
@@ -172,7 +175,7 @@ public class SpeedTest {
                 egressTimeIterator.advance();
                 int stopIndex = egressTimeIterator.key();
                 egressTime = egressTimeIterator.value();
-                int travelTimeToStop = transitTravelTimesToStops[0][stopIndex];
+                int travelTimeToStop = transitTravelTimesToStops.getTravelTime(stopIndex, 0);
                 if (travelTimeToStop != FastRaptorWorker.UNREACHED) {
                     int totalTime = travelTimeToStop + egressTime;
                     if (totalTime < bestKnownTime) {
@@ -0,0 +1,141 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.procedure.TIntProcedure;
+
+/**
+ * The edges leaving (or entering) each vertex of a street layer, in compressed sparse row form: the edges of vertex v
+ * are at indexes offsets[v] (inclusive) to offsets[v + 1] (exclusive) of a single array of edge indexes. This replaces
+ * a list of one small TIntList per vertex, which on a large network means tens of millions of objects to build on
+ * every load and to chase pointers through in the inner loop of every street search.
+ *
+ * A scenario only ever adds edges to a copy of the base network (see EdgeStore.extendOnlyCopy), so the edge lists of
+ * a scenario network share the arrays of the base network and keep the edges added by the scenario in a small
+ * overlay, which is much quicker to build than a copy of the whole thing. As in the EdgeStore, the temporarily deleted
+ * edges of a scenario are still in the lists, and must be skipped by anything that cares about them.
+ *
+ * The edges of each vertex are in ascending order of edge index. These lists are immutable once built, and can be
+ * shared between threads.
+ */
+public class EdgeLists {
+
+    /** The number of edges covered by the shared arrays. */
+    private final int nBaseEdges;
+
+    private final int[] offsets;
+
+    private final int[] edges;
+
+    /** The edges added by a scenario, for each vertex that has any, or null if there are none. */
+    private final TIntObjectMap<TIntList> extraEdges;
+
+    private EdgeLists (int nBaseEdges, int[] offsets, int[] edges, TIntObjectMap<TIntList> extraEdges) {
+        this.nBaseEdges = nBaseEdges;
+        this.offsets = offsets;
+        this.edges = edges;
+        this.extraEdges = extraEdges;
+    }
+
+    /**
+     * Build the lists of edges leaving (if outgoing is true) or entering each vertex.
+     * @param nVertices the number of vertices in the street layer.
+     */
+    public static EdgeLists build (EdgeStore edgeStore, int nVertices, boolean outgoing) {
+        int nEdges = edgeStore.nEdges();
+        int[] offsets = new int[nVertices + 1];
+        int[] vertexForEdge = new int[nEdges];
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        while (edge.advance()) {
+            int vertex = outgoing ? edge.getFromVertex() : edge.getToVertex();
+            vertexForEdge[edge.edgeIndex] = vertex;
+            offsets[vertex + 1]++;
+        }
+        for (int vertex = 0; vertex < nVertices; vertex++) {
+            offsets[vertex + 1] += offsets[vertex];
+        }
+        int[] edges = new int[nEdges];
+        int[] nextIndexForVertex = new int[nVertices];
+        System.arraycopy(offsets, 0, nextIndexForVertex, 0, nVertices);
+        // Edges are visited in ascending order, so the edges of each vertex end up sorted.
+        for (int e = 0; e < nEdges; e++) {
+            edges[nextIndexForVertex[vertexForEdge[e]]++] = e;
+        }
+        return new EdgeLists(nEdges, offsets, edges, null);
+    }
+
+    /**
+     * Make edge lists for a copy of the street layer these lists were built for, to which edges have been added
+     * starting at index nBaseEdges. The arrays of these lists are shared, and only the added edges are indexed.
+     * @return new edge lists, or null if these lists do not cover exactly the edges below the given one, so the lists
+     * must be rebuilt from scratch.
+     */
+    public EdgeLists extend (EdgeStore edgeStore, int firstAddedEdge, boolean outgoing) {
+        if (extraEdges != null || firstAddedEdge != nBaseEdges) return null;
+        TIntObjectMap<TIntList> extraEdges = new TIntObjectHashMap<>();
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        for (int e = firstAddedEdge; e < edgeStore.nEdges(); e++) {
+            edge.seek(e);
+            int vertex = outgoing ? edge.getFromVertex() : edge.getToVertex();
+            TIntList edgesForVertex = extraEdges.get(vertex);
+            if (edgesForVertex == null) {
+                edgesForVertex = new TIntArrayList(4);
+                extraEdges.put(vertex, edgesForVertex);
+            }
+            edgesForVertex.add(e);
+        }
+        return new EdgeLists(nBaseEdges, offsets, edges, extraEdges.isEmpty() ? null : extraEdges);
+    }
+
+    /** @return the number of edges in the list for the given vertex. */
+    public int size (int vertex) {
+        int size = baseSize(vertex);
+        if (extraEdges != null) {
+            TIntList extra = extraEdges.get(vertex);
+            if (extra != null) size += extra.size();
+        }
+        return size;
+    }
+
+    /** @return the edge at the given position in the list for the given vertex. */
+    public int get (int vertex, int index) {
+        int baseSize = baseSize(vertex);
+        if (index < baseSize) return edges[offsets[vertex] + index];
+        return extraEdges.get(vertex).get(index - baseSize);
+    }
+
+    /**
+     * Apply the given procedure to every edge in the list for the given vertex, stopping early if it returns false.
+     * @return false if the procedure returned false for any edge.
+     */
+    public boolean forEach (int vertex, TIntProcedure procedure) {
+        int baseSize = baseSize(vertex);
+        for (int i = offsets[vertex], end = i + baseSize; i < end; i++) {
+            if (!procedure.execute(edges[i])) return false;
+        }
+        if (extraEdges != null) {
+            TIntList extra = extraEdges.get(vertex);
+            if (extra != null) return extra.forEach(procedure);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the list for the given vertex. This allocates a new list, so it should not be used in inner
+     * loops, where size() and get(vertex, index) should be used instead.
+     */
+    public TIntList get (int vertex) {
+        TIntList list = new TIntArrayList(size(vertex));
+        forEach(vertex, list::add);
+        return list;
+    }
+
+    /** Vertices added by a scenario are beyond the end of the offsets array, and have no edges in the base lists. */
+    private int baseSize (int vertex) {
+        if (vertex >= offsets.length - 1) return 0;
+        return offsets[vertex + 1] - offsets[vertex];
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.common.GeometryUtils;
+import gnu.trove.list.array.TIntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * A static, packed Hilbert R-tree over the individual straight segments of the forward (even) edges in a range of
+ * an EdgeStore. This is used when linking large numbers of points to the street network at once.
+ *
+ * Unlike the IntHashGrid spatial index, which returns a newly allocated set of candidate edges for every query and
+ * leaves the caller to walk over the geometries of those edges, this index stores the coordinates of the segments
+ * themselves in flat arrays, sorted along a Hilbert curve so that segments that are near each other in space are also
+ * near each other in memory. The segments are grouped into nodes of NODE_SIZE consecutive entries, and those nodes
+ * into parent nodes in the same way until a single root remains. Each node only stores its bounding box, the children
+ * of node i being entries i * NODE_SIZE through i * NODE_SIZE + NODE_SIZE - 1 of the level below. A query walks this
+ * tree with a caller-supplied stack and hands each segment whose bounding box intersects the query box to a visitor,
+ * so it allocates nothing.
+ *
+ * The index cannot be modified once built. Queries are thread-safe as long as each thread uses its own stack.
+ */
+public class EdgeSegmentIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EdgeSegmentIndex.class);
+
+    /** The number of children of each node in the tree. */
+    private static final int NODE_SIZE = 16;
+
+    /** The segments are sorted by the Hilbert index of their midpoints on a grid of 2^15 x 2^15 cells. */
+    private static final int HILBERT_ORDER = 15;
+
+    /** The first edge that was indexed. */
+    public final int firstEdge;
+
+    /** One more than the last edge that was indexed. */
+    public final int endEdge;
+
+    /** For each segment in the sorted order, the even edge it belongs to. */
+    private final int[] segmentEdges;
+
+    /** For each segment in the sorted order, its index within the geometry of its edge. */
+    private final int[] segmentIndexes;
+
+    /** For each segment in the sorted order, the fixed-point coordinates fixedLat0, fixedLon0, fixedLat1, fixedLon1. */
+    private final int[] segmentCoordinates;
+
+    /**
+     * For each level of the tree above the segments, starting with the level immediately above them, the bounding
+     * boxes of its nodes in fixed-point degrees as minLon, minLat, maxLon, maxLat.
+     */
+    private final int[][] nodeBounds;
+
+    /**
+     * A function that receives the segments found by a query. The coordinates are fixed-point degrees.
+     * This has the same parameters as EdgeStore.SegmentConsumer, plus the index of the edge.
+     */
+    public interface SegmentVisitor {
+        void visitSegment (int edge, int seg, int fixedLat0, int fixedLon0, int fixedLat1, int fixedLon1);
+    }
+
+    private EdgeSegmentIndex (int firstEdge, int endEdge, int[] segmentEdges, int[] segmentIndexes,
+                              int[] segmentCoordinates, int[][] nodeBounds) {
+        this.firstEdge = firstEdge;
+        this.endEdge = endEdge;
+        this.segmentEdges = segmentEdges;
+        this.segmentIndexes = segmentIndexes;
+        this.segmentCoordinates = segmentCoordinates;
+        this.nodeBounds = nodeBounds;
+    }
+
+    /**
+     * Index the segments of all the forward edges from firstEdge (inclusive) to endEdge (exclusive) in the given
+     * EdgeStore. Odd edges are skipped, their geometry is the same as that of their even companions.
+     */
+    public static EdgeSegmentIndex build (EdgeStore edgeStore, int firstEdge, int endEdge) {
+        LOG.info("Indexing segments of edges {} to {}...", firstEdge, endEdge);
+        TIntArrayList edges = new TIntArrayList();
+        TIntArrayList indexes = new TIntArrayList();
+        TIntArrayList coordinates = new TIntArrayList();
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        // Start on an even edge.
+        for (int e = firstEdge + (firstEdge & 1); e < endEdge; e += 2) {
+            edge.seek(e);
+            final int edgeIndex = e;
+            edge.forEachSegment((seg, fixedLat0, fixedLon0, fixedLat1, fixedLon1) -> {
+                edges.add(edgeIndex);
+                indexes.add(seg);
+                coordinates.add(fixedLat0);
+                coordinates.add(fixedLon0);
+                coordinates.add(fixedLat1);
+                coordinates.add(fixedLon1);
+            });
+        }
+        int nSegments = edges.size();
+
+        // Find the extent of all the segments, then sort them along a Hilbert curve covering that extent.
+        // Midpoints are scaled to the Hilbert grid with longs, since the extent can be wider than an int can hold.
+        long minLon = Integer.MAX_VALUE, minLat = Integer.MAX_VALUE, maxLon = Integer.MIN_VALUE, maxLat = Integer.MIN_VALUE;
+        for (int s = 0; s < nSegments; s++) {
+            long midLat = ((long) coordinates.get(s * 4) + coordinates.get(s * 4 + 2)) / 2;
+            long midLon = ((long) coordinates.get(s * 4 + 1) + coordinates.get(s * 4 + 3)) / 2;
+            minLon = Math.min(minLon, midLon);
+            minLat = Math.min(minLat, midLat);
+            maxLon = Math.max(maxLon, midLon);
+            maxLat = Math.max(maxLat, midLat);
+        }
+        long hilbertMax = (1 << HILBERT_ORDER) - 1;
+        long width = Math.max(maxLon - minLon, 1);
+        long height = Math.max(maxLat - minLat, 1);
+        // Pack the Hilbert index in the upper half of a long and the segment in the lower half, and sort those.
+        long[] keys = new long[nSegments];
+        for (int s = 0; s < nSegments; s++) {
+            long midLat = ((long) coordinates.get(s * 4) + coordinates.get(s * 4 + 2)) / 2;
+            long midLon = ((long) coordinates.get(s * 4 + 1) + coordinates.get(s * 4 + 3)) / 2;
+            int x = (int) ((midLon - minLon) * hilbertMax / width);
+            int y = (int) ((midLat - minLat) * hilbertMax / height);
+            keys[s] = ((long) GeometryUtils.hilbertIndex(x, y, HILBERT_ORDER) << 32) | s;
+        }
+        Arrays.parallelSort(keys);
+
+        int[] segmentEdges = new int[nSegments];
+        int[] segmentIndexes = new int[nSegments];
+        int[] segmentCoordinates = new int[nSegments * 4];
+        for (int i = 0; i < nSegments; i++) {
+            int s = (int) keys[i];
+            segmentEdges[i] = edges.get(s);
+            segmentIndexes[i] = indexes.get(s);
+            for (int c = 0; c < 4; c++) segmentCoordinates[i * 4 + c] = coordinates.get(s * 4 + c);
+        }
+
+        // Build the levels of the tree from the bottom up, until there is a single root node.
+        int nLevels = 0;
+        for (int nNodes = nSegments; nNodes > 1; nNodes = (nNodes + NODE_SIZE - 1) / NODE_SIZE) nLevels++;
+        if (nSegments == 1) nLevels = 1;
+        int[][] nodeBounds = new int[nLevels][];
+        int nChildren = nSegments;
+        for (int level = 0; level < nLevels; level++) {
+            int nNodes = (nChildren + NODE_SIZE - 1) / NODE_SIZE;
+            int[] bounds = new int[nNodes * 4];
+            for (int node = 0; node < nNodes; node++) {
+                int nodeMinLon = Integer.MAX_VALUE, nodeMinLat = Integer.MAX_VALUE;
+                int nodeMaxLon = Integer.MIN_VALUE, nodeMaxLat = Integer.MIN_VALUE;
+                int lastChild = Math.min((node + 1) * NODE_SIZE, nChildren);
+                for (int child = node * NODE_SIZE; child < lastChild; child++) {
+                    if (level == 0) {
+                        int lat0 = segmentCoordinates[child * 4], lon0 = segmentCoordinates[child * 4 + 1];
+                        int lat1 = segmentCoordinates[child * 4 + 2], lon1 = segmentCoordinates[child * 4 + 3];
+                        nodeMinLon = Math.min(nodeMinLon, Math.min(lon0, lon1));
+                        nodeMinLat = Math.min(nodeMinLat, Math.min(lat0, lat1));
+                        nodeMaxLon = Math.max(nodeMaxLon, Math.max(lon0, lon1));
+                        nodeMaxLat = Math.max(nodeMaxLat, Math.max(lat0, lat1));
+                    } else {
+                        int[] childBounds = nodeBounds[level - 1];
+                        nodeMinLon = Math.min(nodeMinLon, childBounds[child * 4]);
+                        nodeMinLat = Math.min(nodeMinLat, childBounds[child * 4 + 1]);
+                        nodeMaxLon = Math.max(nodeMaxLon, childBounds[child * 4 + 2]);
+                        nodeMaxLat = Math.max(nodeMaxLat, childBounds[child * 4 + 3]);
+                    }
+                }
+                bounds[node * 4] = nodeMinLon;
+                bounds[node * 4 + 1] = nodeMinLat;
+                bounds[node * 4 + 2] = nodeMaxLon;
+                bounds[node * 4 + 3] = nodeMaxLat;
+            }
+            nodeBounds[level] = bounds;
+            nChildren = nNodes;
+        }
+        LOG.info("Done indexing {} segments in a tree with {} levels.", nSegments, nLevels);
+        return new EdgeSegmentIndex(firstEdge, endEdge, segmentEdges, segmentIndexes, segmentCoordinates, nodeBounds);
+    }
+
+    /** @return the number of segments in this index. */
+    public int size () {
+        return segmentEdges.length;
+    }
+
+    /**
+     * @return the length of an array large enough to serve as the stack for queries on this index. Each thread
+     * performing queries should allocate one and reuse it for all its queries.
+     */
+    public int queryStackSize () {
+        // At most NODE_SIZE nodes are pushed for each level on the way down, each taking two entries.
+        return (nodeBounds.length + 1) * NODE_SIZE * 2;
+    }
+
+    /**
+     * Pass every segment whose bounding box intersects the given box (in fixed-point degrees, bounds inclusive) to
+     * the visitor. Like the other spatial indexes this can return segments that are not actually within the box, and
+     * the visitor must filter them with more accurate distance calculations.
+     * @param stack an array of at least queryStackSize() entries that is not being used by any other thread.
+     */
+    public void query (int minLon, int minLat, int maxLon, int maxLat, int[] stack, SegmentVisitor visitor) {
+        if (nodeBounds.length == 0) return;
+        // Each entry on the stack is a pair of (level, node), starting with the root.
+        int top = 0;
+        stack[top++] = nodeBounds.length - 1;
+        stack[top++] = 0;
+        while (top > 0) {
+            int node = stack[--top];
+            int level = stack[--top];
+            int[] bounds = nodeBounds[level];
+            if (bounds[node * 4] > maxLon || bounds[node * 4 + 1] > maxLat ||
+                    bounds[node * 4 + 2] < minLon || bounds[node * 4 + 3] < minLat) {
+                continue;
+            }
+            int nChildren = level == 0 ? segmentEdges.length : nodeBounds[level - 1].length / 4;
+            int lastChild = Math.min((node + 1) * NODE_SIZE, nChildren);
+            for (int child = node * NODE_SIZE; child < lastChild; child++) {
+                if (level > 0) {
+                    stack[top++] = level - 1;
+                    stack[top++] = child;
+                    continue;
+                }
+                int lat0 = segmentCoordinates[child * 4], lon0 = segmentCoordinates[child * 4 + 1];
+                int lat1 = segmentCoordinates[child * 4 + 2], lon1 = segmentCoordinates[child * 4 + 3];
+                if (Math.min(lon0, lon1) > maxLon || Math.min(lat0, lat1) > maxLat ||
+                        Math.max(lon0, lon1) < minLon || Math.max(lat0, lat1) < minLat) {
+                    continue;
+                }
+                visitor.visitSegment(segmentEdges[child], segmentIndexes[child], lat0, lon0, lat1, lon1);
+            }
+        }
+    }
+
+}
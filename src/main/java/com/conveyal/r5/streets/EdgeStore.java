@@ -14,6 +14,7 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.LineString;
 import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TByteList;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.TLongList;
@@ -155,6 +156,12 @@ public class EdgeStore implements Serializable {
     /** Turn restrictions for turning _into_ each edge */
     public TIntIntMultimap turnRestrictionsReverse;
 
+    /**
+     * Precomputed car turn costs and simple turn restrictions for the edges that existed when the network was built,
+     * or null if it has not been built. See TurnTable.
+     */
+    public TurnTable turnTable;
+
     /** The street layer of a transport network that the edges in this edgestore make up. */
     public StreetLayer layer;
 
@@ -340,33 +347,74 @@ public class EdgeStore implements Serializable {
      */
     void startTurnRestriction(StreetMode streetMode, boolean reverseSearch,
         StreetRouter.State s1) {
-        if (reverseSearch) {
-            // add turn restrictions that start on this edge
-            // Turn restrictions only apply to cars for now. This is also coded in canTurnFrom, so change it both places
-            // if/when it gets changed.
-            if (streetMode == StreetMode.CAR && turnRestrictionsReverse.containsKey(s1.backEdge)) {
-                if (s1.turnRestrictions == null)
-                    s1.turnRestrictions = new TIntIntHashMap();
-                turnRestrictionsReverse.get(s1.backEdge).forEach(r -> {
-                    s1.turnRestrictions.put(r, 1); // we have traversed one edge
-                    return true; // continue iteration
-                });
-                //LOG.info("RRTADD: S1:{}|{}", s1.backEdge, s1.turnRestrictions);
-            }
-        } else {
-            // add turn restrictions that start on this edge
-            // Turn restrictions only apply to cars for now. This is also coded in canTurnFrom, so change it both places
-            // if/when it gets changed.
-            if (streetMode == StreetMode.CAR && turnRestrictions.containsKey(s1.backEdge)) {
-                if (s1.turnRestrictions == null)
-                    s1.turnRestrictions = new TIntIntHashMap();
-                turnRestrictions.get(s1.backEdge).forEach(r -> {
-                    s1.turnRestrictions.put(r, 1); // we have traversed one edge
-                    return true; // continue iteration
-                });
-                //LOG.info("TADD: S1:{}|{}", s1.backEdge, s1.turnRestrictions);
+        // Turn restrictions only apply to cars for now. This is also coded in canTurnFrom, so change it both places
+        // if/when it gets changed.
+        if (streetMode != StreetMode.CAR) return;
+        // add turn restrictions that start on this edge, in reverse searches those that end on it
+        TIntIntMultimap restrictions = reverseSearch ? turnRestrictionsReverse : turnRestrictions;
+        if (!restrictions.containsKey(s1.backEdge)) return;
+        restrictions.get(s1.backEdge).forEach(r -> {
+            // Restrictions in the turn table are checked directly in canTurnFrom, without tracking them in the state.
+            if (isTabulated(r)) return true;
+            if (s1.turnRestrictions == null)
+                s1.turnRestrictions = new TIntIntHashMap();
+            s1.turnRestrictions.put(r, 1); // we have traversed one edge
+            return true; // continue iteration
+        });
+    }
+
+    /** @return true if the turn restriction with the given index is handled by the turn table. */
+    private boolean isTabulated (int restriction) {
+        return turnTable != null && turnTable.isTabulated(restriction);
+    }
+
+    /**
+     * @return the turn table cell for the car turn from fromEdge onto toEdge, or TurnTable.NOT_TABULATED if there is
+     * no turn table, it does not cover these edges, or toEdge does not leave the vertex fromEdge leads to.
+     */
+    public int getTurnTableCell (int fromEdge, int toEdge) {
+        if (turnTable == null || fromEdge < 0 || toEdge < 0) return TurnTable.NOT_TABULATED;
+        // Look up the vertices directly rather than moving a cursor, this is called on every relaxation.
+        int vertex = (fromEdge & 1) == 0 ? toVertices.get(fromEdge / 2) : fromVertices.get(fromEdge / 2);
+        int toEdgeFromVertex = (toEdge & 1) == 0 ? fromVertices.get(toEdge / 2) : toVertices.get(toEdge / 2);
+        if (vertex != toEdgeFromVertex) return TurnTable.NOT_TABULATED;
+        return turnTable.getCell(fromEdge, toEdge, vertex);
+    }
+
+    /**
+     * @return true if a turn restriction in the turn table forbids the car turn from fromEdge onto toEdge in a search
+     * in the given direction. Restrictions that are not in the turn table are tracked in the router states instead.
+     */
+    public boolean isTurnForbidden (int fromEdge, int toEdge, boolean reverseSearch) {
+        if (turnTable == null) return false;
+        int cell = getTurnTableCell(fromEdge, toEdge);
+        if (cell != TurnTable.NOT_TABULATED) return TurnTable.isForbidden(cell, reverseSearch);
+        // The turn involves edges added by a scenario, check the tabulated restrictions on the edge being left.
+        TIntIterator it = (reverseSearch ? turnRestrictionsReverse.get(toEdge) : turnRestrictions.get(fromEdge)).iterator();
+        while (it.hasNext()) {
+            int r = it.next();
+            if (!turnTable.isTabulated(r)) continue;
+            TurnRestriction restriction = layer.turnRestrictions.get(r);
+            if (reverseSearch) {
+                if (restriction.only ? fromEdge != restriction.fromEdge : fromEdge == restriction.fromEdge) return true;
+            } else {
+                if (restriction.only ? toEdge != restriction.toEdge : toEdge == restriction.toEdge) return true;
             }
         }
+        return false;
+    }
+
+    /**
+     * @return true if an "only" turn restriction in the turn table starts on the given edge, so that a car leaving it
+     * in a forward search can only turn onto one edge.
+     */
+    public boolean startsTabulatedOnlyRestriction (int edge) {
+        if (turnTable == null || !turnRestrictions.containsKey(edge)) return false;
+        for (TIntIterator it = turnRestrictions.get(edge).iterator(); it.hasNext(); ) {
+            int r = it.next();
+            if (turnTable.isTabulated(r) && layer.turnRestrictions.get(r).only) return true;
+        }
+        return false;
     }
 
     /**
@@ -554,6 +602,19 @@ public class EdgeStore implements Serializable {
 
         public StreetRouter.State traverse (StreetRouter.State s0, StreetMode streetMode, ProfileRequest req,
                                             TurnCostCalculator turnCostCalculator, TravelTimeCalculator travelTimeCalculator) {
+            StreetRouter.State s1 = new StreetRouter.State(-1, edgeIndex, s0);
+            if (traverse(s0, s1, streetMode, req, turnCostCalculator, travelTimeCalculator)) return s1;
+            else return null;
+        }
+
+        /**
+         * Traverse this edge from state s0, writing the resulting state into s1 rather than creating a new one. Any
+         * existing contents of s1 are overwritten, so the StreetRouter can reuse a single scratch state for every edge
+         * it explores and only keep the ones that turn out to be useful.
+         * @return false if this edge cannot be traversed from s0, in which case the contents of s1 are meaningless.
+         */
+        public boolean traverse (StreetRouter.State s0, StreetRouter.State s1, StreetMode streetMode, ProfileRequest req,
+                                 TurnCostCalculator turnCostCalculator, TravelTimeCalculator travelTimeCalculator) {
 
             // The vertex we'll be at after the traversal
             int vertex;
@@ -563,11 +624,11 @@ public class EdgeStore implements Serializable {
                 vertex = getToVertex();
             }
 
-            StreetRouter.State s1 = new StreetRouter.State(vertex, edgeIndex, s0);
+            s1.reset(vertex, edgeIndex, s0);
             float time = travelTimeCalculator.getTravelTimeSeconds(this, s0.durationSeconds, streetMode, req);
             float weight = 0;
 
-            if (!canTurnFrom(s0, s1, req.reverseSearch)) return null;
+            if (!canTurnFrom(s0, s1, req.reverseSearch)) return false;
 
             // clear out turn restrictions if they're empty
             if (s1.turnRestrictions != null && s1.turnRestrictions.isEmpty()) s1.turnRestrictions = null;
@@ -581,7 +642,7 @@ public class EdgeStore implements Serializable {
             //Since backEdges are set from first part of multipart P+R search
             if ((s0.backEdge >=0 ) && (s0.backState != null) && getFlag(EdgeFlag.LINK) && getCursor(s0.backEdge).getFlag(EdgeFlag.LINK))
                 // two link edges in a row, in other words a shortcut. Disallow this.
-                return null;
+                return false;
 
             //Currently weigh is basically the same as weight. It differs only on stairs and when walking.
 
@@ -590,7 +651,7 @@ public class EdgeStore implements Serializable {
                 weight = time;
                 //If wheelchair path is requested and this edge doesn't allow wheelchairs we need to find another edge
                 if (req.wheelchair && !getFlag(EdgeFlag.ALLOWS_WHEELCHAIR)) {
-                    return null;
+                    return false;
                 }
                 //elevation which changes weight
             } else if (streetMode == StreetMode.BICYCLE) {
@@ -615,7 +676,7 @@ public class EdgeStore implements Serializable {
                 // TODO bike walking costs when switching bikes
 
                 // only walk if you're allowed to
-                if (walking && !getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) return null;
+                if (walking && !getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) return false;
 
                 if (walking) {
                     //TODO: set bike walking in state
@@ -629,7 +690,7 @@ public class EdgeStore implements Serializable {
             } else if (streetMode == StreetMode.CAR && getFlag(EdgeFlag.ALLOWS_CAR)) {
                 weight = time;
             } else {
-                return null; // this mode cannot traverse this edge
+                return false; // this mode cannot traverse this edge
             }
 
             if(getFlag(EdgeFlag.STAIRS)) {
@@ -660,7 +721,7 @@ public class EdgeStore implements Serializable {
             if (s1.durationSeconds == s0.durationSeconds) s1.incrementTimeInSeconds(1);
             if (s1.distance == s0.distance) s1.distance += 1;
 
-            return s1;
+            return true;
         }
 
         /** Can we turn onto this edge from this state? Also copies still-applicable restrictions forward. */
@@ -668,6 +729,12 @@ public class EdgeStore implements Serializable {
             boolean reverseSearch) {
             // Turn restrictions only apply to cars for now. This is also coded in traverse, so change it both places
             // if/when it gets changed.
+            if (s0.streetMode == StreetMode.CAR && s0.backEdge >= 0 && turnTable != null) {
+                // Restrictions without via edges are looked up in the turn table rather than carried by the state.
+                boolean forbidden = reverseSearch ?
+                        isTurnForbidden(s1.backEdge, s0.backEdge, true) : isTurnForbidden(s0.backEdge, s1.backEdge, false);
+                if (forbidden) return false;
+            }
             if (s0.turnRestrictions != null && s0.streetMode == StreetMode.CAR) {
                 // clone turn restrictions
                 s1.turnRestrictions = new TIntIntHashMap(s0.turnRestrictions);
@@ -1102,6 +1169,8 @@ public class EdgeStore implements Serializable {
         // We don't expect to add/change any turn restrictions.
         copy.turnRestrictions = turnRestrictions;
         copy.turnRestrictionsReverse = turnRestrictionsReverse;
+        // The turn table only covers the base edges, which do not change.
+        copy.turnTable = turnTable;
         return copy;
     }
 
@@ -110,8 +110,8 @@ public class IntHashGrid implements Serializable {
         final TLongSet keys = new TLongHashSet(coord.length * 8);
         for (int i = 0; i < coord.length - 1; i++) {
             // Cut the segment if longer than bin size to reduce the number of wrong bins
-            double dX = coord[i].x - coord[i + 1].x;
-            double dY = coord[i].y - coord[i + 1].y;
+            double dX = coord[i + 1].x - coord[i].x;
+            double dY = coord[i + 1].y - coord[i].y;
             int segments = (int) Math.max(Math.abs(dX) / xBinSize, Math.abs(dY) / yBinSize);
 
             if (segments > 1000 || segments < 0)
@@ -0,0 +1,436 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.trove.MappedColumn;
+import com.conveyal.r5.util.IndexedIntMinHeap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed costs between every street vertex and a small set of landmark vertices, which give the StreetRouter a
+ * much tighter lower bound on the remaining cost to a destination than the straight-line heuristic ("ALT", A* with
+ * landmarks and the triangle inequality). For any landmark L the cost of the best path from v to t is at least
+ * d(v, L) - d(t, L) and at least d(L, t) - d(L, v).
+ *
+ * The costs are those of a relaxed version of the street network, where turn costs and turn restrictions are ignored
+ * and every edge costs its smallest possible contribution to a path, so the bounds are valid for any real search in
+ * the same mode. For cars the cost is the travel time in seconds along each car edge at its own speed, which bounds
+ * both duration and weight. For walking and cycling the cost is the distance, which bounds distance and, at the
+ * highest speed in the request, duration. Walk and bicycle weights are not bounded, as they include reluctance factors
+ * that vary from edge to edge.
+ *
+ * The landmarks are chosen by farthest-first selection, each landmark being the vertex farthest from those already
+ * chosen, so they end up around the edges of the network where they give the best bounds. The costs are held outside
+ * the Java heap in one 16-bit column per landmark and direction, in units of UNIT_SECONDS for cars and
+ * UNIT_MILLIMETERS for walking and cycling. Costs too large to represent, and vertices not connected to a landmark,
+ * are stored as UNKNOWN and give no bound.
+ *
+ * The costs are only valid for the edges that existed when they were built. Scenarios that add edges can only make
+ * paths shorter, which would make the bounds overestimate, so landmarks are not used once the edges have changed.
+ */
+public class Landmarks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(Landmarks.class);
+
+    /** The number of landmarks built for each street mode by default. */
+    public static final int DEFAULT_LANDMARK_COUNT = 16;
+
+    /** The number of landmarks used by each search, those giving the best bounds between its origin and destination. */
+    public static final int ACTIVE_LANDMARK_COUNT = 4;
+
+    /** Marks a cost that is unknown, because it is too large to store or because the vertices are not connected. */
+    private static final char UNKNOWN = Character.MAX_VALUE;
+
+    /** The cost unit for cars, in seconds. */
+    private static final int UNIT_SECONDS = 1;
+
+    /** The cost unit for walking and cycling, in millimeters (ten meters). */
+    private static final int UNIT_MILLIMETERS = 10_000;
+
+    /** A start vertex for landmark selection must reach at least this fraction of the vertices. */
+    private static final double MIN_START_COMPONENT_FRACTION = 0.5;
+
+    private static final int MAX_START_ATTEMPTS = 20;
+
+    public final StreetMode streetMode;
+
+    /** The number of edges in the street layer these landmarks were built for. */
+    public final int nEdges;
+
+    /** The number of vertices covered by the cost columns. */
+    public final int nVertices;
+
+    /** The size in the routing variable's own units (seconds or millimeters) of one stored cost unit. */
+    private final int unit;
+
+    /** The landmark vertices. */
+    public final int[] landmarkVertices;
+
+    /** For each landmark, the cost from the landmark to each vertex. */
+    private transient CharBuffer[] costsFromLandmark;
+
+    /** For each landmark, the cost from each vertex to the landmark. */
+    private transient CharBuffer[] costsToLandmark;
+
+    private Landmarks (StreetMode streetMode, int nEdges, int nVertices, int[] landmarkVertices,
+                       CharBuffer[] costsFromLandmark, CharBuffer[] costsToLandmark) {
+        this.streetMode = streetMode;
+        this.nEdges = nEdges;
+        this.nVertices = nVertices;
+        this.unit = streetMode == StreetMode.CAR ? UNIT_SECONDS : UNIT_MILLIMETERS;
+        this.landmarkVertices = landmarkVertices;
+        this.costsFromLandmark = costsFromLandmark;
+        this.costsToLandmark = costsToLandmark;
+    }
+
+    /**
+     * Choose the given number of landmarks for the given street mode and find the costs between them and every vertex
+     * of the street layer, whose edge lists must already be built.
+     */
+    public static Landmarks build (StreetLayer streetLayer, StreetMode streetMode, int nLandmarks) {
+        int nVertices = streetLayer.getVertexCount();
+        int nEdges = streetLayer.edgeStore.nEdges();
+        LOG.info("Choosing {} {} landmarks among {} vertices...", nLandmarks, streetMode, nVertices);
+        RelaxedGraph graph = new RelaxedGraph(streetLayer, streetMode);
+
+        // Find a start vertex in a large connected part of the network, so that isolated fragments are not chosen.
+        Random random = new Random(nVertices);
+        int[] startCosts = null;
+        for (int attempt = 0; attempt < MAX_START_ATTEMPTS && nVertices > 0; attempt++) {
+            int[] costs = graph.search(random.nextInt(nVertices), false);
+            if (startCosts == null || countReached(costs) > countReached(startCosts)) startCosts = costs;
+            if (countReached(startCosts) >= nVertices * MIN_START_COMPONENT_FRACTION) break;
+        }
+
+        // Farthest-first selection: each landmark is the reached vertex farthest from all previous landmarks (from the
+        // start vertex for the first one). The forward searches made along the way are kept.
+        int[] landmarkVertices = new int[nLandmarks];
+        int[][] forwardCosts = new int[nLandmarks][];
+        int[] minCosts = startCosts == null ? new int[0] : startCosts.clone();
+        int nChosen = 0;
+        while (nChosen < nLandmarks) {
+            int farthest = -1;
+            for (int v = 0; v < minCosts.length; v++) {
+                if (minCosts[v] != Integer.MAX_VALUE && minCosts[v] > 0 &&
+                        (farthest < 0 || minCosts[v] > minCosts[farthest])) farthest = v;
+            }
+            if (farthest < 0) break;
+            landmarkVertices[nChosen] = farthest;
+            forwardCosts[nChosen] = graph.search(farthest, false);
+            int[] costs = forwardCosts[nChosen];
+            // Vertices the landmark does not reach keep their previous cost, so selection stays in the same component.
+            if (nChosen == 0) {
+                for (int v = 0; v < nVertices; v++) {
+                    if (minCosts[v] != Integer.MAX_VALUE && costs[v] != Integer.MAX_VALUE) minCosts[v] = costs[v];
+                }
+            } else {
+                for (int v = 0; v < nVertices; v++) minCosts[v] = Math.min(minCosts[v], costs[v]);
+            }
+            nChosen++;
+        }
+        if (nChosen < nLandmarks) LOG.warn("Only {} {} landmarks could be chosen.", nChosen, streetMode);
+        int nFound = nChosen;
+
+        // Find the costs to each landmark with reverse searches, which are independent of each other.
+        int[][] backwardCosts = IntStream.range(0, nFound).parallel()
+                .mapToObj(l -> graph.search(landmarkVertices[l], true))
+                .toArray(int[][]::new);
+
+        int unit = streetMode == StreetMode.CAR ? UNIT_SECONDS : UNIT_MILLIMETERS;
+        CharBuffer[] costsFromLandmark = new CharBuffer[nFound];
+        CharBuffer[] costsToLandmark = new CharBuffer[nFound];
+        for (int l = 0; l < nFound; l++) {
+            costsFromLandmark[l] = allocate(nVertices);
+            costsToLandmark[l] = allocate(nVertices);
+            for (int v = 0; v < nVertices; v++) {
+                costsFromLandmark[l].put(v, quantize(forwardCosts[l][v], unit));
+                costsToLandmark[l].put(v, quantize(backwardCosts[l][v], unit));
+            }
+        }
+        LOG.info("Done building {} {} landmarks.", nFound, streetMode);
+        return new Landmarks(streetMode, nEdges, nVertices, Arrays.copyOf(landmarkVertices, nFound),
+                costsFromLandmark, costsToLandmark);
+    }
+
+    private static int countReached (int[] costs) {
+        int nReached = 0;
+        for (int cost : costs) if (cost != Integer.MAX_VALUE) nReached++;
+        return nReached;
+    }
+
+    private static CharBuffer allocate (int nVertices) {
+        return ByteBuffer.allocateDirect(nVertices * Character.BYTES).order(MappedColumn.BYTE_ORDER).asCharBuffer();
+    }
+
+    private static char quantize (int cost, int unit) {
+        if (cost == Integer.MAX_VALUE) return UNKNOWN;
+        return (char) Math.min(cost / unit, UNKNOWN);
+    }
+
+    /**
+     * @return true if the costs can be used in searches on the given street layer, because its edges have not changed
+     * since they were built.
+     */
+    public boolean isApplicable (StreetLayer streetLayer) {
+        return streetLayer.edgeStore.nEdges() == nEdges && streetLayer.getVertexCount() == nVertices;
+    }
+
+    /** @return the number of landmarks. */
+    public int size () {
+        return landmarkVertices.length;
+    }
+
+    /**
+     * Prepare a lower bound on the cost of reaching any of the given target vertices (or, in a reverse search, on the
+     * cost of reaching any vertex from them) using the landmarks that give the best bound at the given origin vertices.
+     * @return the bound, or null if these landmarks cannot bound the given routing variable.
+     */
+    public Bound bound (int[] originVertices, int[] targetVertices, boolean reverseSearch,
+                        StreetRouter.State.RoutingVariable quantityToMinimize, ProfileRequest profileRequest) {
+        // Car costs are in seconds, and walk and bicycle costs are distances.
+        double unitsPerCost;
+        if (streetMode == StreetMode.CAR) {
+            if (quantityToMinimize == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) return null;
+            unitsPerCost = 1;
+        } else if (quantityToMinimize == StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS) {
+            unitsPerCost = 1;
+        } else if (quantityToMinimize == StreetRouter.State.RoutingVariable.DURATION_SECONDS) {
+            // Walked bicycles are at 90% of the walk speed.
+            double maxSpeedMetersPerSecond = streetMode == StreetMode.BICYCLE ?
+                    Math.max(profileRequest.bikeSpeed, profileRequest.walkSpeed * 0.9) : profileRequest.walkSpeed;
+            if (!(maxSpeedMetersPerSecond > 0)) return null;
+            unitsPerCost = 1 / (maxSpeedMetersPerSecond * 1000);
+        } else {
+            return null;
+        }
+        Bound bound = new Bound(targetVertices, reverseSearch, unitsPerCost);
+        bound.chooseActiveLandmarks(originVertices);
+        return bound;
+    }
+
+    /**
+     * A lower bound on the remaining cost to the targets of one search, from a few active landmarks. The costs at the
+     * targets are looked up once, so each bound only reads one cost per active landmark and direction at the vertex.
+     */
+    public class Bound {
+
+        private final int[] targetVertices;
+
+        private final boolean reverseSearch;
+
+        private final double unitsPerCost;
+
+        private int[] activeLandmarks;
+
+        /** For each active landmark and target, the costs at the target from and to the landmark. */
+        private int[][] targetCostsFromLandmark;
+
+        private int[][] targetCostsToLandmark;
+
+        private Bound (int[] targetVertices, boolean reverseSearch, double unitsPerCost) {
+            this.targetVertices = targetVertices;
+            this.reverseSearch = reverseSearch;
+            this.unitsPerCost = unitsPerCost;
+        }
+
+        private void chooseActiveLandmarks (int[] originVertices) {
+            int nLandmarks = size();
+            // Score every landmark by the worst bound it gives at any origin, and keep the best ones.
+            long[] scoredLandmarks = new long[nLandmarks];
+            setActiveLandmarks(IntStream.range(0, nLandmarks).toArray());
+            for (int l = 0; l < nLandmarks; l++) {
+                int score = Integer.MAX_VALUE;
+                for (int origin : originVertices) {
+                    if (origin < nVertices) score = Math.min(score, landmarkBound(l, origin));
+                }
+                // Sort descending by score, then ascending by landmark.
+                scoredLandmarks[l] = ((long) (Integer.MAX_VALUE - score) << 32) | l;
+            }
+            Arrays.sort(scoredLandmarks);
+            int[] active = new int[Math.min(ACTIVE_LANDMARK_COUNT, nLandmarks)];
+            for (int i = 0; i < active.length; i++) active[i] = (int) scoredLandmarks[i];
+            setActiveLandmarks(active);
+        }
+
+        private void setActiveLandmarks (int[] landmarks) {
+            activeLandmarks = landmarks;
+            targetCostsFromLandmark = new int[landmarks.length][targetVertices.length];
+            targetCostsToLandmark = new int[landmarks.length][targetVertices.length];
+            for (int a = 0; a < landmarks.length; a++) {
+                for (int t = 0; t < targetVertices.length; t++) {
+                    targetCostsFromLandmark[a][t] = costsFromLandmark[landmarks[a]].get(targetVertices[t]);
+                    targetCostsToLandmark[a][t] = costsToLandmark[landmarks[a]].get(targetVertices[t]);
+                }
+            }
+        }
+
+        /** @return the bound in stored units at the given vertex from the active landmark at the given index. */
+        private int landmarkBound (int active, int vertex) {
+            int fromLandmark = costsFromLandmark[activeLandmarks[active]].get(vertex);
+            int toLandmark = costsToLandmark[activeLandmarks[active]].get(vertex);
+            int best = Integer.MAX_VALUE;
+            for (int t = 0; t < targetVertices.length; t++) {
+                int targetFromLandmark = targetCostsFromLandmark[active][t];
+                int targetToLandmark = targetCostsToLandmark[active][t];
+                int bound = 0;
+                if (reverseSearch) {
+                    // The cost from the target to the vertex.
+                    if (targetToLandmark != UNKNOWN && toLandmark != UNKNOWN) {
+                        bound = Math.max(bound, targetToLandmark - toLandmark);
+                    }
+                    if (fromLandmark != UNKNOWN && targetFromLandmark != UNKNOWN) {
+                        bound = Math.max(bound, fromLandmark - targetFromLandmark);
+                    }
+                } else {
+                    // The cost from the vertex to the target.
+                    if (toLandmark != UNKNOWN && targetToLandmark != UNKNOWN) {
+                        bound = Math.max(bound, toLandmark - targetToLandmark);
+                    }
+                    if (targetFromLandmark != UNKNOWN && fromLandmark != UNKNOWN) {
+                        bound = Math.max(bound, targetFromLandmark - fromLandmark);
+                    }
+                }
+                best = Math.min(best, bound);
+            }
+            return best == Integer.MAX_VALUE ? 0 : best;
+        }
+
+        /**
+         * @return a lower bound on the cost between the given vertex and the nearest target, in the units of the
+         * routing variable the bound was made for.
+         */
+        public int lowerBound (int vertex) {
+            if (vertex >= nVertices) return 0;
+            int best = 0;
+            for (int a = 0; a < activeLandmarks.length; a++) best = Math.max(best, landmarkBound(a, vertex));
+            // Costs were rounded down to whole units, so a difference can be up to one unit more than the real one.
+            if (unit > 1) best = Math.max(0, best - 1);
+            return (int) (best * unit * unitsPerCost);
+        }
+    }
+
+    /**
+     * The street network seen as a plain graph between vertices, with the smallest cost of each edge in the given mode,
+     * where turns are free and unrestricted.
+     */
+    private static class RelaxedGraph {
+
+        private final StreetLayer streetLayer;
+
+        private final int nVertices;
+
+        private final int[] fromVertices;
+
+        private final int[] toVertices;
+
+        /** The cost of each edge, or -1 if it cannot be traversed in the mode. */
+        private final int[] edgeCosts;
+
+        RelaxedGraph (StreetLayer streetLayer, StreetMode streetMode) {
+            this.streetLayer = streetLayer;
+            this.nVertices = streetLayer.getVertexCount();
+            int nEdges = streetLayer.edgeStore.nEdges();
+            fromVertices = new int[nEdges];
+            toVertices = new int[nEdges];
+            edgeCosts = new int[nEdges];
+            EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+            for (int e = 0; e < nEdges; e++) {
+                edge.seek(e);
+                fromVertices[e] = edge.getFromVertex();
+                toVertices[e] = edge.getToVertex();
+                edgeCosts[e] = edgeCost(edge, streetMode);
+            }
+        }
+
+        /**
+         * Edge.traverse adds at least one unit of weight, duration and distance for every edge, and rounds car travel
+         * times up to whole seconds for the duration and down for the weight.
+         */
+        private static int edgeCost (EdgeStore.Edge edge, StreetMode streetMode) {
+            switch (streetMode) {
+                case CAR:
+                    if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR)) return -1;
+                    float speedMetersPerSecond = edge.getCarSpeedMetersPerSecond();
+                    float time = speedMetersPerSecond > 0 ? (float) (edge.getLengthM() / speedMetersPerSecond) : 0;
+                    return Math.max(1, (int) time);
+                case BICYCLE:
+                    if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE) &&
+                            !edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) return -1;
+                    return Math.max(1, edge.getLengthMm());
+                default:
+                    if (!edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) return -1;
+                    return Math.max(1, edge.getLengthMm());
+            }
+        }
+
+        /**
+         * @return the cost of the best path from the given vertex to every vertex, or from every vertex to the given
+         * vertex if backward is true, with Integer.MAX_VALUE for vertices that are not connected to it.
+         */
+        int[] search (int vertex, boolean backward) {
+            int[] costs = new int[nVertices];
+            Arrays.fill(costs, Integer.MAX_VALUE);
+            EdgeLists edgeLists = backward ? streetLayer.incomingEdges : streetLayer.outgoingEdges;
+            int[] nextVertices = backward ? fromVertices : toVertices;
+            IndexedIntMinHeap queue = new IndexedIntMinHeap(nVertices);
+            costs[vertex] = 0;
+            queue.insertOrDecrease(vertex, 0);
+            while (!queue.isEmpty()) {
+                int cost = queue.peekKey();
+                int v = queue.poll();
+                for (int i = 0, n = edgeLists.size(v); i < n; i++) {
+                    int e = edgeLists.get(v, i);
+                    if (edgeCosts[e] < 0) continue;
+                    int next = nextVertices[e];
+                    long nextCost = (long) cost + edgeCosts[e];
+                    if (nextCost < costs[next]) {
+                        costs[next] = (int) nextCost;
+                        queue.insertOrDecrease(next, (int) nextCost);
+                    }
+                }
+            }
+            return costs;
+        }
+    }
+
+    private void writeObject (ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        for (int l = 0; l < landmarkVertices.length; l++) {
+            out.writeObject(toArray(costsFromLandmark[l]));
+            out.writeObject(toArray(costsToLandmark[l]));
+        }
+    }
+
+    /** Copy a cost column into a new array, as the stream would only write a back-reference to a reused one. */
+    private char[] toArray (CharBuffer costs) {
+        char[] array = new char[nVertices];
+        ((CharBuffer) costs.duplicate().rewind()).get(array);
+        return array;
+    }
+
+    private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        costsFromLandmark = new CharBuffer[landmarkVertices.length];
+        costsToLandmark = new CharBuffer[landmarkVertices.length];
+        for (int l = 0; l < landmarkVertices.length; l++) {
+            costsFromLandmark[l] = allocate(nVertices);
+            costsFromLandmark[l].put((char[]) in.readObject(), 0, nVertices);
+            costsToLandmark[l] = allocate(nVertices);
+            costsToLandmark[l].put((char[]) in.readObject(), 0, nVertices);
+        }
+    }
+
+}
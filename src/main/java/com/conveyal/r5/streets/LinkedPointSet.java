@@ -7,10 +7,11 @@ import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.util.LambdaCounter;
 import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
 import com.conveyal.r5.streets.EdgeStore.Edge;
 import gnu.trove.set.TIntSet;
 import org.slf4j.Logger;
@@ -32,6 +33,12 @@ public class LinkedPointSet implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(LinkedPointSet.class);
 
+    /** The number of points, consecutive along a Hilbert curve, that are linked together by a single thread. */
+    private static final int LINK_TILE_SIZE = 1024;
+
+    /** Points are sorted by their Hilbert index on a grid of 2^15 x 2^15 cells covering all of them. */
+    private static final int HILBERT_ORDER = 15;
+
     /**
      * LinkedPointSets are long-lived and not extremely numerous, so we keep references to the objects it was built from.
      * Besides these fields are useful for later processing of LinkedPointSets.
@@ -66,13 +73,13 @@ public class LinkedPointSet implements Serializable {
     public List<int[]> stopToPointDistanceTables;
 
     /**
-     * For each pointset point, the stops reachable without using transit, as a map from StopID to distance in millimeters.
+     * For each pointset point, the stops reachable without using transit, with their distances in millimeters.
      * Inverted version of stopToPointDistanceTables. This is used in PerTargetPropagator to find all the stops near
      * a particular point (grid cell) so we can perform propagation to that grid cell only. We only retain a few
      * percentiles of travel time at each target cell, so doing one cell at a time allows us to keep the output size
      * within reason.
      */
-    public transient List<TIntIntMap> pointToStopDistanceTables;
+    public transient PointToStopDistanceTables pointToStopDistanceTables;
 
     /**
      * A LinkedPointSet is a PointSet that has been pre-connected to a StreetLayer in a non-destructive, reversible way.
@@ -233,27 +240,39 @@ public class LinkedPointSet implements Serializable {
 
     /**
      * Associate the points in this PointSet with the street vertices at the ends of the closest street edge.
+     * The points are sorted along a Hilbert curve and split into tiles of consecutive points, which are linked in
+     * parallel. Each tile covers a compact area, so the searches for its points touch the same parts of the segment
+     * index one after the other, and each tile reuses a single SplitFinder.Search for all of its points.
      * @param all If true, link all points, otherwise link only those that were previously connected to edges that have
      *            been deleted (i.e. split).
      *            We will need to change this behavior when we allow creating new edges rather than simply splitting
      *            existing ones.
      */
     private void linkPointsToStreets(boolean all) {
-        LambdaCounter counter = new LambdaCounter(LOG, pointSet.featureCount(), 10000,
+        // When working with a scenario, skip all points that are not linked to a deleted street (i.e. one that has
+        // been split). At the current time, the only street network modification we support is splitting existing streets,
+        // so the only way a point can need to be relinked is if it is connected to a street which was split (and therefore deleted).
+        // FIXME when we permit street network modifications beyond adding transit stops we will need to change how this works,
+        // we may be able to use some type of flood-fill algorithm in geographic space, expanding the relink envelope until we
+        // hit edges on all sides or reach some predefined maximum.
+        TIntSet deletedEdges = streetLayer.edgeStore.temporarilyDeletedEdges;
+        TIntList pointsToLink = new TIntArrayList();
+        for (int p = 0; p < pointSet.featureCount(); p++) {
+            if (all || (deletedEdges != null && deletedEdges.contains(edges[p]))) pointsToLink.add(p);
+        }
+        LambdaCounter counter = new LambdaCounter(LOG, pointsToLink.size(), 10000,
                 "Linked {} of {} PointSet points to streets.");
+        int[] sortedPoints = sortPointsSpatially(pointsToLink.toArray());
+        SplitFinder splitFinder = new SplitFinder(streetLayer, streetMode);
+        int nTiles = (sortedPoints.length + LINK_TILE_SIZE - 1) / LINK_TILE_SIZE;
         // Perform linkage calculations in parallel, writing results to the shared parallel arrays.
-        IntStream.range(0, pointSet.featureCount()).parallel().forEach(p -> {
-            // When working with a scenario, skip all points that are not linked to a deleted street (i.e. one that has
-            // been split). At the current time, the only street network modification we support is splitting existing streets,
-            // so the only way a point can need to be relinked is if it is connected to a street which was split (and therefore deleted).
-            // FIXME when we permit street network modifications beyond adding transit stops we will need to change how this works,
-            // we may be able to use some type of flood-fill algorithm in geographic space, expanding the relink envelope until we
-            // hit edges on all sides or reach some predefined maximum.
-            if (all || (streetLayer.edgeStore.temporarilyDeletedEdges != null &&
-                        streetLayer.edgeStore.temporarilyDeletedEdges.contains(edges[p]))) {
+        IntStream.range(0, nTiles).parallel().forEach(tile -> {
+            SplitFinder.Search search = splitFinder.newSearch();
+            int end = Math.min((tile + 1) * LINK_TILE_SIZE, sortedPoints.length);
+            for (int i = tile * LINK_TILE_SIZE; i < end; i++) {
+                int p = sortedPoints[i];
                 // Use radius from StreetLayer such that maximum origin and destination walk distances are symmetric.
-                Split split = streetLayer.findSplit(pointSet.getLat(p), pointSet.getLon(p),
-                        StreetLayer.LINK_RADIUS_METERS, streetMode);
+                Split split = search.findSplit(pointSet.getLat(p), pointSet.getLon(p), StreetLayer.LINK_RADIUS_METERS);
                 if (split == null) {
                     edges[p] = -1;
                 } else {
@@ -269,6 +288,36 @@ public class LinkedPointSet implements Serializable {
         LOG.info("{} points are not linked to the street network.", unlinked);
     }
 
+    /**
+     * @return the given point indexes, sorted by the Hilbert index of their locations within the bounding box of all
+     * the given points, so that runs of consecutive points are close to each other in space.
+     */
+    private int[] sortPointsSpatially (int[] points) {
+        double minLat = Double.POSITIVE_INFINITY, minLon = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        for (int p : points) {
+            minLat = Math.min(minLat, pointSet.getLat(p));
+            minLon = Math.min(minLon, pointSet.getLon(p));
+            maxLat = Math.max(maxLat, pointSet.getLat(p));
+            maxLon = Math.max(maxLon, pointSet.getLon(p));
+        }
+        int hilbertMax = (1 << HILBERT_ORDER) - 1;
+        double xScale = maxLon > minLon ? hilbertMax / (maxLon - minLon) : 0;
+        double yScale = maxLat > minLat ? hilbertMax / (maxLat - minLat) : 0;
+        // Pack the Hilbert index in the upper half of a long and the point index in the lower half, and sort those.
+        long[] keys = new long[points.length];
+        for (int i = 0; i < points.length; i++) {
+            int p = points[i];
+            int x = (int) ((pointSet.getLon(p) - minLon) * xScale);
+            int y = (int) ((pointSet.getLat(p) - minLat) * yScale);
+            keys[i] = ((long) GeometryUtils.hilbertIndex(x, y, HILBERT_ORDER) << 32) | p;
+        }
+        Arrays.parallelSort(keys);
+        int[] sortedPoints = new int[points.length];
+        for (int i = 0; i < keys.length; i++) sortedPoints[i] = (int) keys[i];
+        return sortedPoints;
+    }
+
     /** @return the number of linkages, which should be the same as the number of points in the PointSet. */
     public int size () {
         return edges.length;
@@ -333,16 +382,23 @@ public class LinkedPointSet implements Serializable {
      * points in this PointSet from the same transit stop.
      * All points outside the distanceTableZone are skipped as an optimization.
      * See JavaDoc on the caller makeStopToPointDistanceTables - this is one of the slowest parts of building a network.
-     * @return A packed array of (pointIndex, distanceMillimeters)
+     * The points near the stop are found in ascending order and each one only once, so their distances are written
+     * directly into the packed result, which is therefore sorted by point index. We used to accumulate them in a hash
+     * map sized for all the points in the PointSet, which meant allocating and clearing a huge map for every stop.
+     * @param relevantPoints a list that will be cleared and used to hold the points near the stop, which can be
+     *                       reused from one stop to the next within a thread.
+     * @return A packed array of (pointIndex, distanceMillimeters), or null if no points are reached.
      */
-    private int[] extendDistanceTableToPoints(TIntIntMap distanceTableToVertices, Envelope distanceTableZone) {
-        int nPoints = this.size();
-        TIntIntMap distanceToPoint = new TIntIntHashMap(nPoints, 0.5f, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    private int[] extendDistanceTableToPoints(TIntIntMap distanceTableToVertices, Envelope distanceTableZone,
+                                              TIntList relevantPoints) {
+        pointSet.pointsInEnvelope(distanceTableZone, relevantPoints);
+        int[] packed = new int[relevantPoints.size() * 2];
+        int nPacked = 0;
         Edge edge = streetLayer.edgeStore.getCursor();
-        TIntSet relevantPoints = pointSet.spatialIndex.query(distanceTableZone);
-        relevantPoints.forEach(p -> {
+        for (int i = 0; i < relevantPoints.size(); i++) {
+            int p = relevantPoints.get(i);
             // An edge index of -1 for a particular point indicates that this point is unlinked
-            if (edges[p] == -1) return true;
+            if (edges[p] == -1) continue;
             edge.seek(edges[p]);
             int t1 = Integer.MAX_VALUE, t2 = Integer.MAX_VALUE;
             // TODO this is not strictly correct when there are turn restrictions onto the edge this is linked to
@@ -355,24 +411,14 @@ public class LinkedPointSet implements Serializable {
             }
             int t = Math.min(t1, t2);
             if (t != Integer.MAX_VALUE) {
-                if (t < distanceToPoint.get(p)) {
-                    distanceToPoint.put(p, t);
-                }
+                packed[nPacked++] = p;
+                packed[nPacked++] = t;
             }
-            return true; // Continue iteration.
-        });
-        if (distanceToPoint.size() == 0) {
+        }
+        if (nPacked == 0) {
             return null;
         }
-        // Convert a packed array of pairs.
-        // TODO don't put in a list and convert to array, just make an array.
-        TIntList packed = new TIntArrayList(distanceToPoint.size() * 2);
-        distanceToPoint.forEachEntry((point, distance) -> {
-            packed.add(point);
-            packed.add(distance);
-            return true; // Continue iteration.
-        });
-        return packed.toArray();
+        return nPacked == packed.length ? packed : Arrays.copyOf(packed, nPacked);
     }
 
     /**
@@ -383,17 +429,17 @@ public class LinkedPointSet implements Serializable {
      * within this method. However, that takes too long when switching PointSets. So we pre-cache distances to all street
      * vertices in the TransitNetwork, and then just extend those tables to the points in the PointSet.
      *
-     * This is one of the slowest steps in working with a new scenario. It takes about 50 seconds to link 400000 points.
-     * The run time is not shocking when you consider the complexity of the operation: there are nStops * nPoints
-     * iterations, which is 8000 * 400000 in the example case. This means 6 msec per transit stop, or 2e-8 sec per
-     * point iteration, which is not horribly slow. There are just too many iterations.
+     * This is one of the slowest steps in working with a new scenario. It used to take about 50 seconds for 400000
+     * points and 8000 stops, because a hash map sized for all the points was allocated for every stop. Now each stop
+     * only touches the points within the distance table zone around it (on a grid these are found directly from the
+     * pixel coordinates), and writes them straight into a sorted packed array.
      *
      * @param treeRebuildZone only build trees for stops inside this geometry in FIXED POINT DEGREES,
-     *                        leaving all the others alone. If null, build trees for all stops.
+     *                        leaving all the others alone. If null, build trees for all stops. This is the incremental
+     *                        mode used when a scenario has modified the street network (see the constructor).
      */
     public void makeStopToPointDistanceTables(Geometry treeRebuildZone) {
         LOG.info("Creating distance tables from each transit stop to PointSet points.");
-        pointSet.createSpatialIndexAsNeeded();
         if (treeRebuildZone != null) {
             LOG.info("Selectively computing tables for only those stops that might be affected by the scenario.");
         }
@@ -401,13 +447,18 @@ public class LinkedPointSet implements Serializable {
         int nStops = transitLayer.getStopCount();
         LambdaCounter counter = new LambdaCounter(LOG, nStops, 1000,
                 "Computed distances to PointSet points from {} of {} transit stops.");
+        // The rebuild zone is tested against every stop. Preparing it indexes its edges once to make those tests fast.
+        PreparedGeometry preparedRebuildZone = treeRebuildZone == null ? null :
+                PreparedGeometryFactory.prepare(treeRebuildZone);
+        // Each thread reuses one list to hold the points near the stops it is working on.
+        ThreadLocal<TIntList> relevantPoints = ThreadLocal.withInitial(TIntArrayList::new);
         // Create a distance table from each transit stop to the points in this PointSet in parallel.
         // When applying a scenario, keep the existing distance table for those stops that could not be affected.
         stopToPointDistanceTables = IntStream.range(0, nStops).parallel().mapToObj(stopIndex -> {
             Point stopPoint = transitLayer.getJTSPointForStopFixed(stopIndex);
             // If the stop is not linked to the street network, it should have no distance table.
             if (stopPoint == null) return null;
-            if (treeRebuildZone != null && !treeRebuildZone.contains(stopPoint)) {
+            if (preparedRebuildZone != null && !preparedRebuildZone.contains(stopPoint)) {
                 // This stop is not affected by the scenario. Return the existing distance table.
                 // All new stops created by a scenario should be inside the relink zone, so
                 // all stops outside the relink zone should already have a distance table entry.
@@ -422,7 +473,7 @@ public class LinkedPointSet implements Serializable {
             Envelope distanceTableZone = stopPoint.getEnvelopeInternal();
             GeometryUtils.expandEnvelopeFixed(distanceTableZone, TransitLayer.DISTANCE_TABLE_SIZE_METERS);
             int[] distancesToPoints = distanceTableToVertices == null ? null :
-                    extendDistanceTableToPoints(distanceTableToVertices, distanceTableZone);
+                    extendDistanceTableToPoints(distanceTableToVertices, distanceTableZone, relevantPoints.get());
             counter.increment();
             return distancesToPoints;
         }).collect(Collectors.toList());
@@ -436,20 +487,7 @@ public class LinkedPointSet implements Serializable {
             // check again in case they were built while waiting on this synchronized block
             if (pointToStopDistanceTables != null) return;
             if (stopToPointDistanceTables == null) makeStopToPointDistanceTables(null);
-            TIntIntMap[] result = new TIntIntMap[size()];
-
-            for (int stop = 0; stop < stopToPointDistanceTables.size(); stop++) {
-                int[] stopToPointDistanceTable = stopToPointDistanceTables.get(stop);
-                if (stopToPointDistanceTable == null) continue;
-
-                for (int idx = 0; idx < stopToPointDistanceTable.length; idx += 2) {
-                    int point = stopToPointDistanceTable[idx];
-                    int distance = stopToPointDistanceTable[idx + 1];
-                    if (result[point] == null) result[point] = new TIntIntHashMap();
-                    result[point].put(stop, distance);
-                }
-            }
-            pointToStopDistanceTables = Arrays.asList(result);
+            pointToStopDistanceTables = new PointToStopDistanceTables(stopToPointDistanceTables, size());
         }
     }
 
@@ -110,6 +110,15 @@ public class ParkRideRouter extends StreetRouter {
         }
     }
 
+    /**
+     * Returns a value from the path from P+R to the requested stop, as found by getStateAtVertex.
+     */
+    @Override
+    public int getValueAtVertex(int vertexIndex, State.RoutingVariable variable) {
+        State state = getStateAtVertex(vertexIndex);
+        return state == null ? Integer.MAX_VALUE : state.getRoutingVariable(variable);
+    }
+
     /**
      * Returns travel time to this vertex. Only returns time to stops, since only those times are saved
      * @param vertexIndex
@@ -0,0 +1,129 @@
+package com.conveyal.r5.streets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * For each point in a LinkedPointSet, the transit stops that can be reached from it without using transit, with their
+ * distances. This is the inverse of the stop-to-point distance tables, and is used in PerTargetPropagater to find all
+ * the stops near one target (grid cell) at a time.
+ *
+ * The tables for all points are packed into flat arrays in compressed sparse row form: the entries for point p are
+ * found at indexes offsets[p] (inclusive) to offsets[p + 1] (exclusive) of the stops and distancesMillimeters arrays.
+ * Within each point, the stops are in ascending order. We used to keep a separate TIntIntHashMap for each point, but
+ * with hundreds of thousands of points that is a lot of small objects scattered around the heap, and iterating over
+ * each one meant a lambda call per stop. The propagation loop only ever iterates over all the stops near a point, so
+ * it is better served by contiguous arrays.
+ */
+public class PointToStopDistanceTables {
+
+    /** The points are divided into blocks of this many consecutive points, whose entries are filled in parallel. */
+    private static final int POINTS_PER_BLOCK = 4096;
+
+    /** The number of points in the table. */
+    public final int nPoints;
+
+    /** For each point, the index of its first entry in stops and distancesMillimeters, with one extra end element. */
+    public final int[] offsets;
+
+    /** The stop index of every entry. */
+    public final int[] stops;
+
+    /** The distance to the stop of every entry, parallel to the stops array. */
+    public final int[] distancesMillimeters;
+
+    /**
+     * Invert the given stop-to-point distance tables.
+     * The points are divided into blocks, which are counted and filled in parallel. The thread handling a block finds
+     * the entries for its points in each stop's table by binary search, which relies on the stop-to-point tables being
+     * sorted by point index. LinkedPointSet builds them that way, but tables built by older versions are sorted here.
+     * Each thread visits the stops in order, so the stops for each point end up in ascending order.
+     * @param stopToPointDistanceTables for each stop, packed (point index, distance) pairs, or null if the stop has
+     *                                  no nearby points.
+     */
+    public PointToStopDistanceTables (List<int[]> stopToPointDistanceTables, int nPoints) {
+        this.nPoints = nPoints;
+        this.offsets = new int[nPoints + 1];
+        List<int[]> tables = stopToPointDistanceTables.parallelStream()
+                .map(PointToStopDistanceTables::sortedByPoint)
+                .collect(Collectors.toList());
+        int nBlocks = (nPoints + POINTS_PER_BLOCK - 1) / POINTS_PER_BLOCK;
+
+        // Count the number of stops near each point, storing the count for point p at offsets[p + 1].
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int firstPoint = block * POINTS_PER_BLOCK;
+            int endPoint = Math.min(firstPoint + POINTS_PER_BLOCK, nPoints);
+            for (int[] table : tables) {
+                if (table == null) continue;
+                for (int idx = firstEntry(table, firstPoint); idx < table.length && table[idx] < endPoint; idx += 2) {
+                    offsets[table[idx] + 1]++;
+                }
+            }
+        });
+
+        // Accumulate the counts into offsets.
+        Arrays.parallelPrefix(offsets, Integer::sum);
+
+        int nEntries = offsets[nPoints];
+        this.stops = new int[nEntries];
+        this.distancesMillimeters = new int[nEntries];
+
+        // Fill in the entries.
+        IntStream.range(0, nBlocks).parallel().forEach(block -> {
+            int firstPoint = block * POINTS_PER_BLOCK;
+            int endPoint = Math.min(firstPoint + POINTS_PER_BLOCK, nPoints);
+            int[] nextEntryForPoint = Arrays.copyOfRange(offsets, firstPoint, endPoint);
+            for (int stop = 0; stop < tables.size(); stop++) {
+                int[] table = tables.get(stop);
+                if (table == null) continue;
+                for (int idx = firstEntry(table, firstPoint); idx < table.length && table[idx] < endPoint; idx += 2) {
+                    int entry = nextEntryForPoint[table[idx] - firstPoint]++;
+                    stops[entry] = stop;
+                    distancesMillimeters[entry] = table[idx + 1];
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the index in the given packed (point, distance) table of the first pair whose point is at least the
+     * given one, or the length of the table if there is none. The table must be sorted by point.
+     */
+    private static int firstEntry (int[] table, int point) {
+        int low = 0, high = table.length / 2;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (table[mid * 2] < point) low = mid + 1;
+            else high = mid;
+        }
+        return low * 2;
+    }
+
+    /** @return the given packed (point, distance) table if it is sorted by point, otherwise a sorted copy of it. */
+    private static int[] sortedByPoint (int[] table) {
+        if (table == null) return null;
+        boolean sorted = true;
+        for (int idx = 2; idx < table.length && sorted; idx += 2) {
+            sorted = table[idx - 2] <= table[idx];
+        }
+        if (sorted) return table;
+        // Distances are never negative, so sorting (point, distance) packed into longs sorts by point.
+        long[] pairs = new long[table.length / 2];
+        for (int i = 0; i < pairs.length; i++) pairs[i] = ((long) table[i * 2] << 32) | table[i * 2 + 1];
+        Arrays.sort(pairs);
+        int[] sortedTable = new int[table.length];
+        for (int i = 0; i < pairs.length; i++) {
+            sortedTable[i * 2] = (int) (pairs[i] >> 32);
+            sortedTable[i * 2 + 1] = (int) pairs[i];
+        }
+        return sortedTable;
+    }
+
+    /** @return the number of stops near the given point. */
+    public int nStopsForPoint (int point) {
+        return offsets[point + 1] - offsets[point];
+    }
+
+}
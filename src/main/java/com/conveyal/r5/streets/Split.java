@@ -128,27 +128,10 @@ public class Split {
 
             // The distance to this edge is the distance to the closest segment of its geometry.
             edge.forEachSegment((seg, fixedLat0, fixedLon0, fixedLat1, fixedLon1) -> {
-                // Find the fraction along the current segment
-                curr.seg = seg;
-                curr.frac = GeometryUtils.segmentFraction(fixedLon0, fixedLat0, fixedLon1, fixedLat1, fixedLon, fixedLat, cosLat);
-                // Project to get the closest point on the segment.
-                // Note: the fraction is scaleless, xScale is accounted for in the segmentFraction function.
-                curr.fixedLon = (int)(fixedLon0 + curr.frac * (fixedLon1 - fixedLon0));
-                curr.fixedLat = (int)(fixedLat0 + curr.frac * (fixedLat1 - fixedLat0));
-                // Find squared distance to edge (avoid taking square root, which is slow)
-                long dx = (long)((curr.fixedLon - fixedLon) * cosLat);
-                long dy = (long) (curr.fixedLat - fixedLat);
-                curr.distSquared = dx * dx + dy * dy;
+                curr.setOnSegment(seg, fixedLat0, fixedLon0, fixedLat1, fixedLon1, fixedLat, fixedLon, cosLat);
                 // Ignore segments that are too far away (filter false positives).
-                if (curr.distSquared < squaredRadiusFixedLat) {
-                    if (curr.distSquared < best.distSquared) {
-                        // Update the best segment if we've found something closer.
-                        best.setFrom(curr);
-                    } else if (curr.distSquared == best.distSquared && curr.edge < best.edge) {
-                        // Break distance ties by favoring lower edge IDs. This makes destination linking
-                        // deterministic where centroids are equidistant to edges (see issue #159).
-                        best.setFrom(curr);
-                    }
+                if (curr.distSquared < squaredRadiusFixedLat && curr.isCloserThan(best)) {
+                    best.setFrom(curr);
                 }
             });
             // The loop over the edges should continue.
@@ -160,56 +143,94 @@ public class Split {
             return null;
         }
 
-        // We found an edge. Iterate over its segments again, accumulating distances along its geometry.
-        // The distance calculations involve square roots so are deferred to happen here, only on the selected edge.
-        // TODO accumulate before/after geoms. Split point can be passed over since it's not an intermediate.
-        // The length is are stored in one-element array to dodge Java's "effectively final" BS.
-        edge.seek(best.edge);
-        best.vertex0 = edge.getFromVertex();
-        best.vertex1 = edge.getToVertex();
+        best.computeDistances(edge, cosLat);
+        return best;
+    }
+
+    /**
+     * Set this split to the point on the given segment of the edge it refers to that is closest to the given point,
+     * and record the squared distance to that point. The calculation is done entirely in fixed-point degrees, with
+     * longitudes scaled by the given cosine of the latitude.
+     */
+    void setOnSegment (int seg, int fixedLat0, int fixedLon0, int fixedLat1, int fixedLon1,
+                       int fixedLat, int fixedLon, double cosLat) {
+        this.seg = seg;
+        // Find the fraction along the current segment
+        frac = GeometryUtils.segmentFraction(fixedLon0, fixedLat0, fixedLon1, fixedLat1, fixedLon, fixedLat, cosLat);
+        // Project to get the closest point on the segment.
+        // Note: the fraction is scaleless, xScale is accounted for in the segmentFraction function.
+        this.fixedLon = (int)(fixedLon0 + frac * (fixedLon1 - fixedLon0));
+        this.fixedLat = (int)(fixedLat0 + frac * (fixedLat1 - fixedLat0));
+        // Find squared distance to edge (avoid taking square root, which is slow)
+        long dx = (long)((this.fixedLon - fixedLon) * cosLat);
+        long dy = (long) (this.fixedLat - fixedLat);
+        distSquared = dx * dx + dy * dy;
+    }
+
+    /**
+     * @return true if this split should be preferred over the other one, i.e. if it is closer to the search point.
+     * Break distance ties by favoring lower edge IDs, then lower segment indexes. This makes destination linking
+     * deterministic where centroids are equidistant to edges (see issue #159), and independent of the order in which
+     * candidate segments are examined.
+     */
+    boolean isCloserThan (Split other) {
+        if (distSquared != other.distSquared) return distSquared < other.distSquared;
+        if (edge != other.edge) return edge < other.edge;
+        return seg < other.seg;
+    }
+
+    /**
+     * Once the closest segment of an edge has been found, iterate over the segments of that edge again, accumulating
+     * distances along its geometry, to fill in the vertices at the ends of the edge and the distances to them.
+     * The distance calculations involve square roots so are deferred to happen here, only on the selected edge.
+     * @param edge a cursor for the edge store of the layer containing this split's edge.
+     */
+    void computeDistances (EdgeStore.Edge edge, double cosLat) {
+        final double metersPerDegreeLat = 111111.111;
+        edge.seek(this.edge);
+        vertex0 = edge.getFromVertex();
+        vertex1 = edge.getToVertex();
         double[] lengthBefore_fixedDeg = new double[1];
         edge.forEachSegment((seg, fLat0, fLon0, fLat1, fLon1) -> {
             // Sum lengths only up to the split point.
             // lengthAfter should be total length minus lengthBefore, which ensures splits do not change total lengths.
-            if (seg <= best.seg) {
+            if (seg <= this.seg) {
                 double dx = (fLon1 - fLon0) * cosLat;
                 double dy = (fLat1 - fLat0);
                 double length = FastMath.sqrt(dx * dx + dy * dy);
-                if (seg == best.seg) {
-                    length *= best.frac;
+                if (seg == this.seg) {
+                    length *= frac;
                 }
                 lengthBefore_fixedDeg[0] += length;
             }
         });
         // Convert the fixed-precision degree measurements into (milli)meters
         double lengthBefore_floatDeg = VertexStore.fixedDegreesToFloating((int)lengthBefore_fixedDeg[0]);
-        best.distance0_mm = (int)(lengthBefore_floatDeg * metersPerDegreeLat * 1000);
+        distance0_mm = (int)(lengthBefore_floatDeg * metersPerDegreeLat * 1000);
         // FIXME perhaps we should be using the sphericalDistanceLibrary here, or the other way around.
         // The initial edge lengths are set using that library on OSM node coordinates, and they are slightly different.
         // We are using a single cosLat value at the linking point, instead of a different value at each segment.
-        if (best.distance0_mm < 0) {
-            best.distance0_mm = 0;
+        if (distance0_mm < 0) {
+            distance0_mm = 0;
             LOG.error("Length of first street segment was not positive.");
         }
 
-        if (best.distance0_mm > edge.getLengthMm()) {
+        if (distance0_mm > edge.getLengthMm()) {
             // This mistake happens because the linear distance calculation we're using comes out longer than the
             // spherical distance. The graph remains coherent because we force the two split edge lengths to add up
             // to the original edge length.
             LOG.debug("Length of first street segment was greater than the whole edge ({} > {}).",
-                    best.distance0_mm, edge.getLengthMm());
-            best.distance0_mm = edge.getLengthMm();
+                    distance0_mm, edge.getLengthMm());
+            distance0_mm = edge.getLengthMm();
         }
-        best.distance1_mm = edge.getLengthMm() - best.distance0_mm;
+        distance1_mm = edge.getLengthMm() - distance0_mm;
 
         // To speed up computation above, square roots were avoided and distSquared was calculated using fixed degrees.
         // We now want to calculate the distance in millimeters, for routing.  To do so, we take the square root of
         // distSquared, convert to floating point degrees latitude then multiply by the metersPerDegreeLat factor above
         // and 1000 to convert to millimeters.  This is accurate enough for our purposes.
-        best.distance0_mm += VertexStore.fixedDegreesToFloating(FastMath.sqrt(best.distSquared)) * metersPerDegreeLat * 1000;
-        best.distance1_mm += VertexStore.fixedDegreesToFloating(FastMath.sqrt(best.distSquared)) * metersPerDegreeLat * 1000;
-
-        return best;
+        distance0_mm += VertexStore.fixedDegreesToFloating(FastMath.sqrt(distSquared)) * metersPerDegreeLat * 1000;
+        distance1_mm += VertexStore.fixedDegreesToFloating(FastMath.sqrt(distSquared)) * metersPerDegreeLat * 1000;
     }
 
     /**
@@ -0,0 +1,141 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.set.TIntSet;
+import org.apache.commons.math3.util.FastMath;
+
+import java.util.BitSet;
+
+/**
+ * Finds the same splits as StreetLayer.findSplit and Split.find, but is meant for linking many points one after the
+ * other, for example all the cells of a grid. Rather than querying the hash grid spatial index, building a set of
+ * candidate edges and walking their geometries for every point, it queries the packed EdgeSegmentIndexes of the
+ * street layer, which hold the segment coordinates directly, and it decides once up front which edges can be linked
+ * to with the given mode.
+ *
+ * A SplitFinder can be shared between threads, but each thread must make its own Search, which holds the reusable
+ * state for one point at a time.
+ */
+public class SplitFinder {
+
+    private final StreetLayer streetLayer;
+
+    private final EdgeSegmentIndex[] indexes;
+
+    /** For each edge pair (even edge index divided by two), whether points can be linked to it. */
+    private final BitSet linkableEdgePairs;
+
+    public SplitFinder (StreetLayer streetLayer, StreetMode streetMode) {
+        this.streetLayer = streetLayer;
+        this.indexes = streetLayer.getSegmentIndexes();
+        int nEdges = streetLayer.edgeStore.nEdges();
+        TIntSet deletedEdges = streetLayer.edgeStore.temporarilyDeletedEdges;
+        linkableEdgePairs = new BitSet(nEdges / 2);
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        for (int e = 0; e < nEdges; e += 2) {
+            // Skip edges that were deleted by a scenario, as StreetLayer.findEdgesInEnvelope does.
+            if (deletedEdges != null && deletedEdges.contains(e)) continue;
+            // The same tests as in Split.find: no links to transit stops and other points, and both directions must
+            // allow the mode and be linkable.
+            edge.seek(e);
+            if (edge.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) continue;
+            edge.advance();
+            if (!edge.allowsStreetMode(streetMode) || !edge.getFlag(EdgeStore.EdgeFlag.LINKABLE)) continue;
+            linkableEdgePairs.set(e / 2);
+        }
+    }
+
+    /** @return a new Search, which must only be used by one thread at a time. */
+    public Search newSearch () {
+        return new Search();
+    }
+
+    /**
+     * The state of a search for the closest linkable segment to one point, reused from one point to the next.
+     */
+    public class Search implements EdgeSegmentIndex.SegmentVisitor {
+
+        private final int[] stack;
+
+        private final EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+
+        /** The split location currently being examined and the best one seen so far. */
+        private final Split curr = new Split();
+        private final Split best = new Split();
+
+        // The point and search radius of the current search, all in fixed-point degrees.
+        private int fixedLat;
+        private int fixedLon;
+        private double cosLat;
+        private long squaredRadiusFixedLat;
+
+        private Search () {
+            int stackSize = 0;
+            for (EdgeSegmentIndex index : indexes) stackSize = Math.max(stackSize, index.queryStackSize());
+            stack = new int[stackSize];
+        }
+
+        /**
+         * Find a location on a street near the given point as StreetLayer.findSplit does, first searching a small
+         * radius on the assumption that most points are close to a street.
+         * @return the split, or null if no edge was found in range. The same Split object is reused by every call,
+         *         so the caller must copy out anything it needs before the next call.
+         */
+        public Split findSplit (double lat, double lon, double radiusMeters) {
+            Split split = null;
+            if (radiusMeters > StreetLayer.INITIAL_LINK_RADIUS_METERS) {
+                split = find(lat, lon, StreetLayer.INITIAL_LINK_RADIUS_METERS);
+            }
+            if (split == null) {
+                split = find(lat, lon, radiusMeters);
+            }
+            return split;
+        }
+
+        /**
+         * Find a location on a street near the given point within the given radius, as Split.find does.
+         * @return the split, or null if no edge was found in range. The returned object is reused by every call.
+         */
+        public Split find (double lat, double lon, double searchRadiusMeters) {
+            // After this conversion, the entire geometric calculation is happening in fixed precision int degrees.
+            fixedLat = VertexStore.floatingDegreesToFixed(lat);
+            fixedLon = VertexStore.floatingDegreesToFixed(lon);
+            final double metersPerDegreeLat = 111111.111;
+            cosLat = FastMath.cos(FastMath.toRadians(lat));
+            long radiusFixedLat = VertexStore.floatingDegreesToFixed(searchRadiusMeters / metersPerDegreeLat);
+            long radiusFixedLon = (int)(radiusFixedLat / cosLat); // Expand the X search space, don't shrink it.
+            squaredRadiusFixedLat = radiusFixedLat * radiusFixedLat;
+            best.edge = -1;
+            best.seg = 0;
+            best.distSquared = Long.MAX_VALUE;
+            for (EdgeSegmentIndex index : indexes) {
+                index.query(clamp(fixedLon - radiusFixedLon), clamp(fixedLat - radiusFixedLat),
+                        clamp(fixedLon + radiusFixedLon), clamp(fixedLat + radiusFixedLat), stack, this);
+            }
+            if (best.edge < 0) {
+                // No edge found nearby.
+                return null;
+            }
+            best.computeDistances(edge, cosLat);
+            return best;
+        }
+
+        @Override
+        public void visitSegment (int e, int seg, int fixedLat0, int fixedLon0, int fixedLat1, int fixedLon1) {
+            if (!linkableEdgePairs.get(e / 2)) return;
+            curr.edge = e;
+            curr.setOnSegment(seg, fixedLat0, fixedLon0, fixedLat1, fixedLon1, fixedLat, fixedLon, cosLat);
+            // Ignore segments that are too far away (filter false positives).
+            if (curr.distSquared < squaredRadiusFixedLat && curr.isCloserThan(best)) {
+                best.setFrom(curr);
+            }
+        }
+
+    }
+
+    private static int clamp (long fixedDegrees) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, fixedDegrees));
+    }
+
+}
@@ -0,0 +1,437 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.trove.MappedColumn;
+import com.conveyal.r5.trove.MappedIntArrayList;
+import com.conveyal.r5.trove.TByteMappedList;
+import com.conveyal.r5.trove.TIntMappedList;
+import com.conveyal.r5.trove.TLongMappedList;
+import com.conveyal.r5.trove.TShortMappedList;
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.TShortList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Stores the columns of the EdgeStore and VertexStore of a street layer (flags, speeds, vertices, lengths, OSM IDs,
+ * angles, geometries and coordinates) in a file of their own, next to the serialized network, so they can be mapped
+ * into memory read-only instead of being deserialized onto the heap. Loading a network then takes almost no time for
+ * its largest part, the garbage collector never scans the street data, and several workers on one machine share a
+ * single copy of it in the operating system's page cache.
+ *
+ * The mapped columns replace the Trove lists in the stores, so the Edge and Vertex cursors and everything else that
+ * reads the stores work as before. They cannot be modified, but scenarios only ever extend a copy of the base
+ * network, which wraps the base columns without modifying them.
+ *
+ * The file is a header followed by each column in a fixed order. Each column starts on an eight byte boundary with
+ * its number of values and the size of each value in bytes, both as ints, followed by the values themselves.
+ *
+ * The header identifies the file with a random ID and records the numbers of edges and vertices. Writing the file
+ * stores the header in the street layer, so it is serialized with the network. A column file left over from an earlier
+ * build, or only partly replaced, has a different header than the network it is next to, and is refused rather than
+ * mapped as the edges and vertices of the wrong network.
+ */
+public class StreetColumnFile {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreetColumnFile.class);
+
+    /** "R5SC" */
+    private static final int MAGIC = 0x52355343;
+
+    private static final int VERSION = 2;
+
+    /** @return the street column file that goes with the given serialized network file. */
+    public static File forNetworkFile (File networkFile) {
+        return new File(networkFile.getPath() + ".streets");
+    }
+
+    /**
+     * Write the columns of the given street layer to a file. Other processes on the same machine may have the file
+     * mapped, and truncating a mapped file makes them crash when they next read from it. So the columns are written
+     * to a temporary file in the same directory, which then atomically replaces the file: processes that have the old
+     * file mapped keep reading the old file. The header of the new file is stored in the street layer.
+     */
+    public static void write (StreetLayer streetLayer, File file) throws IOException {
+        LOG.info("Writing street columns to {}...", file);
+        Header header = new Header(streetLayer);
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            writeColumns(streetLayer, header, tempFile);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        streetLayer.streetColumnFileHeader = header;
+        LOG.info("Done writing street columns.");
+    }
+
+    private static void writeColumns (StreetLayer streetLayer, Header header, File file) throws IOException {
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        VertexStore vertexStore = streetLayer.vertexStore;
+        try (ColumnWriter writer = new ColumnWriter(file)) {
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putLong(header.fileId.getMostSignificantBits());
+            writer.putLong(header.fileId.getLeastSignificantBits());
+            writer.putInt(header.nEdges);
+            writer.putInt(header.nVertices);
+            writer.writeInts(edgeStore.flags);
+            writer.writeShorts(edgeStore.speeds);
+            writer.writeInts(edgeStore.fromVertices);
+            writer.writeInts(edgeStore.toVertices);
+            writer.writeInts(edgeStore.lengths_mm);
+            writer.writeLongs(edgeStore.osmids);
+            writer.writeBytes(edgeStore.inAngles);
+            writer.writeBytes(edgeStore.outAngles);
+            writer.writeIntArrays(edgeStore.geometries);
+            writer.writeInts(vertexStore.fixedLats);
+            writer.writeInts(vertexStore.fixedLons);
+            writer.writeBytes(vertexStore.vertexFlags);
+        }
+    }
+
+    /**
+     * Replace the columns of the given street layer, which must have been detached, with ones mapped from a file.
+     * @throws MismatchedFileException if the file was not written from this street layer.
+     */
+    public static void map (StreetLayer streetLayer, File file) throws IOException {
+        LOG.info("Mapping street columns from {}...", file);
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        VertexStore vertexStore = streetLayer.vertexStore;
+        Header expected = streetLayer.streetColumnFileHeader;
+        if (expected == null) {
+            throw new MismatchedFileException("Street layer was not written with a street column file, cannot map " + file);
+        }
+        Header header;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ColumnReader reader = new ColumnReader(channel);
+            if (reader.readInt() != MAGIC) throw new IOException("Not a street column file: " + file);
+            int version = reader.readInt();
+            if (version != VERSION) {
+                throw new MismatchedFileException("Unsupported street column file version " + version + " in " + file);
+            }
+            header = new Header(new UUID(reader.readLong(), reader.readLong()), reader.readInt(), reader.readInt());
+            if (!header.equals(expected)) {
+                throw new MismatchedFileException(String.format("Street column file %s (%s) does not belong to " +
+                        "the network it is next to, which was written with %s.", file, header, expected));
+            }
+            edgeStore.flags = new TIntMappedList(reader.map(Integer.BYTES));
+            edgeStore.speeds = new TShortMappedList(reader.map(Short.BYTES));
+            edgeStore.fromVertices = new TIntMappedList(reader.map(Integer.BYTES));
+            edgeStore.toVertices = new TIntMappedList(reader.map(Integer.BYTES));
+            edgeStore.lengths_mm = new TIntMappedList(reader.map(Integer.BYTES));
+            edgeStore.osmids = new TLongMappedList(reader.map(Long.BYTES));
+            edgeStore.inAngles = new TByteMappedList(reader.map(Byte.BYTES));
+            edgeStore.outAngles = new TByteMappedList(reader.map(Byte.BYTES));
+            MappedColumn geometryOffsets = reader.map(Integer.BYTES);
+            edgeStore.geometries = new MappedIntArrayList(geometryOffsets, reader.map(Integer.BYTES));
+            vertexStore.fixedLats = new TIntMappedList(reader.map(Integer.BYTES));
+            vertexStore.fixedLons = new TIntMappedList(reader.map(Integer.BYTES));
+            vertexStore.vertexFlags = new TByteMappedList(reader.map(Byte.BYTES));
+        }
+        int nPairs = edgeStore.fromVertices.size();
+        if (edgeStore.flags.size() != nPairs * 2 || edgeStore.geometries.size() != nPairs ||
+                vertexStore.fixedLats.size() != vertexStore.vertexFlags.size() ||
+                edgeStore.nEdges() != header.nEdges || vertexStore.getVertexCount() != header.nVertices) {
+            throw new IOException("Street column file " + file + " is inconsistent.");
+        }
+        LOG.info("Done mapping street columns: {} edges and {} vertices.", edgeStore.nEdges(), vertexStore.getVertexCount());
+    }
+
+    /** @return true if the columns of the given street layer are detached, and must be mapped from a file. */
+    public static boolean isDetached (StreetLayer streetLayer) {
+        return streetLayer.edgeStore.flags == null;
+    }
+
+    /**
+     * Remove the columns from the given street layer, so the rest of the layer can be serialized without them.
+     * @return the detached columns, which must be restored once the layer has been serialized.
+     */
+    public static DetachedColumns detach (StreetLayer streetLayer) {
+        DetachedColumns columns = new DetachedColumns(streetLayer);
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        VertexStore vertexStore = streetLayer.vertexStore;
+        edgeStore.flags = null;
+        edgeStore.speeds = null;
+        edgeStore.fromVertices = null;
+        edgeStore.toVertices = null;
+        edgeStore.lengths_mm = null;
+        edgeStore.osmids = null;
+        edgeStore.inAngles = null;
+        edgeStore.outAngles = null;
+        edgeStore.geometries = null;
+        vertexStore.fixedLats = null;
+        vertexStore.fixedLons = null;
+        vertexStore.vertexFlags = null;
+        return columns;
+    }
+
+    /**
+     * Identifies a street column file and the numbers of edges and vertices in it. This is stored both in the file and
+     * in the street layer it was written from, and the two must match for the file to be mapped.
+     */
+    public static class Header implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** Random, so that every file written gets a different ID, even when rebuilding the same network. */
+        public final UUID fileId;
+        public final int nEdges;
+        public final int nVertices;
+
+        private Header (StreetLayer streetLayer) {
+            this(UUID.randomUUID(), streetLayer.edgeStore.nEdges(), streetLayer.vertexStore.getVertexCount());
+        }
+
+        private Header (UUID fileId, int nEdges, int nVertices) {
+            this.fileId = fileId;
+            this.nEdges = nEdges;
+            this.nVertices = nVertices;
+        }
+
+        @Override
+        public boolean equals (Object other) {
+            if (!(other instanceof Header)) return false;
+            Header header = (Header) other;
+            return fileId.equals(header.fileId) && nEdges == header.nEdges && nVertices == header.nVertices;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(fileId, nEdges, nVertices);
+        }
+
+        @Override
+        public String toString () {
+            return String.format("file ID %s, %d edges, %d vertices", fileId, nEdges, nVertices);
+        }
+    }
+
+    /**
+     * Thrown when a street column file is not the one the network next to it was written with, e.g. it was left over
+     * from an earlier build, or only one of the two files was replaced. The file is fine, it belongs to another network.
+     */
+    public static class MismatchedFileException extends IOException {
+        public MismatchedFileException (String message) {
+            super(message);
+        }
+    }
+
+    /** The columns of a street layer while they are detached from it. */
+    public static class DetachedColumns {
+
+        private final StreetLayer streetLayer;
+        private final TIntList flags;
+        private final TShortList speeds;
+        private final TIntList fromVertices;
+        private final TIntList toVertices;
+        private final TIntList lengths_mm;
+        private final TLongList osmids;
+        private final TByteList inAngles;
+        private final TByteList outAngles;
+        private final List<int[]> geometries;
+        private final TIntList fixedLats;
+        private final TIntList fixedLons;
+        private final TByteList vertexFlags;
+
+        private DetachedColumns (StreetLayer streetLayer) {
+            this.streetLayer = streetLayer;
+            EdgeStore edgeStore = streetLayer.edgeStore;
+            VertexStore vertexStore = streetLayer.vertexStore;
+            flags = edgeStore.flags;
+            speeds = edgeStore.speeds;
+            fromVertices = edgeStore.fromVertices;
+            toVertices = edgeStore.toVertices;
+            lengths_mm = edgeStore.lengths_mm;
+            osmids = edgeStore.osmids;
+            inAngles = edgeStore.inAngles;
+            outAngles = edgeStore.outAngles;
+            geometries = edgeStore.geometries;
+            fixedLats = vertexStore.fixedLats;
+            fixedLons = vertexStore.fixedLons;
+            vertexFlags = vertexStore.vertexFlags;
+        }
+
+        /** Put the columns back into the street layer they were detached from. */
+        public void restore () {
+            EdgeStore edgeStore = streetLayer.edgeStore;
+            VertexStore vertexStore = streetLayer.vertexStore;
+            edgeStore.flags = flags;
+            edgeStore.speeds = speeds;
+            edgeStore.fromVertices = fromVertices;
+            edgeStore.toVertices = toVertices;
+            edgeStore.lengths_mm = lengths_mm;
+            edgeStore.osmids = osmids;
+            edgeStore.inAngles = inAngles;
+            edgeStore.outAngles = outAngles;
+            edgeStore.geometries = geometries;
+            vertexStore.fixedLats = fixedLats;
+            vertexStore.fixedLons = fixedLons;
+            vertexStore.vertexFlags = vertexFlags;
+        }
+    }
+
+    /** Writes columns through a buffer, keeping track of the position in the file to align them. */
+    private static class ColumnWriter implements Closeable {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(MappedColumn.BYTE_ORDER);
+
+        private long position = 0;
+
+        ColumnWriter (File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void beginColumn (int size, int bytesPerValue) throws IOException {
+            while (position % 8 != 0) putByte((byte) 0);
+            putInt(size);
+            putInt(bytesPerValue);
+        }
+
+        void writeInts (TIntList values) throws IOException {
+            beginColumn(values.size(), Integer.BYTES);
+            for (int i = 0; i < values.size(); i++) putInt(values.get(i));
+        }
+
+        void writeShorts (TShortList values) throws IOException {
+            beginColumn(values.size(), Short.BYTES);
+            for (int i = 0; i < values.size(); i++) {
+                ensureRemaining(Short.BYTES);
+                buffer.putShort(values.get(i));
+                position += Short.BYTES;
+            }
+        }
+
+        void writeLongs (TLongList values) throws IOException {
+            beginColumn(values.size(), Long.BYTES);
+            for (int i = 0; i < values.size(); i++) {
+                ensureRemaining(Long.BYTES);
+                buffer.putLong(values.get(i));
+                position += Long.BYTES;
+            }
+        }
+
+        void writeBytes (TByteList values) throws IOException {
+            beginColumn(values.size(), Byte.BYTES);
+            for (int i = 0; i < values.size(); i++) putByte(values.get(i));
+        }
+
+        /** Write a column of offsets and a column of all the arrays packed together. */
+        void writeIntArrays (List<int[]> arrays) throws IOException {
+            beginColumn(arrays.size() + 1, Integer.BYTES);
+            long offset = 0;
+            putInt(0);
+            for (int[] array : arrays) {
+                offset += array.length;
+                if (offset > Integer.MAX_VALUE) throw new IOException("Too many values to store in a mapped column.");
+                putInt((int) offset);
+            }
+            beginColumn((int) offset, Integer.BYTES);
+            for (int[] array : arrays) {
+                for (int value : array) putInt(value);
+            }
+        }
+
+        void putInt (int value) throws IOException {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+            position += Integer.BYTES;
+        }
+
+        void putLong (long value) throws IOException {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+            position += Long.BYTES;
+        }
+
+        private void putByte (byte value) throws IOException {
+            ensureRemaining(Byte.BYTES);
+            buffer.put(value);
+            position += Byte.BYTES;
+        }
+
+        private void ensureRemaining (int nBytes) throws IOException {
+            if (buffer.remaining() < nBytes) flush();
+        }
+
+        private void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close () throws IOException {
+            try {
+                flush();
+                // Make sure the contents are on disk before the file is moved into place.
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /** Reads the header of each column and maps its values, in the order they were written. */
+    private static class ColumnReader {
+
+        private final FileChannel channel;
+
+        private final ByteBuffer header = ByteBuffer.allocate(Long.BYTES).order(MappedColumn.BYTE_ORDER);
+
+        private long position = 0;
+
+        ColumnReader (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        int readInt () throws IOException {
+            read(Integer.BYTES);
+            return header.getInt(0);
+        }
+
+        long readLong () throws IOException {
+            read(Long.BYTES);
+            return header.getLong(0);
+        }
+
+        private void read (int nBytes) throws IOException {
+            header.clear();
+            header.limit(nBytes);
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) throw new IOException("Unexpected end of file.");
+            }
+            position += nBytes;
+        }
+
+        MappedColumn map (int bytesPerValue) throws IOException {
+            position = (position + 7) / 8 * 8;
+            int size = readInt();
+            int storedBytesPerValue = readInt();
+            if (storedBytesPerValue != bytesPerValue) {
+                throw new IOException("Expected a column of " + bytesPerValue + " byte values, found " + storedBytesPerValue);
+            }
+            MappedColumn column = MappedColumn.map(channel, position, size, bytesPerValue);
+            position += (long) size * bytesPerValue;
+            return column;
+        }
+    }
+
+}
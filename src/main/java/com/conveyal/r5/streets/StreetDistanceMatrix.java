@@ -0,0 +1,164 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.LambdaCounter;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Distances through the street network from each of a set of origin vertices to each of a set of target vertices,
+ * for example from every transit stop to every other transit stop within transfer distance.
+ *
+ * One distance-limited search is run from each origin, in parallel. Each search borrows its router's label arrays
+ * from the per-thread pool, so the workspaces are reused from one origin to the next. The targets are bucketed by
+ * vertex before the searches start, and after each search only the reached vertices are checked against those
+ * buckets, so the cost of finding the reached targets depends on how far the search went rather than on the number
+ * of targets.
+ *
+ * Searches are generally limited to a small fraction of the network, so most pairs are not connected. The matrix is
+ * therefore stored sparsely in compressed sparse row form: the entries for origin o are at indexes offsets[o]
+ * (inclusive) to offsets[o + 1] (exclusive) of the targets and distancesMillimeters arrays, in ascending target order.
+ */
+public class StreetDistanceMatrix {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreetDistanceMatrix.class);
+
+    /** The value returned for pairs of origins and targets that are not connected within the distance limit. */
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    public final int nOrigins;
+
+    public final int nTargets;
+
+    /** For each origin, the index of its first entry in targets and distancesMillimeters, with one extra end element. */
+    public final int[] offsets;
+
+    /** The index (not the vertex) of the target of each entry. */
+    public final int[] targets;
+
+    /** The distance to the target of each entry, parallel to the targets array. */
+    public final int[] distancesMillimeters;
+
+    private StreetDistanceMatrix (int nOrigins, int nTargets, int[] offsets, int[] targets, int[] distancesMillimeters) {
+        this.nOrigins = nOrigins;
+        this.nTargets = nTargets;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.distancesMillimeters = distancesMillimeters;
+    }
+
+    /**
+     * Find the distances from each origin vertex to each target vertex, minimizing distance. Entries for an origin
+     * vertex of -1 (an unlinked stop for example) are left empty, and targets with a vertex of -1 are never reached.
+     * An origin reaches a target at the same vertex at a distance of zero.
+     * @param distanceLimitMeters the maximum distance of the searches from each origin.
+     */
+    public static StreetDistanceMatrix compute (StreetLayer streetLayer, int[] originVertices, int[] targetVertices,
+                                                StreetMode streetMode, int distanceLimitMeters) {
+        int nOrigins = originVertices.length;
+        int nTargets = targetVertices.length;
+
+        // Bucket the targets by vertex: the targets at the vertex with bucket b are targetsByBucket[bucketOffsets[b]]
+        // (inclusive) to targetsByBucket[bucketOffsets[b + 1]] (exclusive), in ascending order.
+        int nVertices = streetLayer.getVertexCount();
+        int[] bucketForVertex = new int[nVertices];
+        Arrays.fill(bucketForVertex, -1);
+        int nBuckets = 0;
+        int[] targetCountForBucket = new int[nTargets + 1];
+        for (int vertex : targetVertices) {
+            if (vertex < 0) continue;
+            if (bucketForVertex[vertex] == -1) bucketForVertex[vertex] = nBuckets++;
+            targetCountForBucket[bucketForVertex[vertex] + 1]++;
+        }
+        int[] bucketOffsets = Arrays.copyOf(targetCountForBucket, nBuckets + 1);
+        for (int b = 0; b < nBuckets; b++) bucketOffsets[b + 1] += bucketOffsets[b];
+        int[] targetsByBucket = new int[bucketOffsets[nBuckets]];
+        int[] nextEntryForBucket = Arrays.copyOf(bucketOffsets, nBuckets);
+        for (int target = 0; target < nTargets; target++) {
+            int vertex = targetVertices[target];
+            if (vertex < 0) continue;
+            targetsByBucket[nextEntryForBucket[bucketForVertex[vertex]]++] = target;
+        }
+
+        // Each thread marks the buckets it has added to the current row with the origin's index plus one. This avoids
+        // clearing or allocating an array of all the buckets for each origin.
+        int nTargetBuckets = nBuckets;
+        ThreadLocal<int[]> rowForBucket = ThreadLocal.withInitial(() -> new int[nTargetBuckets]);
+        LambdaCounter counter = new LambdaCounter(LOG, nOrigins, 1000,
+                "Computed street distances from {} of {} origins.");
+        // For each origin, the reached targets as (target << 32 | distance) so that sorting them sorts by target.
+        long[][] rows = IntStream.range(0, nOrigins).parallel().mapToObj(origin -> {
+            int originVertex = originVertices[origin];
+            if (originVertex < 0) return null;
+            StreetRouter router = new StreetRouter(streetLayer);
+            router.streetMode = streetMode;
+            router.distanceLimitMeters = distanceLimitMeters;
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+            router.setOrigin(originVertex);
+            router.route();
+            TLongArrayList row = new TLongArrayList();
+            // The same vertex can be reached through several edges, so make sure each bucket is only added once.
+            int[] rowForThisBucket = rowForBucket.get();
+            router.forEachReachedVertex(vertex -> {
+                int bucket = bucketForVertex[vertex];
+                if (bucket < 0 || rowForThisBucket[bucket] == origin + 1) return true;
+                rowForThisBucket[bucket] = origin + 1;
+                int distance = vertex == originVertex ? 0 :
+                        router.getValueAtVertex(vertex, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS);
+                if (distance == UNREACHED) return true;
+                for (int entry = bucketOffsets[bucket]; entry < bucketOffsets[bucket + 1]; entry++) {
+                    row.add(((long) targetsByBucket[entry] << 32) | distance);
+                }
+                return true; // continue iteration
+            });
+            router.release();
+            // The search does not label its origin vertex unless it returns to it.
+            int originBucket = bucketForVertex[originVertex];
+            if (originBucket >= 0 && rowForThisBucket[originBucket] != origin + 1) {
+                for (int entry = bucketOffsets[originBucket]; entry < bucketOffsets[originBucket + 1]; entry++) {
+                    row.add((long) targetsByBucket[entry] << 32);
+                }
+            }
+            counter.increment();
+            long[] sortedRow = row.toArray();
+            Arrays.sort(sortedRow);
+            return sortedRow;
+        }).toArray(long[][]::new);
+        counter.done();
+
+        // Pack the rows into flat arrays.
+        int[] offsets = new int[nOrigins + 1];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            offsets[origin + 1] = offsets[origin] + (rows[origin] == null ? 0 : rows[origin].length);
+        }
+        int[] targets = new int[offsets[nOrigins]];
+        int[] distancesMillimeters = new int[offsets[nOrigins]];
+        for (int origin = 0; origin < nOrigins; origin++) {
+            if (rows[origin] == null) continue;
+            for (int i = 0; i < rows[origin].length; i++) {
+                targets[offsets[origin] + i] = (int) (rows[origin][i] >>> 32);
+                distancesMillimeters[offsets[origin] + i] = (int) rows[origin][i];
+            }
+        }
+        return new StreetDistanceMatrix(nOrigins, nTargets, offsets, targets, distancesMillimeters);
+    }
+
+    /**
+     * @return the distance in millimeters from the origin with the given index to the target with the given index, or
+     * UNREACHED if the target was not reached from that origin.
+     */
+    public int get (int origin, int target) {
+        int entry = Arrays.binarySearch(targets, offsets[origin], offsets[origin + 1], target);
+        return entry < 0 ? UNREACHED : distancesMillimeters[entry];
+    }
+
+    /** @return the number of targets reached from the given origin. */
+    public int nTargetsForOrigin (int origin) {
+        return offsets[origin + 1] - offsets[origin];
+    }
+
+}
@@ -0,0 +1,532 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.util.IndexedIntMinHeap;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A contraction hierarchy over the street layer for one street mode and routing variable. It allows the StreetRouter
+ * to find the best paths from an origin to every edge in a fraction of the time a plain search takes on a large
+ * network, which matters for long car and bicycle searches covering a whole metropolitan region.
+ *
+ * The hierarchy is built over the same graph the StreetRouter implicitly searches, where each directed edge is a node
+ * (see the javadoc on StreetRouter.bestStatesAtEdge). There is an arc from edge u to edge v wherever the StreetRouter
+ * could traverse v right after u, and its costs are exactly what Edge.traverse adds to a state making that move,
+ * including the turn cost. Nodes are "contracted" one by one: a contracted node is removed from the graph, and a
+ * shortcut arc is added between any two of its neighbors whose shortest path ran through it. Each node's rank is the
+ * order in which it was contracted. The shortest path between any two nodes can then be made of arcs going up in rank
+ * followed by arcs going down in rank. So a search only needs to explore the few arcs going up from the origin, and
+ * then make a single sweep over the arcs going down into every node in descending order of rank (this is known as
+ * PHAST). The sweep is a linear scan over flat arrays, which is much faster than a priority queue search.
+ *
+ * Turn restrictions depend on how an edge was reached, not only on the edge before it, so they cannot be represented
+ * as arcs. Every edge that is part of a turn restriction is left uncontracted, in a "core" at the top of the
+ * hierarchy. The core is searched with State objects and Edge.traverse just as in a plain search. A shortcut leaving
+ * a core edge always passes through an edge that is not part of any turn restriction, so it can be taken by any state
+ * that is not bound by an "only" turn restriction, and it clears any other restrictions. Turn restrictions only apply
+ * to cars, so the core is empty for the other modes.
+ *
+ * A hierarchy is only valid for the edges that existed when it was built, and for the request parameters that affect
+ * the cost of traversing edges. The StreetRouter falls back on a plain search in all other cases, e.g. when a scenario
+ * has added edges to the network.
+ */
+public class StreetHierarchy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreetHierarchy.class);
+
+    /**
+     * The number of nodes a witness search may settle before giving up when contracting a node, and when estimating
+     * how many shortcuts contracting a node would add. Giving up early only adds shortcuts that are not needed.
+     */
+    private static final int MAX_SETTLED_CONTRACTING = 500;
+    private static final int MAX_SETTLED_ESTIMATING = 50;
+
+    public final StreetMode streetMode;
+
+    /** The routing variable that was minimized when deciding which shortcuts are needed. */
+    public final StreetRouter.State.RoutingVariable quantityToMinimize;
+
+    // The request parameters used to compute the cost of traversing edges by bicycle or on foot.
+    private final float walkSpeed;
+    private final float bikeSpeed;
+    private final int bikeTrafficStress;
+
+    /** The number of edges in the street layer this hierarchy was built for, which is also the number of nodes. */
+    public final int nEdges;
+
+    private final int nTurnRestrictions;
+
+    /** The driving side of the street layer when this hierarchy was built, which determines car turn costs. */
+    private final boolean driveOnRight;
+
+    /** The edges that are not in the core (and not impassable), in the order they were contracted. */
+    final int[] contractionOrder;
+
+    /** The rank of each edge. Core edges have the highest ranks, and edges this mode cannot traverse have rank -1. */
+    private final int[] rank;
+
+    /** The edges where a bicycle is walked, which the StreetRouter records on each state. */
+    private final BitSet walking;
+
+    /** Arcs going up in rank, grouped by source. Arcs into the core are included. */
+    final Arcs up;
+
+    /** Arcs going down in rank, grouped by target. Arcs out of the core are included. */
+    final Arcs down;
+
+    /** Arcs between core edges, grouped by source. */
+    final Arcs core;
+
+    /**
+     * Arcs between nodes in compressed sparse row form: the arcs of node n are at indexes offsets[n] (inclusive) to
+     * offsets[n + 1] (exclusive) of the other arrays. An arc stands for a path of one or more edge traversals, and
+     * holds the amount that path adds to each of the routing variables of a state.
+     */
+    static class Arcs implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int[] offsets;
+
+        /** The node at the other end of each arc from the one it is grouped by. */
+        final int[] nodes;
+
+        final int[] durationSeconds;
+
+        final int[] weights;
+
+        final int[] distancesMillimeters;
+
+        /**
+         * The node just before the target on the path an arc stands for, which is the source for arcs that are not
+         * shortcuts. This allows the StreetRouter to build the path to the target one edge at a time.
+         */
+        final int[] lastNodes;
+
+        private Arcs (int nNodes, int nArcs) {
+            offsets = new int[nNodes + 1];
+            nodes = new int[nArcs];
+            durationSeconds = new int[nArcs];
+            weights = new int[nArcs];
+            distancesMillimeters = new int[nArcs];
+            lastNodes = new int[nArcs];
+        }
+
+        /** @return true if the given arc is a single edge traversal rather than a shortcut. */
+        boolean isOriginal (int arc, int source) {
+            return lastNodes[arc] == source;
+        }
+
+        /** @return the amount the given arc adds to the given routing variable. */
+        int getValue (int arc, StreetRouter.State.RoutingVariable variable) {
+            switch (variable) {
+                case DURATION_SECONDS:
+                    return durationSeconds[arc];
+                case WEIGHT:
+                    return weights[arc];
+                case DISTANCE_MILLIMETERS:
+                    return distancesMillimeters[arc];
+                default:
+                    throw new IllegalStateException("Unknown routing variable");
+            }
+        }
+    }
+
+    /**
+     * Build a hierarchy for the given mode and routing variable. The edge lists of the street layer must already be
+     * built. Bicycle and walk hierarchies use the speeds and traffic stress in a default ProfileRequest, and are only
+     * used for searches with the same parameters.
+     */
+    public StreetHierarchy (StreetLayer streetLayer, StreetMode streetMode,
+                            StreetRouter.State.RoutingVariable quantityToMinimize) {
+        this.streetMode = streetMode;
+        this.quantityToMinimize = quantityToMinimize;
+        ProfileRequest request = new ProfileRequest();
+        this.walkSpeed = request.walkSpeed;
+        this.bikeSpeed = request.bikeSpeed;
+        this.bikeTrafficStress = request.bikeTrafficStress;
+        this.nEdges = streetLayer.edgeStore.nEdges();
+        this.nTurnRestrictions = streetLayer.turnRestrictions.size();
+        this.driveOnRight = streetLayer.driveOnRight;
+
+        long startTime = System.currentTimeMillis();
+        Contractor contractor = new Contractor(streetLayer, request);
+        contractor.contract();
+        this.contractionOrder = contractor.contractionOrder.toArray();
+        this.rank = contractor.rank;
+        this.walking = contractor.walking;
+        this.up = contractor.makeArcs(ArcDirection.UP);
+        this.down = contractor.makeArcs(ArcDirection.DOWN);
+        this.core = contractor.makeArcs(ArcDirection.CORE);
+        LOG.info("Built {} street hierarchy minimizing {} in {} sec: {} edges contracted, {} in core, {} arcs of which {} shortcuts.",
+                streetMode, quantityToMinimize, (System.currentTimeMillis() - startTime) / 1000,
+                contractionOrder.length, contractor.nCore, contractor.nArcs(), contractor.nArcs() - contractor.nOriginalArcs);
+    }
+
+    /**
+     * @return true if this hierarchy can be used for a search on the given street layer with the given request, that
+     * is if the edges are the same as when it was built and the request would give them the same costs.
+     */
+    public boolean isApplicable (StreetLayer streetLayer, ProfileRequest request) {
+        if (streetLayer.edgeStore.nEdges() != nEdges || streetLayer.turnRestrictions.size() != nTurnRestrictions) {
+            return false;
+        }
+        if (request.reverseSearch) return false;
+        switch (streetMode) {
+            case CAR:
+                // Car speeds come from the edges, turn costs depend on the driving side.
+                return streetLayer.driveOnRight == driveOnRight;
+            case BICYCLE:
+                return request.bikeSpeed == bikeSpeed && request.walkSpeed == walkSpeed &&
+                        request.bikeTrafficStress == bikeTrafficStress;
+            default:
+                return request.walkSpeed == walkSpeed && !request.wheelchair;
+        }
+    }
+
+    /** @return true if the given edge is in the uncontracted core, because it is part of a turn restriction. */
+    boolean isCore (int edge) {
+        return rank[edge] >= contractionOrder.length;
+    }
+
+    /** @return true if a bicycle is walked along the given edge. */
+    boolean isWalking (int edge) {
+        return walking.get(edge);
+    }
+
+    private enum ArcDirection { UP, DOWN, CORE }
+
+    /**
+     * Holds the graph while it is being contracted. Arcs are never removed, only added, so the final hierarchy is
+     * made of all the arcs that were ever created, sorted into up, down and core arcs by the ranks of their ends.
+     */
+    private class Contractor {
+
+        private final StreetLayer streetLayer;
+
+        private final int nNodes;
+
+        final int[] rank;
+
+        final BitSet walking = new BitSet();
+
+        private final BitSet passable = new BitSet();
+
+        private final BitSet coreNodes = new BitSet();
+
+        private final BitSet contracted = new BitSet();
+
+        final TIntList contractionOrder = new TIntArrayList();
+
+        int nCore = 0;
+
+        int nOriginalArcs = 0;
+
+        // All arcs, as parallel lists.
+        private final TIntList arcSources = new TIntArrayList();
+        private final TIntList arcTargets = new TIntArrayList();
+        private final TIntList arcDurations = new TIntArrayList();
+        private final TIntList arcWeights = new TIntArrayList();
+        private final TIntList arcDistances = new TIntArrayList();
+        private final TIntList arcLastNodes = new TIntArrayList();
+
+        // The arcs between nodes that have not yet been contracted, leaving and entering each node.
+        private final TIntList[] outArcs;
+        private final TIntList[] inArcs;
+
+        /** For each node, how many of its neighbors have been contracted. Used to spread contraction evenly. */
+        private final int[] contractedNeighbors;
+
+        // State of the witness searches, which are limited Dijkstra searches over the uncontracted graph.
+        private final int[] witnessCost;
+        private final int[] witnessEpochAtNode;
+        private int witnessEpoch = 0;
+        private final IndexedIntMinHeap witnessQueue;
+
+        Contractor (StreetLayer streetLayer, ProfileRequest request) {
+            this.streetLayer = streetLayer;
+            this.nNodes = nEdges;
+            this.rank = new int[nNodes];
+            Arrays.fill(rank, -1);
+            this.outArcs = new TIntList[nNodes];
+            this.inArcs = new TIntList[nNodes];
+            this.contractedNeighbors = new int[nNodes];
+            this.witnessCost = new int[nNodes];
+            this.witnessEpochAtNode = new int[nNodes];
+            this.witnessQueue = new IndexedIntMinHeap(nNodes);
+            addOriginalArcs(request);
+            if (streetMode == StreetMode.CAR) {
+                for (TurnRestriction restriction : streetLayer.turnRestrictions) {
+                    addToCore(restriction.fromEdge);
+                    addToCore(restriction.toEdge);
+                    for (int viaEdge : restriction.viaEdges) addToCore(viaEdge);
+                }
+            }
+        }
+
+        private void addToCore (int edge) {
+            if (passable.get(edge) && !coreNodes.get(edge)) {
+                coreNodes.set(edge);
+                nCore++;
+            }
+        }
+
+        /** Find every possible move from one edge onto the next with Edge.traverse, recording what it costs. */
+        private void addOriginalArcs (ProfileRequest request) {
+            EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+            TurnCostCalculator turnCostCalculator = new TurnCostCalculator(streetLayer, streetLayer.driveOnRight);
+            TravelTimeCalculator travelTimeCalculator = new EdgeStore.DefaultTravelTimeCalculator();
+            StreetRouter.State s1 = new StreetRouter.State(-1, -1, streetMode);
+
+            // An edge this mode cannot traverse even at the start of a search cannot be reached at all.
+            for (int e = 0; e < nNodes; e++) {
+                edge.seek(e);
+                StreetRouter.State origin = new StreetRouter.State(edge.getFromVertex(), -1, streetMode);
+                if (edge.traverse(origin, s1, streetMode, request, turnCostCalculator, travelTimeCalculator)) {
+                    passable.set(e);
+                    if (s1.streetMode != streetMode) walking.set(e);
+                    outArcs[e] = new TIntArrayList(4);
+                    inArcs[e] = new TIntArrayList(4);
+                }
+            }
+
+            // The traversal costs do not depend on the values in the state being extended, so start from zero. The
+            // placeholder back state makes this look like a state partway through a search rather than an origin.
+            StreetRouter.State placeholder = new StreetRouter.State(-1, -1, streetMode);
+            for (int u = passable.nextSetBit(0); u >= 0; u = passable.nextSetBit(u + 1)) {
+                edge.seek(u);
+                StreetRouter.State s0 = new StreetRouter.State(edge.getToVertex(), u, streetMode);
+                s0.backState = placeholder;
+                for (int i = 0, nEdgesAtVertex = streetLayer.outgoingEdges.size(s0.vertex); i < nEdgesAtVertex; i++) {
+                    int v = streetLayer.outgoingEdges.get(s0.vertex, i);
+                    if (v == u || !passable.get(v)) continue;
+                    edge.seek(v);
+                    if (!edge.traverse(s0, s1, streetMode, request, turnCostCalculator, travelTimeCalculator)) continue;
+                    addArc(u, v, s1.durationSeconds, s1.weight, s1.distance, u);
+                    nOriginalArcs++;
+                }
+            }
+        }
+
+        private int addArc (int source, int target, int durationSeconds, int weight, int distance, int lastNode) {
+            int arc = arcSources.size();
+            arcSources.add(source);
+            arcTargets.add(target);
+            arcDurations.add(durationSeconds);
+            arcWeights.add(weight);
+            arcDistances.add(distance);
+            arcLastNodes.add(lastNode);
+            outArcs[source].add(arc);
+            inArcs[target].add(arc);
+            return arc;
+        }
+
+        int nArcs () {
+            return arcSources.size();
+        }
+
+        private int cost (int arc) {
+            switch (quantityToMinimize) {
+                case DURATION_SECONDS:
+                    return arcDurations.get(arc);
+                case WEIGHT:
+                    return arcWeights.get(arc);
+                case DISTANCE_MILLIMETERS:
+                    return arcDistances.get(arc);
+                default:
+                    throw new IllegalStateException("Unknown routing variable");
+            }
+        }
+
+        /**
+         * A core node cannot be passed through on the way to another node, because the turn restrictions on it
+         * might forbid the path. The single edge traversal between two core nodes is also subject to restrictions.
+         * Any other move out of a core node can be made by a state that is not bound by an "only" restriction.
+         * Shortcuts out of a core node are taken on that same condition, so paths following these rules are valid
+         * witnesses for them.
+         */
+        private boolean isRestricted (int arc) {
+            int source = arcSources.get(arc);
+            int target = arcTargets.get(arc);
+            return coreNodes.get(source) && coreNodes.get(target) && arcLastNodes.get(arc) == source;
+        }
+
+        /**
+         * Find the cost of the best paths from the source to nearby nodes that do not pass through the excluded
+         * node, so that shortcuts are only added where the path through the excluded node is the only best path.
+         * Stops when the cost exceeds maxCost or maxSettled nodes have been settled. Read results with witnessCost().
+         */
+        private void witnessSearch (int source, int excluded, int maxCost, int maxSettled) {
+            witnessEpoch++;
+            witnessQueue.clear();
+            witnessEpochAtNode[source] = witnessEpoch;
+            witnessCost[source] = 0;
+            witnessQueue.insertOrDecrease(source, 0);
+            int nSettled = 0;
+            while (!witnessQueue.isEmpty() && witnessQueue.peekKey() <= maxCost && nSettled++ < maxSettled) {
+                int node = witnessQueue.poll();
+                if (node != source && coreNodes.get(node)) continue;
+                TIntList arcs = outArcs[node];
+                for (int i = 0; i < arcs.size(); i++) {
+                    int arc = arcs.get(i);
+                    int target = arcTargets.get(arc);
+                    if (target == excluded || isRestricted(arc)) continue;
+                    int targetCost = witnessCost[node] + cost(arc);
+                    if (witnessCost(target) > targetCost) {
+                        witnessEpochAtNode[target] = witnessEpoch;
+                        witnessCost[target] = targetCost;
+                        witnessQueue.insertOrDecrease(target, targetCost);
+                    }
+                }
+            }
+        }
+
+        private int witnessCost (int node) {
+            return witnessEpochAtNode[node] == witnessEpoch ? witnessCost[node] : Integer.MAX_VALUE;
+        }
+
+        /**
+         * Find the shortcuts needed to contract the given node, adding them to the graph unless estimating.
+         * @return the number of shortcuts needed.
+         */
+        private int contractNode (int node, boolean estimate) {
+            TIntList in = inArcs[node];
+            TIntList out = outArcs[node];
+            int nShortcuts = 0;
+            for (int i = 0; i < in.size(); i++) {
+                int inArc = in.get(i);
+                int source = arcSources.get(inArc);
+                int maxCost = -1;
+                for (int j = 0; j < out.size(); j++) {
+                    int outArc = out.get(j);
+                    if (arcTargets.get(outArc) != source) maxCost = Math.max(maxCost, cost(inArc) + cost(outArc));
+                }
+                if (maxCost < 0) continue;
+                witnessSearch(source, node, maxCost, estimate ? MAX_SETTLED_ESTIMATING : MAX_SETTLED_CONTRACTING);
+                for (int j = 0; j < out.size(); j++) {
+                    int outArc = out.get(j);
+                    int target = arcTargets.get(outArc);
+                    // A path that comes back to the same edge can never be part of a best path.
+                    if (target == source) continue;
+                    if (witnessCost(target) <= cost(inArc) + cost(outArc)) continue;
+                    nShortcuts++;
+                    if (!estimate) {
+                        addArc(source, target,
+                                arcDurations.get(inArc) + arcDurations.get(outArc),
+                                arcWeights.get(inArc) + arcWeights.get(outArc),
+                                arcDistances.get(inArc) + arcDistances.get(outArc),
+                                arcLastNodes.get(outArc));
+                    }
+                }
+            }
+            return nShortcuts;
+        }
+
+        /** Contracting nodes that add fewer shortcuts than the arcs they remove first keeps the hierarchy small. */
+        private int priority (int node) {
+            int nShortcuts = contractNode(node, true);
+            return nShortcuts - inArcs[node].size() - outArcs[node].size() + contractedNeighbors[node];
+        }
+
+        void contract () {
+            IndexedIntMinHeap queue = new IndexedIntMinHeap(nNodes);
+            for (int node = passable.nextSetBit(0); node >= 0; node = passable.nextSetBit(node + 1)) {
+                if (!coreNodes.get(node)) queue.insertOrDecrease(node, priority(node));
+            }
+            TIntList neighbors = new TIntArrayList();
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                // Priorities of nodes are only lowered as their neighbors are contracted, so check that this one has
+                // not gone up since it was queued. If it has, put it back and take the next one.
+                int priority = priority(node);
+                if (!queue.isEmpty() && priority > queue.peekKey()) {
+                    queue.insertOrDecrease(node, priority);
+                    continue;
+                }
+                contractNode(node, false);
+                rank[node] = contractionOrder.size();
+                contractionOrder.add(node);
+                contracted.set(node);
+
+                // Remove the node from the graph, and update its neighbors.
+                neighbors.clear();
+                TIntList in = inArcs[node];
+                for (int i = 0; i < in.size(); i++) {
+                    int arc = in.get(i);
+                    int source = arcSources.get(arc);
+                    outArcs[source].remove(arc);
+                    neighbors.add(source);
+                }
+                TIntList out = outArcs[node];
+                for (int i = 0; i < out.size(); i++) {
+                    int arc = out.get(i);
+                    int target = arcTargets.get(arc);
+                    inArcs[target].remove(arc);
+                    neighbors.add(target);
+                }
+                inArcs[node] = null;
+                outArcs[node] = null;
+                for (int i = 0; i < neighbors.size(); i++) {
+                    int neighbor = neighbors.get(i);
+                    contractedNeighbors[neighbor]++;
+                    if (!coreNodes.get(neighbor) && !contracted.get(neighbor)) {
+                        queue.insertOrDecrease(neighbor, priority(neighbor));
+                    }
+                }
+            }
+            // The core goes at the top of the hierarchy.
+            int nextRank = contractionOrder.size();
+            for (int node = coreNodes.nextSetBit(0); node >= 0; node = coreNodes.nextSetBit(node + 1)) {
+                rank[node] = nextRank++;
+            }
+        }
+
+        /** Make the final hierarchy's arcs going in the given direction, grouped by source or target as appropriate. */
+        Arcs makeArcs (ArcDirection direction) {
+            boolean groupBySource = direction != ArcDirection.DOWN;
+            TIntList selected = new TIntArrayList();
+            for (int arc = 0; arc < nArcs(); arc++) {
+                int source = arcSources.get(arc);
+                int target = arcTargets.get(arc);
+                if (source == target) continue;
+                ArcDirection arcDirection;
+                if (coreNodes.get(source) && coreNodes.get(target)) arcDirection = ArcDirection.CORE;
+                else if (rank[source] < rank[target]) arcDirection = ArcDirection.UP;
+                else arcDirection = ArcDirection.DOWN;
+                if (arcDirection == direction) selected.add(arc);
+            }
+            Arcs arcs = new Arcs(nNodes, selected.size());
+            for (int i = 0; i < selected.size(); i++) {
+                int arc = selected.get(i);
+                int groupNode = groupBySource ? arcSources.get(arc) : arcTargets.get(arc);
+                arcs.offsets[groupNode + 1]++;
+            }
+            for (int node = 0; node < nNodes; node++) {
+                arcs.offsets[node + 1] += arcs.offsets[node];
+            }
+            int[] nextArcForNode = Arrays.copyOf(arcs.offsets, nNodes);
+            for (int i = 0; i < selected.size(); i++) {
+                int arc = selected.get(i);
+                int groupNode = groupBySource ? arcSources.get(arc) : arcTargets.get(arc);
+                int index = nextArcForNode[groupNode]++;
+                arcs.nodes[index] = groupBySource ? arcTargets.get(arc) : arcSources.get(arc);
+                arcs.durationSeconds[index] = arcDurations.get(arc);
+                arcs.weights[index] = arcWeights.get(arc);
+                arcs.distancesMillimeters[index] = arcDistances.get(arc);
+                arcs.lastNodes[index] = arcLastNodes.get(arc);
+            }
+            return arcs;
+        }
+    }
+
+}
@@ -37,6 +37,7 @@ import java.io.File;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
@@ -104,8 +105,8 @@ public class StreetLayer implements Serializable, Cloneable {
     public static final int INITIAL_LINK_RADIUS_METERS = 300;
 
     // Edge lists should be constructed after the fact from edges. This minimizes serialized size too.
-    public transient List<TIntList> outgoingEdges;
-    public transient List<TIntList> incomingEdges;
+    public transient EdgeLists outgoingEdges;
+    public transient EdgeLists incomingEdges;
     public transient IntHashGrid spatialIndex = new IntHashGrid();
 
     /**
@@ -116,6 +117,13 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     private transient IntHashGrid temporaryEdgeIndex;
 
+    /**
+     * Packed spatial index of the segments of the edges in this layer, used to link many points at once. This is built
+     * on demand by getSegmentIndexes(). In a scenario copy it only covers the edges added by the scenario, and the
+     * index of the base layer is used for the others.
+     */
+    private transient EdgeSegmentIndex segmentIndex;
+
     // Key is street vertex index, value is BikeRentalStation (with name, number of bikes, spaces id etc.)
     public TIntObjectMap<BikeRentalStation> bikeRentalStationMap;
     public TIntObjectMap<ParkRideParking> parkRideLocationsMap;
@@ -144,6 +152,25 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     public List<TurnRestriction> turnRestrictions = new ArrayList<>();
 
+    /**
+     * Contraction hierarchies used by the StreetRouter to speed up long searches, for the street modes requested in
+     * the network build configuration. They are serialized with the network because they take a while to build.
+     * Networks serialized before these existed will have null here.
+     */
+    public List<StreetHierarchy> streetHierarchies = new ArrayList<>();
+
+    /**
+     * Landmarks giving the StreetRouter lower bounds for goal-directed point to point searches, for the street modes
+     * requested in the network build configuration. Networks serialized before these existed will have null here.
+     */
+    public List<Landmarks> landmarks = new ArrayList<>();
+
+    /**
+     * The header of the street column file the edge and vertex store columns were last written to, if any. When the
+     * network is serialized without those columns, only the file with this same header will be mapped in their place.
+     */
+    public StreetColumnFile.Header streetColumnFileHeader;
+
     /**
      * The TransportNetwork containing this StreetLayer. This link up the object tree also allows us to access the
      * TransitLayer associated with this StreetLayer of the same TransportNetwork without maintaining bidirectional
@@ -178,6 +205,12 @@ public class StreetLayer implements Serializable, Cloneable {
 
     public boolean bikeSharing = false;
 
+    /**
+     * Whether traffic keeps to the right in this network, which determines the costs of left and right turns. The
+     * turn table is built for this side, and routers on this layer compute turn costs for it.
+     */
+    public boolean driveOnRight = true;
+
     public StreetLayer(TNBuilderConfig tnBuilderConfig) {
         speedLabeler = new SpeedLabeler(tnBuilderConfig.speeds);
     }
@@ -685,7 +718,7 @@ public class StreetLayer implements Serializable, Cloneable {
             final long fromWayId = from.id; // more "effectively final" nonsense
             final boolean[] bad = new boolean[] { false };
             // find the street layer edge corresponding to the turn restriction's "from" OSM way
-            incomingEdges.get(vertex).forEach(eidx -> {
+            incomingEdges.forEach(vertex, eidx -> {
                 e.seek(eidx);
                 if (e.getOSMID() == fromWayId) {
                     if (fromEdge[0] != -1) {
@@ -702,7 +735,7 @@ public class StreetLayer implements Serializable, Cloneable {
             // find the street layer edge corresponding to the turn restriction's "to" OSM way
             final int[] toEdge = new int[] { -1 };
             final long toWayId = to.id; // more effectively final nonsense
-            outgoingEdges.get(vertex).forEach(eidx -> {
+            outgoingEdges.forEach(vertex, eidx -> {
                 e.seek(eidx);
                 if (e.getOSMID() == toWayId) {
                     if (toEdge[0] != -1) {
@@ -838,7 +871,7 @@ public class StreetLayer implements Serializable, Cloneable {
             int fromVertex = vertexIndexForOsmNode.get(pathNodes[0]);
 
             // find the edges
-            incomingEdges.get(fromVertex).forEach(eidx -> {
+            incomingEdges.forEach(fromVertex, eidx -> {
                 e.seek(eidx);
                 if (e.getOSMID() == fromWayId) {
                     if (fromEdge[0] != -1) {
@@ -857,7 +890,7 @@ public class StreetLayer implements Serializable, Cloneable {
 
             final int[] toEdge = new int[] { -1 };
             final long toWayId = to.id; // more effectively final nonsense
-            outgoingEdges.get(toVertex).forEach(eidx -> {
+            outgoingEdges.forEach(toVertex, eidx -> {
                 e.seek(eidx);
                 if (e.getOSMID() == toWayId) {
                     if (toEdge[0] != -1) {
@@ -892,7 +925,7 @@ public class StreetLayer implements Serializable, Cloneable {
                 // fencepost problem: one more node than ways
                 final long wayId = pathWays[nidx - 1]; // more effectively final nonsense
                 int vertex = vertexIndexForOsmNode.get(pathNodes[nidx]);
-                incomingEdges.get(vertex).forEach(eidx -> {
+                incomingEdges.forEach(vertex, eidx -> {
                     e.seek(eidx);
                     if (e.getOSMID() == wayId) {
                         if (edge[0] != -1) {
@@ -1071,6 +1104,7 @@ public class StreetLayer implements Serializable, Cloneable {
     public void indexStreets () {
         LOG.info("Indexing streets...");
         spatialIndex = new IntHashGrid();
+        segmentIndex = null;
         // Skip by twos, we only need to index forward (even) edges. Their odd companions have the same geometry.
         Edge edge = edgeStore.getCursor();
         for (int e = 0; e < edgeStore.nEdges(); e += 2) {
@@ -1105,25 +1139,140 @@ public class StreetLayer implements Serializable, Cloneable {
         return candidates;
     }
 
+    /**
+     * @return packed spatial indexes of the segments of all the edges in this layer, for use when linking many points
+     * at once (see SplitFinder). Unlike findEdgesInEnvelope these indexes do not exclude edges that were deleted by a
+     * scenario, which the caller must skip. The indexes are built the first time they are needed, and rebuilt when
+     * edges have been added or modified since.
+     */
+    public synchronized EdgeSegmentIndex[] getSegmentIndexes () {
+        // A copy that will not be modified shares the EdgeStore of its base layer, so it can share its index too.
+        if (baseStreetLayer != null && baseStreetLayer.edgeStore == edgeStore) {
+            return baseStreetLayer.getSegmentIndexes();
+        }
+        // The edges of a scenario copy below firstModifiableEdge are the immutable edges of the base layer.
+        EdgeSegmentIndex[] baseIndexes = new EdgeSegmentIndex[0];
+        int firstEdge = 0;
+        if (baseStreetLayer != null && edgeStore.isExtendOnlyCopy()) {
+            baseIndexes = baseStreetLayer.getSegmentIndexes();
+            if (baseIndexes.length > 0 && baseIndexes[baseIndexes.length - 1].endEdge == edgeStore.firstModifiableEdge) {
+                firstEdge = edgeStore.firstModifiableEdge;
+            } else {
+                baseIndexes = new EdgeSegmentIndex[0];
+            }
+        }
+        if (segmentIndex == null || segmentIndex.firstEdge != firstEdge || segmentIndex.endEdge != edgeStore.nEdges()) {
+            segmentIndex = EdgeSegmentIndex.build(edgeStore, firstEdge, edgeStore.nEdges());
+        }
+        EdgeSegmentIndex[] indexes = Arrays.copyOf(baseIndexes, baseIndexes.length + 1);
+        indexes[baseIndexes.length] = segmentIndex;
+        return indexes;
+    }
+
     /**
      * The edge lists (which edges go out of and come into each vertex) are derived from the edges in the EdgeStore.
      * So any time you add edges or change their endpoints, you need to rebuild the edge index.
-     * TODO some way to signal that a few new edges have been added, rather than rebuilding the whole lists.
+     * When a scenario has added edges to a copy of a base network, only the added edges are indexed, on top of the
+     * edge lists of the base network.
      */
     public void buildEdgeLists() {
+        if (baseStreetLayer != null && baseStreetLayer.outgoingEdges != null) {
+            // A copy that has not been modified shares the base EdgeStore, and all of its edges are base edges.
+            int firstAddedEdge = edgeStore.isExtendOnlyCopy() ? edgeStore.firstModifiableEdge : edgeStore.nEdges();
+            EdgeLists outgoing = baseStreetLayer.outgoingEdges.extend(edgeStore, firstAddedEdge, true);
+            EdgeLists incoming = baseStreetLayer.incomingEdges.extend(edgeStore, firstAddedEdge, false);
+            if (outgoing != null && incoming != null) {
+                LOG.info("Extended base edge lists with {} edges.", edgeStore.nEdges() - firstAddedEdge);
+                outgoingEdges = outgoing;
+                incomingEdges = incoming;
+                return;
+            }
+        }
         LOG.info("Building edge lists from edges...");
-        outgoingEdges = new ArrayList<>(vertexStore.getVertexCount());
-        incomingEdges = new ArrayList<>(vertexStore.getVertexCount());
-        for (int v = 0; v < vertexStore.getVertexCount(); v++) {
-            outgoingEdges.add(new TIntArrayList(4));
-            incomingEdges.add(new TIntArrayList(4));
+        outgoingEdges = EdgeLists.build(edgeStore, vertexStore.getVertexCount(), true);
+        incomingEdges = EdgeLists.build(edgeStore, vertexStore.getVertexCount(), false);
+        LOG.info("Done building edge lists.");
+    }
+
+    /**
+     * Build the tables that speed up routing on this street layer: the turn table, and the street hierarchies and
+     * landmarks for the modes requested in the given configuration. Every way of building a network must call this
+     * once all the edges have been created and the edge lists are built, as the tables are only valid for those edges.
+     */
+    public void buildRoutingTables (TNBuilderConfig tnBuilderConfig) {
+        buildTurnTable();
+        if (tnBuilderConfig.streetHierarchyModes != null && !tnBuilderConfig.streetHierarchyModes.isEmpty()) {
+            buildStreetHierarchies(tnBuilderConfig.streetHierarchyModes);
         }
-        Edge edge = edgeStore.getCursor();
-        while (edge.advance()) {
-            outgoingEdges.get(edge.getFromVertex()).add(edge.edgeIndex);
-            incomingEdges.get(edge.getToVertex()).add(edge.edgeIndex);
+        if (tnBuilderConfig.landmarkModes != null && !tnBuilderConfig.landmarkModes.isEmpty()) {
+            buildLandmarks(tnBuilderConfig.landmarkModes);
         }
-        LOG.info("Done building edge lists.");
+    }
+
+    /**
+     * Build contraction hierarchies for searches in the given street modes, replacing any that were built before.
+     * For each mode there is one hierarchy minimizing travel time (used by access searches) and one minimizing weight
+     * (used for direct point to point routes). This must be done once all the edges have been created and the edge
+     * lists are built, as a hierarchy cannot be used once the edges have changed.
+     */
+    public void buildStreetHierarchies (Collection<StreetMode> streetModes) {
+        streetHierarchies = new ArrayList<>();
+        for (StreetMode streetMode : streetModes) {
+            for (StreetRouter.State.RoutingVariable quantityToMinimize : new StreetRouter.State.RoutingVariable[] {
+                    StreetRouter.State.RoutingVariable.DURATION_SECONDS, StreetRouter.State.RoutingVariable.WEIGHT}) {
+                LOG.info("Building {} street hierarchy minimizing {}...", streetMode, quantityToMinimize);
+                streetHierarchies.add(new StreetHierarchy(this, streetMode, quantityToMinimize));
+            }
+        }
+    }
+
+    /**
+     * Choose landmarks and find the costs between them and every vertex for the given street modes, replacing any that
+     * were built before (see Landmarks). Like the street hierarchies, this must be done once all the edges have been
+     * created and the edge lists are built.
+     */
+    public void buildLandmarks (Collection<StreetMode> streetModes) {
+        landmarks = new ArrayList<>();
+        for (StreetMode streetMode : streetModes) {
+            landmarks.add(Landmarks.build(this, streetMode, Landmarks.DEFAULT_LANDMARK_COUNT));
+        }
+    }
+
+    /** @return the landmarks for the given mode, or null if none were built. */
+    public Landmarks getLandmarks (StreetMode streetMode) {
+        if (landmarks == null) return null;
+        for (Landmarks modeLandmarks : landmarks) {
+            if (modeLandmarks.streetMode == streetMode) return modeLandmarks;
+        }
+        return null;
+    }
+
+    /**
+     * Precompute the costs of all car turns and the turns forbidden by simple turn restrictions (see TurnTable). This
+     * must be done once all the edges have been created and the edge lists are built. Turns onto or off edges added
+     * later are still computed on the fly.
+     */
+    public void buildTurnTable () {
+        edgeStore.turnTable = TurnTable.build(this, driveOnRight);
+    }
+
+    /** @return the street hierarchy for the given mode and routing variable, or null if none was built. */
+    public StreetHierarchy getStreetHierarchy (StreetMode streetMode, StreetRouter.State.RoutingVariable quantityToMinimize) {
+        if (streetHierarchies == null) return null;
+        for (StreetHierarchy hierarchy : streetHierarchies) {
+            if (hierarchy.streetMode == streetMode && hierarchy.quantityToMinimize == quantityToMinimize) return hierarchy;
+        }
+        return null;
+    }
+
+    /**
+     * Find the distances through the street network from each of the given origin vertices to each of the given target
+     * vertices, within the given distance limit, running the searches from the origins in parallel.
+     * See StreetDistanceMatrix for details.
+     */
+    public StreetDistanceMatrix distanceMatrix (int[] originVertices, int[] targetVertices, StreetMode streetMode,
+                                                int distanceLimitMeters) {
+        return StreetDistanceMatrix.compute(this, originVertices, targetVertices, streetMode, distanceLimitMeters);
     }
 
     /**
@@ -1172,7 +1321,12 @@ public class StreetLayer implements Serializable, Cloneable {
             // The edge we are going to split is mutable.
             // We're either building a baseline graph, or modifying an edge created within the same scenario.
             // Modify the existing bidirectional edge pair to serve as the first segment leading up to the split point.
-            // Its spatial index entry is still valid, since the edge's envelope will only shrink.
+            // Its spatial index entry is still valid, since the edge's envelope will only shrink, but the segment index
+            // holds its old geometry.
+            segmentIndex = null;
+            // The turn table of a baseline graph describes the turns at the old end of the edge. Edges created within
+            // a scenario are not in the turn table.
+            if (!edgeStore.isExtendOnlyCopy()) edgeStore.turnTable = null;
             edge.setLengthMm(split.distance0_mm);
             edge.setToVertex(newVertexIndex);
             // Turn the edge into a straight line.
@@ -1245,7 +1399,10 @@ public class StreetLayer implements Serializable, Cloneable {
         int newVertexIndex = vertexStore.addVertexFixed((int)split.fixedLat, (int)split.fixedLon);
 
         // Modify the existing bidirectional edge pair to lead up to the split.
-        // Its spatial index entry is still valid, its envelope has only shrunk.
+        // Its spatial index entry is still valid, its envelope has only shrunk, but the segment index holds its old geometry.
+        segmentIndex = null;
+        // The turn table describes the turns at the old end of the edge.
+        edgeStore.turnTable = null;
         int oldToVertex = edge.getToVertex();
         edge.setLengthMm(split.distance0_mm);
         edge.setToVertex(newVertexIndex);
@@ -1375,6 +1532,7 @@ public class StreetLayer implements Serializable, Cloneable {
             // The extend-only copy of the EdgeStore also contains a new extend-only copy of the VertexStore.
             copy.vertexStore = copy.edgeStore.vertexStore;
             copy.temporaryEdgeIndex = new IntHashGrid();
+            copy.segmentIndex = null;
         }
         copy.parentNetwork = newScenarioNetwork;
         copy.baseStreetLayer = this;
@@ -6,15 +6,19 @@ import com.conveyal.r5.point_to_point.builder.PointToPointQuery;
 import com.conveyal.r5.profile.StreetMode;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.util.IndexedIntMinHeap;
 import com.conveyal.r5.util.TIntObjectHashMultimap;
 import com.conveyal.r5.util.TIntObjectMultimap;
+import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.iterator.TIntIterator;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.procedure.TIntProcedure;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.math3.util.FastMath;
@@ -23,6 +27,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.IntPredicate;
 
 /**
  * This routes over the street layer of a TransitNetwork.
@@ -69,7 +74,7 @@ public class StreetRouter {
      * The reason this is pluggable is to account for left and right hand drive (as well as any other country-specific
      * details you might want to implement)
      */
-    private TurnCostCalculator turnCostCalculator;
+    TurnCostCalculator turnCostCalculator;
 
     private TravelTimeCalculator travelTimeCalculator;
 
@@ -88,6 +93,26 @@ public class StreetRouter {
     public int distanceLimitMeters = 0;
     public int timeLimitSeconds = 0;
 
+    /**
+     * If the street layer has a contraction hierarchy for the street mode and quantity to minimize, and this search
+     * is one it can answer (see findStreetHierarchy), use it instead of a plain search. The travel times found are the
+     * same either way, this can be turned off to compare the two.
+     */
+    public boolean useStreetHierarchy = true;
+
+    /**
+     * If the street layer has landmarks for the street mode and this search has a destination, use them for the goal
+     * direction heuristic instead of the straight-line distance (see findLandmarkBound). The paths found are the same
+     * either way, this can be turned off to compare the two.
+     */
+    public boolean useLandmarks = true;
+
+    // The lower bound from landmarks used as the A* heuristic, or null if the straight-line heuristic is used.
+    private Landmarks.Bound landmarkBound;
+
+    // The street hierarchy used by the last search, or null if it was a plain search.
+    StreetHierarchy usedStreetHierarchy;
+
     /**
      * What routing variable (weight, distance, etc.) should be used to decide when a path is better than another.
      * We only ever have one such variable, and it's algorithmically invalid to prune or otherwise discard any path
@@ -131,15 +156,44 @@ public class StreetRouter {
      * apply that left turn cost. Even more important is to make sure that the destination edge is not the end of a
      * restricted turn; if it is, one must reach the destination via an alternate state.
      *
-     * TODO we might be able to make this more efficient (not using a multimap)
-     * by taking advantage of the fact that we almost always have a single state per edge
-     * (the only time we don't is when we're in the middle of a turn restriction).
+     * We almost always have a single state per edge (the only time we don't is when we're in the middle of a turn
+     * restriction), so this multimap only holds the origin states and the states inside turn restrictions. All other
+     * states are stored as labels in the primitive arrays below.
      */
     TIntObjectMultimap<State> bestStatesAtEdge = new TIntObjectHashMultimap<>();
 
-    // The queue is prioritized by the specified optimization objective variable.
-    PriorityQueue<State> queue = new PriorityQueue<>(
-            Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
+    /**
+     * The best state at the end of each edge that is not inside a turn restriction is not kept as a State object, but
+     * as a "label" in arrays indexed by edge, which are held in this workspace. This avoids creating an object (and a
+     * hashtable entry) for every edge explored, which adds up when building stop trees and running access searches
+     * millions of times. Each label records only the edge holding the previous label on its path, so a State chain can
+     * be rebuilt on demand for the few callers that need the whole path (see materialize()).
+     *
+     * The workspace also holds the priority queue. It is prioritized by the specified optimization objective variable
+     * plus the goal direction heuristic. Items below nEdges are labels, identified by their edge. Items from nEdges
+     * upward are object states, at index (item - nEdges) in queuedStates. Because each label is in the queue at most
+     * once and its key is lowered in place when it improves, labels never come off the queue stale.
+     *
+     * The workspace is borrowed from a per-thread pool and given back by release(), after which it is null.
+     */
+    private StreetRouterWorkspace workspace;
+
+    /** The number of edges in the street layer when the current search was started. */
+    private int nEdges;
+
+    /** For labels whose previous state is an object (an origin state or a state inside a turn restriction). */
+    private TIntObjectMap<State> backStateAtEdge = new TIntObjectHashMap<>();
+
+    /** State chains that have already been rebuilt from labels, so that shared path prefixes are only built once. */
+    private TIntObjectMap<State> materializedStateAtEdge = new TIntObjectHashMap<>();
+
+    private List<State> queuedStates = new ArrayList<>();
+
+    /** Stands in for the back state of a label loaded into a scratch state, which always has one. */
+    private final State labelBackState = new State(-1, -1, (StreetMode) null);
+
+    /** Used to find the vertex at the end of a label's edge. */
+    private EdgeStore.Edge labelEdge;
 
     /**
      * If you set this to a non-negative number, the search will end at the vertex with the given index,
@@ -205,8 +259,8 @@ public class StreetRouter {
         TransitLayer transitLayer = streetLayer.parentNetwork.transitLayer;
         transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
             if (streetVertex == -1) return true;
-            State state = getStateAtVertex(streetVertex);
-            if (state != null) result.put(stop, state.getRoutingVariable(quantityToMinimize));
+            int value = getValueAtVertex(streetVertex, quantityToMinimize);
+            if (value != Integer.MAX_VALUE) result.put(stop, value);
             return true; // continue iteration
         });
         return result;
@@ -219,6 +273,13 @@ public class StreetRouter {
     public TIntIntMap getReachedVertices () {
         TIntIntMap result = new TIntIntHashMap();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        for (int i = 0; i < workspace.labeledEdges.size(); i++) {
+            int eidx = workspace.labeledEdges.get(i);
+            e.seek(eidx);
+            int vidx = e.getToVertex();
+            if (!result.containsKey(vidx) || result.get(vidx) > labelValues[eidx]) result.put(vidx, labelValues[eidx]);
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
             // Iterating over a little list and reducing the values with a stream might be slow.
@@ -236,6 +297,28 @@ public class StreetRouter {
         return result;
     }
 
+    /**
+     * After a search has been run, call the given procedure with every vertex reached by the search, i.e. every vertex
+     * for which getValueAtVertex will return a value. A vertex may be passed to the procedure more than once. This
+     * allows callers interested in only some vertices to find the reached ones among them without building a map of
+     * all reached vertices, or looking up every vertex they are interested in.
+     */
+    public void forEachReachedVertex (TIntProcedure procedure) {
+        EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
+        // In a reverse search, states are at the vertex at the beginning of each edge.
+        boolean reverse = profileRequest.reverseSearch;
+        for (int i = 0; i < workspace.labeledEdges.size(); i++) {
+            e.seek(workspace.labeledEdges.get(i));
+            procedure.execute(reverse ? e.getFromVertex() : e.getToVertex());
+        }
+        bestStatesAtEdge.forEachEntry((eidx, states) -> {
+            if (eidx < 0) return true;
+            e.seek(eidx);
+            procedure.execute(reverse ? e.getFromVertex() : e.getToVertex());
+            return true; // continue iteration
+        });
+    }
+
     /**
      * After a search has been run, calling this method will returns a map from vertex indexes to the value of
      * the objective variable for the optimal path to that vertex, but only for vertices with a certain flag set.
@@ -253,6 +336,20 @@ public class StreetRouter {
         TIntObjectMap<State> result = new TIntObjectHashMap<>();
         EdgeStore.Edge e = streetLayer.edgeStore.getCursor();
         VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        for (int i = 0; i < workspace.labeledEdges.size(); i++) {
+            int eidx = workspace.labeledEdges.get(i);
+            e.seek(eidx);
+            int vidx = e.getToVertex();
+            v.seek(vidx);
+            if (v.getFlag(flag)) {
+                // Only rebuild the path to the label if it is the best state found so far at this vertex.
+                if (!result.containsKey(vidx) ||
+                        result.get(vidx).getRoutingVariable(quantityToMinimize) > labelValues[eidx]) {
+                    result.put(vidx, materialize(eidx));
+                }
+            }
+        }
         bestStatesAtEdge.forEachEntry((eidx, states) -> {
             if (eidx < 0) return true;
 
@@ -280,11 +377,41 @@ public class StreetRouter {
 
     public StreetRouter (StreetLayer streetLayer, TravelTimeCalculator travelTimeCalculator) {
         this.streetLayer = streetLayer;
-        // TODO one of two things: 1) don't hardwire drive-on-right, or 2) https://en.wikipedia.org/wiki/Dagen_H
-        this.turnCostCalculator = new TurnCostCalculator(streetLayer, true);
+        this.turnCostCalculator = new TurnCostCalculator(streetLayer, streetLayer.driveOnRight);
         this.travelTimeCalculator = travelTimeCalculator;
+        this.labelEdge = streetLayer.edgeStore.getCursor();
+        resetSearch();
     }
 
+    /**
+     * Remove all states and labels left by any previous search, making sure the label arrays can hold every edge in
+     * the street layer, which may have grown since this router was created.
+     */
+    private void resetSearch () {
+        nEdges = streetLayer.edgeStore.nEdges();
+        if (workspace == null) {
+            workspace = StreetRouterWorkspace.acquire(nEdges);
+        } else {
+            workspace.reset(nEdges);
+        }
+        backStateAtEdge.clear();
+        materializedStateAtEdge.clear();
+        bestStatesAtEdge.clear();
+        queuedStates.clear();
+    }
+
+    /**
+     * Give this router's label arrays and queue back to the per-thread pool so the next router on this thread can
+     * reuse them rather than allocating its own. Call this once the results of the search have been read. Results
+     * that were already retrieved (including States) remain valid, but nothing more can be read from this router and
+     * it cannot be used for another search. Routers that are never released are simply garbage collected.
+     */
+    public void release () {
+        if (workspace != null) {
+            StreetRouterWorkspace.release(workspace);
+            workspace = null;
+        }
+    }
 
     /**
      * Set the origin point of this StreetRouter (before a search is started) to a point along an edge that allows
@@ -307,8 +434,7 @@ public class StreetRouter {
             return false;
         }
         originSplit = split;
-        bestStatesAtEdge.clear();
-        queue.clear();
+        resetSearch();
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
         // In these states we must specify which edge was traversed to reach them, so that turn costs work.
         State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
@@ -336,18 +462,15 @@ public class StreetRouter {
 
         // These initial states are not recorded as bestStates, they will be added when they come out of the queue.
         // FIXME but wait - we are putting them in the bestStates for some reason.
-        queue.add(startState0);
-        queue.add(startState1);
-        bestStatesAtEdge.put(startState0.backEdge, startState0);
-        bestStatesAtEdge.put(startState1.backEdge, startState1);
+        addOriginState(startState0);
+        addOriginState(startState1);
 
         maxAbsOriginLat = originSplit.fixedLat;
         return true;
     }
 
     public void setOrigin (int fromVertex) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        resetSearch();
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -355,7 +478,7 @@ public class StreetRouter {
 
         // NB backEdge of -1 is no problem as it is a special case that indicates that the origin was a vertex.
         State startState = new State(fromVertex, -1, streetMode);
-        queue.add(startState);
+        addOriginState(startState);
     }
 
     /**
@@ -370,8 +493,7 @@ public class StreetRouter {
      * @param legMode What origin search is this bike share or P+R
      */
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        resetSearch();
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -387,8 +509,7 @@ public class StreetRouter {
             }
             state.distance = previousState.distance;
             if (!isDominated(state)) {
-                bestStatesAtEdge.put(state.backEdge, state);
-                queue.add(state);
+                addOriginState(state);
                 VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
                 int deltaLatFixed = vertex.getFixedLat();
                 maxOriginLatArr[0] = Math.max(maxOriginLatArr[0], Math.abs(deltaLatFixed));
@@ -424,6 +545,10 @@ public class StreetRouter {
      */
     public void route () {
 
+        if (workspace == null) {
+            throw new IllegalStateException("A StreetRouter cannot be used after it has been released.");
+        }
+
         long startTime = System.currentTimeMillis();
 
         final int distanceLimitMm;
@@ -481,7 +606,32 @@ public class StreetRouter {
             LOG.debug("Using time limit of {} sec", timeLimitSeconds);
         }
 
-        if (queue.size() == 0) {
+        if (transitStopSearch) {
+            routingVisitor = new StopVisitor(streetLayer, quantityToMinimize, transitStopSearchQuantity, profileRequest.getMinTimeLimit(streetMode));
+        } else if (flagSearch != null) {
+            routingVisitor = new VertexFlagVisitor(streetLayer, quantityToMinimize, flagSearch, flagSearchQuantity, profileRequest.getMinTimeLimit(streetMode));
+        }
+
+        landmarkBound = findLandmarkBound();
+        StreetHierarchy hierarchy = findStreetHierarchy();
+        usedStreetHierarchy = hierarchy;
+        if (hierarchy != null) {
+            routeWithHierarchy(hierarchy, tmpTimeLimitSeconds);
+            if (routingVisitor != null) visitReachedStates();
+            LOG.debug("Routing with {} street hierarchy took {} msec", streetMode, System.currentTimeMillis() - startTime);
+            return;
+        }
+
+        // The origin states are only queued now, because the quantity to minimize is often set after the origin.
+        for (int i = 0; i < queuedStates.size(); i++) {
+            State state = queuedStates.get(i);
+            if (state != null) {
+                if (landmarkBound != null) state.heuristic = calcHeuristic(state.vertex);
+                workspace.queue.insertOrDecrease(nEdges + i, state.getRoutingVariable(quantityToMinimize) + state.heuristic);
+            }
+        }
+
+        if (workspace.queue.isEmpty()) {
             LOG.warn("Routing without first setting an origin, no search will happen.");
         }
 
@@ -499,14 +649,31 @@ public class StreetRouter {
         }
 
         EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
-
-        if (transitStopSearch) {
-            routingVisitor = new StopVisitor(streetLayer, quantityToMinimize, transitStopSearchQuantity, profileRequest.getMinTimeLimit(streetMode));
-        } else if (flagSearch != null) {
-            routingVisitor = new VertexFlagVisitor(streetLayer, quantityToMinimize, flagSearch, flagSearchQuantity, profileRequest.getMinTimeLimit(streetMode));
-        }
-        while (!queue.isEmpty()) {
-            State s0 = queue.poll();
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        // Scratch states reused for every label coming off the queue and every edge traversed.
+        State labelState = new State(-1, -1, streetMode);
+        State s1 = new State(-1, -1, streetMode);
+
+        // The StopVisitor only looks at the values in the state it is given, other visitors may keep it or follow its path.
+        boolean visitorNeedsPath = !(routingVisitor instanceof StopVisitor);
+        while (!workspace.queue.isEmpty()) {
+            int key = workspace.queue.peekKey();
+            int item = workspace.queue.poll();
+            // The edge holding the label being explored, or -1 if an object state is being explored.
+            int s0Edge;
+            State s0;
+            if (item < nEdges) {
+                s0Edge = item;
+                s0 = loadLabel(item, labelState);
+            } else {
+                s0Edge = -1;
+                s0 = queuedStates.set(item - nEdges, null);
+                // The object state coming off the priority queue may have been dominated by some other state that was
+                // produced by traversing the same edge. Check that it has not been dominated before exploring it.
+                // States at the origin may have their backEdge set to a negative number to indicate that they have no
+                // backEdge (were not produced by traversing an edge). Skip the check for those states.
+                if (s0.backEdge >= 0 && !bestStatesAtEdge.get(s0.backEdge).contains(s0)) continue;
+            }
 
             if (DEBUG_OUTPUT) {
                 VertexStore.Vertex v = streetLayer.vertexStore.getCursor(s0.vertex);
@@ -524,26 +691,23 @@ public class StreetRouter {
                 debugPrintStream.println(String.format("%.6f,%.6f,%d", v.getLat(), v.getLon(), s0.weight));
             }
 
-            // The state coming off the priority queue may have been dominated by some other state that was produced
-            // by traversing the same edge. Check that the state coming off the queue has not been dominated before
-            // exploring it. States at the origin may have their backEdge set to a negative number to indicate that
-            // they have no backEdge (were not produced by traversing an edge). Skip the check for those states.
-            if (s0.backEdge >= 0 && !bestStatesAtEdge.get(s0.backEdge).contains(s0)) continue;
-
             // If the search has reached the destination, the state coming off the queue is the best way to get there.
             if (toVertex > 0 && toVertex == s0.vertex) break;
 
             // End the search if the state coming off the queue has exceeded the best-known cost to reach the destination.
             // TODO how important is this? How can this even happen? In a street search, is target pruning even effective?
             if (s0.getRoutingVariable(quantityToMinimize) > bestValueAtDestination) break;
+            // A landmark heuristic never overestimates, so no state left in the queue can improve on the destination
+            // once the cost so far plus the estimate of the remaining cost exceeds it.
+            if (landmarkBound != null && key > bestValueAtDestination) break;
 
             // Hit RoutingVistor callbacks to monitor search progress.
             if (routingVisitor != null) {
-                routingVisitor.visitVertex(s0);
+                routingVisitor.visitVertex(s0Edge >= 0 && visitorNeedsPath ? materialize(s0Edge) : s0);
 
                 if (routingVisitor.shouldBreakSearch()) {
                     LOG.debug("{} routing visitor stopped search", routingVisitor.getClass().getSimpleName());
-                    queue.clear();
+                    workspace.queue.clear();
                     break;
                 }
             }
@@ -560,26 +724,25 @@ public class StreetRouter {
                 }
             }
 
-            TIntList edgeList;
-            if (profileRequest.reverseSearch) {
-                edgeList = streetLayer.incomingEdges.get(s0.vertex);
-            } else {
-                edgeList = streetLayer.outgoingEdges.get(s0.vertex);
-            }
+            EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.incomingEdges : streetLayer.outgoingEdges;
             // explore edges leaving this vertex
-            edgeList.forEach(eidx -> {
-                edge.seek(eidx);
-                State s1 = edge.traverse(s0, streetMode, profileRequest, turnCostCalculator, travelTimeCalculator);
-                if (s1 != null && s1.distance <= distanceLimitMm && s1.getDurationSeconds() < tmpTimeLimitSeconds) {
-                    if (!isDominated(s1)) {
+            for (int i = 0, nEdgesAtVertex = edgeLists.size(s0.vertex); i < nEdgesAtVertex; i++) {
+                edge.seek(edgeLists.get(s0.vertex, i));
+                if (!edge.traverse(s0, s1, streetMode, profileRequest, turnCostCalculator, travelTimeCalculator)) continue;
+                if (s1.distance > distanceLimitMm || s1.getDurationSeconds() >= tmpTimeLimitSeconds) continue;
+                if (s1.turnRestrictions == null) {
+                    updateLabel(s1, labelValues, s0Edge, s0);
+                } else {
+                    // States inside turn restrictions are kept as objects, which need a real back state.
+                    State restrictedState = s1.clone();
+                    if (s0Edge >= 0) restrictedState.backState = materialize(s0Edge);
+                    if (!isDominated(restrictedState)) {
                         // Calculate the heuristic (which involves a square root) only when the state is retained.
-                        s1.heuristic = calcHeuristic(s1);
-                        bestStatesAtEdge.put(s1.backEdge, s1);
-                        queue.add(s1);
+                        restrictedState.heuristic = calcHeuristic(restrictedState.vertex);
+                        addState(restrictedState);
                     }
                 }
-                return true; // Iteration over the edge list should continue.
-            });
+            }
         }
         if (DEBUG_OUTPUT) {
             debugPrintStream.close();
@@ -588,6 +751,298 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /**
+     * @return a contraction hierarchy that can be used for this search in place of a plain search, or null if there is
+     * none. The hierarchy finds the best paths to all edges at once rather than one by one in order of increasing
+     * cost, so it can't be used when an arbitrary visitor is watching the search progress. Stop and flag searches only
+     * look at the states at some vertices, which are shown to their visitor once the hierarchy search is done (see
+     * visitReachedStates). Distance limits are only used in walk searches, and are not supported.
+     *
+     * A time limit can only be used when minimizing duration. A plain search minimizing weight prunes states that
+     * exceed the time limit as it goes, so it may reach a vertex by a faster path of higher weight, while the hierarchy
+     * only finds the path of least weight and would then drop the vertex if that path exceeds the limit.
+     */
+    private StreetHierarchy findStreetHierarchy () {
+        if (!useStreetHierarchy || profileRequest.reverseSearch || distanceLimitMeters > 0) return null;
+        if (timeLimitSeconds > 0 && quantityToMinimize != State.RoutingVariable.DURATION_SECONDS) return null;
+        if (routingVisitor != null && !transitStopSearch && flagSearch == null) return null;
+        // The hierarchy finds paths to every edge, a search guided by landmarks only explores towards the destination.
+        if (landmarkBound != null) return null;
+        // The hierarchy was built with the default travel times.
+        if (travelTimeCalculator.getClass() != EdgeStore.DefaultTravelTimeCalculator.class) return null;
+        StreetHierarchy hierarchy = streetLayer.getStreetHierarchy(streetMode, quantityToMinimize);
+        if (hierarchy == null || !hierarchy.isApplicable(streetLayer, profileRequest)) return null;
+        return hierarchy;
+    }
+
+    /**
+     * @return a lower bound from landmarks on the remaining cost to the destination, to be used as the A* heuristic,
+     * or null if there is no destination or no landmarks that can bound this search. Like the hierarchies, the
+     * landmarks were built with the default travel times and are not valid once the edges have changed.
+     */
+    private Landmarks.Bound findLandmarkBound () {
+        if (!useLandmarks || destinationSplit == null) return null;
+        if (travelTimeCalculator.getClass() != EdgeStore.DefaultTravelTimeCalculator.class) return null;
+        Landmarks landmarks = streetLayer.getLandmarks(streetMode);
+        if (landmarks == null || !landmarks.isApplicable(streetLayer)) return null;
+        TIntList originVertices = new TIntArrayList();
+        for (State state : queuedStates) {
+            if (state != null) originVertices.add(state.vertex);
+        }
+        int[] destinationVertices = new int[] { destinationSplit.vertex0, destinationSplit.vertex1 };
+        return landmarks.bound(originVertices.toArray(), destinationVertices, profileRequest.reverseSearch,
+                quantityToMinimize, profileRequest);
+    }
+
+    /**
+     * Find the best states at the ends of all edges using a contraction hierarchy rather than a plain search (see
+     * StreetHierarchy for how this works). States at edges in the core of the hierarchy are all kept as objects, and
+     * all other states are kept as labels. The search has three steps: the first edge is traversed from each origin
+     * state with Edge.traverse, then a single search explores the arcs going up the hierarchy and the arcs within the
+     * core, and finally every edge outside the core is visited in descending order of rank to find its best state via
+     * the arcs coming down into it.
+     *
+     * Labels reached through a shortcut point back to the edge just before the end of the shortcut. That edge has the
+     * same best path as the start of the shortcut path, as a best path to an edge outside the core does not depend
+     * on how that edge was reached, so State chains can be rebuilt from the labels as usual.
+     */
+    private void routeWithHierarchy (StreetHierarchy hierarchy, int timeLimitSeconds) {
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        State labelState = new State(-1, -1, streetMode);
+        State s1 = new State(-1, -1, streetMode);
+        StreetHierarchy.Arcs up = hierarchy.up;
+        StreetHierarchy.Arcs core = hierarchy.core;
+        StreetHierarchy.Arcs down = hierarchy.down;
+
+        // Core states reached from a label or through a shortcut, with the edge just before them on their path. Their
+        // back state can only be built once all the labels are final, until then it is a placeholder.
+        List<State> unlinkedStates = new ArrayList<>();
+        TIntList unlinkedBackEdges = new TIntArrayList();
+
+        if (queuedStates.isEmpty()) {
+            LOG.warn("Routing without first setting an origin, no search will happen.");
+        }
+
+        // The first edge is traversed exactly as in a plain search, because the rules are slightly different at the
+        // origin (e.g. an origin may be connected to the streets by two link edges in a row).
+        List<State> originStates = new ArrayList<>(queuedStates);
+        queuedStates.clear();
+        for (State origin : originStates) {
+            for (int i = 0, nEdgesAtVertex = streetLayer.outgoingEdges.size(origin.vertex); i < nEdgesAtVertex; i++) {
+                edge.seek(streetLayer.outgoingEdges.get(origin.vertex, i));
+                if (!edge.traverse(origin, s1, streetMode, profileRequest, turnCostCalculator, travelTimeCalculator)) continue;
+                if (s1.getDurationSeconds() >= timeLimitSeconds) continue;
+                if (hierarchy.isCore(s1.backEdge) || s1.turnRestrictions != null) {
+                    addCoreState(s1.clone());
+                } else if (setLabel(s1, labelValues, -1, origin)) {
+                    workspace.queue.insertOrDecrease(s1.backEdge, labelValues[s1.backEdge]);
+                }
+            }
+        }
+
+        // Explore upward from the labels and within the core. There is no goal direction, every edge is reached.
+        while (!workspace.queue.isEmpty()) {
+            int item = workspace.queue.poll();
+            if (item < nEdges) {
+                State s0 = loadLabel(item, labelState);
+                for (int arc = up.offsets[item]; arc < up.offsets[item + 1]; arc++) {
+                    int target = up.nodes[arc];
+                    followArc(hierarchy, s0, up, arc, target, s1);
+                    if (s1.getDurationSeconds() >= timeLimitSeconds) continue;
+                    if (hierarchy.isCore(target)) {
+                        // The label is outside the core, so the only restrictions that apply are those starting here.
+                        State coreState = s1.clone();
+                        coreState.backState = labelBackState;
+                        streetLayer.edgeStore.startTurnRestriction(s0.streetMode, false, coreState);
+                        if (addCoreState(coreState)) {
+                            unlinkedStates.add(coreState);
+                            unlinkedBackEdges.add(up.lastNodes[arc]);
+                        }
+                    } else if (setLabel(s1, labelValues, up.lastNodes[arc], null)) {
+                        workspace.queue.insertOrDecrease(target, labelValues[target]);
+                    }
+                }
+            } else {
+                State s0 = queuedStates.set(item - nEdges, null);
+                if (!bestStatesAtEdge.get(s0.backEdge).contains(s0)) continue;
+                int node = s0.backEdge;
+                boolean boundByOnlyRestriction = isBoundByOnlyRestriction(s0);
+                for (int arc = core.offsets[node]; arc < core.offsets[node + 1]; arc++) {
+                    int target = core.nodes[arc];
+                    if (core.isOriginal(arc, node)) {
+                        // A single edge traversal within the core, which is subject to turn restrictions.
+                        edge.seek(target);
+                        if (!edge.traverse(s0, s1, streetMode, profileRequest, turnCostCalculator, travelTimeCalculator)) continue;
+                        if (s1.getDurationSeconds() >= timeLimitSeconds) continue;
+                        addCoreState(s1.clone());
+                    } else if (!boundByOnlyRestriction) {
+                        // A shortcut leaves the core and comes back, exiting any restrictions the state was in.
+                        followArc(hierarchy, s0, core, arc, target, s1);
+                        if (s1.getDurationSeconds() >= timeLimitSeconds) continue;
+                        State coreState = s1.clone();
+                        streetLayer.edgeStore.startTurnRestriction(s0.streetMode, false, coreState);
+                        if (addCoreState(coreState)) {
+                            unlinkedStates.add(coreState);
+                            unlinkedBackEdges.add(core.lastNodes[arc]);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Sweep down through every edge outside the core. All the edges with arcs coming down into an edge have a
+        // higher rank, so their states are already final when it is reached.
+        int[] contractionOrder = hierarchy.contractionOrder;
+        for (int rank = contractionOrder.length - 1; rank >= 0; rank--) {
+            int node = contractionOrder[rank];
+            int bestValue = workspace.hasLabel(node) ? labelValues[node] : Integer.MAX_VALUE;
+            int bestArc = -1;
+            // The core state the best arc leaves from, or null if it leaves from a label.
+            State bestCoreState = null;
+            for (int arc = down.offsets[node]; arc < down.offsets[node + 1]; arc++) {
+                int source = down.nodes[arc];
+                int arcValue = down.getValue(arc, quantityToMinimize);
+                if (hierarchy.isCore(source)) {
+                    if (!workspace.hasStates(source)) continue;
+                    for (State state : bestStatesAtEdge.get(source)) {
+                        // Leaving the core means turning onto an edge that is not the one an "only" restriction requires.
+                        if (isBoundByOnlyRestriction(state)) continue;
+                        int value = state.getRoutingVariable(quantityToMinimize) + arcValue;
+                        if (value < bestValue &&
+                                state.getDurationSeconds() + down.durationSeconds[arc] < timeLimitSeconds) {
+                            bestValue = value;
+                            bestArc = arc;
+                            bestCoreState = state;
+                        }
+                    }
+                } else if (workspace.hasLabel(source)) {
+                    int value = labelValues[source] + arcValue;
+                    if (value < bestValue &&
+                            workspace.durationSecondsAtEdge[source] + down.durationSeconds[arc] < timeLimitSeconds) {
+                        bestValue = value;
+                        bestArc = arc;
+                        bestCoreState = null;
+                    }
+                }
+            }
+            if (bestArc < 0) continue;
+            int source = down.nodes[bestArc];
+            State s0 = bestCoreState != null ? bestCoreState : loadLabel(source, labelState);
+            followArc(hierarchy, s0, down, bestArc, node, s1);
+            if (bestCoreState != null && down.isOriginal(bestArc, source)) {
+                setLabel(s1, labelValues, -1, bestCoreState);
+            } else {
+                setLabel(s1, labelValues, down.lastNodes[bestArc], null);
+            }
+        }
+
+        // Now that all labels are final, point labels and core states to the states just before them on their paths.
+        // Where that edge has no label, the state before it on the path is an object (the origin).
+        for (int i = 0; i < workspace.labeledEdges.size(); i++) {
+            int labeledEdge = workspace.labeledEdges.get(i);
+            int backEdge = workspace.backEdgeAtEdge[labeledEdge];
+            if (backEdge >= 0 && !workspace.hasLabel(backEdge)) {
+                workspace.backEdgeAtEdge[labeledEdge] = -1;
+                backStateAtEdge.put(labeledEdge, getBestObjectState(backEdge));
+            }
+        }
+        for (int i = 0; i < unlinkedStates.size(); i++) {
+            int backEdge = unlinkedBackEdges.get(i);
+            unlinkedStates.get(i).backState =
+                    workspace.hasLabel(backEdge) ? materialize(backEdge) : getBestObjectState(backEdge);
+        }
+    }
+
+    /**
+     * After a search using a street hierarchy, show the stop or flag visitor the best states at the vertices it is
+     * looking for, in order of increasing cost as a plain search would have, until the visitor would stop the search.
+     * It then finds the same stops or vertices as with a plain search, except perhaps among those reached at equal
+     * cost. Only the states at those vertices are built, as visiting every edge would be as slow as a plain search.
+     */
+    private void visitReachedStates () {
+        TIntIntMap stopForStreetVertex = streetLayer.parentNetwork.transitLayer.stopForStreetVertex;
+        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor();
+        IntPredicate isVisited = transitStopSearch ? stopForStreetVertex::containsKey : v -> {
+            vertex.seek(v);
+            return vertex.getFlag(flagSearch);
+        };
+        // The StopVisitor only looks at the values in the state it is given, other visitors may keep it or follow its path.
+        boolean visitorNeedsPath = !(routingVisitor instanceof StopVisitor);
+
+        List<State> reachedStates = new ArrayList<>();
+        for (int i = 0; i < workspace.labeledEdges.size(); i++) {
+            int labeledEdge = workspace.labeledEdges.get(i);
+            if (!isVisited.test(getLabelVertex(labeledEdge))) continue;
+            reachedStates.add(visitorNeedsPath ? materialize(labeledEdge) : loadLabel(labeledEdge, new State(-1, -1, streetMode)));
+        }
+        // The origin states are also kept here, at negative edge indexes.
+        bestStatesAtEdge.forEachEntry((eidx, states) -> {
+            for (State state : states) {
+                if (isVisited.test(state.vertex)) reachedStates.add(state);
+            }
+            return true; // continue iteration
+        });
+
+        reachedStates.sort(Comparator.comparingInt(state -> state.getRoutingVariable(quantityToMinimize)));
+        for (State state : reachedStates) {
+            routingVisitor.visitVertex(state);
+            if (routingVisitor.shouldBreakSearch()) {
+                LOG.debug("{} routing visitor stopped search", routingVisitor.getClass().getSimpleName());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write into s1 the state reached by following the given hierarchy arc from s0 to the target edge. Turn
+     * restrictions are not carried over or started.
+     */
+    private State followArc (StreetHierarchy hierarchy, State s0, StreetHierarchy.Arcs arcs, int arc, int target, State s1) {
+        s1.reset(getLabelVertex(target), target, s0);
+        s1.weight += arcs.weights[arc];
+        s1.incrementTimeInSeconds(arcs.durationSeconds[arc]);
+        s1.distance += arcs.distancesMillimeters[arc];
+        s1.streetMode = hierarchy.isWalking(target) ? StreetMode.WALK : streetMode;
+        return s1;
+    }
+
+    /** Add a state in the core of a street hierarchy as an object state and queue it, unless it is dominated. */
+    private boolean addCoreState (State state) {
+        if (isDominated(state)) return false;
+        addState(state);
+        return true;
+    }
+
+    /** @return true if the given state is inside an "only" turn restriction, and so can only turn onto one edge. */
+    private boolean isBoundByOnlyRestriction (State state) {
+        if (state.streetMode == StreetMode.CAR && streetLayer.edgeStore.startsTabulatedOnlyRestriction(state.backEdge)) {
+            return true;
+        }
+        if (state.turnRestrictions == null) return false;
+        for (TIntIntIterator it = state.turnRestrictions.iterator(); it.hasNext(); ) {
+            it.advance();
+            if (streetLayer.turnRestrictions.get(it.key()).only) return true;
+        }
+        return false;
+    }
+
+    /** @return the object state at the end of the given edge with the lowest value of the quantity to minimize. */
+    private State getBestObjectState (int edge) {
+        State best = null;
+        for (State state : bestStatesAtEdge.get(edge)) {
+            if (best == null || state.getRoutingVariable(quantityToMinimize) < best.getRoutingVariable(quantityToMinimize)) {
+                best = state;
+            }
+        }
+        if (best == null) {
+            // Every edge on a best path has a state, so this should not happen. Start the path here rather than fail.
+            LOG.warn("No state found at edge {} on the path to another edge.", edge);
+            best = new State(getLabelVertex(edge), edge, streetMode);
+        }
+        return best;
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
@@ -610,13 +1065,141 @@ public class StreetRouter {
         return false; // Nothing existing has dominated this new state: it's non-dominated.
     }
 
+    /**
+     * Record a state that is not inside a turn restriction as the label at the end of its back edge, and queue it to
+     * be explored, unless the label or an object state already there is at least as good.
+     * @param s1 the new state, which can be a scratch state as its values are copied into the label arrays.
+     * @param labelValues the label array for the quantity to minimize.
+     * @param s0Edge the edge holding the label s1 was reached from, or -1 if it was reached from an object state.
+     * @param s0 the object state s1 was reached from, if s0Edge is -1.
+     */
+    private void updateLabel (State s1, int[] labelValues, int s0Edge, State s0) {
+        if (setLabel(s1, labelValues, s0Edge, s0)) {
+            // Calculate the heuristic (which involves a square root) only when the label is retained.
+            workspace.queue.insertOrDecrease(s1.backEdge, s1.getRoutingVariable(quantityToMinimize) + calcHeuristic(s1.vertex));
+        }
+    }
+
+    /**
+     * Record a state that is not inside a turn restriction as the label at the end of its back edge, as in
+     * updateLabel, but without queueing it.
+     * @return true if the label was recorded, false if it was no better than the states already at that edge.
+     */
+    private boolean setLabel (State s1, int[] labelValues, int s0Edge, State s0) {
+        int edge = s1.backEdge;
+        int value = s1.getRoutingVariable(quantityToMinimize);
+        // As in dominates(), an existing label with the same value wins.
+        if (workspace.hasLabel(edge) && labelValues[edge] <= value) return false;
+        // This also removes any object states at this edge that are dominated by the new label.
+        if (workspace.hasStates(edge) && isDominated(s1)) return false;
+        workspace.setHasLabel(edge);
+        workspace.weightAtEdge[edge] = s1.weight;
+        workspace.durationSecondsAtEdge[edge] = s1.durationSeconds;
+        workspace.durationFromOriginSecondsAtEdge[edge] = s1.durationFromOriginSeconds;
+        workspace.distanceMillimetersAtEdge[edge] = s1.distance;
+        workspace.walkingAtEdge.set(edge, s1.streetMode != streetMode);
+        workspace.backEdgeAtEdge[edge] = s0Edge;
+        if (s0Edge < 0) backStateAtEdge.put(edge, s0);
+        if (!materializedStateAtEdge.isEmpty()) materializedStateAtEdge.remove(edge);
+        return true;
+    }
+
+    /** Add an object state to bestStatesAtEdge and to the queue, with the heuristic already set on the state. */
+    private void addState (State state) {
+        workspace.queue.insertOrDecrease(nEdges + queuedStates.size(), state.getRoutingVariable(quantityToMinimize) + state.heuristic);
+        addOriginState(state);
+    }
+
+    /** Add an object state to bestStatesAtEdge and queuedStates. It will be put in the queue when route() is called. */
+    private void addOriginState (State state) {
+        bestStatesAtEdge.put(state.backEdge, state);
+        if (state.backEdge >= 0) workspace.setHasStates(state.backEdge);
+        queuedStates.add(state);
+    }
+
+    /** @return the label array holding the given routing variable. */
+    private int[] getLabelValues (State.RoutingVariable variable) {
+        if (variable == null) throw new NullPointerException("Routing variable is null");
+
+        switch (variable) {
+            case DURATION_SECONDS:
+                return workspace.durationSecondsAtEdge;
+            case WEIGHT:
+                return workspace.weightAtEdge;
+            case DISTANCE_MILLIMETERS:
+                return workspace.distanceMillimetersAtEdge;
+            default:
+                throw new IllegalStateException("Unknown routing variable");
+        }
+    }
+
+    /** @return the vertex at the end of the given edge in the direction of the search. */
+    private int getLabelVertex (int edge) {
+        labelEdge.seek(edge);
+        return profileRequest.reverseSearch ? labelEdge.getFromVertex() : labelEdge.getToVertex();
+    }
+
+    /**
+     * Copy the label at the end of the given edge into a scratch state, so that the edges leaving it can be traversed.
+     * The scratch state's back state is a placeholder, so it must not be kept or used to follow the path.
+     */
+    private State loadLabel (int edge, State state) {
+        state.vertex = getLabelVertex(edge);
+        state.backEdge = edge;
+        state.backState = labelBackState;
+        state.weight = workspace.weightAtEdge[edge];
+        state.durationSeconds = workspace.durationSecondsAtEdge[edge];
+        state.durationFromOriginSeconds = workspace.durationFromOriginSecondsAtEdge[edge];
+        state.distance = workspace.distanceMillimetersAtEdge[edge];
+        state.streetMode = workspace.walkingAtEdge.get(edge) ? StreetMode.WALK : streetMode;
+        state.turnRestrictions = null;
+        return state;
+    }
+
+    /**
+     * Build a chain of State objects for the path to the label at the end of the given edge, for callers that need a
+     * path or a state they can keep. Each label only records the edge of the previous label, and there can't be
+     * cycles because every edge traversal strictly increases the quantity to minimize. States already built for a
+     * label are reused until it changes.
+     */
+    private State materialize (int edge) {
+        State state = materializedStateAtEdge.get(edge);
+        if (state != null) return state;
+        // Walk back along the path until reaching an object state or a label that has already been built, then build
+        // the chain forward. This is a loop rather than a recursion because paths can be thousands of edges long.
+        TIntList path = new TIntArrayList();
+        for (int e = edge; state == null; ) {
+            path.add(e);
+            int backEdge = workspace.backEdgeAtEdge[e];
+            if (backEdge < 0) {
+                state = backStateAtEdge.get(e);
+            } else {
+                state = materializedStateAtEdge.get(backEdge);
+                e = backEdge;
+            }
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            int e = path.get(i);
+            State s1 = new State(getLabelVertex(e), e, state);
+            s1.weight = workspace.weightAtEdge[e];
+            s1.durationSeconds = workspace.durationSecondsAtEdge[e];
+            s1.durationFromOriginSeconds = workspace.durationFromOriginSecondsAtEdge[e];
+            s1.distance = workspace.distanceMillimetersAtEdge[e];
+            s1.streetMode = workspace.walkingAtEdge.get(e) ? StreetMode.WALK : streetMode;
+            materializedStateAtEdge.put(e, s1);
+            state = s1;
+        }
+        return state;
+    }
+
     /**
      * Provide an underestimate on the remaining distance/weight/time to the destination (the A* heuristic).
      */
-    private int calcHeuristic (State state) {
+    private int calcHeuristic (int vertexIndex) {
         // If there's no destination, there's no goal direction. Zero is always a valid underestimate.
         if (destinationSplit == null) return 0;
-        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(state.vertex);
+        if (landmarkBound != null) return landmarkBound.lowerBound(vertexIndex);
+        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(vertexIndex);
         int deltaLatFixed = destinationSplit.fixedLat - vertex.getFixedLat();
         int deltaLonFixed = destinationSplit.fixedLon - vertex.getFixedLon();
         double millimetersX = millimetersPerUnitLonFixed * deltaLonFixed;
@@ -647,9 +1230,9 @@ public class StreetRouter {
         // Generally, a state with turn restrictions cannot dominate another state and cannot be dominated.
         // However, if we make all turn-restricted states strictly incomparable we can get infinite loops with
         // adjacent turn restrictions, see #88.
-        // So we make an exception that states with exactly the same turn restrictions dominate one another.
-        // In practice, this means once we have a state with a certain set of turn restrictions, we don't allow any
-        // more at the same location.
+        // So we make an exception: states with exactly the same turn restrictions are comparable, and the one with the
+        // lower value of the quantity to minimize dominates the other. Ties go to the existing state as above, so once
+        // we have a state with a certain set of turn restrictions, only a strictly better one can replace it.
         if (s1.turnRestrictions != null && s2.turnRestrictions != null &&
             s1.turnRestrictions.size() == s2.turnRestrictions.size()) {
                 boolean[] same = new boolean[]{true}; // Trick to circumvent java "effectively final" ridiculousness.
@@ -657,9 +1240,9 @@ public class StreetRouter {
                     if (!s2.turnRestrictions.containsKey(ridx) || s2.turnRestrictions.get(ridx) != pos) same[0] = false;
                     return same[0]; // Continue iteration until a difference is discovered, then bail out.
                 });
-                if (same[0]) return true; // s1 dominates s2 because it has the same turn restrictions.
-                // TODO shouldn't we add a test to see which one has the lower dominance variable, just to make this more principled?
-                // As in: states are comparable only when they have the same set of turn restrictions.
+                if (same[0]) {
+                    return s1.getRoutingVariable(quantityToMinimize) <= s2.getRoutingVariable(quantityToMinimize);
+                }
         }
         // At least one of the states has turn restrictions. Neither dominates the other.
         return false;
@@ -670,13 +1253,35 @@ public class StreetRouter {
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
-        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
-        if (states.isEmpty()) {
-            return null; // Unreachable
-        }
         // Get the lowest weight, even if it's in the middle of a turn restriction.
-        return states.stream().reduce((s0, s1) ->
-                s0.getRoutingVariable(quantityToMinimize) < s1.getRoutingVariable(quantityToMinimize) ? s0 : s1).get();
+        State ret = null;
+        for (State state : bestStatesAtEdge.get(edgeIndex)) {
+            if (ret == null || ret.getRoutingVariable(quantityToMinimize) >= state.getRoutingVariable(quantityToMinimize)) {
+                ret = state;
+            }
+        }
+        if (hasLabel(edgeIndex) && (ret == null ||
+                ret.getRoutingVariable(quantityToMinimize) >= getLabelValues(quantityToMinimize)[edgeIndex])) {
+            ret = materialize(edgeIndex);
+        }
+        return ret; // null if unreachable
+    }
+
+    /** @return all the states at the end of the given edge, including the label if there is one. */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
+        if (!hasLabel(edgeIndex)) return states;
+        List<State> ret = new ArrayList<>(states);
+        ret.add(materialize(edgeIndex));
+        return ret;
+    }
+
+    private boolean hasLabel (int edgeIndex) {
+        return edgeIndex >= 0 && edgeIndex < nEdges && workspace.hasLabel(edgeIndex);
+    }
+
+    private boolean hasStates (int edgeIndex) {
+        return edgeIndex >= 0 && edgeIndex < nEdges && workspace.hasStates(edgeIndex);
     }
 
     /**
@@ -684,25 +1289,63 @@ public class StreetRouter {
      * turn costs/restrictions during propagation.
      */
     public State getStateAtVertex (int vertexIndex) {
-        State ret = null;
-
-        TIntList edgeList;
-        if (profileRequest.reverseSearch) {
-            edgeList = streetLayer.outgoingEdges.get(vertexIndex);
-        } else {
-            edgeList = streetLayer.incomingEdges.get(vertexIndex);
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        int bestValue = Integer.MAX_VALUE;
+        // The best state is either the label on bestLabelEdge or, if that is -1, the object bestState.
+        int bestLabelEdge = -1;
+        State bestState = null;
+
+        EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.outgoingEdges : streetLayer.incomingEdges;
+
+        for (int i = 0, nEdgesAtVertex = edgeLists.size(vertexIndex); i < nEdgesAtVertex; i++) {
+            int eidx = edgeLists.get(vertexIndex, i);
+            if (hasLabel(eidx) && labelValues[eidx] < bestValue) {
+                bestValue = labelValues[eidx];
+                bestLabelEdge = eidx;
+                bestState = null;
+            }
+            if (hasStates(eidx)) {
+                for (State state : bestStatesAtEdge.get(eidx)) {
+                    if (state.getRoutingVariable(quantityToMinimize) < bestValue) {
+                        bestValue = state.getRoutingVariable(quantityToMinimize);
+                        bestLabelEdge = -1;
+                        bestState = state;
+                    }
+                }
+            }
         }
 
-        for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            int eidx = it.next();
-
-            State state = getStateAtEdge(eidx);
-
-            if (state == null) continue;
+        // Only build a State chain for the label that won.
+        return bestLabelEdge >= 0 ? materialize(bestLabelEdge) : bestState;
+    }
 
-            if (ret == null) ret = state;
-            else if (ret.getRoutingVariable(quantityToMinimize) > state.getRoutingVariable(quantityToMinimize)) {
-                ret = state;
+    /**
+     * Find the best state at a vertex as in getStateAtVertex, but return one of its values rather than the state
+     * itself. This avoids rebuilding the path to the state, so should be used when evaluating many vertices.
+     * @param variable the value to return, which does not need to be the quantity to minimize.
+     * @return the value in the best state at the vertex, or Integer.MAX_VALUE if the vertex was not reached.
+     */
+    public int getValueAtVertex (int vertexIndex, State.RoutingVariable variable) {
+        int[] labelValues = getLabelValues(quantityToMinimize);
+        int[] returnValues = getLabelValues(variable);
+        int bestValue = Integer.MAX_VALUE;
+        int ret = Integer.MAX_VALUE;
+
+        EdgeLists edgeLists = profileRequest.reverseSearch ? streetLayer.outgoingEdges : streetLayer.incomingEdges;
+
+        for (int i = 0, nEdgesAtVertex = edgeLists.size(vertexIndex); i < nEdgesAtVertex; i++) {
+            int eidx = edgeLists.get(vertexIndex, i);
+            if (hasLabel(eidx) && labelValues[eidx] < bestValue) {
+                bestValue = labelValues[eidx];
+                ret = returnValues[eidx];
+            }
+            if (hasStates(eidx)) {
+                for (State state : bestStatesAtEdge.get(eidx)) {
+                    if (state.getRoutingVariable(quantityToMinimize) < bestValue) {
+                        bestValue = state.getRoutingVariable(quantityToMinimize);
+                        ret = state.getRoutingVariable(variable);
+                    }
+                }
             }
         }
 
@@ -710,8 +1353,7 @@ public class StreetRouter {
     }
 
     public int getTravelTimeToVertex (int vertexIndex) {
-        State state = getStateAtVertex(vertexIndex);
-        return state != null ? state.durationSeconds : Integer.MAX_VALUE;
+        return getValueAtVertex(vertexIndex, State.RoutingVariable.DURATION_SECONDS);
     }
 
     /**
@@ -736,7 +1378,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -768,7 +1410,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge + 1, s), profileRequest.reverseSearch))
                     .map(s -> {
                         State ret = new State(-1, split.edge + 1, s);
@@ -845,6 +1487,14 @@ public class StreetRouter {
         public TIntIntMap turnRestrictions;
 
         public State(int atVertex, int viaEdge, State backState) {
+            reset(atVertex, viaEdge, backState);
+        }
+
+        /**
+         * Overwrite every field of this state as if it had just been made by the constructor with the same arguments.
+         * This allows the router to reuse scratch states instead of creating one for every edge it explores.
+         */
+        void reset (int atVertex, int viaEdge, State backState) {
             this.vertex = atVertex;
             this.backEdge = viaEdge;
             //Note here it can happen that back state has edge with negative index
@@ -856,6 +1506,10 @@ public class StreetRouter {
             this.durationFromOriginSeconds = backState.durationFromOriginSeconds;
             this.weight = backState.weight;
             this.idx = backState.idx+1;
+            this.streetMode = null;
+            this.isBikeShare = false;
+            this.heuristic = 0;
+            this.turnRestrictions = null;
         }
 
         public State(int atVertex, int viaEdge, StreetMode streetMode) {
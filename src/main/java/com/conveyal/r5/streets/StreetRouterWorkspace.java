@@ -0,0 +1,123 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.util.IndexedIntMinHeap;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The label arrays and priority queue used by a StreetRouter, which are sized to the number of edges in the street
+ * layer. Allocating and zeroing them for every search costs more than the search itself when searches are small, as
+ * they are when building stop trees or finding transfers, so each thread keeps one workspace and lends it to a router
+ * until the router is released. Instead of clearing the arrays between searches, every label is stamped with the
+ * search epoch in which it was written, and advancing the epoch invalidates all of them at once. Only the edges that
+ * were actually labeled need to be visited to read out the results.
+ *
+ * The pooled workspace is held through a SoftReference so it can be reclaimed if memory runs low, as it can be large
+ * on big networks. A workspace grows when it is reset for a street layer with more edges than it can hold, which
+ * happens when a scenario adds edges to a copy of the base network.
+ */
+class StreetRouterWorkspace {
+
+    /** The workspace not currently lent to any router on each thread, if any. */
+    private static final ThreadLocal<SoftReference<StreetRouterWorkspace>> pool = new ThreadLocal<>();
+
+    /** The epoch of the current search. Labels are only valid if stamped with this epoch. */
+    private int epoch = 0;
+
+    /** For each edge, the epoch in which its label was last written. */
+    private int[] labelEpochAtEdge = new int[0];
+
+    /** For each edge, the epoch in which an object state was last stored at the end of that edge. */
+    private int[] statesEpochAtEdge = new int[0];
+
+    /** The edges that have labels in the current search, in the order they were first labeled. */
+    final TIntList labeledEdges = new TIntArrayList();
+
+    int[] weightAtEdge = new int[0];
+
+    int[] durationSecondsAtEdge = new int[0];
+
+    int[] durationFromOriginSecondsAtEdge = new int[0];
+
+    int[] distanceMillimetersAtEdge = new int[0];
+
+    /** The edge holding the previous label on the path, or -1 if the previous state is an object state. */
+    int[] backEdgeAtEdge = new int[0];
+
+    /** Set for every edge where the label is walking a bike in a BICYCLE search. Written with every label. */
+    final BitSet walkingAtEdge = new BitSet();
+
+    final IndexedIntMinHeap queue = new IndexedIntMinHeap(0);
+
+    /**
+     * Take this thread's pooled workspace if there is one, or create a new one, and reset it for a search on a street
+     * layer with the given number of edges. It must be given back with release() when its results are no longer
+     * needed, otherwise it is simply garbage collected and the next router on this thread will make a new one.
+     */
+    static StreetRouterWorkspace acquire (int nEdges) {
+        SoftReference<StreetRouterWorkspace> reference = pool.get();
+        StreetRouterWorkspace workspace = reference == null ? null : reference.get();
+        if (workspace == null) {
+            workspace = new StreetRouterWorkspace();
+        } else {
+            pool.remove();
+        }
+        workspace.reset(nEdges);
+        return workspace;
+    }
+
+    /** Return a workspace to this thread's pool. It must not be used again by the router that acquired it. */
+    static void release (StreetRouterWorkspace workspace) {
+        workspace.queue.clear();
+        pool.set(new SoftReference<>(workspace));
+    }
+
+    /** Invalidate all labels from the previous search, and make sure the arrays can hold the given number of edges. */
+    void reset (int nEdges) {
+        if (labelEpochAtEdge.length < nEdges) {
+            // Leave some room for scenarios to add edges without reallocating everything again.
+            int capacity = nEdges + nEdges / 16;
+            labelEpochAtEdge = Arrays.copyOf(labelEpochAtEdge, capacity);
+            statesEpochAtEdge = Arrays.copyOf(statesEpochAtEdge, capacity);
+            weightAtEdge = new int[capacity];
+            durationSecondsAtEdge = new int[capacity];
+            durationFromOriginSecondsAtEdge = new int[capacity];
+            distanceMillimetersAtEdge = new int[capacity];
+            backEdgeAtEdge = new int[capacity];
+        }
+        if (epoch == Integer.MAX_VALUE) {
+            // After two billion searches the epoch wraps around, clear the stamps so no stale label looks current.
+            Arrays.fill(labelEpochAtEdge, 0);
+            Arrays.fill(statesEpochAtEdge, 0);
+            epoch = 0;
+        }
+        epoch++;
+        labeledEdges.clear();
+        queue.clear();
+    }
+
+    boolean hasLabel (int edge) {
+        return labelEpochAtEdge[edge] == epoch;
+    }
+
+    /** Mark the given edge as having a label in the current search. Its values must be written separately. */
+    void setHasLabel (int edge) {
+        if (labelEpochAtEdge[edge] != epoch) {
+            labelEpochAtEdge[edge] = epoch;
+            labeledEdges.add(edge);
+        }
+    }
+
+    boolean hasStates (int edge) {
+        return statesEpochAtEdge[edge] == epoch;
+    }
+
+    void setHasStates (int edge) {
+        statesEpochAtEdge[edge] = epoch;
+    }
+
+}
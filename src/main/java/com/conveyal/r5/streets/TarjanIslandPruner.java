@@ -2,7 +2,6 @@ package com.conveyal.r5.streets;
 
 import com.conveyal.r5.profile.StreetMode;
 import gnu.trove.iterator.TIntIterator;
-import gnu.trove.list.TIntList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import gnu.trove.stack.TIntStack;
@@ -275,7 +274,7 @@ public class TarjanIslandPruner {
 
     /** Loop over every outgoing edge for a particular mode */
     public void forEachOutgoingEdge (int vertex, Consumer<EdgeStore.Edge> consumer) {
-        streets.outgoingEdges.get(vertex).forEach(eidx -> {
+        streets.outgoingEdges.forEach(vertex, eidx -> {
             edgeCursor.seek(eidx);
 
             // filter by mode
@@ -303,8 +302,8 @@ public class TarjanIslandPruner {
 
     /** Remove the permissions around a vertex for the desired mode. Returns the number of edges affected */
     public void removePermissionsAroundVertex (int vertex) {
-        for (TIntList edgeList : new TIntList[] { streets.outgoingEdges.get(vertex), streets.incomingEdges.get(vertex) }) {
-            edgeList.forEach(eidx -> {
+        for (EdgeLists edgeLists : new EdgeLists[] { streets.outgoingEdges, streets.incomingEdges }) {
+            edgeLists.forEach(vertex, eidx -> {
                 edgeCursor.seek(eidx);
                 switch (mode) {
                     case CAR:
@@ -27,23 +27,35 @@ public class TurnCostCalculator {
 
     public int computeTurnCost (int fromEdge, int toEdge, StreetMode streetMode) {
         if (streetMode == StreetMode.CAR) {
-            double angle = calculateNewTurnAngle(fromEdge, toEdge);
-
-            if (angle < 27)
-                return STRAIGHT_ON;
-            else if (angle < 153)
-                return driveOnRight ? LEFT_TURN : RIGHT_TURN;
-            else if (angle < 207)
-                return U_TURN;
-            else if (angle < 333)
-                return driveOnRight ? RIGHT_TURN : LEFT_TURN;
-            else
-                return STRAIGHT_ON;
+            // Use the precomputed cost if the network has a turn table covering this turn.
+            TurnTable turnTable = layer.edgeStore.turnTable;
+            if (turnTable != null && turnTable.driveOnRight == driveOnRight) {
+                int cell = layer.edgeStore.getTurnTableCell(fromEdge, toEdge);
+                if (cell != TurnTable.NOT_TABULATED) return TurnTable.turnCost(cell);
+            }
+            return turnCostForAngle(calculateNewTurnAngle(fromEdge, toEdge));
         }
 
         return 0;
     }
 
+    /**
+     * @param angle the turn angle in degrees from 0-360, as returned by calculateTurnAngle
+     * @return the cost of a car turn through the given angle, in seconds
+     */
+    public int turnCostForAngle (double angle) {
+        if (angle < 27)
+            return STRAIGHT_ON;
+        else if (angle < 153)
+            return driveOnRight ? LEFT_TURN : RIGHT_TURN;
+        else if (angle < 207)
+            return U_TURN;
+        else if (angle < 333)
+            return driveOnRight ? RIGHT_TURN : LEFT_TURN;
+        else
+            return STRAIGHT_ON;
+    }
+
     /**
      * Gets in/out angles from edges and calculates angle between them
      * @param fromEdge
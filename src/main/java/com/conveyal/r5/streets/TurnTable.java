@@ -0,0 +1,230 @@
+package com.conveyal.r5.streets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+/**
+ * The cost of every car turn from an edge entering a vertex onto an edge leaving it, and whether a simple turn
+ * restriction forbids that turn, precomputed for the whole street layer when the network is built and serialized
+ * with it. Without this table every relaxation of a car search converts the edge angles to degrees and classifies
+ * the turn (see TurnCostCalculator), and every state at the end of an edge where a turn restriction starts has to
+ * carry a map of that restriction, which is copied onto every state made from it.
+ *
+ * The table has one byte per (incoming edge, outgoing edge) pair at each vertex. The turns at vertex v are at cells
+ * cellOffsets[v] + inRank * outDegree + outRank, where inRank is the position of the incoming edge in the incoming
+ * edge list of v and outRank the position of the outgoing edge in the outgoing edge list of v. The low two bits of a
+ * cell are an index into TURN_COSTS, and the two bits above them say whether the turn is forbidden in forward and in
+ * reverse searches.
+ *
+ * Only turn restrictions without via edges are tabulated, as they only depend on the edge a state arrived on, which
+ * the StreetRouter labels already distinguish. Restrictions with via edges still have to be tracked in the states.
+ * The table only covers the edges and vertices that existed when it was built, so it is shared unchanged by scenario
+ * copies of the street layer, and callers fall back on computing the cost of any turn it does not cover.
+ */
+public class TurnTable implements Serializable {
+
+    private static final long serialVersionUID = -1;
+
+    private static final Logger LOG = LoggerFactory.getLogger(TurnTable.class);
+
+    /** The value returned for turns that are not in the table. */
+    public static final int NOT_TABULATED = -1;
+
+    /** Vertices with more edges than this going in or out are left out of the table, so ranks fit in a byte. */
+    private static final int MAX_EDGES_PER_VERTEX = Byte.MAX_VALUE;
+
+    private static final int COST_MASK = 0b0011;
+
+    private static final int FORWARD_FORBIDDEN = 0b0100;
+
+    private static final int REVERSE_FORBIDDEN = 0b1000;
+
+    /** The turn costs, indexed by the cost code in the low bits of each cell. */
+    private static final int[] TURN_COSTS = new int[] {
+            TurnCostCalculator.STRAIGHT_ON, TurnCostCalculator.LEFT_TURN,
+            TurnCostCalculator.RIGHT_TURN, TurnCostCalculator.U_TURN
+    };
+
+    /** Whether the turn costs in this table are for a drive-on-right country. */
+    public final boolean driveOnRight;
+
+    /** The number of edges covered by this table. */
+    public final int nEdges;
+
+    /** The number of vertices covered by this table. */
+    public final int nVertices;
+
+    /** For each edge, its position in the incoming edge list of its to-vertex, or -1 if that vertex is not covered. */
+    private final byte[] inRanks;
+
+    /** For each edge, its position in the outgoing edge list of its from-vertex, or -1 if that vertex is not covered. */
+    private final byte[] outRanks;
+
+    /** For each vertex, the number of outgoing edges, which is the row length of its turns. */
+    private final byte[] outDegrees;
+
+    /** For each vertex, the index of its first cell, with one extra end element. */
+    private final int[] cellOffsets;
+
+    private final byte[] cells;
+
+    /** The indexes in StreetLayer.turnRestrictions of the restrictions represented by forbidden turns in this table. */
+    private final BitSet tabulatedRestrictions;
+
+    private TurnTable (boolean driveOnRight, byte[] inRanks, byte[] outRanks, byte[] outDegrees, int[] cellOffsets,
+                       byte[] cells, BitSet tabulatedRestrictions) {
+        this.driveOnRight = driveOnRight;
+        this.nEdges = inRanks.length;
+        this.nVertices = outDegrees.length;
+        this.inRanks = inRanks;
+        this.outRanks = outRanks;
+        this.outDegrees = outDegrees;
+        this.cellOffsets = cellOffsets;
+        this.cells = cells;
+        this.tabulatedRestrictions = tabulatedRestrictions;
+    }
+
+    /**
+     * Build the turn table for all the edges of the given street layer, whose edge lists must already be built.
+     */
+    public static TurnTable build (StreetLayer streetLayer, boolean driveOnRight) {
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        int nEdges = edgeStore.nEdges();
+        int nVertices = streetLayer.getVertexCount();
+        LOG.info("Building turn table for {} vertices...", nVertices);
+        byte[] inRanks = new byte[nEdges];
+        byte[] outRanks = new byte[nEdges];
+        Arrays.fill(inRanks, (byte) -1);
+        Arrays.fill(outRanks, (byte) -1);
+        byte[] outDegrees = new byte[nVertices];
+        int[] cellOffsets = new int[nVertices + 1];
+        long nCells = 0;
+        for (int v = 0; v < nVertices; v++) {
+            cellOffsets[v] = (int) nCells;
+            int inDegree = streetLayer.incomingEdges.size(v);
+            int outDegree = streetLayer.outgoingEdges.size(v);
+            if (inDegree > MAX_EDGES_PER_VERTEX || outDegree > MAX_EDGES_PER_VERTEX) continue;
+            for (int i = 0; i < inDegree; i++) inRanks[streetLayer.incomingEdges.get(v, i)] = (byte) i;
+            for (int j = 0; j < outDegree; j++) outRanks[streetLayer.outgoingEdges.get(v, j)] = (byte) j;
+            outDegrees[v] = (byte) outDegree;
+            nCells += inDegree * outDegree;
+        }
+        if (nCells > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many turns in the street layer to build a turn table.");
+        }
+        cellOffsets[nVertices] = (int) nCells;
+        byte[] cells = new byte[(int) nCells];
+
+        // Classify the turns at each vertex exactly as TurnCostCalculator does for car turns.
+        TurnCostCalculator turnCostCalculator = new TurnCostCalculator(streetLayer, driveOnRight);
+        IntStream.range(0, nVertices).parallel().forEach(v -> {
+            int outDegree = outDegrees[v];
+            if (cellOffsets[v + 1] == cellOffsets[v]) return;
+            EdgeStore.Edge edge = edgeStore.getCursor();
+            int[] inAngles = new int[outDegree];
+            for (int j = 0; j < outDegree; j++) {
+                edge.seek(streetLayer.outgoingEdges.get(v, j));
+                inAngles[j] = edge.getInAngle();
+            }
+            int cell = cellOffsets[v];
+            for (int i = 0, inDegree = streetLayer.incomingEdges.size(v); i < inDegree; i++) {
+                edge.seek(streetLayer.incomingEdges.get(v, i));
+                int outAngle = edge.getOutAngle();
+                for (int j = 0; j < outDegree; j++) {
+                    int turnCost = turnCostCalculator.turnCostForAngle(
+                            turnCostCalculator.calculateTurnAngle(outAngle, inAngles[j]));
+                    cells[cell++] = (byte) costCode(turnCost);
+                }
+            }
+        });
+
+        // Mark the turns forbidden by turn restrictions without via edges, in the directions they are used in.
+        BitSet tabulatedRestrictions = new BitSet(streetLayer.turnRestrictions.size());
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        for (int r = 0; r < streetLayer.turnRestrictions.size(); r++) {
+            TurnRestriction restriction = streetLayer.turnRestrictions.get(r);
+            if (restriction.viaEdges.length > 0) continue;
+            if (restriction.fromEdge < 0 || restriction.fromEdge >= nEdges) continue;
+            if (restriction.toEdge < 0 || restriction.toEdge >= nEdges) continue;
+            edge.seek(restriction.fromEdge);
+            int vertex = edge.getToVertex();
+            edge.seek(restriction.toEdge);
+            if (edge.getFromVertex() != vertex) continue;
+            int inRank = inRanks[restriction.fromEdge];
+            int outRank = outRanks[restriction.toEdge];
+            if (inRank < 0 || outRank < 0) continue;
+            int outDegree = outDegrees[vertex];
+            int firstCell = cellOffsets[vertex];
+            if (edgeStore.turnRestrictions.get(restriction.fromEdge).contains(r)) {
+                // In a forward search the restriction is checked on leaving its from edge.
+                for (int j = 0; j < outDegree; j++) {
+                    int toEdge = streetLayer.outgoingEdges.get(vertex, j);
+                    if (restriction.only ? toEdge != restriction.toEdge : toEdge == restriction.toEdge) {
+                        cells[firstCell + inRank * outDegree + j] |= FORWARD_FORBIDDEN;
+                    }
+                }
+            }
+            if (edgeStore.turnRestrictionsReverse.get(restriction.toEdge).contains(r)) {
+                // In a reverse search the restriction is checked on leaving (backward) its to edge.
+                for (int i = 0, inDegree = streetLayer.incomingEdges.size(vertex); i < inDegree; i++) {
+                    int fromEdge = streetLayer.incomingEdges.get(vertex, i);
+                    if (restriction.only ? fromEdge != restriction.fromEdge : fromEdge == restriction.fromEdge) {
+                        cells[firstCell + i * outDegree + outRank] |= REVERSE_FORBIDDEN;
+                    }
+                }
+            }
+            tabulatedRestrictions.set(r);
+        }
+        LOG.info("Done building turn table with {} turns, {} of {} turn restrictions tabulated.", nCells,
+                tabulatedRestrictions.cardinality(), streetLayer.turnRestrictions.size());
+        return new TurnTable(driveOnRight, inRanks, outRanks, outDegrees, cellOffsets, cells, tabulatedRestrictions);
+    }
+
+    private static int costCode (int turnCost) {
+        for (int code = 0; code < TURN_COSTS.length; code++) {
+            if (TURN_COSTS[code] == turnCost) return code;
+        }
+        throw new IllegalStateException("Turn cost " + turnCost + " cannot be represented in the turn table.");
+    }
+
+    /**
+     * @return the cell for the turn from fromEdge onto toEdge at the given vertex, or NOT_TABULATED if this table does
+     * not cover it. The caller must make sure that fromEdge enters and toEdge leaves the given vertex.
+     */
+    public int getCell (int fromEdge, int toEdge, int vertex) {
+        if (fromEdge >= nEdges || toEdge >= nEdges || vertex >= nVertices) return NOT_TABULATED;
+        int inRank = inRanks[fromEdge];
+        int outRank = outRanks[toEdge];
+        if (inRank < 0 || outRank < 0) return NOT_TABULATED;
+        return cells[cellOffsets[vertex] + inRank * outDegrees[vertex] + outRank];
+    }
+
+    /** @return the turn cost in seconds recorded in the given cell. */
+    public static int turnCost (int cell) {
+        return TURN_COSTS[cell & COST_MASK];
+    }
+
+    /** @return whether the given cell is forbidden by a turn restriction, in a search in the given direction. */
+    public static boolean isForbidden (int cell, boolean reverseSearch) {
+        return (cell & (reverseSearch ? REVERSE_FORBIDDEN : FORWARD_FORBIDDEN)) != 0;
+    }
+
+    /**
+     * @return true if the turn restriction with the given index is represented by forbidden turns in this table, in
+     * which case it should not be tracked in router states.
+     */
+    public boolean isTabulated (int restriction) {
+        return tabulatedRestrictions.get(restriction);
+    }
+
+    /** @return the number of turns in this table. */
+    public int size () {
+        return cells.length;
+    }
+
+}
@@ -7,6 +7,8 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetDistanceMatrix;
 import com.conveyal.r5.streets.StreetLayer;
 import com.conveyal.r5.streets.StreetRouter;
 import org.slf4j.Logger;
@@ -74,6 +76,7 @@ public class TransferFinder {
                 pathToreachedStops.put(targetStopIndex, path);
                 return true;
             });
+            streetRouter.release();
 
             // Record this list of transfers as leading out of the stop with index s.
             if (pathToreachedStops.size() > 0) {
@@ -95,10 +98,17 @@ public class TransferFinder {
         // When applying scenarios we want to find transfers for only the newly added stops.
         // We look at any existing list of transfers and do enough iterations to make it as long as the list of stops.
         int firstStopIndex = transfersForStop.size();
-        LOG.info("Finding transfers through the street network from {} stops...", transitLayer.getStopCount() - transfersForStop.size());
-        // TODO Parallelize with streams. See distance table generation.
-        for (int s = firstStopIndex; s < transitLayer.getStopCount(); s++) {
-            // From each stop, run a street search looking for other transit stops.
+        int nStops = transitLayer.getStopCount();
+        LOG.info("Finding transfers through the street network from {} stops...", nStops - firstStopIndex);
+        // Search from all the new stops at once, in parallel, for all the stops in the network.
+        int[] originVertices = new int[nStops - firstStopIndex];
+        for (int s = firstStopIndex; s < nStops; s++) {
+            originVertices[s - firstStopIndex] = transitLayer.streetVertexForStop.get(s);
+        }
+        int[] targetVertices = transitLayer.streetVertexForStop.toArray();
+        StreetDistanceMatrix distanceMatrix = streetLayer.distanceMatrix(originVertices, targetVertices,
+                StreetMode.WALK, TransitLayer.TRANSFER_DISTANCE_LIMIT);
+        for (int s = firstStopIndex; s < nStops; s++) {
             int originStreetVertex = transitLayer.streetVertexForStop.get(s);
             if (originStreetVertex == -1) {
                 unconnectedStops++;
@@ -106,15 +116,12 @@ public class TransferFinder {
                 transfersForStop.add(EMPTY_INT_LIST);
                 continue;
             }
-
-            StreetRouter streetRouter = new StreetRouter(streetLayer);
-            streetRouter.distanceLimitMeters = TransitLayer.TRANSFER_DISTANCE_LIMIT;
-
-            streetRouter.setOrigin(originStreetVertex);
-            streetRouter.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
-
-            streetRouter.route();
-            TIntIntMap distancesToReachedStops = streetRouter.getReachedStops();
+            // The row of the matrix for this stop holds the distances to all the stops reached from it.
+            TIntIntMap distancesToReachedStops = new TIntIntHashMap();
+            int row = s - firstStopIndex;
+            for (int entry = distanceMatrix.offsets[row]; entry < distanceMatrix.offsets[row + 1]; entry++) {
+                distancesToReachedStops.put(distanceMatrix.targets[entry], distanceMatrix.distancesMillimeters[entry]);
+            }
             // FIXME the following is technically incorrect, measure that it's actually improving calculation speed
             retainClosestStopsOnPatterns(distancesToReachedStops);
             // At this point we have the distances to all stops that are the closest one on some pattern.
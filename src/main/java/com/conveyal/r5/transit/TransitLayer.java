@@ -571,7 +571,9 @@ public class TransitLayer implements Serializable, Cloneable {
         router.route();
 
         // The values in this map will be distances in millimeters since that is our dominance function.
-        return router.getReachedVertices();
+        TIntIntMap distanceTable = router.getReachedVertices();
+        router.release();
+        return distanceTable;
     }
 
     public int getStopCount () {
@@ -8,6 +8,7 @@ import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.util.ExpandingMMFBytez;
+import com.google.common.cache.Cache;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import com.conveyal.r5.analyst.fare.GreedyFareCalculator;
@@ -15,6 +16,7 @@ import com.conveyal.r5.profile.StreetMode;
 import com.google.common.io.Files;
 import com.vividsolutions.jts.geom.Envelope;
 import com.conveyal.r5.streets.LinkedPointSet;
+import com.conveyal.r5.streets.StreetColumnFile;
 import com.conveyal.r5.streets.StreetLayer;
 import org.mapdb.Fun;
 import org.nustaq.serialization.FSTObjectInput;
@@ -41,10 +43,10 @@ public class TransportNetwork implements Serializable {
     public TransitLayer transitLayer;
 
     /**
-     * This stores any number of lightweight scenario networks built upon the current base network.
-     * FIXME that sounds like a memory leak, should be a WeighingCache or at least size-limited.
+     * The lightweight scenario networks built upon this base network, keyed on scenario ID. This is created and
+     * size-limited by the TransportNetworkCache, which evicts the least recently used scenario networks.
      */
-    public transient Map<String, TransportNetwork> scenarios = new HashMap<>();
+    public transient Cache<String, TransportNetwork> scenarios;
 
     /**
      * A grid point set that covers the full extent of this transport network. The PointSet itself then caches linkages
@@ -81,8 +83,27 @@ public class TransportNetwork implements Serializable {
     public List<TaskError> scenarioApplicationWarnings;
 
     public void write (File file) throws IOException {
+        write(file, false);
+    }
+
+    /**
+     * @param separateStreetColumns if true, the columns of the street layer's edge and vertex stores are written to a
+     *                              separate file next to the network file (see StreetColumnFile), from which they
+     *                              will be memory-mapped rather than deserialized when the network is read.
+     */
+    public void write (File file, boolean separateStreetColumns) throws IOException {
         LOG.info("Writing transport network...");
-        ExpandingMMFBytez.writeObjectToFile(file, this);
+        if (separateStreetColumns) {
+            StreetColumnFile.write(streetLayer, StreetColumnFile.forNetworkFile(file));
+            StreetColumnFile.DetachedColumns columns = StreetColumnFile.detach(streetLayer);
+            try {
+                ExpandingMMFBytez.writeObjectToFile(file, this);
+            } finally {
+                columns.restore();
+            }
+        } else {
+            ExpandingMMFBytez.writeObjectToFile(file, this);
+        }
         LOG.info("Done writing.");
     }
 
@@ -96,6 +117,13 @@ public class TransportNetwork implements Serializable {
 
         TransportNetwork result = ExpandingMMFBytez.readObjectFromFile(file);
         LOG.info("Done reading.");
+        if (StreetColumnFile.isDetached(result.streetLayer)) {
+            File streetColumnFile = StreetColumnFile.forNetworkFile(file);
+            if (!streetColumnFile.exists()) {
+                throw new FileNotFoundException("Network file " + file + " has no street column file.");
+            }
+            StreetColumnFile.map(result.streetLayer, streetColumnFile);
+        }
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
         }
@@ -223,6 +251,7 @@ public class TransportNetwork implements Serializable {
         // Edge lists must be built after all inter-layer linking has occurred.
         streetLayer.buildEdgeLists();
         transitLayer.rebuildTransientIndexes();
+        streetLayer.buildRoutingTables(tnBuilderConfig);
 
         // Create transfers
         new TransferFinder(transportNetwork).findTransfers();
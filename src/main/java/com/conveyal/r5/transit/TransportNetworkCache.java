@@ -8,31 +8,42 @@ import com.amazonaws.services.s3.model.S3Object;
 import com.conveyal.gtfs.BaseGTFSCache;
 import com.conveyal.gtfs.GTFSCache;
 import com.conveyal.r5.analyst.cluster.BundleManifest;
+import com.conveyal.r5.analyst.error.ScenarioApplicationException;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.common.R5Version;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.streets.OSMCache;
+import com.conveyal.r5.streets.StreetColumnFile;
 import com.conveyal.r5.streets.StreetLayer;
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -54,7 +65,43 @@ public class TransportNetworkCache {
 
     private static final int DEFAULT_CACHE_SIZE = 1;
 
+    /** The default number of scenario networks kept for each base network. */
+    private static final int DEFAULT_SCENARIO_CACHE_SIZE = 20;
+
     private final LoadingCache<String, TransportNetwork> cache;
+
+    /**
+     * The maximum number of scenario networks kept for each base network, beyond which the least recently used ones
+     * are evicted. Each scenario network shares most of its content with its base network, but can still hold
+     * copies of large parts of it, so they can't be kept indefinitely.
+     */
+    public int maxScenariosPerNetwork = DEFAULT_SCENARIO_CACHE_SIZE;
+
+    /**
+     * Applies the scenarios of tasks that are queued but not yet being handled, so they are ready when the tasks
+     * start. A single daemon thread is enough, as this only gets ahead of the threads handling the tasks.
+     */
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "scenario-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The keys of the scenarios waiting to be prefetched or being prefetched, so each is only submitted once. */
+    private final Set<String> prefetchingScenarios = ConcurrentHashMap.newKeySet();
+
+    /**
+     * If true, networks built by this cache are saved with their street columns in a separate file, so that they are
+     * memory-mapped rather than deserialized when the network is loaded again (see StreetColumnFile).
+     */
+    public boolean mapStreetColumns = false;
+
+    /**
+     * The configuration used to build networks from manifests, for instance the modes to build street hierarchies and
+     * landmarks for. Networks built from bundle zips use the build configuration in the bundle instead. Built networks
+     * are saved to the bucket and reused, so every worker sharing a bucket should use the same configuration.
+     */
+    public TNBuilderConfig builderConfig = TNBuilderConfig.defaultConfig();
     private final BaseGTFSCache gtfsCache;
     private final OSMCache osmCache;
 
@@ -78,8 +125,12 @@ public class TransportNetworkCache {
         s3 = null;
     }
 
-    /** Convenience method that returns transport network from cache. */
-    public synchronized TransportNetwork getNetwork (String networkId) {
+    /**
+     * Convenience method that returns transport network from cache. This is not synchronized: the cache loads each
+     * network only once, making any other threads asking for the same network wait for it, while requests for networks
+     * that are already loaded return immediately.
+     */
+    public TransportNetwork getNetwork (String networkId) {
         try {
             return cache.get(networkId);
         } catch (Exception e) {
@@ -99,78 +150,169 @@ public class TransportNetworkCache {
      *
      * The fact that scenario networks are cached means that PointSet linkages will be automatically reused when
      * TODO it seems to me that this method should just take a Scenario as its second parameter, and that resolving the scenario against caches on S3 or local disk should be pulled out into a separate function
+     *
+     * Like getNetwork this is not synchronized. Each scenario is applied only once, by the first thread to ask for it,
+     * and other threads asking for the same scenario wait for the result, while threads asking for other networks or
+     * scenarios go ahead. Scenarios that fail to apply are not cached, so they will be tried again on the next request.
+     * Scenarios are fetched concurrently, but only one scenario at a time is applied to any one base network: see
+     * applyScenario.
      */
-    public synchronized TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
+    public TransportNetwork getNetworkForScenario (String networkId, ProfileRequest request) {
         String scenarioId = request.scenarioId != null ? request.scenarioId : request.scenario.id;
 
         // The following call clears the scenarioNetworkCache if the current base graph changes.
         TransportNetwork baseNetwork = this.getNetwork(networkId);
-        if (baseNetwork.scenarios == null) {
-            baseNetwork.scenarios = new HashMap<>();
-        }
-        TransportNetwork scenarioNetwork =  baseNetwork.scenarios.get(scenarioId);
+        Cache<String, TransportNetwork> scenarios = getScenarioCache(baseNetwork);
 
         // DEBUG force scenario re-application
-        // scenarioNetwork = null;
+        // scenarios.invalidate(scenarioId);
 
-        if (scenarioNetwork == null) {
-            LOG.info("Applying scenario to base network...");
+        try {
+            return scenarios.get(scenarioId, () -> applyScenario(networkId, scenarioId, baseNetwork, request));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // Failures to apply the scenario are reported back to the client, so they are passed on as they are.
+            if (e.getCause() instanceof ScenarioApplicationException) throw (ScenarioApplicationException) e.getCause();
+            LOG.error("Exception while applying scenario {}: {}", scenarioId, e.getCause().toString());
+            return null;
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            // The scenario could not be found.
+            return null;
+        }
+    }
 
-            Scenario scenario;
-            if (request.scenario == null && request.scenarioId != null) {
-                // resolve scenario
-                LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
+    /** @return the cache of scenario networks built on the given base network, creating it if necessary. */
+    private synchronized Cache<String, TransportNetwork> getScenarioCache (TransportNetwork baseNetwork) {
+        if (baseNetwork.scenarios == null) {
+            baseNetwork.scenarios = CacheBuilder.newBuilder()
+                    .maximumSize(maxScenariosPerNetwork)
+                    .recordStats()
+                    .build();
+        }
+        return baseNetwork.scenarios;
+    }
 
-                File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
+    /**
+     * Resolve the scenario specified in a ProfileRequest and apply it to the base network.
+     *
+     * Scenario copies of the street and transit layers are shallow clones, which share many structures with the base
+     * network: the street layer's spatial index, the transit layer lists that are not protectively copied, and lazily
+     * built indexes and linkages. Modifications were written assuming a single scenario is applied at a time, as the
+     * cache used to do, and nothing guarantees that none of them writes to those shared structures. So scenarios are
+     * still applied to any one base network one at a time, holding a lock on that base network. Fetching scenarios
+     * from S3 beforehand, and applying scenarios to different base networks, happen concurrently.
+     *
+     * @return the scenario network, or null if the scenario could not be retrieved.
+     */
+    TransportNetwork applyScenario (String networkId, String scenarioId, TransportNetwork baseNetwork,
+                                    ProfileRequest request) {
+        Scenario scenario = resolveScenario(networkId, scenarioId, request);
+        if (scenario == null) return null;
+        synchronized (baseNetwork) {
+            return applyScenario(scenario, baseNetwork);
+        }
+    }
 
-                if (!scenarioFile.exists()) {
-                    try {
-                        S3Object obj = s3.getObject(bucket, getScenarioFilename(networkId, scenarioId));
-                        InputStream is = obj.getObjectContent();
-                        OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
-                        ByteStreams.copy(is, os);
-                        is.close();
-                        os.close();
-                    } catch (Exception e) {
-                        LOG.info("Error retrieving scenario from S3", e);
-                        return null;
-                    }
-                }
+    /**
+     * Fetch the scenario specified in a ProfileRequest, unless it is embedded in the request.
+     * @return the scenario, or null if it could not be retrieved.
+     */
+    Scenario resolveScenario (String networkId, String scenarioId, ProfileRequest request) {
+        Scenario scenario;
+        if (request.scenario == null && request.scenarioId != null) {
+            // resolve scenario
+            LOG.info("Retrieving scenario stored separately on S3 rather than in the ProfileRequest");
 
+            File scenarioFile = new File(cacheDir, getScenarioFilename(networkId, scenarioId));
+
+            if (!scenarioFile.exists()) {
                 try {
-                    scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
-                } catch (IOException e) {
-                    LOG.error("Could not read scenario {} from disk", scenarioId, e);
+                    S3Object obj = s3.getObject(bucket, getScenarioFilename(networkId, scenarioId));
+                    InputStream is = obj.getObjectContent();
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(scenarioFile));
+                    ByteStreams.copy(is, os);
+                    is.close();
+                    os.close();
+                } catch (Exception e) {
+                    LOG.info("Error retrieving scenario from S3", e);
                     return null;
                 }
-            } else if (request.scenario != null) {
-                scenario = request.scenario;
-            } else {
-                LOG.warn("No scenario specified");
-                scenario = new Scenario();
             }
 
-            // Apply any scenario modifications to the network before use, performing protective copies where necessary.
-            // We used to prepend a filter to the scenario, removing trips that are not running during the search time window.
-            // scenario.modifications.add(0, new InactiveTripsFilter(baseNetwork, clusterRequest.profileRequest));
-            // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
-            // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
-            // apply scenarios every time.
-            scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
-            LOG.info("Done applying scenario. Caching the resulting network.");
-            baseNetwork.scenarios.put(scenario.id, scenarioNetwork);
+            try {
+                scenario = JsonUtilities.objectMapper.readValue(scenarioFile, Scenario.class);
+            } catch (IOException e) {
+                LOG.error("Could not read scenario {} from disk", scenarioId, e);
+                return null;
+            }
+        } else if (request.scenario != null) {
+            scenario = request.scenario;
         } else {
-            LOG.info("Reusing cached TransportNetwork for scenario {}.", scenarioId);
+            LOG.warn("No scenario specified");
+            scenario = new Scenario();
         }
+        return scenario;
+    }
+
+    /**
+     * Apply a scenario to a base network. The caller must hold the lock on the base network.
+     * @return the scenario network.
+     */
+    TransportNetwork applyScenario (Scenario scenario, TransportNetwork baseNetwork) {
+        LOG.info("Applying scenario to base network...");
+        long startTime = System.currentTimeMillis();
+
+        // Apply any scenario modifications to the network before use, performing protective copies where necessary.
+        // We used to prepend a filter to the scenario, removing trips that are not running during the search time window.
+        // scenario.modifications.add(0, new InactiveTripsFilter(baseNetwork, clusterRequest.profileRequest));
+        // However, because we are caching transportNetworks with scenarios already applied to them, we can’t use
+        // the InactiveTripsFilter. The solution may be to cache linked point sets based on scenario ID but always
+        // apply scenarios every time.
+        TransportNetwork scenarioNetwork = scenario.applyToTransportNetwork(baseNetwork);
+        LOG.info("Done applying scenario {} in {} msec. Caching the resulting network.", scenario.id,
+                System.currentTimeMillis() - startTime);
         return scenarioNetwork;
     }
 
+    /**
+     * Apply the scenario of a task in the background if it is not already cached, so that it's ready by the time the
+     * task is handled. Tasks waiting in a worker's queue often share a scenario that has not been applied yet, and
+     * without this the first of them to start would block a task thread while the scenario is fetched and applied.
+     */
+    public void prefetchScenario (String networkId, ProfileRequest request) {
+        if (request.scenarioId == null && request.scenario == null) return;
+        String scenarioId = request.scenarioId != null ? request.scenarioId : request.scenario.id;
+        TransportNetwork baseNetwork = cache.getIfPresent(networkId);
+        // Look in the map view, which does not count as a hit or miss in the cache statistics.
+        if (baseNetwork != null && baseNetwork.scenarios != null &&
+                baseNetwork.scenarios.asMap().containsKey(scenarioId)) return;
+        String key = networkId + "_" + scenarioId;
+        if (!prefetchingScenarios.add(key)) return;
+        prefetchExecutor.execute(() -> {
+            try {
+                getNetworkForScenario(networkId, request);
+            } catch (Exception e) {
+                // The error will be reported when the task itself asks for the scenario.
+                LOG.warn("Failed to prefetch scenario {}: {}", scenarioId, e.toString());
+            } finally {
+                prefetchingScenarios.remove(key);
+            }
+        });
+    }
+
     private String getScenarioFilename(String networkId, String scenarioId) {
         return String.format("%s_%s.json", networkId, scenarioId);
     }
 
     /** If this transport network is already built and cached, fetch it quick */
     private TransportNetwork checkCached (String networkId) {
+        return checkCached(networkId, true);
+    }
+
+    /**
+     * @param retryIfIncomplete if the local copy of the network is missing its street column file or has the wrong
+     *                          one, delete it and try once more to fetch the network.
+     */
+    private TransportNetwork checkCached (String networkId, boolean retryIfIncomplete) {
         try {
             File cacheLocation = new File(cacheDir, getR5NetworkFilename(networkId));
             if (cacheLocation.exists())
@@ -188,29 +330,63 @@ public class TransportNetworkCache {
                         return null;
                     }
                     cacheDir.mkdirs();
+                    // The street columns may have been saved in a separate file, which must be copied along with the
+                    // network. Copy it first, as other workers on this machine take the presence of the network file
+                    // to mean the network is complete.
+                    File streetColumnLocation = StreetColumnFile.forNetworkFile(cacheLocation);
+                    String streetColumnKey = streetColumnLocation.getName();
+                    if (s3.doesObjectExist(bucket, streetColumnKey)) {
+                        LOG.info("Copying street columns from S3 to local file {}", streetColumnLocation);
+                        copyToFile(s3.getObject(bucket, streetColumnKey), streetColumnLocation);
+                    }
                     // Copy the network from S3 to our local disk for later use.
                     LOG.info("Copying pre-built transport network from S3 to local file {}", cacheLocation);
-                    FileOutputStream fos = new FileOutputStream(cacheLocation);
-                    InputStream is = tn.getObjectContent();
-                    try {
-                        ByteStreams.copy(is, fos);
-                    } finally {
-                        is.close();
-                        fos.close();
-                    }
+                    copyToFile(tn, cacheLocation);
                 } else {
                     LOG.info("Transport network was not found");
                     return null;
                 }
             }
             LOG.info("Loading cached transport network at {}", cacheLocation);
-            return TransportNetwork.read(cacheLocation);
+            try {
+                return TransportNetwork.read(cacheLocation);
+            } catch (FileNotFoundException | StreetColumnFile.MismatchedFileException e) {
+                // The street column file was evicted or never copied, or it is left over from another build of the
+                // network. Without the right one the network file is useless, so delete it and fetch both files again,
+                // or build the network if they can't be fetched. Rebuilding replaces the street column file too.
+                LOG.warn("{} Deleting {} to fetch or build the network again.", e.getMessage(), cacheLocation);
+                cacheLocation.delete();
+                return retryIfIncomplete ? checkCached(networkId, false) : null;
+            }
         } catch (Exception e) {
             LOG.error("Exception occurred retrieving cached transport network", e);
             return null;
         }
     }
 
+    /**
+     * Copy an object from S3 to a temporary file, then atomically move it into place. Other processes on this machine
+     * may have the existing file mapped (see StreetColumnFile), or may be about to read it, and must never see it
+     * truncated or half written.
+     */
+    private static void copyToFile (S3Object object, File file) throws IOException {
+        File tempFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            InputStream is = object.getObjectContent();
+            try {
+                ByteStreams.copy(is, fos);
+                fos.getFD().sync();
+            } finally {
+                is.close();
+                fos.close();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
     private String getR5NetworkFilename(String networkId) {
         return networkId + "_" + R5Version.version + ".dat";
     }
@@ -244,10 +420,16 @@ public class TransportNetworkCache {
 
         try {
             // Serialize TransportNetwork to local cache on this worker
-            network.write(cacheLocation);
+            network.write(cacheLocation, mapStreetColumns);
             // Upload the serialized TransportNetwork to S3
             if (bucket != null) {
                 LOG.info("Uploading the serialized TransportNetwork to S3 for use by other workers.");
+                // Upload the street column file before the network file that refers to it. Other workers take the
+                // presence of the network file to mean the network is complete, so it must be uploaded last.
+                if (mapStreetColumns) {
+                    File streetColumnLocation = StreetColumnFile.forNetworkFile(cacheLocation);
+                    s3.putObject(bucket, streetColumnLocation.getName(), streetColumnLocation);
+                }
                 s3.putObject(bucket, getR5NetworkFilename(networkId), cacheLocation);
                 LOG.info("Done uploading the serialized TransportNetwork to S3.");
             } else {
@@ -321,7 +503,7 @@ public class TransportNetworkCache {
      * A manifest describes the locations of files used to create a bundle.
      * It contains the unique IDs of the GTFS feeds and OSM extract.
      */
-    private TransportNetwork buildNetworkFromManifest (String networkId) {
+    TransportNetwork buildNetworkFromManifest (String networkId) {
         String manifestFileName = getManifestFilename(networkId);
         File manifestFile = new File(cacheDir, manifestFileName);
 
@@ -346,7 +528,7 @@ public class TransportNetworkCache {
 
         TransportNetwork network = new TransportNetwork();
         network.scenarioId = networkId;
-        network.streetLayer = new StreetLayer(new TNBuilderConfig()); // TODO builderConfig
+        network.streetLayer = new StreetLayer(builderConfig);
         network.streetLayer.loadFromOsm(osmCache.get(manifest.osmId));
         network.streetLayer.parentNetwork = network;
         network.streetLayer.indexStreets();
@@ -362,6 +544,7 @@ public class TransportNetworkCache {
         network.streetLayer.buildEdgeLists();
 
         network.rebuildTransientIndexes();
+        network.streetLayer.buildRoutingTables(builderConfig);
 
         TransferFinder transferFinder = new TransferFinder(network);
         transferFinder.findTransfers();
@@ -390,6 +573,7 @@ public class TransportNetworkCache {
         };
         return CacheBuilder.newBuilder()
                 .maximumSize(size)
+                .recordStats()
                 .removalListener(removalListener)
                 .build(new CacheLoader() {
                     public TransportNetwork load(Object s) throws Exception {
@@ -405,7 +589,7 @@ public class TransportNetworkCache {
      * If this is the same as the last graph built, just return the pre-built graph.
      * If not, build the graph from the inputs, fetching them from S3 to the local cache as needed.
      */
-    private TransportNetwork loadNetwork(String networkId) {
+    TransportNetwork loadNetwork(String networkId) {
 
         LOG.info("Finding or building a TransportNetwork for ID {} and R5 version {}", networkId, R5Version.version);
 
@@ -415,8 +599,6 @@ public class TransportNetworkCache {
                     networkId, R5Version.version);
             network = buildNetwork(networkId);
         }
-
-        cache.put(networkId, network);
         return network;
     }
 
@@ -427,8 +609,25 @@ public class TransportNetworkCache {
     public Set<String> getAppliedScenarios() {
         return cache.asMap().values().stream()
                 .filter(network -> network.scenarios != null)
-                .map(network -> network.scenarios.keySet())
+                .map(network -> network.scenarios.asMap().keySet())
                 .flatMap(Collection::stream)
                 .collect(Collectors.toSet());
     }
+
+    /** @return the hits, misses and load times of the base network cache since this cache was created. */
+    public CacheStats getNetworkCacheStats () {
+        return cache.stats();
+    }
+
+    /**
+     * @return the hits, misses and load times of the scenario network caches of all the base networks currently
+     * loaded. The statistics of a base network's scenarios are lost when that network is evicted.
+     */
+    public CacheStats getScenarioCacheStats () {
+        CacheStats stats = new CacheStats(0, 0, 0, 0, 0, 0);
+        for (TransportNetwork network : cache.asMap().values()) {
+            if (network.scenarios != null) stats = stats.plus(network.scenarios.stats());
+        }
+        return stats;
+    }
 }
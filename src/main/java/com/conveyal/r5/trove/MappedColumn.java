@@ -0,0 +1,78 @@
+package com.conveyal.r5.trove;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only column of fixed-size primitive values (bytes, shorts, ints or longs) mapped from a region of a file.
+ * The operating system loads the pages of the file on demand and keeps them in its page cache, which is shared by all
+ * the processes mapping the same file, so the values are never copied onto the Java heap and the garbage collector
+ * never has to scan them.
+ *
+ * A single MappedByteBuffer cannot be larger than 2GB, so large columns are mapped as several chunks of 1GB. The
+ * element sizes all divide the chunk size, so no value straddles two chunks. Values are only read with absolute
+ * gets, which do not touch the position of the buffers, so a column can be shared between threads.
+ */
+public class MappedColumn {
+
+    private static final int CHUNK_SHIFT = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /** The byte order of all columns, which is the native order on the machines we run on. */
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /** The number of values in the column. */
+    public final int size;
+
+    private final ByteBuffer[] chunks;
+
+    private MappedColumn (int size, ByteBuffer[] chunks) {
+        this.size = size;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Map a column of the given number of values of the given size in bytes, starting at the given position in the
+     * file. The mapping remains valid after the channel is closed.
+     */
+    public static MappedColumn map (FileChannel channel, long position, int size, int bytesPerValue) throws IOException {
+        long nBytes = (long) size * bytesPerValue;
+        int nChunks = (int) ((nBytes + CHUNK_MASK) >>> CHUNK_SHIFT);
+        ByteBuffer[] chunks = new ByteBuffer[nChunks];
+        for (int c = 0; c < nChunks; c++) {
+            long chunkStart = (long) c << CHUNK_SHIFT;
+            long chunkBytes = Math.min(nBytes - chunkStart, 1L << CHUNK_SHIFT);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + chunkStart, chunkBytes).order(BYTE_ORDER);
+        }
+        return new MappedColumn(size, chunks);
+    }
+
+    public byte getByte (int index) {
+        return chunks[chunk(index, 0)].get(offset(index, 0));
+    }
+
+    public short getShort (int index) {
+        return chunks[chunk(index, 1)].getShort(offset(index, 1));
+    }
+
+    public int getInt (int index) {
+        return chunks[chunk(index, 2)].getInt(offset(index, 2));
+    }
+
+    public long getLong (int index) {
+        return chunks[chunk(index, 3)].getLong(offset(index, 3));
+    }
+
+    private int chunk (int index, int bytesPerValueShift) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        return (int) (((long) index << bytesPerValueShift) >>> CHUNK_SHIFT);
+    }
+
+    private static int offset (int index, int bytesPerValueShift) {
+        return (int) (((long) index << bytesPerValueShift) & CHUNK_MASK);
+    }
+
+}
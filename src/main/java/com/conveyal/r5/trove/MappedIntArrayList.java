@@ -0,0 +1,39 @@
+package com.conveyal.r5.trove;
+
+import java.util.AbstractList;
+
+/**
+ * A read-only list of int arrays whose values are packed one after the other in a column of a memory-mapped file.
+ * A second column holds the index in the first of the start of each array, plus one more entry for the end of the
+ * last array. Each call to get() copies an array out of the file, so this is meant for data that is read rarely
+ * compared to how much space it takes up, like the geometries of edges.
+ */
+public class MappedIntArrayList extends AbstractList<int[]> {
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+    private final MappedColumn offsets;
+
+    private final MappedColumn values;
+
+    public MappedIntArrayList (MappedColumn offsets, MappedColumn values) {
+        this.offsets = offsets;
+        this.values = values;
+    }
+
+    @Override
+    public int[] get (int index) {
+        int start = offsets.getInt(index);
+        int end = offsets.getInt(index + 1);
+        if (start == end) return EMPTY_INT_ARRAY;
+        int[] array = new int[end - start];
+        for (int i = 0; i < array.length; i++) array[i] = values.getInt(start + i);
+        return array;
+    }
+
+    @Override
+    public int size () {
+        return offsets.size - 1;
+    }
+
+}
@@ -0,0 +1,347 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.function.TIntFunction;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.procedure.TIntProcedure;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * A read-only TIntList whose values are in a column of a memory-mapped file. Only the methods needed to read the
+ * values are implemented, so it can be used in place of a TIntArrayList that is never modified, and wrapped in an
+ * augmented list to be extended by a scenario.
+ */
+public class TIntMappedList implements TIntList {
+
+    private final MappedColumn column;
+
+    public TIntMappedList (MappedColumn column) {
+        this.column = column;
+    }
+
+    @Override
+    public int get (int offset) {
+        return column.getInt(offset);
+    }
+
+    @Override
+    public int size () {
+        return column.size;
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return column.size == 0;
+    }
+
+    @Override
+    public int getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public TIntIterator iterator () {
+        return new TIntIterator() {
+            int next = 0;
+
+            @Override
+            public int next () {
+                return column.getInt(next++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return next < column.size;
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean forEach (TIntProcedure procedure) {
+        for (int i = 0; i < column.size; i++) {
+            if (!procedure.execute(column.getInt(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int[] toArray () {
+        int[] values = new int[column.size];
+        for (int i = 0; i < values.length; i++) values[i] = column.getInt(i);
+        return values;
+    }
+
+    /**
+     *  Nominally implement the (enormous) TIntList interface.
+     *  But all of these remain unimplemented until we need them.
+     */
+
+    @Override
+    public boolean add(int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(int[] vals) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(int[] vals, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, int[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, int[] values, int valOffset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int set(int index, int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, int[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, int[] values, int valOffset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int replace(int offset, int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int removeAt(int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void transformValues(TIntFunction function) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse(int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shuffle(Random rand) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TIntList subList(int begin, int end) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] toArray(int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] toArray(int[] dest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] toArray(int[] dest, int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] toArray(int[] dest, int source_pos, int dest_pos, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean forEachDescending(TIntProcedure procedure) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort(int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(int fromIndex, int toIndex, int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(int value, int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(int offset, int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(int offset, int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean contains(int value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TIntList grep(TIntProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TIntList inverseGrep(TIntProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int max() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int min() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int sum() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(TIntCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(int[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(TIntCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(int[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(TIntCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(int[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(TIntCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(int[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,347 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TLongCollection;
+import gnu.trove.function.TLongFunction;
+import gnu.trove.iterator.TLongIterator;
+import gnu.trove.list.TLongList;
+import gnu.trove.procedure.TLongProcedure;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * A read-only TLongList whose values are in a column of a memory-mapped file. Only the methods needed to read the
+ * values are implemented, so it can be used in place of a TLongArrayList that is never modified, and wrapped in an
+ * augmented list to be extended by a scenario.
+ */
+public class TLongMappedList implements TLongList {
+
+    private final MappedColumn column;
+
+    public TLongMappedList (MappedColumn column) {
+        this.column = column;
+    }
+
+    @Override
+    public long get (int offset) {
+        return column.getLong(offset);
+    }
+
+    @Override
+    public int size () {
+        return column.size;
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return column.size == 0;
+    }
+
+    @Override
+    public long getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public TLongIterator iterator () {
+        return new TLongIterator() {
+            int next = 0;
+
+            @Override
+            public long next () {
+                return column.getLong(next++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return next < column.size;
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean forEach (TLongProcedure procedure) {
+        for (int i = 0; i < column.size; i++) {
+            if (!procedure.execute(column.getLong(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public long[] toArray () {
+        long[] values = new long[column.size];
+        for (int i = 0; i < values.length; i++) values[i] = column.getLong(i);
+        return values;
+    }
+
+    /**
+     *  Nominally implement the (enormous) TLongList interface.
+     *  But all of these remain unimplemented until we need them.
+     */
+
+    @Override
+    public boolean add(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(long[] vals) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(long[] vals, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, long[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, long[] values, int valOffset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long set(int index, long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, long[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, long[] values, int valOffset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long replace(int offset, long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long removeAt(int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void transformValues(TLongFunction function) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse(int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shuffle(Random rand) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TLongList subList(int begin, int end) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long[] toArray(int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long[] toArray(long[] dest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long[] toArray(long[] dest, int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long[] toArray(long[] dest, int source_pos, int dest_pos, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean forEachDescending(TLongProcedure procedure) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort(int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(int fromIndex, int toIndex, long val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(long value, int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(int offset, long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(int offset, long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean contains(long value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TLongList grep(TLongProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TLongList inverseGrep(TLongProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long max() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long min() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long sum() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(TLongCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(long[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Long> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(TLongCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(long[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(TLongCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(long[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(TLongCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(long[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,347 @@
+package com.conveyal.r5.trove;
+
+import gnu.trove.TShortCollection;
+import gnu.trove.function.TShortFunction;
+import gnu.trove.iterator.TShortIterator;
+import gnu.trove.list.TShortList;
+import gnu.trove.procedure.TShortProcedure;
+
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * A read-only TShortList whose values are in a column of a memory-mapped file. Only the methods needed to read the
+ * values are implemented, so it can be used in place of a TShortArrayList that is never modified, and wrapped in an
+ * augmented list to be extended by a scenario.
+ */
+public class TShortMappedList implements TShortList {
+
+    private final MappedColumn column;
+
+    public TShortMappedList (MappedColumn column) {
+        this.column = column;
+    }
+
+    @Override
+    public short get (int offset) {
+        return column.getShort(offset);
+    }
+
+    @Override
+    public int size () {
+        return column.size;
+    }
+
+    @Override
+    public boolean isEmpty () {
+        return column.size == 0;
+    }
+
+    @Override
+    public short getNoEntryValue () {
+        return 0;
+    }
+
+    @Override
+    public TShortIterator iterator () {
+        return new TShortIterator() {
+            int next = 0;
+
+            @Override
+            public short next () {
+                return column.getShort(next++);
+            }
+
+            @Override
+            public boolean hasNext () {
+                return next < column.size;
+            }
+
+            @Override
+            public void remove () {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public boolean forEach (TShortProcedure procedure) {
+        for (int i = 0; i < column.size; i++) {
+            if (!procedure.execute(column.getShort(i))) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public short[] toArray () {
+        short[] values = new short[column.size];
+        for (int i = 0; i < values.length; i++) values[i] = column.getShort(i);
+        return values;
+    }
+
+    /**
+     *  Nominally implement the (enormous) TShortList interface.
+     *  But all of these remain unimplemented until we need them.
+     */
+
+    @Override
+    public boolean add(short val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(short[] vals) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void add(short[] vals, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, short[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void insert(int offset, short[] values, int valOffset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short set(int index, short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, short[] values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void set(int offset, short[] values, int valOffset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short replace(int offset, short val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short removeAt(int offset) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void transformValues(TShortFunction function) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void reverse(int from, int to) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shuffle(Random rand) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TShortList subList(int begin, int end) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short[] toArray(int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short[] toArray(short[] dest) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short[] toArray(short[] dest, int offset, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short[] toArray(short[] dest, int source_pos, int dest_pos, int len) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean forEachDescending(TShortProcedure procedure) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void sort(int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(short val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void fill(int fromIndex, int toIndex, short val) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int binarySearch(short value, int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int indexOf(int offset, short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int lastIndexOf(int offset, short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean contains(short value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TShortList grep(TShortProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TShortList inverseGrep(TShortProcedure condition) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short max() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short min() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short sum() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(TShortCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean containsAll(short[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Short> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(TShortCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(short[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(TShortCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(short[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(TShortCollection collection) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(short[] array) {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.conveyal.r5.util;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of non-negative int items with int keys, where the item with the lowest key comes off first.
+ * It is a 4-ary heap held in primitive arrays, which also tracks the position of every item in the heap. This allows
+ * an item's key to be decreased in place ("decrease-key") when a better path to it is found, instead of adding a
+ * second copy to the queue and skipping the stale one when it comes off, as must be done with java.util.PriorityQueue.
+ * No objects are created as items are added and removed.
+ *
+ * A 4-ary heap is half as deep as a binary heap, and the four children of a node are next to each other in memory, so
+ * poll() touches fewer cache lines even though it compares more keys at each level.
+ *
+ * Each item can be in the queue only once. The arrays grow as needed, so the range of items does not need to be known
+ * in advance, but it should be reasonably dense because there is an int of storage for every item up to the largest.
+ */
+public class IndexedIntMinHeap {
+
+    /** The number of children of each node in the heap. */
+    private static final int ARITY = 4;
+
+    /** Marks an item that is not currently in the heap. */
+    private static final int NOT_IN_HEAP = -1;
+
+    /** The items in heap order. The children of the node at position p are at positions ARITY * p + 1 ... */
+    private int[] items;
+
+    /** The key of each item, parallel to the items array so that comparisons don't have to look up the item. */
+    private int[] keys;
+
+    /** The number of items currently in the heap. */
+    private int size = 0;
+
+    /** For each item, its position in the items and keys arrays, or NOT_IN_HEAP. */
+    private int[] positions;
+
+    /**
+     * @param itemCapacity one more than the largest item expected to be added. Larger items can be added, but will
+     *                     cause the index to be reallocated.
+     */
+    public IndexedIntMinHeap (int itemCapacity) {
+        itemCapacity = Math.max(itemCapacity, ARITY);
+        positions = new int[itemCapacity];
+        Arrays.fill(positions, NOT_IN_HEAP);
+        // The heap itself rarely holds more than a small fraction of the items, so start it small and let it grow.
+        int heapCapacity = Math.min(itemCapacity, 256);
+        items = new int[heapCapacity];
+        keys = new int[heapCapacity];
+    }
+
+    public boolean isEmpty () {
+        return size == 0;
+    }
+
+    public int size () {
+        return size;
+    }
+
+    public boolean contains (int item) {
+        return item < positions.length && positions[item] != NOT_IN_HEAP;
+    }
+
+    /**
+     * Add the item to the heap with the given key, or if it is already in the heap lower its key to the given key.
+     * @return true if the item was added or its key was lowered, false if it was already in the heap with a lower or
+     *         equal key.
+     */
+    public boolean insertOrDecrease (int item, int key) {
+        if (item < 0) throw new IllegalArgumentException("Heap items must be non-negative.");
+        if (item >= positions.length) {
+            int oldLength = positions.length;
+            positions = Arrays.copyOf(positions, Math.max(item + 1, oldLength * 2));
+            Arrays.fill(positions, oldLength, positions.length, NOT_IN_HEAP);
+        }
+        int position = positions[item];
+        if (position == NOT_IN_HEAP) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            position = size++;
+        } else if (keys[position] <= key) {
+            return false;
+        }
+        siftUp(position, item, key);
+        return true;
+    }
+
+    /** @return the key of the item that will come off the heap next. The heap must not be empty. */
+    public int peekKey () {
+        return keys[0];
+    }
+
+    /**
+     * Remove the item with the lowest key from the heap. Ties are broken arbitrarily.
+     * @return the removed item. The heap must not be empty.
+     */
+    public int poll () {
+        int item = items[0];
+        positions[item] = NOT_IN_HEAP;
+        size--;
+        if (size > 0) {
+            // Move the last item to the root and let it settle back down to its place.
+            siftDown(0, items[size], keys[size]);
+        }
+        return item;
+    }
+
+    /** Remove all items from the heap. This takes time proportional to the number of items in the heap. */
+    public void clear () {
+        for (int position = 0; position < size; position++) {
+            positions[items[position]] = NOT_IN_HEAP;
+        }
+        size = 0;
+    }
+
+    /** Place the given item at the given position or above it, moving larger parents down to make room. */
+    private void siftUp (int position, int item, int key) {
+        while (position > 0) {
+            int parent = (position - 1) / ARITY;
+            int parentKey = keys[parent];
+            if (parentKey <= key) break;
+            place(position, items[parent], parentKey);
+            position = parent;
+        }
+        place(position, item, key);
+    }
+
+    /** Place the given item at the given position or below it, moving smaller children up to make room. */
+    private void siftDown (int position, int item, int key) {
+        while (true) {
+            int firstChild = ARITY * position + 1;
+            if (firstChild >= size) break;
+            int lastChild = Math.min(firstChild + ARITY, size);
+            int minChild = firstChild;
+            int minChildKey = keys[firstChild];
+            for (int child = firstChild + 1; child < lastChild; child++) {
+                if (keys[child] < minChildKey) {
+                    minChild = child;
+                    minChildKey = keys[child];
+                }
+            }
+            if (minChildKey >= key) break;
+            place(position, items[minChild], minChildKey);
+            position = minChild;
+        }
+        place(position, item, key);
+    }
+
+    private void place (int position, int item, int key) {
+        items[position] = item;
+        keys[position] = key;
+        positions[item] = position;
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.OneOriginResult;
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.api.util.LegMode;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that computing travel times from a tile of origins together gives the same results as computing them one by one.
+ */
+public class TravelTimeComputerTest {
+
+    @Test
+    public void testTileMatchesSingleOrigins () throws Exception {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        network.rebuildLinkedGridPointSet();
+        WebMercatorGridPointSet grid = network.gridPointSet;
+
+        // A block of origins around a stop in the middle of the line, and one far from any street.
+        int stopX = grid.lonToPixel(-83.0007);
+        int stopY = grid.latToPixel(39.969);
+        List<TravelTimeSurfaceTask> tile = new ArrayList<>();
+        for (int y = stopY - 2; y <= stopY + 2; y++) {
+            for (int x = stopX - 2; x <= stopX + 2; x++) {
+                tile.add(makeTask(grid, grid.pixelToLat(y), grid.pixelToLon(x)));
+            }
+        }
+        tile.add(makeTask(grid, 0, 0));
+
+        List<OneOriginResult> results = TravelTimeComputer.computeTravelTimes(tile, network, null);
+        assertEquals(tile.size(), results.size());
+        boolean anyReached = false;
+        for (int i = 0; i < tile.size(); i++) {
+            OneOriginResult expected = new TravelTimeComputer(tile.get(i), network, null).computeTravelTimes();
+            assertArrayEquals(gridBytes(expected), gridBytes(results.get(i)));
+            anyReached |= expected.timeGrid.anyCellReached();
+        }
+        assertTrue(anyReached);
+    }
+
+    private static TravelTimeSurfaceTask makeTask (WebMercatorGridPointSet grid, double lat, double lon) {
+        TravelTimeSurfaceTask task = new TravelTimeSurfaceTask();
+        task.zoom = grid.zoom;
+        task.west = grid.west;
+        task.north = grid.north;
+        task.width = grid.width;
+        task.height = grid.height;
+        task.fromLat = lat;
+        task.fromLon = lon;
+        task.date = LocalDate.of(2015, 6, 10);
+        task.fromTime = 7 * 3600;
+        task.toTime = 8 * 3600;
+        task.maxTripDurationMinutes = 60;
+        task.accessModes = EnumSet.of(LegMode.WALK);
+        task.egressModes = EnumSet.of(LegMode.WALK);
+        task.directModes = EnumSet.of(LegMode.WALK);
+        task.transitModes = EnumSet.of(TransitModes.BUS);
+        task.percentiles = new double[] { 5, 50, 95 };
+        return task;
+    }
+
+    private static byte[] gridBytes (OneOriginResult result) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        result.timeGrid.writeGridToDataOutput(new LittleEndianDataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+}
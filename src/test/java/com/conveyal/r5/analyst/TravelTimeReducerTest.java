@@ -0,0 +1,47 @@
+package com.conveyal.r5.analyst;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.*;
+
+/**
+ * Check that finding travel time percentiles with a histogram gives the same results as sorting.
+ */
+public class TravelTimeReducerTest {
+
+    @Test
+    public void testHistogramPercentilesMatchSorting () {
+        RegionalTask task = new RegionalTask();
+        task.maxTripDurationMinutes = 60;
+        task.percentiles = new double[] { 5, 25, 50, 75, 95 };
+        int nIterations = 600;
+        TravelTimeReducer reducer = new TravelTimeReducer(task, nIterations);
+        Random random = new Random(42);
+
+        for (int trial = 0; trial < 1000; trial++) {
+            // Vary the share of unreached iterations and of times beyond the maximum trip duration between trials.
+            double pUnreached = random.nextDouble();
+            double pLong = random.nextDouble() * 0.5;
+            int[] times = new int[nIterations];
+            for (int i = 0; i < nIterations; i++) {
+                double r = random.nextDouble();
+                if (r < pUnreached) times[i] = UNREACHED;
+                else if (r < pUnreached + pLong) times[i] = 3600 + random.nextInt(7200);
+                else times[i] = random.nextInt(3600);
+            }
+            int[] expected = reducer.extractPercentilesMinutesBySorting(times.clone());
+            assertArrayEquals(expected, reducer.extractPercentilesMinutes(times));
+        }
+
+        int[] unreached = new int[nIterations];
+        Arrays.fill(unreached, UNREACHED);
+        assertArrayEquals(new int[] { UNREACHED, UNREACHED, UNREACHED, UNREACHED, UNREACHED },
+                reducer.extractPercentilesMinutes(unreached));
+    }
+
+}
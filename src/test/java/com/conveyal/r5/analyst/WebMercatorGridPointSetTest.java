@@ -1,5 +1,8 @@
 package com.conveyal.r5.analyst;
 
+import com.vividsolutions.jts.geom.Envelope;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import junit.framework.TestCase;
 import org.junit.Test;
 
@@ -21,4 +24,30 @@ public class WebMercatorGridPointSetTest extends TestCase {
             assertEquals(lon, ps.pixelToLon(ps.lonToPixel(lon)), 1e-2);
         }
     }
-}
\ No newline at end of file
+
+    /** Test that finding the points of a grid in an envelope does not miss any point inside it. */
+    @Test
+    public static void testPointsInEnvelope () {
+        WebMercatorGridPointSet ps = new WebMercatorGridPointSet(WebMercatorGridPointSet.DEFAULT_ZOOM, 38000, 48000, 40, 30);
+        Envelope envelope = new Envelope(ps.getCoordinateFixed(5 * 40 + 7));
+        envelope.expandToInclude(ps.getCoordinateFixed(20 * 40 + 31));
+        TIntList points = new TIntArrayList();
+        ps.pointsInEnvelope(envelope, points);
+        for (int p = 0; p < ps.featureCount(); p++) {
+            if (envelope.contains(ps.getCoordinateFixed(p))) {
+                assertTrue(points.contains(p));
+            }
+        }
+        // The points are in ascending order, and do not extend far beyond the envelope.
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(points.get(i - 1) < points.get(i));
+        }
+        assertTrue(points.size() <= 18 * 27);
+
+        // An envelope entirely outside the grid contains no points.
+        envelope = new Envelope(ps.getCoordinateFixed(0));
+        envelope.translate(-10000000, 0);
+        ps.pointsInEnvelope(envelope, points);
+        assertTrue(points.isEmpty());
+    }
+}
@@ -0,0 +1,150 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that worker statuses and their results come out of the binary encoding the same as they went in.
+ */
+public class BinaryWorkerStatusTest {
+
+    private static WorkerStatus roundTrip (WorkerStatus workerStatus) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryWorkerStatus.write(workerStatus, bytes);
+        return BinaryWorkerStatus.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static WorkerStatus makeStatus () {
+        WorkerStatus workerStatus = new WorkerStatus();
+        workerStatus.workerId = "worker";
+        workerStatus.tasksPerMinute = 42;
+        workerStatus.networks.add("network");
+        return workerStatus;
+    }
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        WorkerStatus workerStatus = makeStatus();
+        workerStatus.results = new ArrayList<>();
+        Random random = new Random(42);
+        // Several jobs with interleaved results, task IDs that go up and down, and values that increase and decrease
+        // (including negative values and the extremes of int) from one cutoff to the next.
+        int[] taskIds = new int[] { 5, 1000, 3, 3, 0, Integer.MAX_VALUE, Integer.MIN_VALUE, 17 };
+        for (int r = 0; r < taskIds.length; r++) {
+            RegionalWorkResult result = new RegionalWorkResult("job" + (r % 3), taskIds[r], 2, 3, 4);
+            for (int g = 0; g < 2; g++) {
+                for (int p = 0; p < 3; p++) {
+                    for (int c = 0; c < 4; c++) result.setAcccessibilityValue(g, p, c, random.nextInt());
+                }
+            }
+            workerStatus.results.add(result);
+        }
+        workerStatus.results.get(0).setAcccessibilityValue(0, 0, 0, Integer.MIN_VALUE);
+        workerStatus.results.get(0).setAcccessibilityValue(0, 0, 1, Integer.MAX_VALUE);
+        // A result with different dimensions and one with none.
+        workerStatus.results.add(new RegionalWorkResult("job1", 6, 1, 1, 1));
+        workerStatus.results.add(new RegionalWorkResult("job3", 7, 0, 0, 0));
+
+        WorkerStatus copy = roundTrip(workerStatus);
+        assertEquals("worker", copy.workerId);
+        assertEquals(42, copy.tasksPerMinute, 0);
+        assertEquals(workerStatus.networks, copy.networks);
+        assertEquals(workerStatus.results.size(), copy.results.size());
+        for (int r = 0; r < workerStatus.results.size(); r++) {
+            RegionalWorkResult expected = workerStatus.results.get(r);
+            RegionalWorkResult result = copy.results.get(r);
+            assertEquals(expected.jobId, result.jobId);
+            assertEquals(expected.taskId, result.taskId);
+            assertTrue(Arrays.deepEquals(expected.accessibilityValues, result.accessibilityValues));
+        }
+        // Writing must not disturb the results of the status that was written.
+        assertEquals(taskIds.length + 2, workerStatus.results.size());
+    }
+
+    @Test
+    public void testEmptyAndNullResults () throws Exception {
+        WorkerStatus workerStatus = makeStatus();
+        workerStatus.results = new ArrayList<>();
+        assertTrue(roundTrip(workerStatus).results.isEmpty());
+        workerStatus.results = null;
+        WorkerStatus copy = roundTrip(workerStatus);
+        assertEquals("worker", copy.workerId);
+        assertTrue(copy.results.isEmpty());
+    }
+
+    @Test
+    public void testBadHeader () throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryWorkerStatus.write(makeStatus(), bytes);
+        byte[] valid = bytes.toByteArray();
+
+        byte[] badMagic = valid.clone();
+        badMagic[0] = 'X';
+        assertReadFails(badMagic);
+
+        // The version follows the four magic bytes.
+        byte[] badVersion = valid.clone();
+        badVersion[4] = 99;
+        assertReadFails(badVersion);
+
+        assertReadFails(Arrays.copyOf(valid, valid.length - 1));
+        assertReadFails("{\"workerId\":\"worker\"}".getBytes());
+    }
+
+    private static void assertReadFails (byte[] bytes) {
+        try {
+            BinaryWorkerStatus.read(new ByteArrayInputStream(bytes));
+            fail("Reading a malformed worker status should fail.");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    /** Results whose grids have different numbers of percentiles or cutoffs are rejected before anything is written. */
+    @Test
+    public void testUnevenDimensions () throws Exception {
+        for (int[][][] values : new int[][][][] {
+                { { { 1, 2 } }, { { 1, 2 }, { 3, 4 } } },
+                { { { 1, 2 }, { 3 } } },
+                { { { 1, 2 } }, { { 3 } } }
+        }) {
+            WorkerStatus workerStatus = makeStatus();
+            workerStatus.results = new ArrayList<>();
+            workerStatus.results.add(new RegionalWorkResult("job", 0, 1, 1, 2));
+            RegionalWorkResult uneven = new RegionalWorkResult("job", 1, 0, 0, 0);
+            uneven.accessibilityValues = values;
+            workerStatus.results.add(uneven);
+            assertFalse(BinaryWorkerStatus.canWrite(workerStatus));
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                BinaryWorkerStatus.write(workerStatus, bytes);
+                fail("Results with uneven dimensions should not be written.");
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+            assertEquals(0, bytes.size());
+        }
+        WorkerStatus workerStatus = makeStatus();
+        assertTrue(BinaryWorkerStatus.canWrite(workerStatus));
+        workerStatus.results = new ArrayList<>();
+        workerStatus.results.add(new RegionalWorkResult("job", 0, 2, 3, 4));
+        assertTrue(BinaryWorkerStatus.canWrite(workerStatus));
+    }
+
+    @Test
+    public void testAcceptHeader () {
+        assertTrue(BinaryWorkerStatus.isAccepted(BinaryWorkerStatus.MEDIA_TYPE));
+        assertTrue(BinaryWorkerStatus.isAccepted("application/json, " + BinaryWorkerStatus.MEDIA_TYPE + "; q=0.9"));
+        assertFalse(BinaryWorkerStatus.isAccepted("application/json"));
+        assertFalse(BinaryWorkerStatus.isAccepted(null));
+    }
+
+}
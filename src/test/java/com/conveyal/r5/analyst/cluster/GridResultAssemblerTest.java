@@ -0,0 +1,124 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that the grid result assembler puts every result in the right cell of the right access grid, counts each origin
+ * only once, and finishes exactly once when results arrive from many threads at once.
+ */
+public class GridResultAssemblerTest {
+
+    private static final int WIDTH = 37, HEIGHT = 23;
+
+    /** An assembler that counts calls to finish() rather than uploading to S3. */
+    private static class TestAssembler extends GridResultAssembler {
+        final AtomicInteger nFinished = new AtomicInteger();
+
+        TestAssembler (int nGrids, int nPercentiles, int nCutoffs) {
+            super(makeRequest(), "bucket", nGrids, nPercentiles, nCutoffs);
+        }
+
+        @Override
+        protected void finish () {
+            nFinished.incrementAndGet();
+        }
+    }
+
+    private static RegionalTask makeRequest () {
+        RegionalTask request = new RegionalTask();
+        request.jobId = "job";
+        request.zoom = 9;
+        request.west = 100;
+        request.north = 200;
+        request.width = WIDTH;
+        request.height = HEIGHT;
+        return request;
+    }
+
+    private static int value (int origin, int grid, int percentile, int cutoff) {
+        return origin * 1000 + grid * 100 + percentile * 10 + cutoff;
+    }
+
+    private static RegionalWorkResult makeResult (int origin, int nGrids, int nPercentiles, int nCutoffs) {
+        RegionalWorkResult result = new RegionalWorkResult("job", origin, nGrids, nPercentiles, nCutoffs);
+        for (int g = 0; g < nGrids; g++) {
+            for (int p = 0; p < nPercentiles; p++) {
+                for (int c = 0; c < nCutoffs; c++) result.setAcccessibilityValue(g, p, c, value(origin, g, p, c));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testConcurrentResultsFinishOnce () throws Exception {
+        int nGrids = 2, nPercentiles = 3, nCutoffs = 4;
+        for (int repetition = 0; repetition < 20; repetition++) {
+            TestAssembler assembler = new TestAssembler(nGrids, nPercentiles, nCutoffs);
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            // Send every origin twice, from different threads.
+            for (int i = 0; i < WIDTH * HEIGHT * 2; i++) {
+                int origin = i % (WIDTH * HEIGHT);
+                executor.execute(() -> assembler.handleMessage(makeResult(origin, nGrids, nPercentiles, nCutoffs)));
+            }
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            assertEquals(1, assembler.nFinished.get());
+            assertEquals(WIDTH * HEIGHT, assembler.nComplete);
+            for (int origin = 0; origin < WIDTH * HEIGHT; origin++) {
+                for (int g = 0; g < nGrids; g++) {
+                    for (int p = 0; p < nPercentiles; p++) {
+                        for (int c = 0; c < nCutoffs; c++) {
+                            assertEquals(value(origin, g, p, c), assembler.getValue(g, p, c, origin));
+                        }
+                    }
+                }
+            }
+            assembler.terminate();
+        }
+    }
+
+    @Test
+    public void testDuplicateOriginsCountedOnce () throws Exception {
+        TestAssembler assembler = new TestAssembler(1, 1, 1);
+        for (int i = 0; i < 5; i++) assembler.handleMessage(makeResult(7, 1, 1, 1));
+        assertEquals(1, assembler.nComplete);
+        for (int origin = 0; origin < WIDTH * HEIGHT - 1; origin++) {
+            assembler.handleMessage(makeResult(origin, 1, 1, 1));
+        }
+        // Origin 7 was received again, the last origin is still missing.
+        assertEquals(WIDTH * HEIGHT - 1, assembler.nComplete);
+        assertEquals(0, assembler.nFinished.get());
+        assembler.handleMessage(makeResult(WIDTH * HEIGHT - 1, 1, 1, 1));
+        assertEquals(1, assembler.nFinished.get());
+        assembler.handleMessage(makeResult(WIDTH * HEIGHT - 1, 1, 1, 1));
+        assertEquals(1, assembler.nFinished.get());
+        assertEquals("job.access", assembler.getOutputKey(0, 0, 0));
+        assembler.terminate();
+    }
+
+    @Test
+    public void testDimensionMismatchIsAnError () throws Exception {
+        TestAssembler assembler = new TestAssembler(1, 3, 2);
+        assertFalse(assembler.isError());
+        assembler.handleMessage(makeResult(0, 1, 3, 2));
+        assertFalse(assembler.isError());
+        assertEquals("job_0_2_1.access", assembler.getOutputKey(0, 2, 1));
+        // Too few cutoffs.
+        assembler.handleMessage(makeResult(1, 1, 3, 1));
+        assertTrue(assembler.isError());
+        // Nothing more is accepted once there has been an error.
+        assertEquals(1, assembler.nComplete);
+        for (int origin = 0; origin < WIDTH * HEIGHT; origin++) assembler.handleMessage(makeResult(origin, 1, 3, 2));
+        assertEquals(1, assembler.nComplete);
+        assertEquals(0, assembler.nFinished.get());
+        assembler.terminate();
+    }
+
+}
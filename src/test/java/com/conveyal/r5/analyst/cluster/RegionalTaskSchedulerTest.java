@@ -0,0 +1,111 @@
+package com.conveyal.r5.analyst.cluster;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test how many tasks the regional task scheduler asks for and when, and that single point requests hold regional
+ * tasks back without tying up the threads they would run on.
+ */
+public class RegionalTaskSchedulerTest {
+
+    private static final int N_THREADS = 4;
+
+    /** Wait for all tasks submitted to the scheduler to finish. */
+    private static void awaitIdle (RegionalTaskScheduler scheduler) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60_000;
+        while (!scheduler.isIdle()) {
+            assertTrue("Regional tasks did not finish.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testInitialEstimates () throws Exception {
+        RegionalTaskScheduler scheduler = new RegionalTaskScheduler(N_THREADS);
+        // Before any task has finished, each is assumed to take two seconds on each of the four threads.
+        assertEquals(2, scheduler.tasksPerSecond(), 1e-9);
+        assertTrue(scheduler.isIdle());
+        assertTrue(scheduler.needsWork());
+        // Enough tasks for 30 seconds.
+        assertEquals(60, scheduler.tasksWanted());
+        assertEquals(0, scheduler.millisUntilRefill());
+
+        // Hold the tasks back so none of them finish.
+        scheduler.beginSinglePointRequest();
+        AtomicInteger nRun = new AtomicInteger();
+        for (int i = 0; i < 40; i++) scheduler.submit(nRun::incrementAndGet);
+        assertEquals(40, scheduler.pendingTasks());
+        assertEquals(20, scheduler.tasksWanted());
+        // Twenty tasks above the refill level of ten seconds of work, at two tasks per second.
+        assertFalse(scheduler.needsWork());
+        assertEquals(10_000, scheduler.millisUntilRefill());
+
+        // Work counted as several tasks.
+        scheduler.submit(nRun::incrementAndGet, 30);
+        assertEquals(70, scheduler.pendingTasks());
+        assertEquals(0, scheduler.tasksWanted());
+        assertEquals(25_000, scheduler.millisUntilRefill());
+        assertEquals(0, nRun.get());
+
+        scheduler.endSinglePointRequest();
+        awaitIdle(scheduler);
+        assertEquals(41, nRun.get());
+        assertTrue(scheduler.needsWork());
+    }
+
+    @Test
+    public void testFastTasksAreCapped () throws Exception {
+        RegionalTaskScheduler scheduler = new RegionalTaskScheduler(N_THREADS);
+        for (int i = 0; i < 500; i++) scheduler.submit(() -> { });
+        awaitIdle(scheduler);
+        // Tasks that take next to no time would call for a huge queue, which is capped per thread.
+        assertTrue(scheduler.tasksPerSecond() > 2);
+        assertEquals(N_THREADS * RegionalTaskScheduler.MAX_QUEUED_TASKS_PER_THREAD, scheduler.tasksWanted());
+        assertTrue(scheduler.needsWork());
+        assertEquals(0, scheduler.millisUntilRefill());
+    }
+
+    @Test
+    public void testSinglePointRequestsHoldBackRegionalTasks () throws Exception {
+        RegionalTaskScheduler scheduler = new RegionalTaskScheduler(N_THREADS);
+        scheduler.beginSinglePointRequest();
+        scheduler.beginSinglePointRequest();
+        // Many more tasks than threads. If held back tasks blocked their threads, later tasks could not be set aside.
+        AtomicInteger nRun = new AtomicInteger();
+        for (int i = 0; i < N_THREADS * 10; i++) scheduler.submit(nRun::incrementAndGet);
+        Thread.sleep(200);
+        assertEquals(0, nRun.get());
+
+        scheduler.endSinglePointRequest();
+        Thread.sleep(200);
+        assertEquals(0, nRun.get());
+
+        scheduler.endSinglePointRequest();
+        awaitIdle(scheduler);
+        assertEquals(N_THREADS * 10, nRun.get());
+
+        // Regional tasks already running are not interrupted by a single point request.
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        scheduler.submit(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        scheduler.beginSinglePointRequest();
+        release.countDown();
+        scheduler.endSinglePointRequest();
+        awaitIdle(scheduler);
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.r5.analyst.scenario.AddTrips;
+import com.conveyal.r5.analyst.scenario.AdjustFrequency;
+import com.conveyal.r5.analyst.scenario.FakeGraph;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.api.util.TransitModes;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.*;
+
+/**
+ * Test FastRaptorWorker searches on a single bus line in Columbus, OH (see FakeGraph), which runs from stop s1 through
+ * s2 and s3 to s4 every ten minutes, taking 500 seconds between stops with a 30 second dwell at s2 and s3. The Monte
+ * Carlo search is tested on a copy of the line converted to run at the same headway without a timetable.
+ */
+public class FastRaptorWorkerTest {
+
+    private static TransitLayer transit;
+
+    /** The same line, running every ten minutes from 6:00 to 22:00 as a frequency route. */
+    private static TransitLayer frequencyTransit;
+
+    private static int s1, s2, s3, s4;
+
+    @BeforeClass
+    public static void setUp () {
+        TransportNetwork network = FakeGraph.buildNetwork(FakeGraph.TransitNetwork.SINGLE_LINE);
+        transit = network.transitLayer;
+        s1 = transit.indexForStopId.get("SINGLE_LINE:s1");
+        s2 = transit.indexForStopId.get("SINGLE_LINE:s2");
+        s3 = transit.indexForStopId.get("SINGLE_LINE:s3");
+        s4 = transit.indexForStopId.get("SINGLE_LINE:s4");
+
+        AddTrips.PatternTimetable entry = new AddTrips.PatternTimetable();
+        entry.headwaySecs = 600;
+        entry.startTime = 6 * 3600;
+        entry.endTime = 22 * 3600;
+        entry.monday = entry.tuesday = entry.wednesday = entry.thursday = entry.friday = entry.saturday = entry.sunday = true;
+        entry.sourceTrip = "SINGLE_LINE:trip25200";
+        AdjustFrequency adjustFrequency = new AdjustFrequency();
+        adjustFrequency.route = "SINGLE_LINE:route";
+        adjustFrequency.entries = Arrays.asList(entry);
+        Scenario scenario = new Scenario();
+        scenario.modifications = Arrays.asList(adjustFrequency);
+        frequencyTransit = scenario.applyToTransportNetwork(network).transitLayer;
+    }
+
+    /** A request departing between 7:00 and 7:30, during which three trips leave s1. */
+    private static ProfileRequest makeRequest () {
+        ProfileRequest request = new ProfileRequest();
+        request.date = LocalDate.of(2015, 6, 10);
+        request.fromTime = 7 * 3600;
+        request.toTime = 7 * 3600 + 30 * 60;
+        request.transitModes = EnumSet.of(TransitModes.BUS);
+        request.maxRides = 4;
+        return request;
+    }
+
+    private static TIntIntMap accessTo (int stop, int accessTime) {
+        TIntIntMap accessStops = new TIntIntHashMap();
+        accessStops.put(stop, accessTime);
+        return accessStops;
+    }
+
+    /**
+     * Searching toward a single destination at s2 should give the same arrival times at s2 as searching toward every
+     * stop. Once a trip reaches s2, the limit it sets prevents the search from following earlier trips out to s4,
+     * which is only reached after that limit.
+     */
+    @Test
+    public void testEgressStopPruning () {
+        ProfileRequest request = makeRequest();
+        TravelTimesToStops unpruned = new FastRaptorWorker(transit, request, accessTo(s1, 0)).route();
+
+        FastRaptorWorker prunedWorker = new FastRaptorWorker(transit, request, accessTo(s1, 0));
+        prunedWorker.egressStops = accessTo(s2, 60);
+        TravelTimesToStops pruned = prunedWorker.route();
+
+        assertEquals(unpruned.nIterations, pruned.nIterations);
+        boolean anyPruned = false;
+        for (int iteration = 0; iteration < unpruned.nIterations; iteration++) {
+            assertNotEquals(UNREACHED, unpruned.getTravelTime(s2, iteration));
+            assertEquals(unpruned.getTravelTime(s2, iteration), pruned.getTravelTime(s2, iteration));
+            for (int stop = 0; stop < transit.getStopCount(); stop++) {
+                // Pruning only skips updates, so it can never find a better time than the full search.
+                assertTrue(pruned.getTravelTime(stop, iteration) >= unpruned.getTravelTime(stop, iteration));
+            }
+            anyPruned |= pruned.getTravelTime(s4, iteration) > unpruned.getTravelTime(s4, iteration);
+        }
+        assertTrue(anyPruned);
+    }
+
+    /**
+     * Nothing on the line can be reached with more than one ride, so the scheduled search for every minute should stop
+     * well before maxRides, with the same results as a search that runs every round.
+     */
+    @Test
+    public void testEarlyTermination () {
+        ProfileRequest request = makeRequest();
+        request.maxRides = 8;
+        FastRaptorWorker earlyWorker = new FastRaptorWorker(transit, request, accessTo(s1, 0));
+        TravelTimesToStops early = earlyWorker.route();
+
+        FastRaptorWorker fullWorker = new FastRaptorWorker(transit, request, accessTo(s1, 0));
+        fullWorker.terminateRoundsEarly = false;
+        TravelTimesToStops full = fullWorker.route();
+
+        assertArrayEquals(full.travelTimes, early.travelTimes);
+
+        int nMinutes = earlyWorker.nMinutes;
+        assertEquals(nMinutes, IntStream.of(earlyWorker.minutesByScheduledRoundsExecuted).sum());
+        assertEquals(0, earlyWorker.minutesByScheduledRoundsExecuted[0]);
+        assertEquals(0, earlyWorker.minutesByScheduledRoundsExecuted[request.maxRides]);
+        assertTrue(earlyWorker.nScheduledRoundsExecuted < nMinutes * request.maxRides);
+
+        assertEquals(nMinutes, fullWorker.minutesByScheduledRoundsExecuted[request.maxRides]);
+        assertEquals(nMinutes * request.maxRides, fullWorker.nScheduledRoundsExecuted);
+    }
+
+    /**
+     * Each Monte Carlo draw boards the first vehicle leaving s1 at least a minute after the departure time, which is
+     * at most a full headway later. Every draw's travel times must lie between boarding without waiting any longer and
+     * waiting that full headway, and the draws must not all be the same.
+     */
+    @Test
+    public void testMonteCarloDraws () {
+        ProfileRequest request = makeRequest();
+        request.toTime = 8 * 3600;
+        request.monteCarloDraws = 200;
+        FastRaptorWorker worker = new FastRaptorWorker(frequencyTransit, request, accessTo(s1, 0));
+        TravelTimesToStops result = worker.route();
+
+        // 200 draws over a 60 minute window require ceil(200 / 60) = 4 draws per minute.
+        assertEquals(4, request.getMonteCarloDrawsPerMinute());
+        assertEquals(4, worker.monteCarloDrawsPerMinute);
+        assertEquals(60 * 4, result.nIterations);
+        assertEquals(result.nIterations, worker.nFrequencyDraws);
+        // The same request on the timetabled line has no randomness and makes a single draw per minute.
+        assertEquals(1, FastRaptorWorker.monteCarloDrawsPerMinute(request, transit));
+
+        int minimumBoardWait = 60;
+        int headway = 600;
+        int[] stops = new int[] { s2, s3, s4 };
+        int[] inVehicleTimes = new int[] { 500, 1030, 1560 };
+        for (int i = 0; i < stops.length; i++) {
+            int bestCase = minimumBoardWait + inVehicleTimes[i];
+            int worstCase = bestCase + headway;
+            int min = UNREACHED;
+            int max = 0;
+            for (int iteration = 0; iteration < result.nIterations; iteration++) {
+                int travelTime = result.getTravelTime(stops[i], iteration);
+                assertTrue(travelTime >= bestCase);
+                assertTrue(travelTime <= worstCase);
+                min = Math.min(min, travelTime);
+                max = Math.max(max, travelTime);
+            }
+            assertTrue(max > min);
+        }
+    }
+
+    /**
+     * Routing a batch of origins must give the same results as routing each of them with its own worker, both for a
+     * batch small enough to be routed on a single thread and for one that is split into blocks.
+     */
+    @Test
+    public void testBatchMatchesSingleOrigins () {
+        checkBatch(FastRaptorWorker.MIN_ORIGINS_PER_BLOCK - 1);
+        checkBatch(FastRaptorWorker.MIN_ORIGINS_PER_BLOCK * 2 * Runtime.getRuntime().availableProcessors() + 1);
+    }
+
+    private static void checkBatch (int nOrigins) {
+        ProfileRequest request = makeRequest();
+        // Origins at different stops with different access times, so that workers reused within a block start
+        // from states left over from a different origin.
+        List<TIntIntMap> accessStopsPerOrigin = new ArrayList<>();
+        int[] accessStops = new int[] { s1, s2, s3 };
+        for (int origin = 0; origin < nOrigins; origin++) {
+            accessStopsPerOrigin.add(accessTo(accessStops[origin % accessStops.length], origin * 97 % 900));
+        }
+        List<TravelTimesToStops> batch = FastRaptorWorker.routeBatch(transit, request, accessStopsPerOrigin);
+        assertEquals(nOrigins, batch.size());
+        for (int origin = 0; origin < nOrigins; origin++) {
+            TravelTimesToStops single =
+                    new FastRaptorWorker(transit, request, accessStopsPerOrigin.get(origin)).route();
+            assertEquals(single.nIterations, batch.get(origin).nIterations);
+            assertArrayEquals(single.travelTimes, batch.get(origin).travelTimes);
+        }
+    }
+
+}
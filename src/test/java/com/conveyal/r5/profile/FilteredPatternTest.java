@@ -0,0 +1,74 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that the trip boarding search over a FilteredPattern finds the same trips as a linear scan over all the
+ * TripSchedules on the original pattern.
+ */
+public class FilteredPatternTest {
+
+    private static TripSchedule makeTrip (String tripId, int serviceCode, int... departures) {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = tripId;
+        int[] stopSequences = new int[departures.length];
+        for (int i = 0; i < stopSequences.length; i++) stopSequences[i] = i;
+        return TripSchedule.create(trip, departures.clone(), departures.clone(), null, stopSequences, serviceCode);
+    }
+
+    @Test
+    public void testInactiveTripsAreSkipped () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        pattern.addTrip(makeTrip("A", 0, 1000, 1100, 1200));
+        pattern.addTrip(makeTrip("B", 1, 2000, 2100, 2200)); // service 1 is not running
+        pattern.addTrip(makeTrip("C", 0, 3000, 3100, 3200));
+
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+        FilteredPattern filtered = new FilteredPattern(pattern, servicesActive);
+
+        assertEquals(2, filtered.nTrips);
+        assertArrayEquals(new int[] { 0, 2 }, filtered.originalTripIndex);
+        assertTrue(filtered.noOvertaking);
+
+        assertEquals(0, filtered.findEarliestTrip(0, 999));
+        // departures must be strictly after the earliest board time
+        assertEquals(1, filtered.findEarliestTrip(0, 1000));
+        assertEquals(1, filtered.findEarliestTrip(1, 1500));
+        assertEquals(-1, filtered.findEarliestTrip(2, 3200));
+
+        // backing up from the second trip to the first one
+        assertEquals(0, filtered.findEarliestTrip(1, 1000, 1));
+        assertEquals(-1, filtered.findEarliestTrip(1, 1100, 1));
+    }
+
+    @Test
+    public void testOvertaking () {
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] { 0, 1, 2 }));
+        pattern.addTrip(makeTrip("SLOW", 0, 1000, 2000, 3000));
+        pattern.addTrip(makeTrip("FAST", 0, 1500, 1600, 1700));
+        pattern.addTrip(makeTrip("LATE", 0, 4000, 4100, 4200));
+
+        BitSet servicesActive = new BitSet();
+        servicesActive.set(0);
+        FilteredPattern filtered = new FilteredPattern(pattern, servicesActive);
+        assertFalse(filtered.noOvertaking);
+
+        // Same result as the linear scan: the first trip in list order that departs late enough.
+        assertEquals(0, filtered.findEarliestTrip(1, 1550));
+        assertEquals(2, filtered.findEarliestTrip(1, 2000));
+        // Backing up stops at the first trip that departs too early.
+        assertEquals(-1, filtered.findEarliestTrip(1, 1700, 2));
+        assertEquals(0, filtered.findEarliestTrip(1, 1550, 2));
+    }
+
+}
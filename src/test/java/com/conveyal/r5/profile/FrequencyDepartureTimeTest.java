@@ -0,0 +1,61 @@
+package com.conveyal.r5.profile;
+
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.transit.TripSchedule;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the computation of boarding times on frequency routes used in the FastRaptorWorker Monte Carlo search, and
+ * check that the worst-case departure used in the scheduled search is an upper bound on every randomized departure.
+ */
+public class FrequencyDepartureTimeTest {
+
+    /** A trip running every ten minutes from 8:00 until 9:00, taking two minutes between each of its three stops. */
+    private static TripSchedule makeFrequencyTrip () {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = "TRIP";
+        Frequency frequency = new Frequency();
+        frequency.trip_id = "TRIP";
+        frequency.start_time = 8 * 60 * 60;
+        frequency.end_time = 9 * 60 * 60;
+        frequency.headway_secs = 10 * 60;
+        int[] times = new int[] { 0, 120, 240 };
+        return TripSchedule.create(trip, times.clone(), times.clone(), Arrays.asList(frequency), new int[] { 1, 2, 3 }, 0);
+    }
+
+    @Test
+    public void testRandomDepartureTime () {
+        TripSchedule schedule = makeFrequencyTrip();
+        int offset = 180;
+        // Before service begins, board the first vehicle, which passes the second stop at 8:05.
+        assertEquals(8 * 3600 + 300, FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, 1, offset, 0, 7 * 3600));
+        // Departures must be strictly after the earliest board time.
+        assertEquals(8 * 3600 + 900, FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, 1, offset, 0, 8 * 3600 + 300));
+        // The last vehicle leaves the first stop at 8:53 and passes the last stop at 8:57.
+        assertEquals(8 * 3600 + 53 * 60 + 240, FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, 2, offset, 0, 8 * 3600 + 50 * 60));
+        assertEquals(-1, FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, 2, offset, 0, 8 * 3600 + 57 * 60));
+    }
+
+    @Test
+    public void testWorstCaseIsUpperBound () {
+        TripSchedule schedule = makeFrequencyTrip();
+        for (int earliestTime = 7 * 3600 + 3000; earliestTime < 9 * 3600 + 600; earliestTime += 37) {
+            for (int stopPosition = 0; stopPosition < 3; stopPosition++) {
+                int worstCase = FastRaptorWorker.getWorstCaseFrequencyDepartureTime(schedule, stopPosition, 0, earliestTime);
+                if (worstCase == -1) continue;
+                for (int offset = 0; offset < 600; offset += 7) {
+                    int departure = FastRaptorWorker.getRandomFrequencyDepartureTime(schedule, stopPosition, offset, 0, earliestTime);
+                    assertTrue(departure > earliestTime);
+                    assertTrue(departure <= worstCase);
+                }
+            }
+        }
+    }
+
+}
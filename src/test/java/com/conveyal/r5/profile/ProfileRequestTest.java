@@ -60,4 +60,20 @@ public class ProfileRequestTest {
         Instant got = Instant.ofEpochMilli(profileRequest.getFromTimeDate());
         assertEquals(expected, got);
     }
+
+    @Test
+    public void testMonteCarloDrawsPerMinute() throws Exception {
+        profileRequest.fromTime = 7*3600;
+        profileRequest.toTime = 8*3600;
+        profileRequest.monteCarloDraws = 220;
+        // at least the requested number of draws in total, spread evenly over the minutes of the time window
+        assertEquals(4, profileRequest.getMonteCarloDrawsPerMinute());
+        profileRequest.monteCarloDraws = 60;
+        assertEquals(1, profileRequest.getMonteCarloDrawsPerMinute());
+        profileRequest.toTime = 7*3600 + 10*60;
+        assertEquals(6, profileRequest.getMonteCarloDrawsPerMinute());
+        // every minute gets at least one draw
+        profileRequest.monteCarloDraws = 0;
+        assertEquals(1, profileRequest.getMonteCarloDrawsPerMinute());
+    }
 }
@@ -0,0 +1,55 @@
+package com.conveyal.r5.profile;
+
+import org.junit.Test;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.*;
+
+/**
+ * Check that the operations on RaptorState which only visit stops touched since the last reset give the same results
+ * as visiting every stop would.
+ */
+public class RaptorStateTest {
+
+    @Test
+    public void testMinResetAndCopy () {
+        RaptorState previous = new RaptorState(5, 600, false);
+        RaptorState current = new RaptorState(5, 600, false);
+        current.previous = previous;
+        assertFalse(current.retainsPaths());
+
+        previous.setDepartureTime(1000);
+        current.setDepartureTime(1000);
+        previous.setTimeAtStop(1, 1200, -1, -1, 0, 0, true, -1, -1, -1);
+        current.setTimeAtStop(3, 1500, 7, 1, 60, 240, false, 0, 1260, -1);
+        current.min(previous);
+
+        assertEquals(1200, current.bestTimes[1]);
+        assertEquals(1500, current.bestTimes[3]);
+        assertEquals(1500, current.bestNonTransferTimes[3]);
+        assertEquals(7, current.previousPatterns[3]);
+        assertEquals(UNREACHED, current.bestTimes[0]);
+
+        // Moving to an earlier departure time should prune arrivals that are now beyond the maximum duration.
+        current.setDepartureTime(800);
+        assertEquals(1200, current.bestTimes[1]);
+        assertEquals(UNREACHED, current.bestTimes[3]);
+
+        RaptorState copy = new RaptorState(5, 600, false);
+        copy.setTimeAtStop(4, 1100, -1, -1, 0, 0, true, -1, -1, -1);
+        copy.copyFrom(current);
+        assertArrayEquals(current.bestTimes, copy.bestTimes);
+        assertArrayEquals(current.bestNonTransferTimes, copy.bestNonTransferTimes);
+        assertArrayEquals(current.previousPatterns, copy.previousPatterns);
+        assertArrayEquals(current.previousStop, copy.previousStop);
+
+        current.reset();
+        RaptorState fresh = new RaptorState(5, 600, false);
+        assertArrayEquals(fresh.bestTimes, current.bestTimes);
+        assertArrayEquals(fresh.bestNonTransferTimes, current.bestNonTransferTimes);
+        assertArrayEquals(fresh.previousPatterns, current.previousPatterns);
+        assertArrayEquals(fresh.previousStop, current.previousStop);
+        assertTrue(current.bestStopsTouched.isEmpty());
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.conveyal.r5.profile;
+
+import org.junit.Test;
+
+import static com.conveyal.r5.profile.FastRaptorWorker.UNREACHED;
+import static org.junit.Assert.*;
+
+/**
+ * Check that RAPTOR results written one iteration at a time end up in the right place in the stop-major storage.
+ */
+public class TravelTimesToStopsTest {
+
+    @Test
+    public void testRecordIterations () {
+        TravelTimesToStops travelTimes = new TravelTimesToStops(3, 4);
+
+        // Clock times for a search departing at 1000, recorded for the first two iterations.
+        travelTimes.recordIterations(0, 2, new int[] { 1100, UNREACHED, 1300 }, 1000);
+        // Clock times for searches departing one minute earlier, recorded for the last two iterations.
+        travelTimes.recordIteration(2, new int[] { 1100, 1200, UNREACHED }, 940);
+        travelTimes.recordIteration(3, new int[] { 1000, 1200, UNREACHED }, 940);
+
+        assertArrayEquals(new int[] {
+                100, 100, 160, 60,
+                UNREACHED, UNREACHED, 260, 260,
+                300, 300, UNREACHED, UNREACHED
+        }, travelTimes.travelTimes);
+
+        assertEquals(260, travelTimes.getTravelTime(1, 3));
+        assertEquals(8, travelTimes.offsetForStop(2));
+    }
+
+}
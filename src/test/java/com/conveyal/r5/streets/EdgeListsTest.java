@@ -0,0 +1,52 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that the edge lists of a scenario copy of a street layer, which extend the lists of the base layer with the
+ * edges added by the scenario, are the same as lists built from scratch.
+ */
+public class EdgeListsTest {
+
+    @Test
+    public void testScenarioEdgeLists () {
+        StreetLayer streetLayer = new StreetLayer(new TNBuilderConfig());
+        int v0 = streetLayer.vertexStore.addVertex(37.363, -122.123);
+        int v1 = streetLayer.vertexStore.addVertex(37.364, -122.123);
+        int v2 = streetLayer.vertexStore.addVertex(37.364, -122.124);
+        streetLayer.edgeStore.addStreetPair(v0, v1, 15000, 1);
+        streetLayer.edgeStore.addStreetPair(v1, v2, 15000, 2);
+        streetLayer.buildEdgeLists();
+
+        assertArrayEquals(new int[] { 0, 3 }, streetLayer.incomingEdges.get(v1).toArray());
+        assertArrayEquals(new int[] { 1, 2 }, streetLayer.outgoingEdges.get(v1).toArray());
+
+        TransportNetwork scenarioNetwork = new TransportNetwork();
+        scenarioNetwork.scenarioId = "scenario";
+        StreetLayer copy = streetLayer.scenarioCopy(scenarioNetwork, true);
+        int v3 = copy.vertexStore.addVertex(37.365, -122.123);
+        copy.edgeStore.addStreetPair(v1, v3, 15000, 3);
+        copy.edgeStore.addStreetPair(v3, v0, 15000, 4);
+        copy.buildEdgeLists();
+
+        int nVertices = copy.vertexStore.getVertexCount();
+        EdgeLists outgoing = EdgeLists.build(copy.edgeStore, nVertices, true);
+        EdgeLists incoming = EdgeLists.build(copy.edgeStore, nVertices, false);
+        for (int vertex = 0; vertex < nVertices; vertex++) {
+            assertArrayEquals(outgoing.get(vertex).toArray(), copy.outgoingEdges.get(vertex).toArray());
+            assertArrayEquals(incoming.get(vertex).toArray(), copy.incomingEdges.get(vertex).toArray());
+            assertEquals(incoming.size(vertex), copy.incomingEdges.size(vertex));
+        }
+        assertArrayEquals(new int[] { 1, 2, 4 }, copy.outgoingEdges.get(v1).toArray());
+        assertEquals(6, copy.incomingEdges.get(v0, 1));
+
+        // The base layer is not affected by the scenario.
+        assertArrayEquals(new int[] { 1, 2 }, streetLayer.outgoingEdges.get(v1).toArray());
+        assertEquals(0, streetLayer.outgoingEdges.size(v3));
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that landmarks give lower bounds on the real costs of street searches, and that point to point searches guided
+ * by landmarks find the same costs at the destination as searches without a destination, which explore everything.
+ * The straight-line heuristic is not compared, as it assumes a car speed that is exceeded on fast roads.
+ */
+public class LandmarksTest {
+
+    private static final StreetRouter.State.RoutingVariable DURATION =
+            StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+
+    @Test
+    public void testSamePointToPointCosts () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        streetLayer.indexStreets();
+        streetLayer.buildLandmarks(EnumSet.of(StreetMode.CAR, StreetMode.WALK));
+        assertEquals(Landmarks.DEFAULT_LANDMARK_COUNT, streetLayer.getLandmarks(StreetMode.CAR).size());
+        assertNull(streetLayer.getLandmarks(StreetMode.BICYCLE));
+
+        Random random = new Random(42);
+        int nVertices = streetLayer.getVertexCount();
+        int nReached = 0;
+        for (int i = 0; i < 40; i++) {
+            int origin = random.nextInt(nVertices);
+            VertexStore.Vertex destination = streetLayer.vertexStore.getCursor(random.nextInt(nVertices));
+            for (StreetMode streetMode : new StreetMode[] { StreetMode.CAR, StreetMode.WALK }) {
+                Split split = streetLayer.findSplit(destination.getLat(), destination.getLon(),
+                        StreetLayer.LINK_RADIUS_METERS, streetMode);
+                if (split == null) continue;
+                for (StreetRouter.State.RoutingVariable variable : StreetRouter.State.RoutingVariable.values()) {
+                    int expected = valueAtDestination(streetLayer, streetMode, variable, origin, split, false);
+                    int value = valueAtDestination(streetLayer, streetMode, variable, origin, split, true);
+                    assertEquals(expected, value);
+                    if (expected != Integer.MAX_VALUE) nReached++;
+                }
+            }
+        }
+        assertTrue(nReached > 0);
+    }
+
+    private static int valueAtDestination (StreetLayer streetLayer, StreetMode streetMode,
+                                           StreetRouter.State.RoutingVariable quantityToMinimize, int origin,
+                                           Split destination, boolean goalDirected) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = streetMode;
+        router.quantityToMinimize = quantityToMinimize;
+        router.setOrigin(origin);
+        if (goalDirected) router.setDestination(destination);
+        router.route();
+        StreetRouter.State state = router.getState(destination);
+        router.release();
+        return state == null ? Integer.MAX_VALUE : state.getRoutingVariable(quantityToMinimize);
+    }
+
+    @Test
+    public void testLowerBounds () throws Exception {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        streetLayer.indexStreets();
+        Landmarks landmarks = Landmarks.build(streetLayer, StreetMode.CAR, 8);
+        assertTrue(landmarks.isApplicable(streetLayer));
+        assertNull(landmarks.bound(new int[0], new int[0], false,
+                StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS, new ProfileRequest()));
+
+        // The same bounds must come out of a serialized copy.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(landmarks);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Landmarks copy = (Landmarks) in.readObject();
+        in.close();
+
+        Random random = new Random(42);
+        int nVertices = streetLayer.getVertexCount();
+        long totalBound = 0;
+        for (boolean reverseSearch : new boolean[] { false, true }) {
+            for (int i = 0; i < 10; i++) {
+                int target = random.nextInt(nVertices);
+                int origin = random.nextInt(nVertices);
+                int[] targets = new int[] { target };
+                int[] origins = new int[] { origin };
+                ProfileRequest request = new ProfileRequest();
+                Landmarks.Bound bound = landmarks.bound(origins, targets, reverseSearch, DURATION, request);
+                Landmarks.Bound copyBound = copy.bound(origins, targets, reverseSearch, DURATION, request);
+                // A search from the target in the opposite direction finds the real costs to (or from) the target.
+                StreetRouter router = new StreetRouter(streetLayer);
+                router.streetMode = StreetMode.CAR;
+                router.quantityToMinimize = DURATION;
+                router.profileRequest.reverseSearch = !reverseSearch;
+                router.setOrigin(target);
+                router.route();
+                for (int v = 0; v < nVertices; v++) {
+                    int lowerBound = bound.lowerBound(v);
+                    assertEquals(lowerBound, copyBound.lowerBound(v));
+                    int travelTime = router.getTravelTimeToVertex(v);
+                    if (travelTime == Integer.MAX_VALUE) continue;
+                    assertTrue(lowerBound <= travelTime);
+                    totalBound += lowerBound;
+                }
+                router.release();
+            }
+        }
+        assertTrue(totalBound > 0);
+    }
+
+}
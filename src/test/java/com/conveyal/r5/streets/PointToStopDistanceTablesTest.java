@@ -0,0 +1,70 @@
+package com.conveyal.r5.streets;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test inversion of stop-to-point distance tables into the packed point-to-stop form used in propagation.
+ */
+public class PointToStopDistanceTablesTest {
+
+    @Test
+    public void testInversion () {
+        PointToStopDistanceTables tables = new PointToStopDistanceTables(Arrays.asList(
+                new int[] { 2, 200, 0, 100 }, // stop 0 is near points 2 and 0
+                null,                         // stop 1 is not linked
+                new int[] { 0, 300 }          // stop 2 is near point 0
+        ), 4);
+
+        assertArrayEquals(new int[] { 0, 2, 2, 3, 3 }, tables.offsets);
+        assertArrayEquals(new int[] { 0, 2, 0 }, tables.stops);
+        assertArrayEquals(new int[] { 100, 300, 200 }, tables.distancesMillimeters);
+        assertEquals(2, tables.nStopsForPoint(0));
+        assertEquals(0, tables.nStopsForPoint(1));
+        assertEquals(0, tables.nStopsForPoint(3));
+    }
+
+    /** Test inversion of many tables covering several blocks of points, which are filled in parallel. */
+    @Test
+    public void testLargeInversion () {
+        int nPoints = 10000, nStops = 300;
+        Random random = new Random(17);
+        List<int[]> stopToPointDistanceTables = new ArrayList<>();
+        for (int stop = 0; stop < nStops; stop++) {
+            // Each stop is near a random run of consecutive points, which may cross block boundaries.
+            int firstPoint = random.nextInt(nPoints - 500);
+            int nNearbyPoints = random.nextInt(500);
+            int[] table = new int[nNearbyPoints * 2];
+            for (int i = 0; i < nNearbyPoints; i++) {
+                table[i * 2] = firstPoint + i;
+                table[i * 2 + 1] = random.nextInt(2000000);
+            }
+            stopToPointDistanceTables.add(nNearbyPoints == 0 ? null : table);
+        }
+        PointToStopDistanceTables tables = new PointToStopDistanceTables(stopToPointDistanceTables, nPoints);
+
+        // Compare with the entries found by scanning all the tables for each point.
+        int entry = 0;
+        for (int point = 0; point < nPoints; point++) {
+            assertEquals(entry, tables.offsets[point]);
+            for (int stop = 0; stop < nStops; stop++) {
+                int[] table = stopToPointDistanceTables.get(stop);
+                if (table == null) continue;
+                for (int idx = 0; idx < table.length; idx += 2) {
+                    if (table[idx] != point) continue;
+                    assertEquals(stop, tables.stops[entry]);
+                    assertEquals(table[idx + 1], tables.distancesMillimeters[entry]);
+                    entry++;
+                }
+            }
+        }
+        assertEquals(entry, tables.offsets[nPoints]);
+    }
+
+}
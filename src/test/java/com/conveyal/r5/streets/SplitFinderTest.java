@@ -0,0 +1,96 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.vividsolutions.jts.geom.Envelope;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that linking points with a SplitFinder, which uses the packed segment indexes, finds exactly the same splits
+ * as the one-at-a-time StreetLayer.findSplit, on a base street layer and on a scenario copy where edges were split.
+ */
+public class SplitFinderTest {
+
+    @Test
+    public void testSameSplits () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        streetLayer.indexStreets();
+        Envelope envelope = streetLayer.getEnvelope();
+
+        Random random = new Random(42);
+        for (StreetMode mode : new StreetMode[] { StreetMode.WALK, StreetMode.CAR }) {
+            compareSplits(streetLayer, mode, envelope, random);
+        }
+
+        // Split some edges in a scenario copy, which deletes them and adds new edges.
+        TransportNetwork scenarioNetwork = new TransportNetwork();
+        scenarioNetwork.scenarioId = "scenario";
+        StreetLayer scenarioLayer = streetLayer.scenarioCopy(scenarioNetwork, true);
+        for (int i = 0; i < 20; i++) {
+            double lat = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            double lon = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+            scenarioLayer.getOrCreateVertexNear(lat, lon, StreetMode.WALK);
+        }
+        assertFalse(scenarioLayer.edgeStore.temporarilyDeletedEdges.isEmpty());
+        EdgeSegmentIndex[] indexes = scenarioLayer.getSegmentIndexes();
+        assertEquals(2, indexes.length);
+        assertSame(streetLayer.getSegmentIndexes()[0], indexes[0]);
+        compareSplits(scenarioLayer, StreetMode.WALK, envelope, random);
+    }
+
+    private static void compareSplits (StreetLayer streetLayer, StreetMode mode, Envelope envelope, Random random) {
+        SplitFinder.Search search = new SplitFinder(streetLayer, mode).newSearch();
+        // Also search a little outside the network, where some points are not linked at all.
+        envelope = new Envelope(envelope);
+        envelope.expandBy(0.02);
+        for (int i = 0; i < 2000; i++) {
+            double lat = envelope.getMinY() + random.nextDouble() * envelope.getHeight();
+            double lon = envelope.getMinX() + random.nextDouble() * envelope.getWidth();
+            Split expected = streetLayer.findSplit(lat, lon, StreetLayer.LINK_RADIUS_METERS, mode);
+            Split split = search.findSplit(lat, lon, StreetLayer.LINK_RADIUS_METERS);
+            if (expected == null) {
+                assertNull(split);
+                continue;
+            }
+            assertNotNull(split);
+            assertEquals(expected.edge, split.edge);
+            assertEquals(expected.seg, split.seg);
+            assertEquals(expected.distSquared, split.distSquared);
+            assertEquals(expected.distance0_mm, split.distance0_mm);
+            assertEquals(expected.distance1_mm, split.distance1_mm);
+            assertEquals(expected.vertex0, split.vertex0);
+            assertEquals(expected.vertex1, split.vertex1);
+        }
+    }
+
+    @Test
+    public void testHilbertIndex () {
+        // The first order curve visits the four cells in a U shape.
+        assertEquals(0, GeometryUtils.hilbertIndex(0, 0, 1));
+        assertEquals(1, GeometryUtils.hilbertIndex(0, 1, 1));
+        assertEquals(2, GeometryUtils.hilbertIndex(1, 1, 1));
+        assertEquals(3, GeometryUtils.hilbertIndex(1, 0, 1));
+        // Every cell of a higher order curve is visited exactly once, and consecutive cells are adjacent.
+        int order = 4, n = 1 << order;
+        int[] xs = new int[n * n], ys = new int[n * n];
+        boolean[] seen = new boolean[n * n];
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                int index = GeometryUtils.hilbertIndex(x, y, order);
+                assertFalse(seen[index]);
+                seen[index] = true;
+                xs[index] = x;
+                ys[index] = y;
+            }
+        }
+        for (int i = 1; i < n * n; i++) {
+            assertEquals(1, Math.abs(xs[i] - xs[i - 1]) + Math.abs(ys[i] - ys[i - 1]));
+        }
+    }
+
+}
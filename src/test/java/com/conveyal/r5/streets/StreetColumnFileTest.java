@@ -0,0 +1,174 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.trove.TIntMappedList;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that a street layer whose columns are mapped from a street column file is the same as the original, and that
+ * searches on it find the same results.
+ */
+public class StreetColumnFileTest {
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        File file = File.createTempFile("streets", ".streets");
+        file.deleteOnExit();
+        StreetColumnFile.write(streetLayer, file);
+
+        // Map the columns into a second copy of the same layer, as when a serialized network is read. That copy carries
+        // the header of the street column file it was written with.
+        StreetLayer mappedLayer = SubgraphStreetLayer.build();
+        mappedLayer.streetColumnFileHeader = streetLayer.streetColumnFileHeader;
+        StreetColumnFile.detach(mappedLayer);
+        assertTrue(StreetColumnFile.isDetached(mappedLayer));
+        StreetColumnFile.map(mappedLayer, file);
+        assertTrue(mappedLayer.edgeStore.flags instanceof TIntMappedList);
+        mappedLayer.indexStreets();
+        mappedLayer.buildEdgeLists();
+
+        assertEquals(streetLayer.edgeStore.nEdges(), mappedLayer.edgeStore.nEdges());
+        assertEquals(streetLayer.vertexStore.getVertexCount(), mappedLayer.vertexStore.getVertexCount());
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        EdgeStore.Edge mappedEdge = mappedLayer.edgeStore.getCursor();
+        while (edge.advance()) {
+            mappedEdge.seek(edge.getEdgeIndex());
+            assertEquals(edge.getFlags(), mappedEdge.getFlags());
+            assertEquals(edge.getSpeed(), mappedEdge.getSpeed());
+            assertEquals(edge.getFromVertex(), mappedEdge.getFromVertex());
+            assertEquals(edge.getToVertex(), mappedEdge.getToVertex());
+            assertEquals(edge.getLengthMm(), mappedEdge.getLengthMm());
+            assertEquals(edge.getOSMID(), mappedEdge.getOSMID());
+            assertEquals(edge.getInAngle(), mappedEdge.getInAngle());
+            assertEquals(edge.getOutAngle(), mappedEdge.getOutAngle());
+            assertEquals(edge.getGeometry(), mappedEdge.getGeometry());
+        }
+        VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor();
+        VertexStore.Vertex mappedVertex = mappedLayer.vertexStore.getCursor();
+        while (vertex.advance()) {
+            mappedVertex.seek(vertex.index);
+            assertEquals(vertex.getFixedLat(), mappedVertex.getFixedLat());
+            assertEquals(vertex.getFixedLon(), mappedVertex.getFixedLon());
+            for (VertexStore.VertexFlag flag : VertexStore.VertexFlag.values()) {
+                assertEquals(vertex.getFlag(flag), mappedVertex.getFlag(flag));
+            }
+        }
+
+        // The mapped columns cannot be modified.
+        try {
+            mappedEdge.seek(0);
+            mappedEdge.setFlag(EdgeStore.EdgeFlag.BIKE_PATH);
+            fail("Mapped columns should not be modifiable.");
+        } catch (UnsupportedOperationException e) {
+            // this is expected
+        }
+
+        // A scenario can still extend a copy of the mapped layer.
+        TransportNetwork scenarioNetwork = new TransportNetwork();
+        scenarioNetwork.scenarioId = "scenario";
+        StreetLayer scenarioLayer = mappedLayer.scenarioCopy(scenarioNetwork, true);
+        int newVertex = scenarioLayer.vertexStore.addVertex(39.0, -76.0);
+        EdgeStore.Edge newEdge = scenarioLayer.edgeStore.addStreetPair(0, newVertex, 10000, -1);
+        newEdge.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+        assertEquals(mappedLayer.edgeStore.nEdges() + 2, scenarioLayer.edgeStore.nEdges());
+        assertEquals(newVertex, scenarioLayer.edgeStore.getCursor(newEdge.getEdgeIndex()).getToVertex());
+        assertEquals(mappedEdge.getSpeed(), scenarioLayer.edgeStore.getCursor(0).getSpeed());
+
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.setOrigin(0);
+        router.route();
+        StreetRouter mappedRouter = new StreetRouter(mappedLayer);
+        mappedRouter.setOrigin(0);
+        mappedRouter.route();
+        for (int v = 0; v < streetLayer.vertexStore.getVertexCount(); v++) {
+            assertEquals(router.getTravelTimeToVertex(v), mappedRouter.getTravelTimeToVertex(v));
+        }
+    }
+
+    /**
+     * Rewriting a street column file must not disturb another layer (or process) that has the old file mapped, and
+     * must not leave temporary files behind.
+     */
+    @Test
+    public void testRewriteWhileMapped () throws Exception {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        File dir = Files.createTempDir();
+        File file = new File(dir, "network.dat.streets");
+        StreetColumnFile.write(streetLayer, file);
+        StreetLayer mappedLayer = SubgraphStreetLayer.build();
+        mappedLayer.streetColumnFileHeader = streetLayer.streetColumnFileHeader;
+        StreetColumnFile.detach(mappedLayer);
+        StreetColumnFile.map(mappedLayer, file);
+
+        // Write a file with different contents in the same place.
+        StreetLayer modifiedLayer = SubgraphStreetLayer.build();
+        modifiedLayer.edgeStore.lengths_mm.set(0, 12345);
+        StreetColumnFile.write(modifiedLayer, file);
+        assertArrayEquals(new String[] { file.getName() }, dir.list());
+
+        // The layer mapped before the rewrite still sees the old contents, and a layer mapped after it the new ones.
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        EdgeStore.Edge mappedEdge = mappedLayer.edgeStore.getCursor();
+        while (edge.advance()) {
+            mappedEdge.seek(edge.getEdgeIndex());
+            assertEquals(edge.getLengthMm(), mappedEdge.getLengthMm());
+            assertEquals(edge.getGeometry(), mappedEdge.getGeometry());
+        }
+        StreetLayer remappedLayer = SubgraphStreetLayer.build();
+        remappedLayer.streetColumnFileHeader = modifiedLayer.streetColumnFileHeader;
+        StreetColumnFile.detach(remappedLayer);
+        StreetColumnFile.map(remappedLayer, file);
+        assertEquals(12345, remappedLayer.edgeStore.getCursor(0).getLengthMm());
+
+        file.delete();
+        dir.delete();
+    }
+
+    /**
+     * A street column file must only be mapped into the street layer it was written from, not into one written with an
+     * earlier or later file in the same place, or one that was never written with a street column file at all.
+     */
+    @Test
+    public void testMismatchedFile () throws Exception {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        File file = File.createTempFile("streets", ".streets");
+        file.deleteOnExit();
+        StreetColumnFile.write(streetLayer, file);
+        StreetColumnFile.Header header = streetLayer.streetColumnFileHeader;
+        assertNotNull(header);
+        assertEquals(streetLayer.edgeStore.nEdges(), header.nEdges);
+        assertEquals(streetLayer.vertexStore.getVertexCount(), header.nVertices);
+
+        // Rebuilding the same network writes a file with a different ID in the same place.
+        StreetLayer rebuiltLayer = SubgraphStreetLayer.build();
+        StreetColumnFile.write(rebuiltLayer, file);
+        assertNotEquals(header, rebuiltLayer.streetColumnFileHeader);
+
+        StreetColumnFile.detach(streetLayer);
+        assertMismatched(streetLayer, file);
+        StreetLayer unwrittenLayer = SubgraphStreetLayer.build();
+        StreetColumnFile.detach(unwrittenLayer);
+        assertMismatched(unwrittenLayer, file);
+
+        StreetColumnFile.detach(rebuiltLayer);
+        StreetColumnFile.map(rebuiltLayer, file);
+        assertEquals(header.nEdges, rebuiltLayer.edgeStore.nEdges());
+    }
+
+    private static void assertMismatched (StreetLayer streetLayer, File file) throws Exception {
+        try {
+            StreetColumnFile.map(streetLayer, file);
+            fail("A street column file should not be mapped into a street layer it was not written from.");
+        } catch (StreetColumnFile.MismatchedFileException e) {
+            // this is expected
+        }
+        assertTrue(StreetColumnFile.isDetached(streetLayer));
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that a many-to-many street distance matrix holds the same distances as individual street searches.
+ */
+public class StreetDistanceMatrixTest {
+
+    @Test
+    public void testSameDistances () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        streetLayer.indexStreets();
+        int nVertices = streetLayer.getVertexCount();
+
+        Random random = new Random(42);
+        int[] originVertices = new int[50];
+        for (int o = 0; o < originVertices.length; o++) originVertices[o] = random.nextInt(nVertices);
+        originVertices[1] = -1; // an unlinked origin
+        int[] targetVertices = new int[500];
+        for (int t = 0; t < targetVertices.length; t++) targetVertices[t] = random.nextInt(nVertices);
+        targetVertices[0] = originVertices[0]; // a target at an origin
+        targetVertices[1] = -1; // an unlinked target
+        targetVertices[2] = targetVertices[3]; // two targets at the same vertex
+        int distanceLimitMeters = 2000;
+
+        StreetDistanceMatrix matrix = streetLayer.distanceMatrix(originVertices, targetVertices, StreetMode.WALK,
+                distanceLimitMeters);
+        assertEquals(originVertices.length, matrix.nOrigins);
+        assertEquals(targetVertices.length, matrix.nTargets);
+        assertEquals(0, matrix.get(0, 0));
+        assertEquals(0, matrix.nTargetsForOrigin(1));
+
+        int nReached = 0;
+        for (int o = 0; o < originVertices.length; o++) {
+            if (originVertices[o] < 0) continue;
+            StreetRouter router = new StreetRouter(streetLayer);
+            router.distanceLimitMeters = distanceLimitMeters;
+            router.quantityToMinimize = StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS;
+            router.setOrigin(originVertices[o]);
+            router.route();
+            for (int t = 0; t < targetVertices.length; t++) {
+                int expected;
+                if (targetVertices[t] < 0) {
+                    expected = StreetDistanceMatrix.UNREACHED;
+                } else if (targetVertices[t] == originVertices[o]) {
+                    expected = 0;
+                } else {
+                    expected = router.getValueAtVertex(targetVertices[t],
+                            StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS);
+                }
+                assertEquals(expected, matrix.get(o, t));
+                if (expected != StreetDistanceMatrix.UNREACHED) nReached++;
+            }
+            router.release();
+        }
+        assertEquals(matrix.targets.length, nReached);
+        assertTrue(nReached > 0);
+    }
+
+}
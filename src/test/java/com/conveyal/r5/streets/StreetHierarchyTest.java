@@ -0,0 +1,259 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.common.GeometryUtils;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.transit.TransitLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that searches using a contraction hierarchy find the same travel times as plain searches, and valid paths,
+ * on a grid of streets with varied speeds, one-way streets, streets closed to bicycles and turn restrictions. Stop and
+ * flag searches must also find the same stops and vertices.
+ */
+public class StreetHierarchyTest extends TurnTest {
+
+    private static final int GRID_SIZE = 12;
+
+    private int[][] vertices;
+
+    private void makeGrid (long seed) {
+        Random random = new Random(seed);
+        streetLayer = new StreetLayer(new TNBuilderConfig());
+        vertices = new int[GRID_SIZE][GRID_SIZE];
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                // Jitter the vertices so the turn costs vary.
+                double lat = 37.36 + y * 0.001 + random.nextDouble() * 0.0002;
+                double lon = -122.12 + x * 0.001 + random.nextDouble() * 0.0002;
+                vertices[y][x] = streetLayer.vertexStore.addVertex(lat, lon);
+            }
+        }
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                if (x + 1 < GRID_SIZE) addStreet(random, vertices[y][x], vertices[y][x + 1]);
+                if (y + 1 < GRID_SIZE) addStreet(random, vertices[y][x], vertices[y + 1][x]);
+            }
+        }
+        streetLayer.indexStreets();
+        streetLayer.buildEdgeLists();
+
+        // Add restrictions at random intersections, some of them with a via edge.
+        for (int i = 0; i < 25; i++) {
+            int vertex = random.nextInt(streetLayer.vertexStore.getVertexCount());
+            TIntList incoming = streetLayer.incomingEdges.get(vertex);
+            TIntList outgoing = streetLayer.outgoingEdges.get(vertex);
+            int from = incoming.get(random.nextInt(incoming.size()));
+            int to = outgoing.get(random.nextInt(outgoing.size()));
+            if (random.nextBoolean()) {
+                EdgeStore.Edge via = streetLayer.edgeStore.getCursor(to);
+                TIntList next = streetLayer.outgoingEdges.get(via.getToVertex());
+                restrictTurn(random.nextInt(3) == 0, from, next.get(random.nextInt(next.size())), to);
+            } else {
+                restrictTurn(random.nextInt(3) == 0, from, to);
+            }
+        }
+    }
+
+    private void addStreet (Random random, int from, int to) {
+        VertexStore.Vertex v = streetLayer.vertexStore.getCursor(from);
+        double fromLat = v.getLat(), fromLon = v.getLon();
+        v.seek(to);
+        int lengthMm = (int) (GeometryUtils.distance(fromLat, fromLon, v.getLat(), v.getLon()) * 1000);
+        EdgeStore.Edge e = streetLayer.edgeStore.addStreetPair(from, to, lengthMm, -1);
+        boolean oneWay = random.nextInt(5) == 0;
+        boolean bikesAllowed = random.nextInt(6) != 0;
+        // Speeds are in hundredths of meters per second.
+        short speed = (short) (500 + random.nextInt(2000));
+        for (int direction = 0; direction < 2; direction++) {
+            e.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+            e.setFlag(EdgeStore.EdgeFlag.LINKABLE);
+            if (direction == 0 || !oneWay) e.setFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+            if (bikesAllowed) e.setFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+            e.setSpeed(speed);
+            e.advance();
+        }
+    }
+
+    /** Route from the given vertex and return the travel time to every vertex. */
+    private int[] travelTimes (int origin, StreetMode streetMode, StreetRouter.State.RoutingVariable quantity,
+                               int timeLimitSeconds, boolean useHierarchy) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = streetMode;
+        router.quantityToMinimize = quantity;
+        router.timeLimitSeconds = timeLimitSeconds;
+        router.useStreetHierarchy = useHierarchy;
+        router.setOrigin(origin);
+        router.route();
+        assertEquals(useHierarchy, router.usedStreetHierarchy != null);
+        int nVertices = streetLayer.vertexStore.getVertexCount();
+        int[] result = new int[nVertices];
+        for (int vertex = 0; vertex < nVertices; vertex++) {
+            result[vertex] = router.getValueAtVertex(vertex, quantity);
+            if (useHierarchy) checkPath(router.getStateAtVertex(vertex), origin);
+        }
+        router.release();
+        return result;
+    }
+
+    /** Check that the path to a state is a connected series of edges from the origin with increasing weights. */
+    private void checkPath (StreetRouter.State state, int origin) {
+        if (state == null) return;
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+        while (state.backState != null) {
+            edge.seek(state.backEdge);
+            assertEquals(state.vertex, edge.getToVertex());
+            assertEquals(edge.getFromVertex(), state.backState.vertex);
+            assertTrue(state.getDurationSeconds() >= state.backState.getDurationSeconds());
+            assertTrue(state.weight > state.backState.weight);
+            state = state.backState;
+        }
+        assertEquals(origin, state.vertex);
+    }
+
+    private void compare (StreetMode streetMode, StreetRouter.State.RoutingVariable quantity, int timeLimitSeconds) {
+        int nVertices = streetLayer.vertexStore.getVertexCount();
+        for (int origin = 0; origin < nVertices; origin += 7) {
+            int[] expected = travelTimes(origin, streetMode, quantity, timeLimitSeconds, false);
+            int[] actual = travelTimes(origin, streetMode, quantity, timeLimitSeconds, true);
+            assertArrayEquals(String.format("%s from vertex %d", streetMode, origin), expected, actual);
+        }
+    }
+
+    /**
+     * A search minimizing weight under a time limit can reach vertices by faster paths of higher weight, which the
+     * hierarchy does not find, so it must be a plain search.
+     */
+    private void checkHierarchyNotUsed (StreetMode streetMode, StreetRouter.State.RoutingVariable quantity,
+                                        int timeLimitSeconds) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = streetMode;
+        router.quantityToMinimize = quantity;
+        router.timeLimitSeconds = timeLimitSeconds;
+        router.setOrigin(vertices[GRID_SIZE / 2][GRID_SIZE / 2]);
+        router.route();
+        assertNull(router.usedStreetHierarchy);
+        router.release();
+    }
+
+    @Test
+    public void testCar () {
+        for (long seed = 0; seed < 3; seed++) {
+            makeGrid(seed);
+            streetLayer.buildStreetHierarchies(Arrays.asList(StreetMode.CAR));
+            compare(StreetMode.CAR, StreetRouter.State.RoutingVariable.DURATION_SECONDS, 0);
+            compare(StreetMode.CAR, StreetRouter.State.RoutingVariable.DURATION_SECONDS, 60);
+            compare(StreetMode.CAR, StreetRouter.State.RoutingVariable.WEIGHT, 0);
+            checkHierarchyNotUsed(StreetMode.CAR, StreetRouter.State.RoutingVariable.WEIGHT, 60);
+        }
+    }
+
+    @Test
+    public void testBicycle () {
+        makeGrid(42);
+        streetLayer.buildStreetHierarchies(Arrays.asList(StreetMode.BICYCLE));
+        compare(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.DURATION_SECONDS, 0);
+        compare(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.WEIGHT, 0);
+        checkHierarchyNotUsed(StreetMode.BICYCLE, StreetRouter.State.RoutingVariable.WEIGHT, 120);
+    }
+
+    /**
+     * Run a car search from the given vertex that stops once it has found five stops, or five park and ride vertices,
+     * and return the travel times to the stops or vertices it found in ascending order.
+     */
+    private int[] searchTravelTimes (int origin, boolean stopSearch, boolean useHierarchy) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.CAR;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        router.profileRequest.minCarTime = 1;
+        router.useStreetHierarchy = useHierarchy;
+        if (stopSearch) {
+            router.transitStopSearch = true;
+            router.transitStopSearchQuantity = 5;
+        } else {
+            router.flagSearch = VertexStore.VertexFlag.PARK_AND_RIDE;
+            router.flagSearchQuantity = 5;
+        }
+        router.setOrigin(origin);
+        router.route();
+        assertEquals(useHierarchy, router.usedStreetHierarchy != null);
+        int[] result;
+        if (stopSearch) {
+            result = router.getReachedStops().values();
+        } else {
+            TIntObjectMap<StreetRouter.State> states = router.getReachedVertices(VertexStore.VertexFlag.PARK_AND_RIDE);
+            result = new int[states.size()];
+            int i = 0;
+            for (StreetRouter.State state : states.valueCollection()) {
+                if (useHierarchy) checkPath(state, origin);
+                result[i++] = state.getDurationSeconds();
+            }
+        }
+        router.release();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /** Stop and flag searches, which stop once they have found enough stops or vertices, find the same ones. */
+    @Test
+    public void testStopAndFlagSearches () {
+        makeGrid(3);
+        streetLayer.buildStreetHierarchies(Arrays.asList(StreetMode.CAR));
+        TransportNetwork network = new TransportNetwork();
+        network.transitLayer = new TransitLayer();
+        network.transitLayer.stopForStreetVertex = new TIntIntHashMap(16, 0.5f, -1, -1);
+        streetLayer.parentNetwork = network;
+        VertexStore.Vertex v = streetLayer.vertexStore.getCursor();
+        int nVertices = streetLayer.vertexStore.getVertexCount();
+        for (int vertex = 0; vertex < nVertices; vertex++) {
+            if (vertex % 5 == 0) network.transitLayer.stopForStreetVertex.put(vertex, vertex / 5);
+            if (vertex % 5 == 2) {
+                v.seek(vertex);
+                v.setFlag(VertexStore.VertexFlag.PARK_AND_RIDE);
+            }
+        }
+        for (int origin = 0; origin < nVertices; origin += 7) {
+            for (boolean stopSearch : new boolean[] { true, false }) {
+                int[] expected = searchTravelTimes(origin, stopSearch, false);
+                int[] actual = searchTravelTimes(origin, stopSearch, true);
+                assertArrayEquals(String.format("%s search from vertex %d", stopSearch ? "Stop" : "Flag", origin),
+                        expected, actual);
+            }
+        }
+    }
+
+    /** A hierarchy must not be used once edges have been added, as a scenario would. */
+    @Test
+    public void testAddedEdges () {
+        makeGrid(7);
+        streetLayer.buildStreetHierarchies(Arrays.asList(StreetMode.CAR));
+        StreetHierarchy hierarchy = streetLayer.getStreetHierarchy(StreetMode.CAR,
+                StreetRouter.State.RoutingVariable.DURATION_SECONDS);
+        assertTrue(hierarchy.isApplicable(streetLayer, new StreetRouter(streetLayer).profileRequest));
+
+        int vfar = streetLayer.vertexStore.addVertex(37.35, -122.12);
+        EdgeStore.Edge e = streetLayer.edgeStore.addStreetPair(vertices[0][0], vfar, 100000, -1);
+        e.setFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+        e.advance();
+        e.setFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+        streetLayer.buildEdgeLists();
+        assertFalse(hierarchy.isApplicable(streetLayer, new StreetRouter(streetLayer).profileRequest));
+
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.CAR;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        router.setOrigin(vertices[1][1]);
+        router.route();
+        assertTrue(router.getValueAtVertex(vfar, StreetRouter.State.RoutingVariable.DURATION_SECONDS) < Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that a StreetRouter reusing a pooled workspace gets the same results as one with a workspace of its own, and
+ * that a pooled workspace still works when the street layer gains edges, as happens when a scenario is applied.
+ */
+public class StreetRouterWorkspaceTest extends TurnTest {
+
+    private TIntIntMap route (int fromVertex) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.setOrigin(fromVertex);
+        router.route();
+        TIntIntMap result = router.getReachedVertices();
+        router.release();
+        return result;
+    }
+
+    @Test
+    public void testWorkspaceReuse () {
+        setUp(false);
+        // This router is never released, so it keeps its own workspace and later searches must use another one.
+        StreetRouter unreleased = new StreetRouter(streetLayer);
+        unreleased.setOrigin(vn);
+        unreleased.route();
+        TIntIntMap expected = unreleased.getReachedVertices();
+
+        // Run a few searches in a row to make sure labels from earlier searches are not visible to later ones.
+        route(vcenter);
+        route(vsw);
+        assertEquals(expected, route(vn));
+        // The results of the unreleased router were not disturbed by the other searches.
+        assertEquals(expected, unreleased.getReachedVertices());
+    }
+
+    @Test
+    public void testGrowingEdgeCount () {
+        setUp(false);
+        TIntIntMap before = route(vcenter);
+
+        // Add a new vertex and street, as a scenario would.
+        int vfar = streetLayer.vertexStore.addVertex(37.365, -122.123);
+        EdgeStore.Edge e = streetLayer.edgeStore.addStreetPair(vn, vfar, 15000, 8);
+        e.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+        e.advance();
+        e.setFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+        streetLayer.buildEdgeLists();
+
+        TIntIntMap after = route(vcenter);
+        assertFalse(before.containsKey(vfar));
+        assertTrue(after.containsKey(vfar));
+        assertTrue(after.get(vfar) > after.get(vn));
+        before.forEachEntry((vertex, weight) -> {
+            assertEquals(weight, after.get(vertex));
+            return true;
+        });
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+
+/**
+ * Builds the street layer for the small OSM extract in subgraph.vex, for tests that need a real street network.
+ */
+public class SubgraphStreetLayer {
+
+    /**
+     * @return a new street layer loaded from subgraph.vex, keeping floating subgraphs. Its streets are not yet
+     * indexed; tests that need the spatial index should call indexStreets on it.
+     */
+    public static StreetLayer build () {
+        OSM osm = new OSM(null);
+        osm.intersectionDetection = true;
+        osm.readFromUrl(SubgraphStreetLayer.class.getResource("subgraph.vex").toString());
+        StreetLayer streetLayer = new StreetLayer(TNBuilderConfig.defaultConfig());
+        streetLayer.loadFromOsm(osm, false, true);
+        return streetLayer;
+    }
+
+}
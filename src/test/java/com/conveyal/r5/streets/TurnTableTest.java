@@ -0,0 +1,118 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run all the turn restriction tests again with a turn table, and test that the turn table gives the same turn costs
+ * and the same car searches as computing the turns on the fly.
+ */
+public class TurnTableTest extends TurnRestrictionTest {
+
+    public TurnTableTest () {
+        useTurnTable = true;
+    }
+
+    @Test
+    public void testSameTurnCosts () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        for (boolean driveOnRight : new boolean[] { true, false }) {
+            TurnCostCalculator calculator = new TurnCostCalculator(streetLayer, driveOnRight);
+            streetLayer.edgeStore.turnTable = null;
+            int[][] expected = turnCosts(streetLayer, calculator);
+            streetLayer.edgeStore.turnTable = TurnTable.build(streetLayer, driveOnRight);
+            assertTrue(streetLayer.edgeStore.turnTable.size() > 0);
+            assertArrayEquals(expected, turnCosts(streetLayer, calculator));
+        }
+        // A turn between edges that do not meet is not in the table.
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor(0);
+        int otherEdge = streetLayer.outgoingEdges.get(edge.getFromVertex(), 0);
+        if (edge.getToVertex() != edge.getFromVertex()) {
+            assertEquals(TurnTable.NOT_TABULATED, streetLayer.edgeStore.getTurnTableCell(0, otherEdge));
+        }
+    }
+
+    /** The turn table is built for the driving side of the street layer, which routers on that layer use. */
+    @Test
+    public void testDrivingSide () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        for (boolean driveOnRight : new boolean[] { true, false }) {
+            streetLayer.driveOnRight = driveOnRight;
+            streetLayer.buildTurnTable();
+            assertEquals(driveOnRight, streetLayer.edgeStore.turnTable.driveOnRight);
+            assertEquals(driveOnRight, new StreetRouter(streetLayer).turnCostCalculator.driveOnRight);
+        }
+    }
+
+    /** @return the turn costs onto every edge leaving each vertex from every edge entering it. */
+    private static int[][] turnCosts (StreetLayer streetLayer, TurnCostCalculator calculator) {
+        int[][] costs = new int[streetLayer.getVertexCount()][];
+        for (int v = 0; v < costs.length; v++) {
+            int nIn = streetLayer.incomingEdges.size(v);
+            int nOut = streetLayer.outgoingEdges.size(v);
+            costs[v] = new int[nIn * nOut];
+            for (int i = 0; i < nIn; i++) {
+                for (int j = 0; j < nOut; j++) {
+                    costs[v][i * nOut + j] = calculator.computeTurnCost(streetLayer.incomingEdges.get(v, i),
+                            streetLayer.outgoingEdges.get(v, j), StreetMode.CAR);
+                }
+            }
+        }
+        return costs;
+    }
+
+    @Test
+    public void testSameSearches () {
+        StreetLayer streetLayer = SubgraphStreetLayer.build();
+        // Add some "no" and "only" restrictions at random intersections.
+        Random random = new Random(42);
+        int nVertices = streetLayer.getVertexCount();
+        for (int i = 0; i < 200; i++) {
+            int vertex = random.nextInt(nVertices);
+            int nIn = streetLayer.incomingEdges.size(vertex);
+            int nOut = streetLayer.outgoingEdges.size(vertex);
+            if (nIn < 2 || nOut < 2) continue;
+            TurnRestriction restriction = new TurnRestriction();
+            restriction.fromEdge = streetLayer.incomingEdges.get(vertex, random.nextInt(nIn));
+            restriction.toEdge = streetLayer.outgoingEdges.get(vertex, random.nextInt(nOut));
+            restriction.only = random.nextBoolean();
+            int index = streetLayer.turnRestrictions.size();
+            streetLayer.turnRestrictions.add(restriction);
+            streetLayer.edgeStore.turnRestrictions.put(restriction.fromEdge, index);
+            streetLayer.addReverseTurnRestriction(restriction, index);
+        }
+        assertFalse(streetLayer.turnRestrictions.isEmpty());
+        TurnTable turnTable = TurnTable.build(streetLayer, true);
+        assertTrue(turnTable.isTabulated(0));
+
+        for (boolean reverseSearch : new boolean[] { false, true }) {
+            for (int i = 0; i < 10; i++) {
+                int origin = random.nextInt(nVertices);
+                streetLayer.edgeStore.turnTable = null;
+                int[] expected = carTravelTimes(streetLayer, origin, reverseSearch);
+                streetLayer.edgeStore.turnTable = turnTable;
+                assertArrayEquals(expected, carTravelTimes(streetLayer, origin, reverseSearch));
+            }
+        }
+    }
+
+    private static int[] carTravelTimes (StreetLayer streetLayer, int origin, boolean reverseSearch) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.CAR;
+        // Compare the quantity being minimized, other quantities can differ between paths of equal weight.
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        router.profileRequest.reverseSearch = reverseSearch;
+        router.timeLimitSeconds = 20 * 60;
+        router.setOrigin(origin);
+        router.route();
+        int[] travelTimes = new int[streetLayer.getVertexCount()];
+        for (int v = 0; v < travelTimes.length; v++) travelTimes[v] = router.getTravelTimeToVertex(v);
+        router.release();
+        return travelTimes;
+    }
+
+}
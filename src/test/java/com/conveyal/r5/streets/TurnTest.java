@@ -15,6 +15,9 @@ public abstract class TurnTest {
     // center vertex index, n/s/e/w vertex indices, n/s/e/w edge indices (always starting from center).
     public int vcenter, vn, vs, ve, vw, vne, vnw, vsw, en, es, ee, ew, ene, enw, esw;
 
+    /** Whether to build a turn table for the street layer, and rebuild it whenever a turn restriction is added. */
+    protected boolean useTurnTable = false;
+
     public void setUp (boolean southernHemisphere) {
         // generate a street layer that looks like this
         // vnw vn
@@ -56,6 +59,7 @@ public abstract class TurnTest {
 
         streetLayer.indexStreets();
         streetLayer.buildEdgeLists();
+        if (useTurnTable) streetLayer.buildTurnTable();
     }
 
     /** create a turn restriction */
@@ -70,8 +74,7 @@ public abstract class TurnTest {
         streetLayer.turnRestrictions.add(restriction);
         streetLayer.edgeStore.turnRestrictions.put(restriction.fromEdge, ridx);
         streetLayer.addReverseTurnRestriction(restriction, ridx);
-
-
+        if (useTurnTable) streetLayer.buildTurnTable();
     }
 
     /**
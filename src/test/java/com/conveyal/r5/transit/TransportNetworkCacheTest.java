@@ -0,0 +1,254 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.r5.analyst.cluster.BundleManifest;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.streets.StreetRouter.State.RoutingVariable;
+import com.conveyal.r5.streets.TurnTable;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that scenario networks are applied once per scenario however many threads ask for them, that scenarios are
+ * applied to any one base network one at a time without holding up requests for other networks, that failures are
+ * not cached, and that networks built from manifests are ready for routing.
+ */
+public class TransportNetworkCacheTest {
+
+    /**
+     * A cache that makes empty networks rather than building or fetching them, and counts how many times each scenario
+     * is applied. Applying a scenario can be held up until released, or made to fail. It also records the largest
+     * number of scenarios that were ever being applied to the same base network at once.
+     */
+    private static class TestCache extends TransportNetworkCache {
+        final AtomicInteger nLoaded = new AtomicInteger();
+        final Map<String, AtomicInteger> nApplied = new ConcurrentHashMap<>();
+        final Map<String, CountDownLatch> held = new ConcurrentHashMap<>();
+        final Set<String> failing = ConcurrentHashMap.newKeySet();
+        final Map<TransportNetwork, AtomicInteger> nApplying = new ConcurrentHashMap<>();
+        final AtomicInteger maxApplyingPerNetwork = new AtomicInteger();
+
+        TestCache () {
+            super(null, Files.createTempDir());
+        }
+
+        @Override
+        TransportNetwork loadNetwork (String networkId) {
+            nLoaded.incrementAndGet();
+            return new TransportNetwork();
+        }
+
+        @Override
+        Scenario resolveScenario (String networkId, String scenarioId, ProfileRequest request) {
+            Scenario scenario = new Scenario();
+            scenario.id = scenarioId;
+            return scenario;
+        }
+
+        @Override
+        TransportNetwork applyScenario (Scenario scenario, TransportNetwork baseNetwork) {
+            AtomicInteger applying = nApplying.computeIfAbsent(baseNetwork, network -> new AtomicInteger());
+            maxApplyingPerNetwork.accumulateAndGet(applying.incrementAndGet(), Math::max);
+            try {
+                // Decide whether to fail before counting, so the outcome is settled once a test sees the count go up.
+                boolean fail = failing.contains(scenario.id);
+                nApplied(scenario.id).incrementAndGet();
+                CountDownLatch latch = held.get(scenario.id);
+                if (latch != null) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                if (fail) throw new RuntimeException("Scenario " + scenario.id + " failed.");
+                return new TransportNetwork();
+            } finally {
+                applying.decrementAndGet();
+            }
+        }
+
+        AtomicInteger nApplied (String scenarioId) {
+            return nApplied.computeIfAbsent(scenarioId, id -> new AtomicInteger());
+        }
+
+        CountDownLatch hold (String scenarioId) {
+            CountDownLatch latch = new CountDownLatch(1);
+            held.put(scenarioId, latch);
+            return latch;
+        }
+    }
+
+    private static ProfileRequest request (String scenarioId) {
+        ProfileRequest request = new ProfileRequest();
+        request.scenarioId = scenarioId;
+        return request;
+    }
+
+    private static void await (BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the cache.", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestsApplyOnce () throws Exception {
+        TestCache cache = new TestCache();
+        CountDownLatch latch = cache.hold("a");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TransportNetwork>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> cache.getNetworkForScenario("network", request("a"))));
+        }
+        await(() -> cache.nApplied("a").get() > 0);
+        // Give the other threads time to ask for the scenario while it is being applied.
+        Thread.sleep(100);
+        latch.countDown();
+        TransportNetwork scenarioNetwork = futures.get(0).get(10, TimeUnit.SECONDS);
+        assertNotNull(scenarioNetwork);
+        for (Future<TransportNetwork> future : futures) {
+            assertSame(scenarioNetwork, future.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, cache.nApplied("a").get());
+        assertEquals(1, cache.nLoaded.get());
+        assertSame(scenarioNetwork, cache.getNetworkForScenario("network", request("a")));
+        assertEquals(1, cache.nApplied("a").get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDifferentScenariosDoNotBlock () throws Exception {
+        TestCache cache = new TestCache();
+        CountDownLatch latch = cache.hold("slow");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        Future<TransportNetwork> slow = executor.submit(() -> cache.getNetworkForScenario("network", request("slow")));
+        await(() -> cache.nApplied("slow").get() > 0);
+        // A scenario on another base network, and the base network itself, are available right away.
+        Future<TransportNetwork> fast = executor.submit(() -> cache.getNetworkForScenario("other", request("fast")));
+        assertNotNull(fast.get(10, TimeUnit.SECONDS));
+        assertNotNull(cache.getNetwork("network"));
+        // Another scenario on the same base network waits until the first one has been applied.
+        Future<TransportNetwork> waiting =
+                executor.submit(() -> cache.getNetworkForScenario("network", request("waiting")));
+        Thread.sleep(100);
+        assertEquals(0, cache.nApplied("waiting").get());
+        assertFalse(slow.isDone());
+        latch.countDown();
+        assertNotNull(slow.get(10, TimeUnit.SECONDS));
+        assertNotNull(waiting.get(10, TimeUnit.SECONDS));
+        assertNotSame(slow.get(), fast.get());
+        assertNotSame(slow.get(), waiting.get());
+        executor.shutdown();
+    }
+
+    /** Many scenarios requested at once on one base network are applied one after another. */
+    @Test
+    public void testOneScenarioAtATimePerBaseNetwork () throws Exception {
+        TestCache cache = new TestCache();
+        CountDownLatch latch = cache.hold("first");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TransportNetwork>> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> cache.getNetworkForScenario("network", request("first"))));
+        await(() -> cache.nApplied("first").get() > 0);
+        for (int i = 0; i < 7; i++) {
+            String scenarioId = "scenario" + i;
+            futures.add(executor.submit(() -> cache.getNetworkForScenario("network", request(scenarioId))));
+        }
+        // Give the other threads time to pile up behind the first scenario.
+        Thread.sleep(100);
+        latch.countDown();
+        for (Future<TransportNetwork> future : futures) assertNotNull(future.get(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) assertEquals(1, cache.nApplied("scenario" + i).get());
+        assertEquals(1, cache.maxApplyingPerNetwork.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFailuresAreNotCached () throws Exception {
+        TestCache cache = new TestCache();
+        cache.failing.add("bad");
+        assertNull(cache.getNetworkForScenario("network", request("bad")));
+        assertNull(cache.getNetworkForScenario("network", request("bad")));
+        assertEquals(2, cache.nApplied("bad").get());
+        cache.failing.remove("bad");
+        TransportNetwork scenarioNetwork = cache.getNetworkForScenario("network", request("bad"));
+        assertNotNull(scenarioNetwork);
+        assertSame(scenarioNetwork, cache.getNetworkForScenario("network", request("bad")));
+        assertEquals(3, cache.nApplied("bad").get());
+    }
+
+    /** Networks built from a manifest get the same routing tables as networks built from files. */
+    @Test
+    public void testBuildNetworkFromManifest () throws Exception {
+        File cacheDir = Files.createTempDir();
+        Files.copy(new File(StreetLayer.class.getResource("reisterstown-via-restriction.pbf").toURI()),
+                new File(cacheDir, "osm.pbf"));
+        BundleManifest manifest = new BundleManifest();
+        manifest.osmId = "osm";
+        manifest.gtfsIds = new ArrayList<>();
+        JsonUtilities.objectMapper.writeValue(new File(cacheDir, "network.json"), manifest);
+
+        TransportNetworkCache cache = new TransportNetworkCache(null, cacheDir);
+        cache.builderConfig.streetHierarchyModes = EnumSet.of(StreetMode.CAR);
+        cache.builderConfig.landmarkModes = EnumSet.of(StreetMode.CAR);
+        TransportNetwork network = cache.buildNetworkFromManifest("network");
+        TurnTable turnTable = network.streetLayer.edgeStore.turnTable;
+        assertNotNull(turnTable);
+        assertEquals(network.streetLayer.edgeStore.nEdges(), turnTable.nEdges);
+        assertNotNull(network.streetLayer.getStreetHierarchy(StreetMode.CAR, RoutingVariable.DURATION_SECONDS));
+        assertNull(network.streetLayer.getStreetHierarchy(StreetMode.BICYCLE, RoutingVariable.DURATION_SECONDS));
+        assertNotNull(network.streetLayer.getLandmarks(StreetMode.CAR));
+        assertNull(network.streetLayer.getLandmarks(StreetMode.BICYCLE));
+    }
+
+    @Test
+    public void testPrefetch () throws Exception {
+        TestCache cache = new TestCache();
+        CountDownLatch latch = cache.hold("p");
+        // Prefetching the same scenario several times while it is being applied only applies it once.
+        for (int i = 0; i < 5; i++) cache.prefetchScenario("network", request("p"));
+        await(() -> cache.nApplied("p").get() > 0);
+        for (int i = 0; i < 5; i++) cache.prefetchScenario("network", request("p"));
+        latch.countDown();
+        await(() -> cache.getNetwork("network").scenarios.asMap().containsKey("p"));
+        assertNotNull(cache.getNetworkForScenario("network", request("p")));
+        // Once it is cached, prefetching does nothing.
+        cache.prefetchScenario("network", request("p"));
+        Thread.sleep(100);
+        assertEquals(1, cache.nApplied("p").get());
+
+        // A failed prefetch is not cached, so the task itself tries again.
+        cache.failing.add("q");
+        cache.prefetchScenario("network", request("q"));
+        await(() -> cache.nApplied("q").get() > 0);
+        cache.failing.remove("q");
+        await(() -> cache.getNetworkForScenario("network", request("q")) != null);
+        assertEquals(2, cache.nApplied("q").get());
+        // Requests without a scenario are not prefetched.
+        cache.prefetchScenario("network", new ProfileRequest());
+        assertEquals(1, cache.nLoaded.get());
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.conveyal.r5.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the indexed heap used as the StreetRouter priority queue against a brute force search for the minimum.
+ */
+public class IndexedIntMinHeapTest {
+
+    @Test
+    public void testDecreaseKey () {
+        IndexedIntMinHeap heap = new IndexedIntMinHeap(10);
+        assertTrue(heap.insertOrDecrease(3, 30));
+        assertTrue(heap.insertOrDecrease(5, 20));
+        assertTrue(heap.insertOrDecrease(7, 10));
+        // Raising a key is ignored, lowering it moves the item up.
+        assertFalse(heap.insertOrDecrease(7, 40));
+        assertTrue(heap.insertOrDecrease(3, 5));
+        assertEquals(3, heap.size());
+        assertEquals(5, heap.peekKey());
+        assertEquals(3, heap.poll());
+        assertFalse(heap.contains(3));
+        assertEquals(7, heap.poll());
+        // An item can be added again after it has been removed.
+        assertTrue(heap.insertOrDecrease(3, 1));
+        assertEquals(3, heap.poll());
+        assertEquals(5, heap.poll());
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testRandomOperations () {
+        Random random = new Random(42);
+        // Start small so that both the index and the heap have to grow.
+        IndexedIntMinHeap heap = new IndexedIntMinHeap(4);
+        int nItems = 2000;
+        int[] expectedKeys = new int[nItems];
+        Arrays.fill(expectedKeys, Integer.MAX_VALUE);
+        for (int operation = 0; operation < 100_000; operation++) {
+            if (random.nextInt(3) > 0) {
+                int item = random.nextInt(nItems);
+                int key = random.nextInt(1_000_000);
+                boolean changed = heap.insertOrDecrease(item, key);
+                assertEquals(key < expectedKeys[item], changed);
+                expectedKeys[item] = Math.min(expectedKeys[item], key);
+            } else if (!heap.isEmpty()) {
+                int minKey = Arrays.stream(expectedKeys).min().getAsInt();
+                assertEquals(minKey, heap.peekKey());
+                int item = heap.poll();
+                assertEquals(minKey, expectedKeys[item]);
+                expectedKeys[item] = Integer.MAX_VALUE;
+            }
+            if (operation % 20_000 == 0) {
+                heap.clear();
+                Arrays.fill(expectedKeys, Integer.MAX_VALUE);
+            }
+        }
+        for (int item = 0; item < nItems; item++) {
+            assertEquals(expectedKeys[item] != Integer.MAX_VALUE, heap.contains(item));
+        }
+    }
+
+}